@@ -0,0 +1,89 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures tiled light culling for a 1280x720 viewport with 16 pixel tiles,
+ * on calling thread and on one thread per processor core.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GlslLightCullerBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int mLightCount;
+	@Param({ "false", "true" })
+	public boolean mParallel;
+
+	private ExecutorService mExecutor;
+	private GlslLightCuller mCuller;
+	private float[] mLights;
+
+	@Benchmark
+	public int cull() {
+		mCuller.cull(mLights, mLightCount);
+		return mCuller.getTileLightCount(0);
+	}
+
+	@Setup
+	public void setUp() {
+		int threads = mParallel ? Runtime.getRuntime().availableProcessors()
+				: 1;
+		mExecutor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		mCuller = new GlslLightCuller(16, mExecutor, threads);
+		mCuller.setProjection(1.36f, 2.41f, .1f, 23f);
+		mCuller.setViewport(1280, 720);
+
+		Random random = new Random(1);
+		mLights = new float[mLightCount * GlslLightCuller.LIGHT_SIZE];
+		for (int i = 0; i < mLights.length; i += GlslLightCuller.LIGHT_SIZE) {
+			mLights[i] = random.nextFloat() * 30f - 15f;
+			mLights[i + 1] = random.nextFloat() * 20f - 10f;
+			mLights[i + 2] = -random.nextFloat() * 22f;
+			mLights[i + 3] = random.nextFloat() * 2f + .2f;
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (mExecutor != null) {
+			mExecutor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.scene;
+
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.harism.glsl.GlslMatrix;
+
+/**
+ * Compares updating model-view matrices and bounds of a whole hierarchy, as
+ * happens on every camera move, with GlslTransformStore against recursive
+ * traversal over objects laid out like GlslObject was before the store. Those
+ * hold seven 4x4 matrices each and calculate model-view, model-view-projection
+ * and normal matrices with full 4x4 products. Store is updated on calling
+ * thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GlslTransformStoreBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	public int mNodeCount;
+
+	private GlslTransformStore mStore;
+	private Vector<Node> mRoots;
+	private final float[] mViewRows = { 1f, 0f, 0f, 0f, 0f, 1f, 0f, -3f, 0f,
+			0f, 1f, -10f };
+	// View matrix matching mViewRows and projection matrix for nodes.
+	private final float[] mViewM = new float[16];
+	private final float[] mProjM = new float[16];
+
+	/**
+	 * Creates random hierarchy of given size. Every object is added under
+	 * one of the latest 1024 objects, which gives deep and wide subtrees
+	 * alike.
+	 */
+	static Vector<GlslObject> createHierarchy(int count, long seed) {
+		Random random = new Random(seed);
+		Vector<GlslObject> roots = new Vector<GlslObject>();
+		GlslObject[] objects = new GlslObject[count];
+		for (int i = 0; i < count; ++i) {
+			GlslObject object = random.nextInt(4) == 0 ? new GlslBox()
+					: new GlslObject();
+			object.setPosition(random.nextFloat() * 4f - 2f,
+					random.nextFloat() * 4f - 2f, random.nextFloat() * 4f - 2f);
+			object.setRotation(random.nextFloat() * 360f,
+					random.nextFloat() * 360f, random.nextFloat() * 360f);
+			object.setScaling(random.nextFloat() * .5f + .75f);
+			if (i < 8) {
+				roots.add(object);
+			} else {
+				objects[i - 1 - random.nextInt(Math.min(i, 1024))]
+						.addChild(object);
+			}
+			objects[i] = object;
+		}
+		return roots;
+	}
+
+	@Benchmark
+	public float objectPerNode() {
+		float radius = 0f;
+		for (Node root : mRoots) {
+			root.updateMatrices(mViewM, mProjM);
+			radius += root.mBounds[3];
+		}
+		return radius;
+	}
+
+	@Setup
+	public void setUp() {
+		Vector<GlslObject> roots = createHierarchy(mNodeCount, 1);
+		mStore = new GlslTransformStore(null, 1);
+		mStore.build(roots);
+		mRoots = new Vector<Node>();
+		for (GlslObject root : roots) {
+			mRoots.add(new Node(root));
+		}
+		GlslMatrix.setIdentityM(mViewM, 0);
+		for (int r = 0; r < 3; ++r) {
+			for (int c = 0; c < 4; ++c) {
+				mViewM[c * 4 + r] = mViewRows[r * 4 + c];
+			}
+		}
+		GlslMatrix.setPerspectiveM(mProjM, 45f, 1f, .1f, 23f);
+	}
+
+	@Benchmark
+	public boolean transformStore() {
+		return mStore.update(mViewRows, true);
+	}
+
+	/**
+	 * Copy of GlslObject layout the store replaced, seven 4x4 matrices and a
+	 * Vector of children per object plus bounds added later on.
+	 */
+	private static final class Node {
+
+		// Local model matrix.
+		private final float[] mModelM = new float[16];
+		// World model-view matrix.
+		private final float[] mModelViewM = new float[16];
+		// World model-view-projection matrix.
+		private final float[] mModelViewProjM = new float[16];
+		// World normal matrix.
+		private final float[] mNormalM = new float[16];
+
+		// If true, mModelM will be recalculated on next call to
+		// updateMatrices().
+		private boolean mRecalculateModelM;
+		// Local scaling matrix.
+		private final float[] mScaleM = new float[16];
+		// Local rotation matrix.
+		private final float[] mRotateM = new float[16];
+		// Local translation matrix.
+		private final float[] mTranslateM = new float[16];
+
+		// Child nodes.
+		private final Vector<Node> mChildObjects = new Vector<Node>();
+
+		// Bounding sphere radius of own geometry, negative if none.
+		private final float mBoundingRadius;
+		// View space bounding sphere of node and its children.
+		private final float[] mBounds = new float[4];
+
+		/**
+		 * Creates node hierarchy matching given object hierarchy. Local
+		 * transformation is split back into scaling, rotation and translation
+		 * matrices, scaling being uniform.
+		 * 
+		 * @param object
+		 *            Object to copy values from
+		 */
+		public Node(GlslObject object) {
+			float[] rows = new float[12];
+			object.getLocalRows(rows, 0, new float[16]);
+			float scale = GlslMatrix.length(rows[0], rows[4], rows[8]);
+			GlslMatrix.setIdentityM(mModelM, 0);
+			GlslMatrix.setIdentityM(mScaleM, 0);
+			GlslMatrix.setIdentityM(mRotateM, 0);
+			GlslMatrix.setIdentityM(mTranslateM, 0);
+			mScaleM[0] = mScaleM[5] = mScaleM[10] = scale;
+			for (int r = 0; r < 3; ++r) {
+				for (int c = 0; c < 3; ++c) {
+					mRotateM[c * 4 + r] = rows[r * 4 + c] / scale;
+				}
+				mTranslateM[12 + r] = rows[r * 4 + 3];
+			}
+			mRecalculateModelM = true;
+			mBoundingRadius = object.getBoundingRadius();
+			for (GlslObject child : object.getChildObjects()) {
+				mChildObjects.add(new Node(child));
+			}
+		}
+
+		/**
+		 * Recursively updates matrices and bounds the way GlslObject did
+		 * before the store.
+		 * 
+		 * @param mvM
+		 *            Model View matrix
+		 * @param projM
+		 *            Projection matrix
+		 */
+		public void updateMatrices(float[] mvM, float[] projM) {
+			if (mRecalculateModelM) {
+				// Model-view matrix is recalculated below, use it as
+				// temporary.
+				GlslMatrix.multiplyMM(mModelViewM, 0, mScaleM, 0, mRotateM, 0);
+				GlslMatrix.multiplyMM(mModelM, 0, mTranslateM, 0,
+						mModelViewM, 0);
+				mRecalculateModelM = false;
+			}
+
+			// Add local model matrix to global model-view matrix.
+			GlslMatrix.multiplyMM(mModelViewM, 0, mvM, 0, mModelM, 0);
+			// Apply projection matrix to global model-view matrix.
+			GlslMatrix.multiplyMM(mModelViewProjM, 0, projM, 0, mModelViewM,
+					0);
+			// Fast inverse-transpose matrix calculation.
+			GlslMatrix.invTransposeM(mNormalM, 0, mModelViewM, 0);
+
+			float scale = GlslMatrix.length(mModelViewM[0], mModelViewM[1],
+					mModelViewM[2]);
+			mBounds[0] = mModelViewM[12];
+			mBounds[1] = mModelViewM[13];
+			mBounds[2] = mModelViewM[14];
+			mBounds[3] = mBoundingRadius < 0f ? -1f : mBoundingRadius * scale;
+			for (Node obj : mChildObjects) {
+				obj.updateMatrices(mModelViewM, projM);
+				mergeBounds(mBounds, obj.mBounds);
+			}
+		}
+
+		/**
+		 * Grows bounding sphere to contain another bounding sphere. Spheres
+		 * with negative radius are empty.
+		 * 
+		 * @param dst
+		 *            Sphere to grow
+		 * @param src
+		 *            Sphere to contain
+		 */
+		private static void mergeBounds(float[] dst, float[] src) {
+			if (src[3] < 0f) {
+				return;
+			}
+			if (dst[3] < 0f) {
+				System.arraycopy(src, 0, dst, 0, 4);
+				return;
+			}
+			float dx = src[0] - dst[0];
+			float dy = src[1] - dst[1];
+			float dz = src[2] - dst[2];
+			float dist = GlslMatrix.length(dx, dy, dz);
+			if (dist + src[3] <= dst[3]) {
+				return;
+			}
+			if (dist + dst[3] <= src[3]) {
+				System.arraycopy(src, 0, dst, 0, 4);
+				return;
+			}
+			float radius = (dist + dst[3] + src[3]) / 2f;
+			float t = (radius - dst[3]) / dist;
+			dst[0] += dx * t;
+			dst[1] += dy * t;
+			dst[2] += dz * t;
+			dst[3] = radius;
+		}
+	}
+}
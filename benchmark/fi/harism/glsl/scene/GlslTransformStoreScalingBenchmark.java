@@ -0,0 +1,82 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.scene;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how GlslTransformStore updates scale from one thread up to one
+ * thread per processor core. Thread count 0 stands for number of available
+ * processors. Counts above it would only measure time slicing and are clamped
+ * to it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GlslTransformStoreScalingBenchmark {
+
+	@Param({ "10000", "100000" })
+	public int mNodeCount;
+	@Param({ "1", "2", "4", "8", "0" })
+	public int mThreads;
+
+	private ExecutorService mExecutor;
+	private GlslTransformStore mStore;
+	private final float[] mViewRows = { 1f, 0f, 0f, 0f, 0f, 1f, 0f, -3f, 0f,
+			0f, 1f, -10f };
+
+	@Setup
+	public void setUp() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int threads = mThreads == 0 ? processors : Math.min(mThreads,
+				processors);
+		mExecutor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		mStore = new GlslTransformStore(mExecutor, threads);
+		mStore.build(GlslTransformStoreBenchmark.createHierarchy(mNodeCount,
+				1));
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (mExecutor != null) {
+			mExecutor.shutdown();
+		}
+	}
+
+	@Benchmark
+	public boolean update() {
+		return mStore.update(mViewRows, true);
+	}
+}
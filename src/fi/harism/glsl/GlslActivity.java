@@ -106,6 +106,16 @@ public final class GlslActivity extends Activity {
 		return true;
 	}
 
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		// Renderer is passed on to next instance on configuration changes,
+		// release its worker threads only once we're really finishing.
+		if (isFinishing()) {
+			mRenderer.release();
+		}
+	}
+
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
 		switch (item.getItemId()) {
@@ -131,6 +141,8 @@ public final class GlslActivity extends Activity {
 		super.onPause();
 		// GLSurfaceView.onPause must be called.
 		mSurfaceView.onPause();
+		// Rendering thread is paused, write profiling results if enabled.
+		mRenderer.writeTrace();
 		// Stop FPS timer.
 		mFpsTimer.cancel();
 		mFpsTimer = null;
@@ -199,9 +211,12 @@ public final class GlslActivity extends Activity {
 			if (separator != -1) {
 				fps = fps.substring(0, Math.min(fps.length(), separator + 2));
 			}
-			// Locate title TextView and update its content.
+			// Locate title TextView and update its content. Number of GL
+			// calls state cache dropped shows how much redundant state
+			// changes cost.
 			TextView tv = (TextView) findViewById(R.id.layout_title);
-			tv.setText(mAppName + " (" + fps + "fps)");
+			tv.setText(mAppName + " (" + fps + "fps, "
+					+ mRenderer.getEliminatedCalls() + " calls dropped)");
 		}
 	}
 
@@ -16,7 +16,6 @@
 
 package fi.harism.glsl;
 
-import android.opengl.Matrix;
 import fi.harism.glsl.scene.GlslAnimator;
 
 /**
@@ -57,6 +56,50 @@ public final class GlslCamera implements GlslAnimator.PathInterface {
 	public float mTouchX, mTouchY;
 	public float mTouchDX, mTouchDY;
 
+	// Incremented whenever matrices or lens blur values change.
+	private int mVersion;
+	// Incremented whenever touch values change, these are updated from UI
+	// thread.
+	private volatile int mTouchVersion;
+
+	/**
+	 * Getter for touch values version. Version is incremented on every call
+	 * to setTouch(..).
+	 * 
+	 * @return Touch version
+	 */
+	public int getTouchVersion() {
+		return mTouchVersion;
+	}
+
+	/**
+	 * Getter for camera version. Version is incremented whenever view or
+	 * projection matrix, or lens blur values, change.
+	 * 
+	 * @return Camera version
+	 */
+	public int getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * Getter for far clipping plane distance.
+	 * 
+	 * @return Far clipping plane
+	 */
+	public float getZFar() {
+		return mZFar;
+	}
+
+	/**
+	 * Getter for near clipping plane distance.
+	 * 
+	 * @return Near clipping plane
+	 */
+	public float getZNear() {
+		return mZNear;
+	}
+
 	/**
 	 * Calculates circle of confusion values based on given parameters.
 	 * 
@@ -80,6 +123,7 @@ public final class GlslCamera implements GlslAnimator.PathInterface {
 		// 1/focalLength = 1/imageDist + 1/focalPlane
 		mFocalLength = (imageDist * mPlaneInFocus)
 				/ (imageDist + mPlaneInFocus);
+		++mVersion;
 	}
 
 	@Override
@@ -133,6 +177,26 @@ public final class GlslCamera implements GlslAnimator.PathInterface {
 		setLensBlur(mFStop, mFocalPlane);
 	}
 
+	/**
+	 * Sets touch values for displacement filter.
+	 * 
+	 * @param x
+	 *            touch start x in texture coordinates
+	 * @param y
+	 *            touch start y in texture coordinates
+	 * @param dx
+	 *            x difference between start and current touch position
+	 * @param dy
+	 *            y difference between start and current touch position
+	 */
+	public void setTouch(float x, float y, float dx, float dy) {
+		mTouchX = x;
+		mTouchY = y;
+		mTouchDX = dx;
+		mTouchDY = dy;
+		++mTouchVersion;
+	}
+
 	/**
 	 * Generates view matrix.
 	 * 
@@ -167,7 +231,8 @@ public final class GlslCamera implements GlslAnimator.PathInterface {
 		mUpY = upY;
 		mUpZ = upZ;
 
-		Matrix.setLookAtM(mViewM, 0, mViewX, mViewY, mViewZ, mLookX, mLookY,
-				mLookZ, mUpX, mUpY, mUpZ);
+		GlslMatrix.setLookAtM(mViewM, 0, mViewX, mViewY, mViewZ, mLookX,
+				mLookY, mLookZ, mUpX, mUpY, mUpZ);
+		++mVersion;
 	}
 }
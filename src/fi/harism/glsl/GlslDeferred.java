@@ -0,0 +1,651 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import fi.harism.glsl.gl.GlslGl;
+import fi.harism.glsl.gl.GlslGlContext;
+import fi.harism.glsl.scene.GlslLight;
+import fi.harism.glsl.scene.GlslScene;
+import fi.harism.glsl.scene.GlslShaderIds;
+
+/**
+ * Class for deferred lighting. Scene geometry is rendered into a G-buffer of
+ * two RGBA8 textures, albedo and spheremap encoded view space normal plus 16
+ * bit linear depth. As GLES20 has no multiple render targets, both textures
+ * take a geometry pass of their own, but their count doesn't depend on number
+ * of lights. Lights are then accumulated from G-buffer by drawing screen space
+ * rectangles covering their volumes, so lighting cost scales with lit pixels.
+ * Optionally lights are culled on CPU into per tile lists instead, and all
+ * lights are then accumulated within one full screen pass which reads G-buffer
+ * only once per pixel.
+ */
+public final class GlslDeferred {
+
+	// G-buffer texture indices.
+	private static final int TEX_IDX_ALBEDO = 0;
+	private static final int TEX_IDX_NORMAL_DEPTH = 1;
+	// Floats per light vertex, position plus light position and radius.
+	private static final int VERTEX_SIZE = 6;
+	// Vertices per light rectangle.
+	private static final int VERTICES_PER_LIGHT = 6;
+	// Tile size in pixels for tiled culling.
+	private static final int TILE_SIZE = 16;
+	// Width of light index and light data lookup textures.
+	private static final int LOOKUP_WIDTH = 256;
+	// Maximum number of light indices, offsets are stored in 16 bits.
+	private static final int MAX_LIGHT_INDICES = 0xFFFF;
+	// Lookup texture indices.
+	private static final int TEX_IDX_TILES = 0;
+	private static final int TEX_IDX_LIGHT_INDICES = 1;
+	private static final int TEX_IDX_LIGHT_DATA = 2;
+	// Full screen quad vertices.
+	private static final float[] QUAD_COORDS = { -1f, 1f, -1f, -1f, 1f, 1f,
+			1f, -1f };
+
+	// G-buffer FBO, allocated once first needed.
+	private GlslFbo mGBuffer = new GlslFbo();
+	private int mWidth, mHeight;
+	// Viewport scale, G-buffer is rendered into lower left corner of it.
+	private float mViewportScale = 1f;
+
+	// Shaders for G-buffer passes.
+	private GlslShader mAlbedoShader = new GlslShader();
+	private GlslShaderIds mAlbedoShaderIds = new GlslShaderIds();
+	private GlslShader mNormalDepthShader = new GlslShader();
+	private GlslShaderIds mNormalDepthShaderIds = new GlslShaderIds();
+	// Shader for accumulating lights.
+	private GlslShader mLightShader = new GlslShader();
+
+	// Light rectangle vertices, grown as needed.
+	private float[] mLightData = {};
+	private FloatBuffer mLightVertices;
+	// Projection scale x, scale y, near and far plane distances.
+	private final float[] mProjection = new float[4];
+	// Screen space bounds of a light.
+	private final float[] mBounds = new float[4];
+
+	// Tiled culling, shader is null if not supported by device.
+	private boolean mTiledEnabled;
+	private GlslShader mTiledShader;
+	private GlslLightCuller mCuller;
+	// Light positions and radii packed for culler.
+	private float[] mTiledLights = {};
+	// Lookup texture contents, grown as needed.
+	private ByteBuffer mTileData, mLightIndexData, mLightData16;
+	// Lookup textures, generated once first needed.
+	private int[] mLookupTextures = {};
+	private int mLightIndexHeight, mLightDataHeight;
+	private FloatBuffer mQuadVertices;
+
+	/**
+	 * Constructor for deferred lighting.
+	 * 
+	 * @param executor
+	 *            Executor for culling lights in parallel, or null
+	 * @param taskCount
+	 *            Number of tasks culling is split into, usually number of
+	 *            threads executor runs
+	 */
+	public GlslDeferred(ExecutorService executor, int taskCount) {
+		mCuller = new GlslLightCuller(TILE_SIZE, executor, taskCount);
+		mQuadVertices = ByteBuffer.allocateDirect(QUAD_COORDS.length * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		mQuadVertices.put(QUAD_COORDS).position(0);
+	}
+
+	/**
+	 * Initializes shaders which are read from given Context.
+	 * 
+	 * @param ctx
+	 *            Context to read shader sources from
+	 * @param lightFs
+	 *            Fragment shader used for accumulating lights
+	 * @param specularFs
+	 *            Source for specularTerm(..) function used by tiled shader
+	 */
+	public void init(Context ctx, String lightFs, String specularFs) {
+		String sceneVs = ctx.getString(R.string.shader_scene_vs);
+		setProgram(mAlbedoShader, mAlbedoShaderIds, sceneVs,
+				ctx.getString(R.string.shader_deferred_albedo_fs));
+		setProgram(mNormalDepthShader, mNormalDepthShaderIds, sceneVs,
+				ctx.getString(R.string.shader_deferred_normal_depth_fs));
+		mLightShader.setProgram(
+				ctx.getString(R.string.shader_deferred_light_vs), lightFs);
+
+		// Tiled shader needs highp floats for decoding lookup textures, it's
+		// left unused on devices not supporting it.
+		mTiledShader = new GlslShader();
+		try {
+			mTiledShader.setProgram(ctx.getString(R.string.shader_filter_vs),
+					"#define MAX_TILE_LIGHTS "
+							+ GlslLightCuller.MAX_TILE_LIGHTS + "\n"
+							+ ctx.getString(R.string.shader_deferred_tiled_fs)
+							+ specularFs);
+		} catch (RuntimeException ex) {
+			mTiledShader = null;
+		}
+		// Lookup textures from previous context are generated again.
+		mLookupTextures = new int[0];
+	}
+
+	/**
+	 * Sets G-buffer size. Underlying FBO is released and allocated again
+	 * once rendered into.
+	 * 
+	 * @param width
+	 *            Render target width
+	 * @param height
+	 *            Render target height
+	 */
+	public void init(int width, int height) {
+		mGBuffer.reset();
+		mWidth = width;
+		mHeight = height;
+	}
+
+	/**
+	 * Renders albedo, normal and depth of given scene into G-buffer. Leaves
+	 * G-buffer FBO bound.
+	 * 
+	 * @param scene
+	 *            Scene to render
+	 * @param camera
+	 *            Camera scene is rendered with
+	 */
+	public void renderGeometry(GlslScene scene, GlslCamera camera) {
+		GlslGl gl = GlslGlContext.get();
+		if (mGBuffer.getTextureCount() == 0) {
+			mGBuffer.init(mWidth, mHeight, 2, true, false);
+		}
+		mGBuffer.setViewportScale(mViewportScale);
+		mGBuffer.bind();
+
+		// Albedo pass fills depth buffer too.
+		mGBuffer.bindTexture(TEX_IDX_ALBEDO);
+		gl.glClearColor(0f, 0f, 0f, 0f);
+		gl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+		mAlbedoShader.useProgram();
+		scene.render(mAlbedoShaderIds, true);
+
+		// Normal and depth pass, cleared to far plane.
+		mGBuffer.bindTexture(TEX_IDX_NORMAL_DEPTH);
+		gl.glClearColor(.5f, .5f, 1f, 1f);
+		gl.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+		gl.glDepthMask(false);
+		mNormalDepthShader.useProgram();
+		gl.glUniform1f(mNormalDepthShader.getHandle("uZFar"), camera.getZFar());
+		scene.render(mNormalDepthShaderIds, false);
+		gl.glDepthMask(true);
+	}
+
+	/**
+	 * Adds diffuse and specular light from given lights into currently bound
+	 * render target, which is expected to be of G-buffer size. Alpha channel
+	 * is left unaffected.
+	 * 
+	 * @param lights
+	 *            Lights to accumulate
+	 * @param camera
+	 *            Camera scene was rendered with
+	 * @param diffuseFactor
+	 *            Diffuse light factor
+	 * @param specularFactor
+	 *            Specular light factor
+	 */
+	public void renderLights(Vector<GlslLight> lights, GlslCamera camera,
+			float diffuseFactor, float specularFactor) {
+		GlslGl gl = GlslGlContext.get();
+		boolean tiled = mTiledEnabled && mTiledShader != null;
+		int count = tiled ? updateTiles(lights, camera) : -1;
+		if (count == -1) {
+			// Lights don't fit into tile lists, fall back to light
+			// rectangles instead of dropping any.
+			tiled = false;
+			count = updateLightVertices(lights, camera);
+		}
+		if (count == 0) {
+			return;
+		}
+		GlslShader shader = tiled ? mTiledShader : mLightShader;
+
+		gl.glDisable(GLES20.GL_CULL_FACE);
+		gl.glDisable(GLES20.GL_DEPTH_TEST);
+		gl.glEnable(GLES20.GL_BLEND);
+		gl.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE);
+		gl.glColorMask(true, true, true, false);
+
+		shader.useProgram();
+		gl.glActiveTexture(GLES20.GL_TEXTURE0);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D,
+				mGBuffer.getTexture(TEX_IDX_ALBEDO));
+		gl.glActiveTexture(GLES20.GL_TEXTURE1);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D,
+				mGBuffer.getTexture(TEX_IDX_NORMAL_DEPTH));
+		gl.glUniform1i(shader.getHandle("sAlbedo"), 0);
+		gl.glUniform1i(shader.getHandle("sNormalDepth"), 1);
+		// G-buffer texture size for texture lookups, viewport size for
+		// reconstructing positions as viewport may not cover whole texture.
+		gl.glUniform2f(shader.getHandle("uInvViewSize"), 1f / mWidth,
+				1f / mHeight);
+		gl.glUniform2f(shader.getHandle("uInvViewportSize"),
+				1f / mGBuffer.getViewportWidth(),
+				1f / mGBuffer.getViewportHeight());
+		gl.glUniform2f(shader.getHandle("uInvProjScale"),
+				1f / camera.mProjM[0], 1f / camera.mProjM[5]);
+		gl.glUniform1f(shader.getHandle("uZFar"), camera.getZFar());
+		gl.glUniform1f(shader.getHandle("uDiffuseFactor"), diffuseFactor);
+		gl.glUniform1f(shader.getHandle("uSpecularFactor"), specularFactor);
+
+		if (tiled) {
+			drawTiles(shader, camera);
+		} else {
+			drawLightRectangles(shader, count);
+		}
+
+		gl.glColorMask(true, true, true, true);
+		gl.glDisable(GLES20.GL_BLEND);
+		gl.glEnable(GLES20.GL_DEPTH_TEST);
+		gl.glEnable(GLES20.GL_CULL_FACE);
+	}
+
+	/**
+	 * Releases G-buffer FBO and lookup textures.
+	 */
+	public void reset() {
+		GlslGl gl = GlslGlContext.get();
+		mGBuffer.reset();
+		gl.glDeleteTextures(mLookupTextures.length, mLookupTextures, 0);
+		mLookupTextures = new int[0];
+	}
+
+	/**
+	 * Enables or disables tiled light culling. Has no effect on devices not
+	 * supporting highp floats in fragment shaders.
+	 * 
+	 * @param tiledEnabled
+	 *            If true, lights are culled into per tile lists
+	 */
+	public void setTiledCulling(boolean tiledEnabled) {
+		mTiledEnabled = tiledEnabled;
+	}
+
+	/**
+	 * Scales viewport of G-buffer. Render target given lights are accumulated
+	 * into is expected to use same viewport scale.
+	 * 
+	 * @param scale
+	 *            Viewport scale between (0, 1]
+	 */
+	public void setViewportScale(float scale) {
+		mViewportScale = scale;
+	}
+
+	/**
+	 * Returns byte buffer of at least given capacity, positioned at zero.
+	 * 
+	 * @param buffer
+	 *            Existing buffer or null
+	 * @param capacity
+	 *            Capacity needed in bytes
+	 * @return Given buffer or a new one if it was too small
+	 */
+	private ByteBuffer allocate(ByteBuffer buffer, int capacity) {
+		if (buffer == null || buffer.capacity() < capacity) {
+			buffer = ByteBuffer.allocateDirect(capacity).order(
+					ByteOrder.nativeOrder());
+		}
+		buffer.position(0);
+		return buffer;
+	}
+
+	/**
+	 * Draws light rectangles stored into light vertex buffer.
+	 * 
+	 * @param shader
+	 *            Light shader in use
+	 * @param count
+	 *            Number of light rectangles
+	 */
+	private void drawLightRectangles(GlslShader shader, int count) {
+		GlslGl gl = GlslGlContext.get();
+		int aPosition = shader.getHandle("aPosition");
+		int aLight = shader.getHandle("aLight");
+		mLightVertices.position(0);
+		gl.glVertexAttribPointer(aPosition, 2, GLES20.GL_FLOAT, false,
+				VERTEX_SIZE * 4, mLightVertices);
+		gl.glEnableVertexAttribArray(aPosition);
+		mLightVertices.position(2);
+		gl.glVertexAttribPointer(aLight, 4, GLES20.GL_FLOAT, false,
+				VERTEX_SIZE * 4, mLightVertices);
+		gl.glEnableVertexAttribArray(aLight);
+		gl.glDrawArrays(GLES20.GL_TRIANGLES, 0, count * VERTICES_PER_LIGHT);
+
+	}
+
+	/**
+	 * Binds lookup textures and draws full screen quad with tiled shader.
+	 * 
+	 * @param shader
+	 *            Tiled shader in use
+	 * @param camera
+	 *            Camera scene was rendered with
+	 */
+	private void drawTiles(GlslShader shader, GlslCamera camera) {
+		GlslGl gl = GlslGlContext.get();
+		gl.glActiveTexture(GLES20.GL_TEXTURE2);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D, mLookupTextures[TEX_IDX_TILES]);
+		gl.glActiveTexture(GLES20.GL_TEXTURE3);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D,
+				mLookupTextures[TEX_IDX_LIGHT_INDICES]);
+		gl.glActiveTexture(GLES20.GL_TEXTURE4);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D,
+				mLookupTextures[TEX_IDX_LIGHT_DATA]);
+		gl.glUniform1i(shader.getHandle("sTiles"), 2);
+		gl.glUniform1i(shader.getHandle("sLightIndices"), 3);
+		gl.glUniform1i(shader.getHandle("sLightData"), 4);
+		gl.glUniform2f(shader.getHandle("uTileCount"),
+				mCuller.getTileCountX(), mCuller.getTileCountY());
+		gl.glUniform1f(shader.getHandle("uTileSize"), TILE_SIZE);
+		gl.glUniform2f(shader.getHandle("uLookupHeight"), mLightIndexHeight,
+				mLightDataHeight);
+		gl.glUniform1f(shader.getHandle("uRange"), getRange(camera));
+
+		int aPosition = shader.getHandle("aPosition");
+		gl.glVertexAttribPointer(aPosition, 2, GLES20.GL_FLOAT, false, 0,
+				mQuadVertices);
+		gl.glEnableVertexAttribArray(aPosition);
+		gl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+	}
+
+	/**
+	 * Getter for range light data is quantized into. Lights beyond far plane
+	 * are culled, and range covers the rest with some margin for lights at
+	 * view frustum edges.
+	 * 
+	 * @param camera
+	 *            Camera scene was rendered with
+	 * @return Light coordinates are stored within [-range, range]
+	 */
+	private float getRange(GlslCamera camera) {
+		return camera.getZFar() * 2f;
+	}
+
+	/**
+	 * Stores value within [-range, range] as 16 bit unsigned integer into
+	 * byte buffer, high byte first.
+	 * 
+	 * @param buffer
+	 *            Buffer to write into
+	 * @param value
+	 *            Value to store
+	 * @param range
+	 *            Value range
+	 */
+	private void put16(ByteBuffer buffer, float value, float range) {
+		int v = Math.round((value / range * 0.5f + 0.5f) * 0xFFFF);
+		v = Math.max(0, Math.min(0xFFFF, v));
+		buffer.put((byte) (v >> 8)).put((byte) v);
+	}
+
+	/**
+	 * Stores one light rectangle vertex into light data array.
+	 * 
+	 * @param idx
+	 *            Index to write at
+	 * @param x
+	 *            Vertex x in normalized device coordinates
+	 * @param y
+	 *            Vertex y in normalized device coordinates
+	 * @param pos
+	 *            Light view space position
+	 * @param radius
+	 *            Light radius
+	 * @return Index after written vertex
+	 */
+	private int putVertex(int idx, float x, float y, float[] pos, float radius) {
+		mLightData[idx++] = x;
+		mLightData[idx++] = y;
+		mLightData[idx++] = pos[0];
+		mLightData[idx++] = pos[1];
+		mLightData[idx++] = pos[2];
+		mLightData[idx++] = radius;
+		return idx;
+	}
+
+	/**
+	 * Helper method for compiling scene shader and fetching its ids.
+	 * 
+	 * @param shader
+	 *            Shader to compile
+	 * @param ids
+	 *            Ids to update
+	 * @param vs
+	 *            Vertex shader source
+	 * @param fs
+	 *            Fragment shader source
+	 */
+	private void setProgram(GlslShader shader, GlslShaderIds ids, String vs,
+			String fs) {
+		shader.setProgram(vs, fs);
+		int shaderIds[] = shader.getHandles("uProjM", "uInstanceRows",
+				"aPosition", "aNormal", "aColor", "aInstance");
+		ids.uProjM = shaderIds[0];
+		ids.uInstanceRows = shaderIds[1];
+		ids.aPosition = shaderIds[2];
+		ids.aNormal = shaderIds[3];
+		ids.aColor = shaderIds[4];
+		ids.aInstance = shaderIds[5];
+	}
+
+	/**
+	 * Stores projection parameters of given camera.
+	 * 
+	 * @param camera
+	 *            Camera scene was rendered with
+	 */
+	private void setProjection(GlslCamera camera) {
+		mProjection[0] = camera.mProjM[0];
+		mProjection[1] = camera.mProjM[5];
+		mProjection[2] = camera.getZNear();
+		mProjection[3] = camera.getZFar();
+	}
+
+	/**
+	 * Calculates screen space rectangles covering light volumes into light
+	 * vertex buffer. Lights whose volume is not visible are skipped.
+	 * 
+	 * @param lights
+	 *            Lights to process
+	 * @param camera
+	 *            Camera scene was rendered with
+	 * @return Number of light rectangles generated
+	 */
+	private int updateLightVertices(Vector<GlslLight> lights,
+			GlslCamera camera) {
+		int size = lights.size() * VERTICES_PER_LIGHT * VERTEX_SIZE;
+		if (mLightVertices == null || mLightData.length < size) {
+			mLightData = new float[size];
+			mLightVertices = ByteBuffer.allocateDirect(size * 4)
+					.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+
+		setProjection(camera);
+		float[] sphere = new float[GlslLightCuller.LIGHT_SIZE];
+		int count = 0;
+		for (GlslLight light : lights) {
+			float[] pos = light.getPosition();
+			float radius = light.getRadius();
+			sphere[0] = pos[0];
+			sphere[1] = pos[1];
+			sphere[2] = pos[2];
+			sphere[3] = radius;
+			// Skip lights whose volume is not visible.
+			if (!GlslLightCuller.getScreenBounds(sphere, 0, mProjection,
+					mBounds)) {
+				continue;
+			}
+			float x0 = mBounds[0], y0 = mBounds[1];
+			float x1 = mBounds[2], y1 = mBounds[3];
+
+			// Two triangles, every vertex carrying light position and radius.
+			int idx = count * VERTICES_PER_LIGHT * VERTEX_SIZE;
+			idx = putVertex(idx, x0, y0, pos, radius);
+			idx = putVertex(idx, x1, y0, pos, radius);
+			idx = putVertex(idx, x0, y1, pos, radius);
+			idx = putVertex(idx, x0, y1, pos, radius);
+			idx = putVertex(idx, x1, y0, pos, radius);
+			idx = putVertex(idx, x1, y1, pos, radius);
+			++count;
+		}
+
+		mLightVertices.position(0);
+		mLightVertices.put(mLightData, 0, count * VERTICES_PER_LIGHT
+				* VERTEX_SIZE);
+		return count;
+	}
+
+	/**
+	 * Uploads RGBA8 lookup texture contents. Texture is generated first if
+	 * needed.
+	 * 
+	 * @param index
+	 *            Lookup texture index
+	 * @param width
+	 *            Texture width
+	 * @param height
+	 *            Texture height
+	 * @param data
+	 *            Texture data
+	 */
+	private void updateLookupTexture(int index, int width, int height,
+			ByteBuffer data) {
+		GlslGl gl = GlslGlContext.get();
+		if (mLookupTextures.length == 0) {
+			mLookupTextures = new int[3];
+			gl.glGenTextures(3, mLookupTextures, 0);
+			for (int texture : mLookupTextures) {
+				gl.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+				gl.glTexParameteri(GLES20.GL_TEXTURE_2D,
+						GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+				gl.glTexParameteri(GLES20.GL_TEXTURE_2D,
+						GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+				gl.glTexParameteri(GLES20.GL_TEXTURE_2D,
+						GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+				gl.glTexParameteri(GLES20.GL_TEXTURE_2D,
+						GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+			}
+		}
+		data.position(0);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D, mLookupTextures[index]);
+		gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width,
+				height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, data);
+	}
+
+	/**
+	 * Culls lights into per tile lists and uploads them into lookup textures.
+	 * Tile texture stores 16 bit offset into light index texture plus light
+	 * count, light index texture 16 bit light indices, and light data texture
+	 * quantized position and radius in two texels per light.
+	 * 
+	 * @param lights
+	 *            Lights to process
+	 * @param camera
+	 *            Camera scene was rendered with
+	 * @return Number of lights processed, or -1 if some tile has more lights
+	 *         than its list or light index texture holds
+	 */
+	private int updateTiles(Vector<GlslLight> lights, GlslCamera camera) {
+		int lightCount = Math.min(lights.size(), MAX_LIGHT_INDICES);
+		if (lightCount == 0) {
+			return 0;
+		}
+		if (mTiledLights.length < lightCount * GlslLightCuller.LIGHT_SIZE) {
+			mTiledLights = new float[lightCount * GlslLightCuller.LIGHT_SIZE];
+		}
+		for (int i = 0; i < lightCount; ++i) {
+			GlslLight light = lights.get(i);
+			float[] pos = light.getPosition();
+			int idx = i * GlslLightCuller.LIGHT_SIZE;
+			mTiledLights[idx] = pos[0];
+			mTiledLights[idx + 1] = pos[1];
+			mTiledLights[idx + 2] = pos[2];
+			mTiledLights[idx + 3] = light.getRadius();
+		}
+		setProjection(camera);
+		mCuller.setProjection(mProjection[0], mProjection[1], mProjection[2],
+				mProjection[3]);
+		mCuller.setViewport(mGBuffer.getViewportWidth(),
+				mGBuffer.getViewportHeight());
+		mCuller.cull(mTiledLights, lightCount);
+		if (mCuller.getOverflowCount() > 0) {
+			return -1;
+		}
+
+		// Tile and light index textures.
+		int tileCountX = mCuller.getTileCountX();
+		int tileCountY = mCuller.getTileCountY();
+		int tileCount = tileCountX * tileCountY;
+		int indexCount = 0;
+		for (int tile = 0; tile < tileCount; ++tile) {
+			indexCount += mCuller.getTileLightCount(tile);
+		}
+		if (indexCount > MAX_LIGHT_INDICES) {
+			return -1;
+		}
+		mLightIndexHeight = Math.max(1, (indexCount + LOOKUP_WIDTH - 1)
+				/ LOOKUP_WIDTH);
+		mTileData = allocate(mTileData, tileCount * 4);
+		mLightIndexData = allocate(mLightIndexData, mLightIndexHeight
+				* LOOKUP_WIDTH * 4);
+		int offset = 0;
+		for (int tile = 0; tile < tileCount; ++tile) {
+			int count = mCuller.getTileLightCount(tile);
+			mTileData.put((byte) (offset >> 8)).put((byte) offset);
+			mTileData.put((byte) count).put((byte) 0);
+			for (int i = 0; i < count; ++i) {
+				int light = mCuller.getTileLight(tile, i);
+				mLightIndexData.put((byte) (light >> 8)).put((byte) light);
+				mLightIndexData.put((byte) 0).put((byte) 0);
+			}
+			offset += count;
+		}
+		updateLookupTexture(TEX_IDX_TILES, tileCountX, tileCountY, mTileData);
+		updateLookupTexture(TEX_IDX_LIGHT_INDICES, LOOKUP_WIDTH,
+				mLightIndexHeight, mLightIndexData);
+
+		// Light data texture.
+		float range = getRange(camera);
+		mLightDataHeight = (lightCount * 2 + LOOKUP_WIDTH - 1) / LOOKUP_WIDTH;
+		mLightData16 = allocate(mLightData16, mLightDataHeight * LOOKUP_WIDTH
+				* 4);
+		for (int i = 0; i < lightCount * GlslLightCuller.LIGHT_SIZE; ++i) {
+			put16(mLightData16, mTiledLights[i], range);
+		}
+		updateLookupTexture(TEX_IDX_LIGHT_DATA, LOOKUP_WIDTH,
+				mLightDataHeight, mLightData16);
+		return lightCount;
+	}
+
+}
@@ -0,0 +1,127 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl;
+
+/**
+ * Controller for dynamic resolution. Frame times are averaged over a few
+ * frames and compared against a target frame time; viewport scale is lowered
+ * when frames take too long and raised again once they fit within target.
+ * Frame intervals can't go below display refresh rate, so there is no direct
+ * way of knowing how much headroom there is. Instead scale is raised after a
+ * delay, which doubles every time raising it caused scale to drop back, to
+ * avoid oscillating between two scales.
+ */
+public final class GlslDynamicResolution {
+
+	// Smallest viewport scale used.
+	public static final float MIN_SCALE = 0.5f;
+	// Amount scale is changed at once.
+	private static final float SCALE_STEP = 0.05f;
+	// Number of frames averaged before scale is adjusted.
+	private static final int FRAME_INTERVAL = 8;
+	// Longest delay, in intervals, before scale is raised.
+	private static final int MAX_RAISE_DELAY = 64;
+	// Averages above target times this value lower scale.
+	private static final float LOWER_THRESHOLD = 1.1f;
+	// Averages below target times this value allow raising scale.
+	private static final float RAISE_THRESHOLD = 1.03f;
+
+	// Target frame time in nanoseconds.
+	private long mTargetNanos = 16666667;
+	// Current viewport scale.
+	private float mScale = 1f;
+	// Frame times summed during current interval.
+	private long mFrameNanos;
+	private int mFrameCount;
+	// Intervals to wait until scale is raised, and current delay.
+	private int mRaiseCountdown = 1;
+	private int mRaiseDelay = 1;
+	// True if scale was raised after previous interval.
+	private boolean mRaised;
+
+	/**
+	 * Getter for current viewport scale.
+	 * 
+	 * @return Scale between [MIN_SCALE, 1]
+	 */
+	public float getScale() {
+		return mScale;
+	}
+
+	/**
+	 * Resets scale to full resolution and forgets measured frame times.
+	 */
+	public void reset() {
+		mScale = 1f;
+		mFrameNanos = 0;
+		mFrameCount = 0;
+		mRaiseCountdown = mRaiseDelay = 1;
+		mRaised = false;
+	}
+
+	/**
+	 * Setter for target frame time.
+	 * 
+	 * @param targetMillis
+	 *            Target frame time in milliseconds, e.g 16.6 for 60 fps
+	 */
+	public void setTargetFrameTime(float targetMillis) {
+		mTargetNanos = (long) (targetMillis * 1000000);
+	}
+
+	/**
+	 * Adds time taken by last frame. Scale is adjusted once enough frames
+	 * have been measured.
+	 * 
+	 * @param frameNanos
+	 *            Time between last two frames in nanoseconds
+	 * @return true if scale changed
+	 */
+	public boolean update(long frameNanos) {
+		mFrameNanos += frameNanos;
+		if (++mFrameCount < FRAME_INTERVAL) {
+			return false;
+		}
+		long average = mFrameNanos / mFrameCount;
+		mFrameNanos = 0;
+		mFrameCount = 0;
+
+		float scale = mScale;
+		boolean raised = mRaised;
+		mRaised = false;
+		if (average > mTargetNanos * LOWER_THRESHOLD) {
+			// Lowering scale right after raising it means raising was too
+			// early, wait longer next time.
+			if (raised) {
+				mRaiseDelay = Math.min(mRaiseDelay * 2, MAX_RAISE_DELAY);
+			}
+			mRaiseCountdown = mRaiseDelay;
+			scale = Math.max(MIN_SCALE, mScale - SCALE_STEP);
+		} else if (average < mTargetNanos * RAISE_THRESHOLD
+				&& --mRaiseCountdown <= 0) {
+			mRaiseCountdown = mRaiseDelay;
+			scale = Math.min(1f, mScale + SCALE_STEP);
+			mRaised = scale != mScale;
+		}
+		if (scale != mScale) {
+			mScale = scale;
+			return true;
+		}
+		return false;
+	}
+
+}
@@ -17,6 +17,8 @@
 package fi.harism.glsl;
 
 import android.opengl.GLES20;
+import fi.harism.glsl.gl.GlslGl;
+import fi.harism.glsl.gl.GlslGlContext;
 
 /**
  * Helper class for handling frame buffer objects.
@@ -25,6 +27,8 @@ public class GlslFbo {
 
 	// FBO textures and depth buffer size.
 	private int mWidth, mHeight;
+	// Viewport size, sub-rectangle of FBO rendering is limited into.
+	private int mViewportWidth, mViewportHeight;
 	// FBO handle.
 	private int mFrameBufferHandle = -1;
 	// Optional depth buffer handle.
@@ -35,11 +39,13 @@ public class GlslFbo {
 	private int[] mTextureHandles = {};
 
 	/**
-	 * Binds this FBO into use and adjusts viewport to FBO size.
+	 * Binds this FBO into use and adjusts viewport to viewport size, which is
+	 * FBO size unless scaled down.
 	 */
 	public void bind() {
-		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBufferHandle);
-		GLES20.glViewport(0, 0, mWidth, mHeight);
+		GlslGl gl = GlslGlContext.get();
+		gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBufferHandle);
+		gl.glViewport(0, 0, mViewportWidth, mViewportHeight);
 	}
 
 	/**
@@ -50,7 +56,8 @@ public class GlslFbo {
 	 *            Index of texture to bind.
 	 */
 	public void bindTexture(int index) {
-		GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER,
+		GlslGl gl = GlslGlContext.get();
+		gl.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER,
 				GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D,
 				mTextureHandles[index], 0);
 	}
@@ -75,6 +82,33 @@ public class GlslFbo {
 		return mTextureHandles[index];
 	}
 
+	/**
+	 * Getter for number of textures.
+	 * 
+	 * @return Number of textures generated during init.
+	 */
+	public int getTextureCount() {
+		return mTextureHandles.length;
+	}
+
+	/**
+	 * Getter for viewport height.
+	 * 
+	 * @return Viewport height in pixels.
+	 */
+	public int getViewportHeight() {
+		return mViewportHeight;
+	}
+
+	/**
+	 * Getter for viewport width.
+	 * 
+	 * @return Viewport width in pixels.
+	 */
+	public int getViewportWidth() {
+		return mViewportWidth;
+	}
+
 	/**
 	 * Getter for FBO width.
 	 * 
@@ -117,59 +151,57 @@ public class GlslFbo {
 	 */
 	public void init(int width, int height, int textureCount,
 			boolean genDepthBuffer, boolean genStencilBuffer) {
+		GlslGl gl = GlslGlContext.get();
 
 		// Just in case.
 		reset();
 
 		// Store FBO size.
-		mWidth = width;
-		mHeight = height;
+		mWidth = mViewportWidth = width;
+		mHeight = mViewportHeight = height;
 
 		// Genereta FBO.
 		int handle[] = { 0 };
-		GLES20.glGenFramebuffers(1, handle, 0);
+		gl.glGenFramebuffers(1, handle, 0);
 		mFrameBufferHandle = handle[0];
-		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBufferHandle);
+		gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBufferHandle);
 
 		// Generate textures.
 		mTextureHandles = new int[textureCount];
-		GLES20.glGenTextures(textureCount, mTextureHandles, 0);
+		gl.glGenTextures(textureCount, mTextureHandles, 0);
 		for (int texture : mTextureHandles) {
-			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
-			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
-					GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
-					GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+			gl.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+			gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+					GLES20.GL_CLAMP_TO_EDGE);
+			gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+					GLES20.GL_CLAMP_TO_EDGE);
+			gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
 					GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+			gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
 					GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-			GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA,
-					mWidth, mHeight, 0, GLES20.GL_RGBA,
-					GLES20.GL_UNSIGNED_BYTE, null);
+			gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mWidth,
+					mHeight, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
 		}
 
 		// Generate depth buffer.
 		if (genDepthBuffer) {
-			GLES20.glGenRenderbuffers(1, handle, 0);
+			gl.glGenRenderbuffers(1, handle, 0);
 			mDepthBufferHandle = handle[0];
-			GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER,
-					mDepthBufferHandle);
-			GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER,
+			gl.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, mDepthBufferHandle);
+			gl.glRenderbufferStorage(GLES20.GL_RENDERBUFFER,
 					GLES20.GL_DEPTH_COMPONENT16, width, height);
-			GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER,
+			gl.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER,
 					GLES20.GL_DEPTH_ATTACHMENT, GLES20.GL_RENDERBUFFER,
 					mDepthBufferHandle);
 		}
 		// Generate stencil buffer.
 		if (genStencilBuffer) {
-			GLES20.glGenRenderbuffers(1, handle, 0);
+			gl.glGenRenderbuffers(1, handle, 0);
 			mStencilBufferHandle = handle[0];
-			GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER,
-					mStencilBufferHandle);
-			GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER,
+			gl.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, mStencilBufferHandle);
+			gl.glRenderbufferStorage(GLES20.GL_RENDERBUFFER,
 					GLES20.GL_STENCIL_INDEX8, width, height);
-			GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER,
+			gl.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER,
 					GLES20.GL_STENCIL_ATTACHMENT, GLES20.GL_RENDERBUFFER,
 					mStencilBufferHandle);
 		}
@@ -180,15 +212,29 @@ public class GlslFbo {
 	 * allocated during a call to init.
 	 */
 	public void reset() {
+		GlslGl gl = GlslGlContext.get();
 		int[] handle = { mFrameBufferHandle };
-		GLES20.glDeleteFramebuffers(1, handle, 0);
+		gl.glDeleteFramebuffers(1, handle, 0);
 		handle[0] = mDepthBufferHandle;
-		GLES20.glDeleteRenderbuffers(1, handle, 0);
+		gl.glDeleteRenderbuffers(1, handle, 0);
 		handle[0] = mStencilBufferHandle;
-		GLES20.glDeleteRenderbuffers(1, handle, 0);
-		GLES20.glDeleteTextures(mTextureHandles.length, mTextureHandles, 0);
+		gl.glDeleteRenderbuffers(1, handle, 0);
+		gl.glDeleteTextures(mTextureHandles.length, mTextureHandles, 0);
 		mFrameBufferHandle = mDepthBufferHandle = mStencilBufferHandle = -1;
 		mTextureHandles = new int[0];
 	}
 
+	/**
+	 * Scales viewport used once this FBO is bound. Rendering is limited into
+	 * lower left corner of FBO textures, sampling them needs texture
+	 * coordinates scaled with same value. Takes effect on next call to bind().
+	 * 
+	 * @param scale
+	 *            Viewport scale between (0, 1]
+	 */
+	public void setViewportScale(float scale) {
+		mViewportWidth = Math.max(1, Math.round(mWidth * scale));
+		mViewportHeight = Math.max(1, Math.round(mHeight * scale));
+	}
+
 }
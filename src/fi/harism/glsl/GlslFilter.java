@@ -19,40 +19,70 @@ package fi.harism.glsl;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
 
 import android.content.Context;
 import android.opengl.GLES20;
-import android.os.SystemClock;
+import fi.harism.glsl.gl.GlslGl;
+import fi.harism.glsl.gl.GlslGlContext;
 
 /**
  * Class for handling 2d filter shaders.
  */
 public class GlslFilter {
 
+	// Per-pixel stages which can be fused at the end of copy, displace, bloom
+	// and lens blur filters. Stages are applied in increasing bit order.
+	public static final int STAGE_TONEMAP = 1 << 0;
+	// Function names stage sources declare, index being stage bit.
+	private static final String[] STAGE_FUNCTIONS = { "tonemap" };
+	// Number of distinct stage combinations.
+	private static final int STAGE_VARIANTS = 1 << STAGE_FUNCTIONS.length;
+
 	// Named texture indexes.
 	private static final int TEX_IDX_1 = 0;
 	private static final int TEX_IDX_2 = 1;
 	private static final int TEX_IDX_3 = 2;
 
+	// Shader sources needed for generating fused programs.
+	private String mFilterVs;
+	private final String[] mStageSources = new String[STAGE_FUNCTIONS.length];
+	private String mCopyFs, mDisplaceFs, mBloomPass2Fs, mBloomPass3Fs,
+			mLensBlurPass5Fs;
+	// Shader instances with fused stages, index being stage bits. These are
+	// generated once first used.
+	private final GlslShader[] mCopy = new GlslShader[STAGE_VARIANTS];
+	private final GlslShader[] mDisplace = new GlslShader[STAGE_VARIANTS];
+	private final GlslShader[] mBloomPass3 = new GlslShader[STAGE_VARIANTS];
+	private final GlslShader[] mLensBlurPass5 = new GlslShader[STAGE_VARIANTS];
+	// Bloom blur shader instances, key being kernel radius in texels. These
+	// are generated for every reachable radius once FBOs are created.
+	private final HashMap<Integer, GlslShader> mBloomPass2 = new HashMap<Integer, GlslShader>();
+	// Bloom blur kernel radius range for viewport scales dynamic resolution
+	// can reach.
+	private int mBlurRadiusMin, mBlurRadiusMax;
+
 	// Shader instances.
-	private GlslShader mCopy = new GlslShader();
-	private GlslShader mDisplace = new GlslShader();
-	private GlslShader mTonemap = new GlslShader();
 	private GlslShader mFxaa = new GlslShader();
 	private GlslShader mBloomPass1 = new GlslShader();
-	private GlslShader mBloomPass2 = new GlslShader();
-	private GlslShader mBloomPass3 = new GlslShader();
 	private GlslShader mLensBlurPass1 = new GlslShader();
 	private GlslShader mLensBlurPass2 = new GlslShader();
 	private GlslShader mLensBlurPass3 = new GlslShader();
 	private GlslShader mLensBlurPass4 = new GlslShader();
-	private GlslShader mLensBlurPass5 = new GlslShader();
 
 	// Half sized FBO
 	private GlslFbo mFboHalf = new GlslFbo();
 	// Quarter sized FBO
 	private GlslFbo mFboQuarter = new GlslFbo();
 
+	// Viewport scale, texture coordinates are scaled with it.
+	private float mViewportScale = 1f;
+
+	// Profiler internal passes are scoped with.
+	private GlslProfiler mProfiler = new GlslProfiler();
+
 	// Buffer for 2d coordinates.
 	private FloatBuffer mTriangleVertices;
 	private static final float[] mCoords = { -1f, 1f, -1f, -1f, 1f, 1f, 1f, -1f };
@@ -74,71 +104,72 @@ public class GlslFilter {
 	 *            Output FBO.
 	 * @param idxOut
 	 *            Output FBO texture index.
-	 * @param camera
-	 *            Camera instance.
+	 * @param stages
+	 *            Stages applied on output.
 	 */
-	public void bloom(int texSrc, GlslFbo fboOut, int idxOut) {
+	public void bloom(int texSrc, GlslFbo fboOut, int idxOut, int stages) {
+		GlslGl gl = GlslGlContext.get();
 
 		// Pixel sizes.
 		float blurSizeH = 1f / mFboQuarter.getWidth();
 		float blurSizeV = 1f / mFboQuarter.getHeight();
 
-		// Calculate number of pixels from relative size.
-		int numBlurPixelsPerSide = (int) (0.05f * Math.min(
-				mFboQuarter.getWidth(), mFboQuarter.getHeight()));
-		if (numBlurPixelsPerSide < 1)
-			numBlurPixelsPerSide = 1;
-		double sigma = 1.0 + numBlurPixelsPerSide * 0.5;
-
-		// Values needed for incremental gaussian blur.
-		double incrementalGaussian1 = 1.0 / (Math.sqrt(2.0 * Math.PI) * sigma);
-		double incrementalGaussian2 = Math.exp(-0.5 / (sigma * sigma));
-		double incrementalGaussian3 = incrementalGaussian2
-				* incrementalGaussian2;
+		// Calculate number of pixels from relative size. Radius is clamped
+		// into precompiled range in case viewport rounding steps outside it.
+		int numBlurPixelsPerSide = getBlurRadius(
+				mFboQuarter.getViewportWidth(),
+				mFboQuarter.getViewportHeight());
+		numBlurPixelsPerSide = Math.max(mBlurRadiusMin,
+				Math.min(mBlurRadiusMax, numBlurPixelsPerSide));
+		GlslShader bloomPass2 = getBlurShader(numBlurPixelsPerSide);
 
 		// First pass reads color values exceeding given threshold into
 		// TEX_IDX_1 texture.
+		mProfiler.begin("bloomThreshold");
 		mFboQuarter.bind();
 		mFboQuarter.bindTexture(TEX_IDX_1);
 		mBloomPass1.useProgram();
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texSrc);
-		drawRect(mBloomPass1.getHandle("aPosition"));
+		gl.glActiveTexture(GLES20.GL_TEXTURE0);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D, texSrc);
+		drawRect(mBloomPass1);
+		mProfiler.end();
 
 		// Second pass blurs TEX_IDX_1 horizontally.
+		mProfiler.begin("bloomBlurH");
 		mFboQuarter.bindTexture(TEX_IDX_2);
-		mBloomPass2.useProgram();
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,
+		bloomPass2.useProgram();
+		gl.glActiveTexture(GLES20.GL_TEXTURE0);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D,
 				mFboQuarter.getTexture(TEX_IDX_1));
-		GLES20.glUniform3f(mBloomPass2.getHandle("uIncrementalGaussian"),
-				(float) incrementalGaussian1, (float) incrementalGaussian2,
-				(float) incrementalGaussian3);
-		GLES20.glUniform1f(mBloomPass2.getHandle("uNumBlurPixelsPerSide"),
-				numBlurPixelsPerSide);
-		GLES20.glUniform2f(mBloomPass2.getHandle("uBlurOffset"), blurSizeH, 0f);
-		drawRect(mBloomPass2.getHandle("aPosition"));
+		gl.glUniform2f(bloomPass2.getHandle("uBlurOffset"), blurSizeH, 0f);
+		drawRect(bloomPass2);
+		mProfiler.end();
 
 		// Third pass blurs TEX_IDX_2 vertically.
+		mProfiler.begin("bloomBlurV");
 		mFboQuarter.bindTexture(TEX_IDX_1);
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,
+		gl.glActiveTexture(GLES20.GL_TEXTURE0);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D,
 				mFboQuarter.getTexture(TEX_IDX_2));
-		GLES20.glUniform2f(mBloomPass2.getHandle("uBlurOffset"), 0f, blurSizeV);
-		drawRect(mBloomPass2.getHandle("aPosition"));
+		gl.glUniform2f(bloomPass2.getHandle("uBlurOffset"), 0f, blurSizeV);
+		drawRect(bloomPass2);
+		mProfiler.end();
 
 		// Fourth pass combines source texture and calculated bloom texture into
 		// given output texture.
+		mProfiler.begin("bloomComposite");
+		GlslShader bloomPass3 = getShader(mBloomPass3, mBloomPass3Fs, stages);
 		fboOut.bind();
 		fboOut.bindTexture(idxOut);
-		mBloomPass3.useProgram();
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,
+		bloomPass3.useProgram();
+		gl.glActiveTexture(GLES20.GL_TEXTURE0);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D,
 				mFboQuarter.getTexture(TEX_IDX_1));
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texSrc);
-		GLES20.glUniform1i(mBloomPass3.getHandle("sTextureSource"), 1);
-		drawRect(mBloomPass3.getHandle("aPosition"));
+		gl.glActiveTexture(GLES20.GL_TEXTURE1);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D, texSrc);
+		gl.glUniform1i(bloomPass3.getHandle("sTextureSource"), 1);
+		drawRect(bloomPass3);
+		mProfiler.end();
 	}
 
 	/**
@@ -147,12 +178,16 @@ public class GlslFilter {
 	 * 
 	 * @param src
 	 *            Source texture id.
+	 * @param stages
+	 *            Stages applied on output.
 	 */
-	public void copy(int src) {
-		mCopy.useProgram();
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, src);
-		drawRect(mCopy.getHandle("aPosition"));
+	public void copy(int src, int stages) {
+		GlslGl gl = GlslGlContext.get();
+		GlslShader copy = getShader(mCopy, mCopyFs, stages);
+		copy.useProgram();
+		gl.glActiveTexture(GLES20.GL_TEXTURE0);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D, src);
+		drawRect(copy);
 	}
 
 	/**
@@ -162,16 +197,22 @@ public class GlslFilter {
 	 *            Source texture id.
 	 * @param camera
 	 *            Camera for retrieving displacement values.
+	 * @param stages
+	 *            Stages applied on output.
 	 */
-	public void displace(int texSrc, GlslCamera camera) {
-		mDisplace.useProgram();
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texSrc);
-		GLES20.glUniform2f(mDisplace.getHandle("uPosition"), camera.mTouchX,
-				camera.mTouchY);
-		GLES20.glUniform2f(mDisplace.getHandle("uDiff"), camera.mTouchDX,
-				camera.mTouchDY);
-		drawRect(mDisplace.getHandle("aPosition"));
+	public void displace(int texSrc, GlslCamera camera, int stages) {
+		GlslGl gl = GlslGlContext.get();
+		GlslShader displace = getShader(mDisplace, mDisplaceFs, stages);
+		displace.useProgram();
+		gl.glActiveTexture(GLES20.GL_TEXTURE0);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D, texSrc);
+		// Touch coordinates are given for whole source texture.
+		gl.glUniform2f(displace.getHandle("uPosition"), camera.mTouchX
+				* mViewportScale, camera.mTouchY * mViewportScale);
+		gl.glUniform2f(displace.getHandle("uDiff"), camera.mTouchDX
+				* mViewportScale, camera.mTouchDY * mViewportScale);
+		gl.glUniform1f(displace.getHandle("uInvScale"), 1f / mViewportScale);
+		drawRect(displace);
 	}
 
 	/**
@@ -191,6 +232,7 @@ public class GlslFilter {
 	 */
 	public void fxaa(int texSrc, int srcWidth, int srcHeight, int outWidth,
 			int outHeight) {
+		GlslGl gl = GlslGlContext.get();
 		final float N = 0.5f;
 		final float rcpOptW = N / outWidth;
 		final float rcpOptH = N / outHeight;
@@ -199,15 +241,15 @@ public class GlslFilter {
 		final float rcpOpt2H = 2.0f / outHeight;
 
 		mFxaa.useProgram();
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texSrc);
-		GLES20.glUniform4f(mFxaa.getHandle("uFxaaConsoleRcpFrameOpt"),
-				-rcpOptW, -rcpOptH, rcpOptW, rcpOptH);
-		GLES20.glUniform4f(mFxaa.getHandle("uFxaaConsoleRcpFrameOpt2"),
-				-rcpOpt2W, -rcpOpt2H, rcpOpt2W, rcpOpt2H);
-		GLES20.glUniform4f(mFxaa.getHandle("uFrameSize"), srcWidth, srcHeight,
+		gl.glActiveTexture(GLES20.GL_TEXTURE0);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D, texSrc);
+		gl.glUniform4f(mFxaa.getHandle("uFxaaConsoleRcpFrameOpt"), -rcpOptW,
+				-rcpOptH, rcpOptW, rcpOptH);
+		gl.glUniform4f(mFxaa.getHandle("uFxaaConsoleRcpFrameOpt2"), -rcpOpt2W,
+				-rcpOpt2H, rcpOpt2W, rcpOpt2H);
+		gl.glUniform4f(mFxaa.getHandle("uFrameSize"), srcWidth, srcHeight,
 				1f / srcWidth, 1f / srcHeight);
-		drawRect(mFxaa.getHandle("aPosition"));
+		drawRect(mFxaa);
 	}
 
 	/**
@@ -217,17 +259,20 @@ public class GlslFilter {
 	 *            Context to read shader sources from.
 	 */
 	public void init(Context ctx) {
-		// Initialize copy shader.
-		mCopy.setProgram(ctx.getString(R.string.shader_filter_vs),
-				ctx.getString(R.string.shader_copy_fs));
-
-		// Initialize displace shader.
-		mDisplace.setProgram(ctx.getString(R.string.shader_filter_vs),
-				ctx.getString(R.string.shader_displace_fs));
-
-		// Initialize tonemapping shader.
-		mTonemap.setProgram(ctx.getString(R.string.shader_filter_vs),
-				ctx.getString(R.string.shader_tonemap_fs));
+		// Read sources for shaders stages can be fused into. Programs from
+		// previous context are dropped and generated again once needed.
+		mFilterVs = ctx.getString(R.string.shader_filter_vs);
+		mStageSources[0] = ctx.getString(R.string.shader_tonemap_stage);
+		mCopyFs = ctx.getString(R.string.shader_copy_fs);
+		mDisplaceFs = ctx.getString(R.string.shader_displace_fs);
+		mBloomPass2Fs = ctx.getString(R.string.shader_bloom_pass2_fs);
+		mBloomPass3Fs = ctx.getString(R.string.shader_bloom_pass3_fs);
+		mLensBlurPass5Fs = ctx.getString(R.string.shader_lensblur_pass5_fs);
+		Arrays.fill(mCopy, null);
+		Arrays.fill(mDisplace, null);
+		Arrays.fill(mBloomPass3, null);
+		Arrays.fill(mLensBlurPass5, null);
+		mBloomPass2.clear();
 
 		// Initialize FXAA shader.
 		mFxaa.setProgram(ctx.getString(R.string.shader_filter_vs),
@@ -236,10 +281,6 @@ public class GlslFilter {
 		// Initialize bloom shaders.
 		mBloomPass1.setProgram(ctx.getString(R.string.shader_filter_vs),
 				ctx.getString(R.string.shader_bloom_pass1_fs));
-		mBloomPass2.setProgram(ctx.getString(R.string.shader_filter_vs),
-				ctx.getString(R.string.shader_bloom_pass2_fs));
-		mBloomPass3.setProgram(ctx.getString(R.string.shader_filter_vs),
-				ctx.getString(R.string.shader_bloom_pass3_fs));
 
 		// Initialize lens blur shaders.
 		mLensBlurPass1.setProgram(ctx.getString(R.string.shader_filter_vs),
@@ -250,8 +291,6 @@ public class GlslFilter {
 				ctx.getString(R.string.shader_lensblur_pass3_fs));
 		mLensBlurPass4.setProgram(ctx.getString(R.string.shader_filter_vs),
 				ctx.getString(R.string.shader_lensblur_pass4_fs));
-		mLensBlurPass5.setProgram(ctx.getString(R.string.shader_filter_vs),
-				ctx.getString(R.string.shader_lensblur_pass5_fs));
 	}
 
 	/**
@@ -263,8 +302,33 @@ public class GlslFilter {
 	 *            Parent height
 	 */
 	public void init(int width, int height) {
+		GlslGl gl = GlslGlContext.get();
 		mFboHalf.init(width / 2, height / 2, 3);
 		mFboQuarter.init(width / 4, height / 4, 3);
+		setViewportScale(mViewportScale);
+
+		// Bloom blur merges two taps into one fetch, which needs bilinear
+		// filtering also if quarter textures end up minified.
+		for (int i = 0; i < mFboQuarter.getTextureCount(); ++i) {
+			gl.glBindTexture(GLES20.GL_TEXTURE_2D, mFboQuarter.getTexture(i));
+			gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
+					GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+			gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
+					GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+		}
+
+		// Compile blur shaders for every radius viewport scales between
+		// dynamic resolution minimum and full size give, so that scale
+		// changes don't compile shaders mid-frame.
+		int quarterWidth = mFboQuarter.getWidth();
+		int quarterHeight = mFboQuarter.getHeight();
+		mBlurRadiusMax = getBlurRadius(quarterWidth, quarterHeight);
+		mBlurRadiusMin = getBlurRadius(
+				Math.round(quarterWidth * GlslDynamicResolution.MIN_SCALE),
+				Math.round(quarterHeight * GlslDynamicResolution.MIN_SCALE));
+		for (int radius = mBlurRadiusMin; radius <= mBlurRadiusMax; ++radius) {
+			getBlurShader(radius);
+		}
 	}
 
 	/**
@@ -278,9 +342,14 @@ public class GlslFilter {
 	 *            Output FBO texture index.
 	 * @param camera
 	 *            Camera instance.
+	 * @param time
+	 *            Animation time in millis, blur directions rotate with it.
+	 * @param stages
+	 *            Stages applied on output.
 	 */
 	public void lensBlur(int texSrc, GlslFbo fboOut, int idxOut,
-			GlslCamera camera) {
+			GlslCamera camera, long time, int stages) {
+		GlslGl gl = GlslGlContext.get();
 
 		float ratioX = 1f;
 		float ratioY = (float) mFboHalf.getWidth() / mFboHalf.getHeight();
@@ -289,8 +358,8 @@ public class GlslFilter {
 			ratioY = 1f;
 		}
 
-		float angle = (float) (Math.PI * (SystemClock.uptimeMillis() % 10000) / 5000);
-		float stepRadius = 0.05f / camera.mBlurSteps;
+		float angle = (float) (Math.PI * (time % 10000) / 5000);
+		float stepRadius = 0.05f * mViewportScale / camera.mBlurSteps;
 
 		float[][] dir = new float[3][2];
 		for (int i = 0; i < 3; i++) {
@@ -301,67 +370,73 @@ public class GlslFilter {
 
 		// First pass, downscale image to mFboHalf and apply required presteps
 		// before actual lens blur takes place.
+		mProfiler.begin("lensBlurPass1");
 		mFboHalf.bind();
 		mFboHalf.bindTexture(TEX_IDX_1);
 		mLensBlurPass1.useProgram();
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texSrc);
-		GLES20.glUniform1i(mLensBlurPass1.getHandle("sTextureSource"), 0);
-		drawRect(mLensBlurPass1.getHandle("aPosition"));
+		gl.glActiveTexture(GLES20.GL_TEXTURE0);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D, texSrc);
+		gl.glUniform1i(mLensBlurPass1.getHandle("sTextureSource"), 0);
+		drawRect(mLensBlurPass1);
+		mProfiler.end();
 
 		// Second pass.
+		mProfiler.begin("lensBlurPass2");
 		mFboHalf.bindTexture(TEX_IDX_2);
 		mLensBlurPass2.useProgram();
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,
-				mFboHalf.getTexture(TEX_IDX_1));
-		GLES20.glUniform1i(mLensBlurPass2.getHandle("sTexturePass1"), 0);
-		GLES20.glUniform1f(mLensBlurPass2.getHandle("uSteps"),
-				camera.mBlurSteps);
-		GLES20.glUniform2fv(mLensBlurPass2.getHandle("uDelta0"), 1, dir[0], 0);
-		drawRect(mLensBlurPass2.getHandle("aPosition"));
+		gl.glActiveTexture(GLES20.GL_TEXTURE0);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D, mFboHalf.getTexture(TEX_IDX_1));
+		gl.glUniform1i(mLensBlurPass2.getHandle("sTexturePass1"), 0);
+		gl.glUniform1f(mLensBlurPass2.getHandle("uSteps"), camera.mBlurSteps);
+		gl.glUniform2fv(mLensBlurPass2.getHandle("uDelta0"), 1, dir[0], 0);
+		drawRect(mLensBlurPass2);
+		mProfiler.end();
 
 		// Third pass.
+		mProfiler.begin("lensBlurPass3");
 		mFboHalf.bindTexture(TEX_IDX_3);
 		mLensBlurPass3.useProgram();
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,
-				mFboHalf.getTexture(TEX_IDX_2));
+		gl.glActiveTexture(GLES20.GL_TEXTURE1);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D, mFboHalf.getTexture(TEX_IDX_2));
 		// TEX_IDX_1 is already bind after previous step.
-		GLES20.glUniform1i(mLensBlurPass3.getHandle("sTexturePass1"), 0);
-		GLES20.glUniform1i(mLensBlurPass3.getHandle("sTexturePass2"), 1);
-		GLES20.glUniform1f(mLensBlurPass3.getHandle("uSteps"),
-				camera.mBlurSteps);
-		GLES20.glUniform2fv(mLensBlurPass3.getHandle("uDelta0"), 1, dir[0], 0);
-		GLES20.glUniform2fv(mLensBlurPass3.getHandle("uDelta1"), 1, dir[1], 0);
-		drawRect(mLensBlurPass3.getHandle("aPosition"));
+		gl.glUniform1i(mLensBlurPass3.getHandle("sTexturePass1"), 0);
+		gl.glUniform1i(mLensBlurPass3.getHandle("sTexturePass2"), 1);
+		gl.glUniform1f(mLensBlurPass3.getHandle("uSteps"), camera.mBlurSteps);
+		gl.glUniform2fv(mLensBlurPass3.getHandle("uDelta0"), 1, dir[0], 0);
+		gl.glUniform2fv(mLensBlurPass3.getHandle("uDelta1"), 1, dir[1], 0);
+		drawRect(mLensBlurPass3);
+		mProfiler.end();
 
 		// Fourth pass.
+		mProfiler.begin("lensBlurPass4");
 		mFboHalf.bindTexture(TEX_IDX_1);
 		mLensBlurPass4.useProgram();
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,
-				mFboHalf.getTexture(TEX_IDX_3));
+		gl.glActiveTexture(GLES20.GL_TEXTURE0);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D, mFboHalf.getTexture(TEX_IDX_3));
 		// TEX_IDX_2 is already bind.
-		GLES20.glUniform1i(mLensBlurPass4.getHandle("sTexturePass2"), 1);
-		GLES20.glUniform1i(mLensBlurPass4.getHandle("sTexturePass3"), 0);
-		GLES20.glUniform1f(mLensBlurPass4.getHandle("uSteps"),
-				camera.mBlurSteps);
-		GLES20.glUniform2fv(mLensBlurPass4.getHandle("uDelta1"), 1, dir[1], 0);
-		GLES20.glUniform2fv(mLensBlurPass4.getHandle("uDelta2"), 1, dir[2], 0);
-		drawRect(mLensBlurPass4.getHandle("aPosition"));
-
+		gl.glUniform1i(mLensBlurPass4.getHandle("sTexturePass2"), 1);
+		gl.glUniform1i(mLensBlurPass4.getHandle("sTexturePass3"), 0);
+		gl.glUniform1f(mLensBlurPass4.getHandle("uSteps"), camera.mBlurSteps);
+		gl.glUniform2fv(mLensBlurPass4.getHandle("uDelta1"), 1, dir[1], 0);
+		gl.glUniform2fv(mLensBlurPass4.getHandle("uDelta2"), 1, dir[2], 0);
+		drawRect(mLensBlurPass4);
+		mProfiler.end();
+
+		// Fifth pass mixes blurred image with source.
+		mProfiler.begin("lensBlurPass5");
+		GlslShader lensBlurPass5 = getShader(mLensBlurPass5, mLensBlurPass5Fs,
+				stages);
 		fboOut.bind();
 		fboOut.bindTexture(idxOut);
-		mLensBlurPass5.useProgram();
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texSrc);
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,
-				mFboHalf.getTexture(TEX_IDX_1));
-		GLES20.glUniform1i(mLensBlurPass5.getHandle("sTextureSource"), 0);
-		GLES20.glUniform1i(mLensBlurPass5.getHandle("sTexturePass4"), 1);
-		drawRect(mLensBlurPass5.getHandle("aPosition"));
+		lensBlurPass5.useProgram();
+		gl.glActiveTexture(GLES20.GL_TEXTURE0);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D, texSrc);
+		gl.glActiveTexture(GLES20.GL_TEXTURE1);
+		gl.glBindTexture(GLES20.GL_TEXTURE_2D, mFboHalf.getTexture(TEX_IDX_1));
+		gl.glUniform1i(lensBlurPass5.getHandle("sTextureSource"), 0);
+		gl.glUniform1i(lensBlurPass5.getHandle("sTexturePass4"), 1);
+		drawRect(lensBlurPass5);
+		mProfiler.end();
 	}
 
 	/**
@@ -392,35 +467,201 @@ public class GlslFilter {
 		mTriangleVertices.put(7, y2);
 	}
 
+	/**
+	 * Scales viewport of internal FBOs. Filters then read and write only lower
+	 * left corner of textures, which is expected to match viewport scale of
+	 * source and output textures. Copy and displace filters may render into
+	 * screen to upscale the scaled image.
+	 * 
+	 * @param scale
+	 *            Viewport scale between (0, 1]
+	 */
+	public void setViewportScale(float scale) {
+		mViewportScale = scale;
+		mFboHalf.setViewportScale(scale);
+		mFboQuarter.setViewportScale(scale);
+	}
+
+	/**
+	 * Sets profiler internal filter passes are recorded into.
+	 * 
+	 * @param profiler
+	 *            Profiler instance
+	 */
+	public void setProfiler(GlslProfiler profiler) {
+		mProfiler = profiler;
+	}
+
 	/**
 	 * Tonemap filter copies given texture id as a source into currently binded
-	 * FBO and applies tonemapping for color values.
+	 * FBO and applies tonemapping for color values. Same as copy filter with
+	 * STAGE_TONEMAP stage.
 	 * 
 	 * @param src
 	 *            Source texture id.
 	 */
 	public void tonemap(int src) {
-		mTonemap.useProgram();
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, src);
-		drawRect(mTonemap.getHandle("aPosition"));
+		copy(src, STAGE_TONEMAP);
+	}
+
+	/**
+	 * Generates blur(..) function for bloom blur shader. Weights are the
+	 * normalized Gaussian with sigma of 1 + radius / 2. Taps a = i and b =
+	 * i + 1 are merged into one fetch weighted with wa + wb and placed at
+	 * (a * wa + b * wb) / (wa + wb), so that bilinear filtering returns their
+	 * weighted sum. Quarter sized textures the blur reads are set to linear
+	 * filtering in init(int, int).
+	 * 
+	 * @param radius
+	 *            Kernel radius in texels
+	 * @return Function source
+	 */
+	private static String createBlurSource(int radius) {
+		double sigma = 1.0 + radius * 0.5;
+		// Weight after last texel is left zero, last tap samples one texel
+		// only when radius is odd.
+		double[] weights = new double[radius + 2];
+		double sum = 0.0;
+		for (int i = 0; i <= radius; ++i) {
+			weights[i] = Math.exp(-0.5 * i * i / (sigma * sigma));
+			sum += i == 0 ? weights[i] : 2.0 * weights[i];
+		}
+
+		StringBuilder src = new StringBuilder();
+		src.append("\nvec4 blur(vec2 textureCoord, vec2 texelStep) {\n");
+		src.append(" vec4 sum = texture2D(sTextureBloom, textureCoord) * ")
+				.append(toFloat(weights[0] / sum)).append(";\n");
+		for (int i = 1; i <= radius; i += 2) {
+			double weight = weights[i] + weights[i + 1];
+			double offset = (i * weights[i] + (i + 1) * weights[i + 1])
+					/ weight;
+			src.append(" sum += (texture2D(sTextureBloom, textureCoord - ")
+					.append("texelStep * ").append(toFloat(offset))
+					.append(") + texture2D(sTextureBloom, textureCoord + ")
+					.append("texelStep * ").append(toFloat(offset))
+					.append(")) * ").append(toFloat(weight / sum))
+					.append(";\n");
+		}
+		return src.append(" return sum;\n}\n").toString();
 	}
 
 	/**
 	 * Private helper method to execute filters.
 	 * 
-	 * @param positionHandle
-	 *            Position attribute id to feed current vertex shader with.
+	 * @param shader
+	 *            Shader in use, its position attribute is fed with filter
+	 *            rectangle and texture coordinates scaled to viewport.
 	 */
-	private void drawRect(int positionHandle) {
+	private void drawRect(GlslShader shader) {
+		GlslGl gl = GlslGlContext.get();
+		int positionHandle = shader.getHandle("aPosition");
+		gl.glUniform1f(shader.getHandle("uTexCoordScale"), mViewportScale);
 		mTriangleVertices.position(0);
-		GLES20.glVertexAttribPointer(positionHandle, 2, GLES20.GL_FLOAT, false,
+		gl.glVertexAttribPointer(positionHandle, 2, GLES20.GL_FLOAT, false,
 				2 * 4, mTriangleVertices);
-		GLES20.glEnableVertexAttribArray(positionHandle);
+		gl.glEnableVertexAttribArray(positionHandle);
 
-		GLES20.glDisable(GLES20.GL_CULL_FACE);
-		GLES20.glDisable(GLES20.GL_DEPTH_TEST);
-		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+		gl.glDisable(GLES20.GL_CULL_FACE);
+		gl.glDisable(GLES20.GL_DEPTH_TEST);
+		gl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+	}
+
+	/**
+	 * Generates fragment shader source which applies given stages on output of
+	 * given fragment shader. Original main() is renamed and called from a new
+	 * one which passes gl_FragColor through stage functions.
+	 * 
+	 * @param fs
+	 *            Fragment shader source
+	 * @param stages
+	 *            Stages to apply
+	 * @return Fused fragment shader source
+	 */
+	private String fuseStages(String fs, int stages) {
+		if (stages == 0) {
+			return fs;
+		}
+		StringBuilder src = new StringBuilder(fs.replaceFirst(
+				"void\\s+main\\s*\\(", "void mainHead("));
+		for (int i = 0; i < STAGE_FUNCTIONS.length; ++i) {
+			if ((stages & (1 << i)) != 0) {
+				src.append('\n').append(mStageSources[i]);
+			}
+		}
+		src.append("\nvoid main() {\n mainHead();\n");
+		for (int i = 0; i < STAGE_FUNCTIONS.length; ++i) {
+			if ((stages & (1 << i)) != 0) {
+				src.append(" gl_FragColor = ").append(STAGE_FUNCTIONS[i])
+						.append("(gl_FragColor);\n");
+			}
+		}
+		return src.append("}\n").toString();
+	}
+
+	/**
+	 * Calculates bloom blur kernel radius for quarter sized viewport.
+	 * 
+	 * @param width
+	 *            Viewport width
+	 * @param height
+	 *            Viewport height
+	 * @return Kernel radius in texels, at least one
+	 */
+	private static int getBlurRadius(int width, int height) {
+		return Math.max(1, (int) (0.05f * Math.min(width, height)));
+	}
+
+	/**
+	 * Returns bloom blur shader for given kernel radius, generating and
+	 * compiling it if it doesn't exist yet. Reachable radii are compiled in
+	 * init(int, int) already. Offsets and weights are calculated only once
+	 * for every radius and are compiled into the shader as constants.
+	 * 
+	 * @param radius
+	 *            Kernel radius in texels
+	 * @return Shader instance
+	 */
+	private GlslShader getBlurShader(int radius) {
+		GlslShader shader = mBloomPass2.get(radius);
+		if (shader == null) {
+			shader = new GlslShader();
+			shader.setProgram(mFilterVs,
+					mBloomPass2Fs + createBlurSource(radius));
+			mBloomPass2.put(radius, shader);
+		}
+		return shader;
+	}
+
+	/**
+	 * Returns shader with given stages fused, generating and compiling it if
+	 * it doesn't exist yet.
+	 * 
+	 * @param variants
+	 *            Shader instances for the filter, index being stage bits
+	 * @param fs
+	 *            Fragment shader source of the filter
+	 * @param stages
+	 *            Stages to apply
+	 * @return Shader instance
+	 */
+	private GlslShader getShader(GlslShader[] variants, String fs, int stages) {
+		if (variants[stages] == null) {
+			GlslShader shader = new GlslShader();
+			shader.setProgram(mFilterVs, fuseStages(fs, stages));
+			variants[stages] = shader;
+		}
+		return variants[stages];
+	}
+
+	/**
+	 * Formats given value as a GLSL float literal.
+	 * 
+	 * @param value
+	 *            Value to format
+	 * @return Float literal
+	 */
+	private static String toFloat(double value) {
+		return String.format(Locale.US, "%.6f", value);
 	}
 
 }
@@ -0,0 +1,753 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl;
+
+import java.util.Vector;
+
+import android.opengl.GLES20;
+import fi.harism.glsl.gl.GlslGl;
+import fi.harism.glsl.gl.GlslGlContext;
+
+/**
+ * Frame graph for scheduling render passes. Each pass declares resources it
+ * reads, the resource it writes into and the resolution it renders at. Before
+ * executing, graph is compiled; disabled passes are culled and their input is
+ * forwarded as their output, passes whose output is never read are dropped,
+ * per-pixel stages are fused into neighbouring passes, and transient resources
+ * are aliased into as few FBO textures as their lifetimes allow. Optionally
+ * results are cached instead; every resource keeps a texture of its own and
+ * passes are executed only once their inputs or own version have changed.
+ */
+public final class GlslFrameGraph {
+
+	// Resource id for the default framebuffer, or the screen.
+	public static final int SCREEN = 0;
+
+	// Resource names, index being resource id.
+	private final Vector<String> mResources = new Vector<String>();
+	// Passes in execution order.
+	private final Vector<Pass> mPasses = new Vector<Pass>();
+
+	// Render target size, resolution divisors are applied to these.
+	private int mWidth, mHeight;
+	// Screen size.
+	private int mScreenWidth, mScreenHeight;
+	// Viewport scale applied on every FBO.
+	private float mViewportScale = 1f;
+
+	// Enabled state of passes during last compile.
+	private boolean[] mCompiledEnabled = {};
+	// True if compile() must be called before next execute().
+	private boolean mCompileNeeded = true;
+	// Passes that survived culling, in execution order.
+	private final Vector<Pass> mLivePasses = new Vector<Pass>();
+	// Resource forwarding, disabled passes map their output to their input.
+	private int[] mAlias = {};
+	// Physical texture index assigned for each resource.
+	private int[] mTextureIndex = {};
+	// Resolution divisor of each resource, taken from its writer.
+	private int[] mResourceDivisor = {};
+	// FBO for each resolution divisor, index being divisor.
+	private GlslFbo[] mFbos = {};
+
+	// True if pass results are cached between frames.
+	private boolean mCaching;
+	// Number of times each resource has been written into.
+	private int[] mResourceVersion = {};
+	// Pass version followed by input resource versions during last execute
+	// of a pass, index being pass index.
+	private int[][] mExecutedVersions = {};
+	// Number of passes skipped during last frame.
+	private int mSkippedCount;
+
+	// Currently bound FBO and texture index, used for skipping rebinds.
+	private GlslFbo mBoundFbo;
+	private int mBoundIndex = -1;
+	// True if screen is currently bound.
+	private boolean mScreenBound;
+	// Number of FBO binds executed during last frame.
+	private int mFboBindCount;
+	// Profiler every pass is scoped with.
+	private GlslProfiler mProfiler = new GlslProfiler();
+
+	/**
+	 * Default constructor.
+	 */
+	public GlslFrameGraph() {
+		mResources.add("screen");
+	}
+
+	/**
+	 * Adds pass into this graph. Passes are executed in the order they were
+	 * added, so a pass may only read resources written by earlier passes.
+	 * 
+	 * @param pass
+	 *            Pass to add
+	 */
+	public void addPass(Pass pass) {
+		mPasses.add(pass);
+		mCompileNeeded = true;
+	}
+
+	/**
+	 * Adds new transient resource into this graph.
+	 * 
+	 * @param name
+	 *            Resource name, used only for debugging purposes
+	 * @return Resource id
+	 */
+	public int addResource(String name) {
+		mResources.add(name);
+		mCompileNeeded = true;
+		return mResources.size() - 1;
+	}
+
+	/**
+	 * Compiles graph for current enabled state of passes. This method is
+	 * called automatically from execute() once needed.
+	 */
+	public void compile() {
+		final int passCount = mPasses.size();
+		final int resourceCount = mResources.size();
+
+		// Store enabled states and resolve forwarded resources.
+		mCompiledEnabled = new boolean[passCount];
+		mAlias = new int[resourceCount];
+		for (int i = 0; i < resourceCount; ++i) {
+			mAlias[i] = i;
+		}
+		for (int i = 0; i < passCount; ++i) {
+			Pass pass = mPasses.get(i);
+			mCompiledEnabled[i] = pass.isEnabled();
+			if (!mCompiledEnabled[i] && pass.mInputs.length > 0) {
+				mAlias[pass.mOutput] = mAlias[pass.mInputs[0]];
+			}
+		}
+
+		// Cull passes backwards starting from the screen.
+		boolean[] live = new boolean[passCount];
+		boolean[] needed = new boolean[resourceCount];
+		needed[SCREEN] = true;
+		for (int i = passCount - 1; i >= 0; --i) {
+			Pass pass = mPasses.get(i);
+			if (mCompiledEnabled[i] && needed[pass.mOutput]) {
+				live[i] = true;
+				for (int input : pass.mInputs) {
+					needed[mAlias[input]] = true;
+				}
+			}
+		}
+		fuseStages(live);
+		mLivePasses.clear();
+		for (int i = 0; i < passCount; ++i) {
+			if (live[i]) {
+				mLivePasses.add(mPasses.get(i));
+			}
+		}
+
+		// Find out last use and resolution of every resource.
+		int[] lastUse = new int[resourceCount];
+		mResourceDivisor = new int[resourceCount];
+		for (int i = 0; i < mLivePasses.size(); ++i) {
+			Pass pass = mLivePasses.get(i);
+			mResourceDivisor[pass.mOutput] = pass.mDivisor;
+			for (int input : pass.mInputs) {
+				lastUse[mAlias[input]] = i;
+			}
+		}
+
+		// Assign textures using linear scan. Output of a pass never shares
+		// texture with its inputs as they are released only after output has
+		// been allocated.
+		int maxDivisor = 1;
+		for (Pass pass : mLivePasses) {
+			maxDivisor = Math.max(maxDivisor, pass.mDivisor);
+		}
+		int[] textureCounts = new int[maxDivisor + 1];
+		boolean[] depthStencil = new boolean[maxDivisor + 1];
+		Vector<Vector<Integer>> freeLists = new Vector<Vector<Integer>>();
+		for (int i = 0; i <= maxDivisor; ++i) {
+			freeLists.add(new Vector<Integer>());
+		}
+		mTextureIndex = new int[resourceCount];
+		for (int i = 0; i < mLivePasses.size(); ++i) {
+			Pass pass = mLivePasses.get(i);
+			if (pass.mOutput != SCREEN) {
+				Vector<Integer> free = freeLists.get(pass.mDivisor);
+				if (free.isEmpty() || mCaching) {
+					free.add(textureCounts[pass.mDivisor]++);
+				}
+				mTextureIndex[pass.mOutput] = free.remove(free.size() - 1);
+				depthStencil[pass.mDivisor] |= pass.mDepthStencil;
+			}
+			for (int input : pass.mInputs) {
+				int resource = mAlias[input];
+				if (lastUse[resource] == i && resource != SCREEN
+						&& !mCaching) {
+					Vector<Integer> free = freeLists
+							.get(mResourceDivisor[resource]);
+					if (!free.contains(mTextureIndex[resource])) {
+						free.add(mTextureIndex[resource]);
+					}
+				}
+			}
+		}
+
+		// Reallocate FBOs whose texture count changed.
+		if (mFbos.length < maxDivisor + 1) {
+			GlslFbo[] fbos = new GlslFbo[maxDivisor + 1];
+			System.arraycopy(mFbos, 0, fbos, 0, mFbos.length);
+			mFbos = fbos;
+		}
+		for (int i = 1; i < mFbos.length; ++i) {
+			int count = i <= maxDivisor ? textureCounts[i] : 0;
+			if (count == 0) {
+				if (mFbos[i] != null) {
+					mFbos[i].reset();
+					mFbos[i] = null;
+				}
+			} else if (mFbos[i] == null || mFbos[i].getTextureCount() != count) {
+				if (mFbos[i] == null) {
+					mFbos[i] = new GlslFbo();
+				}
+				mFbos[i].init(mWidth / i, mHeight / i, count, depthStencil[i],
+						depthStencil[i]);
+				mFbos[i].setViewportScale(mViewportScale);
+			}
+		}
+
+		// Textures were reassigned, cached results are lost.
+		mResourceVersion = new int[resourceCount];
+		mExecutedVersions = new int[passCount][];
+		for (int i = 0; i < passCount; ++i) {
+			mExecutedVersions[i] = new int[mPasses.get(i).mInputs.length + 1];
+		}
+		invalidateCache();
+
+		invalidateBinding();
+		mCompileNeeded = false;
+	}
+
+	/**
+	 * Executes all live passes. Graph is recompiled first if enabled state of
+	 * any pass has changed since last compile.
+	 */
+	public void execute() {
+		if (!mCompileNeeded) {
+			for (int i = 0; i < mPasses.size(); ++i) {
+				if (mPasses.get(i).isEnabled() != mCompiledEnabled[i]) {
+					mCompileNeeded = true;
+					break;
+				}
+			}
+		}
+		if (mCompileNeeded) {
+			compile();
+		}
+
+		// We can't know what was bound in between frames.
+		invalidateBinding();
+		mFboBindCount = 0;
+		mSkippedCount = 0;
+
+		for (Pass pass : mLivePasses) {
+			// Screen contents are not preserved, so passes writing into it
+			// are always executed.
+			if (!updateVersions(pass) && mCaching && pass.mOutput != SCREEN) {
+				++mSkippedCount;
+				continue;
+			}
+			++mResourceVersion[pass.mOutput];
+
+			int[] inputs = pass.mInputTextures;
+			for (int i = 0; i < inputs.length; ++i) {
+				inputs[i] = getTexture(pass.mInputs[i]);
+			}
+			GlslFbo fbo = pass.mOutput == SCREEN ? null
+					: mFbos[pass.mDivisor];
+			int index = pass.mOutput == SCREEN ? -1
+					: mTextureIndex[pass.mOutput];
+
+			mProfiler.begin(pass.mName);
+			if (pass.mBindsOwnTarget) {
+				// Pass binds internal targets and output on its own.
+				pass.execute(inputs, fbo, index);
+				invalidateBinding();
+			} else {
+				bindOutput(fbo, index);
+				pass.execute(inputs, fbo, index);
+			}
+			mProfiler.end();
+		}
+	}
+
+	/**
+	 * Getter for number of FBO binds executed during last frame.
+	 * 
+	 * @return FBO bind count
+	 */
+	public int getFboBindCount() {
+		return mFboBindCount;
+	}
+
+	/**
+	 * Getter for number of passes skipped during last frame as their cached
+	 * results were still valid.
+	 * 
+	 * @return Skipped pass count
+	 */
+	public int getSkippedCount() {
+		return mSkippedCount;
+	}
+
+	/**
+	 * Getter for number of textures allocated for given resolution divisor
+	 * after last compile.
+	 * 
+	 * @param divisor
+	 *            Resolution divisor
+	 * @return Number of allocated textures
+	 */
+	public int getTextureCount(int divisor) {
+		if (divisor < mFbos.length && mFbos[divisor] != null) {
+			return mFbos[divisor].getTextureCount();
+		}
+		return 0;
+	}
+
+	/**
+	 * Getter for texture id currently holding given resource. Value is valid
+	 * only while resource is alive during execute().
+	 * 
+	 * @param resource
+	 *            Resource id
+	 * @return Texture id
+	 */
+	public int getTexture(int resource) {
+		resource = mAlias[resource];
+		return mFbos[mResourceDivisor[resource]]
+				.getTexture(mTextureIndex[resource]);
+	}
+
+	/**
+	 * Initializes graph for given render target and screen sizes. All FBOs
+	 * are released and reallocated on next execute().
+	 * 
+	 * @param width
+	 *            Render target width
+	 * @param height
+	 *            Render target height
+	 * @param screenWidth
+	 *            Screen width
+	 * @param screenHeight
+	 *            Screen height
+	 */
+	public void init(int width, int height, int screenWidth, int screenHeight) {
+		reset();
+		mWidth = width;
+		mHeight = height;
+		mScreenWidth = screenWidth;
+		mScreenHeight = screenHeight;
+	}
+
+	/**
+	 * Forces every pass to be executed on next frame even if caching is
+	 * enabled.
+	 */
+	public void invalidateCache() {
+		for (int[] versions : mExecutedVersions) {
+			versions[0] = -1;
+		}
+	}
+
+	/**
+	 * Releases all FBOs allocated by this graph.
+	 */
+	public void reset() {
+		for (GlslFbo fbo : mFbos) {
+			if (fbo != null) {
+				fbo.reset();
+			}
+		}
+		mFbos = new GlslFbo[0];
+		mCompileNeeded = true;
+	}
+
+	/**
+	 * Enables or disables caching of pass results. Caching needs a texture of
+	 * its own for every resource, graph is recompiled on next execute().
+	 * 
+	 * @param caching
+	 *            If true, passes are executed only when needed
+	 */
+	public void setCaching(boolean caching) {
+		if (mCaching != caching) {
+			mCaching = caching;
+			mCompileNeeded = true;
+		}
+	}
+
+	/**
+	 * Sets profiler pass executions are recorded into.
+	 * 
+	 * @param profiler
+	 *            Profiler instance
+	 */
+	public void setProfiler(GlslProfiler profiler) {
+		mProfiler = profiler;
+	}
+
+	/**
+	 * Scales viewport of all FBOs, passes then render into lower left corner
+	 * of their outputs. FBOs are not reallocated.
+	 * 
+	 * @param scale
+	 *            Viewport scale between (0, 1]
+	 */
+	public void setViewportScale(float scale) {
+		mViewportScale = scale;
+		for (GlslFbo fbo : mFbos) {
+			if (fbo != null) {
+				fbo.setViewportScale(scale);
+			}
+		}
+		invalidateCache();
+	}
+
+	/**
+	 * Binds given output, skipping FBO and texture binds which are already in
+	 * place.
+	 * 
+	 * @param fbo
+	 *            FBO to bind, or null for screen
+	 * @param index
+	 *            Texture index to bind
+	 */
+	private void bindOutput(GlslFbo fbo, int index) {
+		GlslGl gl = GlslGlContext.get();
+		if (fbo == null) {
+			if (!mScreenBound) {
+				gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+				gl.glViewport(0, 0, mScreenWidth, mScreenHeight);
+				invalidateBinding();
+				mScreenBound = true;
+				++mFboBindCount;
+			}
+			return;
+		}
+		if (mBoundFbo != fbo) {
+			fbo.bind();
+			invalidateBinding();
+			mBoundFbo = fbo;
+			++mFboBindCount;
+		}
+		if (mBoundIndex != index) {
+			fbo.bindTexture(index);
+			mBoundIndex = index;
+		}
+	}
+
+	/**
+	 * Fuses live stage passes into the pass producing their input, or into the
+	 * only pass reading their output. Fused passes are marked not live and
+	 * their output is forwarded to their input.
+	 * 
+	 * @param live
+	 *            Live state of passes, updated for fused passes
+	 */
+	private void fuseStages(boolean[] live) {
+		final int passCount = mPasses.size();
+		final int resourceCount = mResources.size();
+
+		// Find writer and number of reads for every resource.
+		Pass[] writers = new Pass[resourceCount];
+		int[] readers = new int[resourceCount];
+		for (int i = 0; i < passCount; ++i) {
+			Pass pass = mPasses.get(i);
+			pass.mFusedStages = 0;
+			if (live[i]) {
+				writers[pass.mOutput] = pass;
+				for (int input : pass.mInputs) {
+					++readers[mAlias[input]];
+				}
+			}
+		}
+
+		for (int i = 0; i < passCount; ++i) {
+			Pass stage = mPasses.get(i);
+			if (!live[i] || stage.mStage == 0 || stage.mOutput == SCREEN) {
+				continue;
+			}
+			int input = mAlias[stage.mInputs[0]];
+			int output = stage.mOutput;
+			Pass producer = writers[input];
+			if (producer == null || producer.mDivisor != stage.mDivisor) {
+				continue;
+			}
+
+			// Producer can write stage output directly if stage is the only
+			// reader and stages are kept in order.
+			if (producer.mAcceptsStages && readers[input] == 1
+					&& stage.mStage > producer.mFusedStages) {
+				producer.mFusedStages |= stage.mStage;
+				forward(output, input);
+				readers[input] += readers[output] - 1;
+				live[i] = false;
+				continue;
+			}
+
+			// Otherwise single tap consumer may apply stage on its input.
+			if (readers[output] != 1) {
+				continue;
+			}
+			for (int j = i + 1; j < passCount; ++j) {
+				Pass consumer = mPasses.get(j);
+				if (!live[j] || consumer.mInputs.length == 0
+						|| mAlias[consumer.mInputs[0]] != output) {
+					continue;
+				}
+				int fused = consumer.mFusedStages;
+				if (consumer.mSingleTap
+						&& (fused == 0 || stage.mStage < Integer
+								.lowestOneBit(fused))) {
+					consumer.mFusedStages |= stage.mStage;
+					forward(output, input);
+					live[i] = false;
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Forwards every resource currently resolving to one resource into
+	 * another.
+	 * 
+	 * @param from
+	 *            Resource id to forward
+	 * @param to
+	 *            Resource id to forward to
+	 */
+	private void forward(int from, int to) {
+		for (int i = 0; i < mAlias.length; ++i) {
+			if (mAlias[i] == from) {
+				mAlias[i] = to;
+			}
+		}
+	}
+
+	/**
+	 * Forgets currently bound output, next bindOutput(..) binds it again.
+	 */
+	private void invalidateBinding() {
+		mBoundFbo = null;
+		mBoundIndex = -1;
+		mScreenBound = false;
+	}
+
+	/**
+	 * Stores current pass version and versions of pass inputs as executed
+	 * versions of given pass.
+	 * 
+	 * @param pass
+	 *            Pass to update
+	 * @return true if any version differs from previous execute
+	 */
+	private boolean updateVersions(Pass pass) {
+		int[] versions = mExecutedVersions[mPasses.indexOf(pass)];
+		boolean changed = false;
+		int version = pass.getVersion();
+		if (versions[0] != version) {
+			versions[0] = version;
+			changed = true;
+		}
+		for (int i = 0; i < pass.mInputs.length; ++i) {
+			version = mResourceVersion[mAlias[pass.mInputs[i]]];
+			if (versions[i + 1] != version) {
+				versions[i + 1] = version;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Base class for frame graph passes.
+	 */
+	public static abstract class Pass {
+
+		// Pass name, used only for debugging purposes.
+		private final String mName;
+		// Resolution divisor, 1 for full size, 2 for half size and so on.
+		private final int mDivisor;
+		// Resource ids this pass reads.
+		private final int[] mInputs;
+		// Texture ids for inputs, updated before every execute.
+		private final int[] mInputTextures;
+		// Resource id this pass writes into.
+		private final int mOutput;
+		// True if output FBO needs depth and stencil buffers.
+		private boolean mDepthStencil;
+		// True if pass binds its output on its own.
+		private boolean mBindsOwnTarget;
+		// Stage bit if this pass is a per-pixel stage, zero otherwise.
+		private int mStage;
+		// True if pass applies fused stages on its output.
+		private boolean mAcceptsStages;
+		// True if pass reads its first input with a single tap.
+		private boolean mSingleTap;
+		// Stages fused into this pass during last compile.
+		private int mFusedStages;
+
+		/**
+		 * Constructor for a pass. Disabled passes forward their first input as
+		 * their output, so passes which may be disabled should have at least
+		 * one input.
+		 * 
+		 * @param name
+		 *            Pass name
+		 * @param divisor
+		 *            Resolution divisor for output
+		 * @param output
+		 *            Resource id to write into
+		 * @param inputs
+		 *            Resource ids to read
+		 */
+		public Pass(String name, int divisor, int output, int... inputs) {
+			mName = name;
+			mDivisor = divisor;
+			mOutput = output;
+			mInputs = inputs;
+			mInputTextures = new int[inputs.length];
+		}
+
+		/**
+		 * Executes this pass. Unless pass was marked to bind its own target,
+		 * output has been bound already.
+		 * 
+		 * @param inputs
+		 *            Texture ids for declared inputs
+		 * @param fboOut
+		 *            Output FBO, or null if rendering into screen
+		 * @param idxOut
+		 *            Output FBO texture index
+		 */
+		public abstract void execute(int[] inputs, GlslFbo fboOut, int idxOut);
+
+		/**
+		 * Getter for pass name.
+		 * 
+		 * @return Pass name
+		 */
+		public String getName() {
+			return mName;
+		}
+
+		/**
+		 * Getter for stages fused into this pass during last compile. Passes
+		 * accepting stages have to apply these on their output, in increasing
+		 * bit order.
+		 * 
+		 * @return Stage bits
+		 */
+		public int getStages() {
+			return mFusedStages;
+		}
+
+		/**
+		 * Returns version of state this pass reads besides its inputs, e.g
+		 * camera or filter settings. If caching is enabled, pass is executed
+		 * again only once this value or any of its inputs has changed.
+		 * 
+		 * @return Version number
+		 */
+		public int getVersion() {
+			return 0;
+		}
+
+		/**
+		 * Returns whether this pass is enabled. Graph is recompiled whenever
+		 * value returned changes.
+		 * 
+		 * @return true if enabled
+		 */
+		public boolean isEnabled() {
+			return true;
+		}
+
+		/**
+		 * Marks this pass as one which applies stages returned from
+		 * getStages() on its output. Stage passes reading output of this pass
+		 * may then be fused into it.
+		 * 
+		 * @return this pass
+		 */
+		public Pass setAcceptsStages() {
+			mAcceptsStages = true;
+			return this;
+		}
+
+		/**
+		 * Marks this pass as one which binds its output on its own, usually
+		 * because it renders into internal targets first.
+		 * 
+		 * @return this pass
+		 */
+		public Pass setBindsOwnTarget() {
+			mBindsOwnTarget = true;
+			return this;
+		}
+
+		/**
+		 * Marks this pass as one which needs depth and stencil buffers.
+		 * 
+		 * @return this pass
+		 */
+		public Pass setDepthStencil() {
+			mDepthStencil = true;
+			return this;
+		}
+
+		/**
+		 * Marks this pass as one which reads its first input once per pixel
+		 * and accepts stages. Stage pass producing that input may then be
+		 * fused into this pass instead of producer.
+		 * 
+		 * @return this pass
+		 */
+		public Pass setSingleTap() {
+			mSingleTap = mAcceptsStages = true;
+			return this;
+		}
+
+		/**
+		 * Marks this pass as a per-pixel stage. Stage pass may read only its
+		 * first input, at the pixel it writes, and has to produce same result
+		 * filter would by applying given stage. Graph may fuse it into its
+		 * neighbour instead of executing it.
+		 * 
+		 * @param stage
+		 *            Single stage bit
+		 * @return this pass
+		 */
+		public Pass setStage(int stage) {
+			mStage = stage;
+			return this;
+		}
+	}
+
+}
@@ -0,0 +1,403 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl;
+
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Tiled light culler. Light bounding spheres, given in view space, are
+ * projected onto a grid of screen tiles and a list of lights affecting it is
+ * built for every tile. Work is split over lights and tile rows and run on
+ * given executor. Results don't depend on the number of threads as every tile
+ * lists its lights in their original order. This class doesn't use GL and can
+ * be used on plain JVM.
+ */
+public final class GlslLightCuller {
+
+	// Floats per light, view space position plus radius.
+	public static final int LIGHT_SIZE = 4;
+	// Maximum number of lights listed per tile. Lights after it aren't listed
+	// and tile is counted as overflowed instead.
+	public static final int MAX_TILE_LIGHTS = 32;
+	// Minimum number of lights worth splitting work over threads.
+	private static final int PARALLEL_THRESHOLD = 64;
+
+	// Executor for parallel work, null for culling on calling thread.
+	private final ExecutorService mExecutor;
+	// Number of tasks work is split into.
+	private final int mTaskCount;
+	// Tile size in pixels.
+	private final int mTileSize;
+	// Viewport size and tile grid size.
+	private int mWidth, mHeight;
+	private int mTileCountX, mTileCountY;
+	// Projection scale x, scale y, near and far plane distances.
+	private final float[] mProjection = new float[4];
+
+	// Lights given to last call to cull().
+	private float[] mLights;
+	private int mLightCount;
+	// Tile bounds for every light; x0, y0, x1, y1 inclusive. Invisible
+	// lights have x0 greater than x1.
+	private int[] mLightTiles = {};
+	// Light indices, MAX_TILE_LIGHTS slots for every tile.
+	private int[] mTileLights = {};
+	// Number of lights affecting every tile, may exceed MAX_TILE_LIGHTS.
+	private int[] mTileLightCounts = {};
+	// Number of tiles affected by more than MAX_TILE_LIGHTS lights.
+	private int mOverflowCount;
+
+	/**
+	 * Constructor for culler.
+	 * 
+	 * @param tileSize
+	 *            Tile width and height in pixels
+	 * @param executor
+	 *            Executor for parallel work, or null
+	 * @param taskCount
+	 *            Number of tasks work is split into, usually number of
+	 *            threads executor runs
+	 */
+	public GlslLightCuller(int tileSize, ExecutorService executor,
+			int taskCount) {
+		mTileSize = tileSize;
+		mExecutor = executor;
+		mTaskCount = Math.max(1, taskCount);
+	}
+
+	/**
+	 * Calculates normalized device coordinate bounds for a light bounding
+	 * sphere using symmetric perspective projection.
+	 * 
+	 * @param lights
+	 *            Light array, LIGHT_SIZE floats per light
+	 * @param offset
+	 *            Offset of light in array
+	 * @param projection
+	 *            Projection scale x, scale y, near and far plane distances
+	 * @param bounds
+	 *            Array for storing x0, y0, x1 and y1
+	 * @return false if sphere isn't visible
+	 */
+	static boolean getScreenBounds(float[] lights, int offset,
+			float[] projection, float[] bounds) {
+		float x = lights[offset];
+		float y = lights[offset + 1];
+		float z = lights[offset + 2];
+		float radius = lights[offset + 3];
+		float zNear = projection[2];
+		float zFar = projection[3];
+
+		// Skip spheres completely behind near plane or beyond far plane.
+		if (z - radius > -zNear || z + radius < -zFar) {
+			return false;
+		}
+
+		float x0 = -1f, y0 = -1f, x1 = 1f, y1 = 1f;
+		if (z + radius < -zNear) {
+			// Sphere is in front of near plane, project corners of its
+			// bounding box.
+			x0 = y0 = 1f;
+			x1 = y1 = -1f;
+			for (int i = 0; i < 4; ++i) {
+				float w = -(z + ((i & 2) == 0 ? -radius : radius));
+				float d = (i & 1) == 0 ? -radius : radius;
+				float px = projection[0] * (x + d) / w;
+				float py = projection[1] * (y + d) / w;
+				x0 = Math.min(x0, px);
+				x1 = Math.max(x1, px);
+				y0 = Math.min(y0, py);
+				y1 = Math.max(y1, py);
+			}
+			x0 = Math.max(x0, -1f);
+			y0 = Math.max(y0, -1f);
+			x1 = Math.min(x1, 1f);
+			y1 = Math.min(y1, 1f);
+			if (x0 >= x1 || y0 >= y1) {
+				return false;
+			}
+		}
+		bounds[0] = x0;
+		bounds[1] = y0;
+		bounds[2] = x1;
+		bounds[3] = y1;
+		return true;
+	}
+
+	/**
+	 * Builds light lists for every tile. Given array is referenced until next
+	 * call and must not be modified meanwhile.
+	 * 
+	 * @param lights
+	 *            View space position and radius, LIGHT_SIZE floats per light
+	 * @param lightCount
+	 *            Number of lights
+	 */
+	public void cull(float[] lights, int lightCount) {
+		mLights = lights;
+		mLightCount = lightCount;
+		if (mLightTiles.length < lightCount * 4) {
+			mLightTiles = new int[lightCount * 4];
+		}
+
+		if (mExecutor == null || mTaskCount == 1
+				|| lightCount < PARALLEL_THRESHOLD) {
+			calculateLightTiles(0, lightCount);
+			buildTileLists(0, mTileCountY);
+			countOverflows();
+			return;
+		}
+
+		// Light bounds are split by lights, tile lists by tile rows.
+		Vector<Callable<Object>> tasks = new Vector<Callable<Object>>();
+		for (int i = 0; i < mTaskCount; ++i) {
+			final int first = lightCount * i / mTaskCount;
+			final int last = lightCount * (i + 1) / mTaskCount;
+			tasks.add(new Callable<Object>() {
+				@Override
+				public Object call() {
+					calculateLightTiles(first, last);
+					return null;
+				}
+			});
+		}
+		invokeAll(tasks);
+		tasks.clear();
+		for (int i = 0; i < mTaskCount; ++i) {
+			final int first = mTileCountY * i / mTaskCount;
+			final int last = mTileCountY * (i + 1) / mTaskCount;
+			tasks.add(new Callable<Object>() {
+				@Override
+				public Object call() {
+					buildTileLists(first, last);
+					return null;
+				}
+			});
+		}
+		invokeAll(tasks);
+		countOverflows();
+	}
+
+	/**
+	 * Getter for number of tiles affected by more lights than their list
+	 * holds on last call to cull(). Rendering from tile lists drops lights
+	 * from these tiles.
+	 * 
+	 * @return Number of overflowed tiles
+	 */
+	public int getOverflowCount() {
+		return mOverflowCount;
+	}
+
+	/**
+	 * Getter for number of tiles horizontally.
+	 * 
+	 * @return Tile count
+	 */
+	public int getTileCountX() {
+		return mTileCountX;
+	}
+
+	/**
+	 * Getter for number of tiles vertically.
+	 * 
+	 * @return Tile count
+	 */
+	public int getTileCountY() {
+		return mTileCountY;
+	}
+
+	/**
+	 * Getter for light listed for a tile.
+	 * 
+	 * @param tile
+	 *            Tile index, x + y * getTileCountX()
+	 * @param index
+	 *            Index within tile list
+	 * @return Light index
+	 */
+	public int getTileLight(int tile, int index) {
+		return mTileLights[tile * MAX_TILE_LIGHTS + index];
+	}
+
+	/**
+	 * Getter for number of lights listed for a tile.
+	 * 
+	 * @param tile
+	 *            Tile index, x + y * getTileCountX()
+	 * @return Light count
+	 */
+	public int getTileLightCount(int tile) {
+		return Math.min(mTileLightCounts[tile], MAX_TILE_LIGHTS);
+	}
+
+	/**
+	 * Getter for tile size.
+	 * 
+	 * @return Tile width and height in pixels
+	 */
+	public int getTileSize() {
+		return mTileSize;
+	}
+
+	/**
+	 * Sets projection used for rendering.
+	 * 
+	 * @param scaleX
+	 *            Projection matrix x scale
+	 * @param scaleY
+	 *            Projection matrix y scale
+	 * @param zNear
+	 *            Near plane distance
+	 * @param zFar
+	 *            Far plane distance
+	 */
+	public void setProjection(float scaleX, float scaleY, float zNear,
+			float zFar) {
+		mProjection[0] = scaleX;
+		mProjection[1] = scaleY;
+		mProjection[2] = zNear;
+		mProjection[3] = zFar;
+	}
+
+	/**
+	 * Sets viewport size tile grid is created for.
+	 * 
+	 * @param width
+	 *            Viewport width in pixels
+	 * @param height
+	 *            Viewport height in pixels
+	 */
+	public void setViewport(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+		mTileCountX = (width + mTileSize - 1) / mTileSize;
+		mTileCountY = (height + mTileSize - 1) / mTileSize;
+		int tileCount = mTileCountX * mTileCountY;
+		if (mTileLightCounts.length < tileCount) {
+			mTileLightCounts = new int[tileCount];
+			mTileLights = new int[tileCount * MAX_TILE_LIGHTS];
+		}
+	}
+
+	/**
+	 * Builds light lists for given range of tile rows.
+	 * 
+	 * @param firstRow
+	 *            First row
+	 * @param lastRow
+	 *            Row after last one
+	 */
+	private void buildTileLists(int firstRow, int lastRow) {
+		for (int i = firstRow * mTileCountX; i < lastRow * mTileCountX; ++i) {
+			mTileLightCounts[i] = 0;
+		}
+		for (int light = 0; light < mLightCount; ++light) {
+			int x0 = mLightTiles[light * 4];
+			int x1 = mLightTiles[light * 4 + 2];
+			int y0 = Math.max(firstRow, mLightTiles[light * 4 + 1]);
+			int y1 = Math.min(lastRow - 1, mLightTiles[light * 4 + 3]);
+			for (int y = y0; y <= y1; ++y) {
+				for (int x = x0; x <= x1; ++x) {
+					int tile = x + y * mTileCountX;
+					int count = mTileLightCounts[tile]++;
+					if (count < MAX_TILE_LIGHTS) {
+						mTileLights[tile * MAX_TILE_LIGHTS + count] = light;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calculates tile bounds for given range of lights.
+	 * 
+	 * @param first
+	 *            First light
+	 * @param last
+	 *            Light after last one
+	 */
+	private void calculateLightTiles(int first, int last) {
+		float[] bounds = new float[4];
+		for (int light = first; light < last; ++light) {
+			int idx = light * 4;
+			if (!getScreenBounds(mLights, light * LIGHT_SIZE, mProjection,
+					bounds)) {
+				mLightTiles[idx] = 0;
+				mLightTiles[idx + 2] = -1;
+				mLightTiles[idx + 1] = mLightTiles[idx + 3] = 0;
+				continue;
+			}
+			mLightTiles[idx] = toTile(bounds[0], mWidth, mTileCountX);
+			mLightTiles[idx + 1] = toTile(bounds[1], mHeight, mTileCountY);
+			mLightTiles[idx + 2] = toTile(bounds[2], mWidth, mTileCountX);
+			mLightTiles[idx + 3] = toTile(bounds[3], mHeight, mTileCountY);
+		}
+	}
+
+	/**
+	 * Counts tiles affected by more than MAX_TILE_LIGHTS lights.
+	 */
+	private void countOverflows() {
+		mOverflowCount = 0;
+		for (int i = 0; i < mTileCountX * mTileCountY; ++i) {
+			if (mTileLightCounts[i] > MAX_TILE_LIGHTS) {
+				++mOverflowCount;
+			}
+		}
+	}
+
+	/**
+	 * Runs given tasks on executor and waits for them to finish.
+	 * 
+	 * @param tasks
+	 *            Tasks to run
+	 */
+	private void invokeAll(Vector<Callable<Object>> tasks) {
+		try {
+			for (Future<Object> future : mExecutor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		} catch (ExecutionException ex) {
+			throw new RuntimeException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Converts normalized device coordinate into tile coordinate.
+	 * 
+	 * @param ndc
+	 *            Coordinate between [-1, 1]
+	 * @param size
+	 *            Viewport size in pixels
+	 * @param tileCount
+	 *            Number of tiles
+	 * @return Tile coordinate
+	 */
+	private int toTile(float ndc, int size, int tileCount) {
+		int tile = (int) ((ndc * 0.5f + 0.5f) * size) / mTileSize;
+		return Math.max(0, Math.min(tileCount - 1, tile));
+	}
+
+}
@@ -16,10 +16,10 @@
 
 package fi.harism.glsl;
 
-import android.opengl.Matrix;
-
 /**
- * Static methods for matrix initialization.
+ * Static methods for matrix initialization and arithmetic. Matrices are
+ * column-major float[16] arrays as with android.opengl.Matrix, which this
+ * class replaces so that scene code runs on a plain JVM too.
  */
 public final class GlslMatrix {
 
@@ -42,7 +42,7 @@ public final class GlslMatrix {
 	 */
 	public static void invTransposeM(float[] dst, int dstOffset, float[] src,
 			int srcOffset) {
-		Matrix.setIdentityM(dst, dstOffset);
+		setIdentityM(dst, dstOffset);
 
 		// Copy top-left 3x3 matrix into dst matrix.
 		dst[dstOffset + 0] = src[srcOffset + 0];
@@ -67,6 +67,164 @@ public final class GlslMatrix {
 				* src[srcOffset + 14]);
 	}
 
+	/**
+	 * Calculates length of given vector.
+	 * 
+	 * @param x
+	 *            Vector x
+	 * @param y
+	 *            Vector y
+	 * @param z
+	 *            Vector z
+	 * @return Vector length
+	 */
+	public static float length(float x, float y, float z) {
+		return (float) Math.sqrt(x * x + y * y + z * z);
+	}
+
+	/**
+	 * Multiplies two matrices, result = lhs * rhs. Result may not overlap
+	 * with either of the operands.
+	 * 
+	 * @param result
+	 *            Result matrix
+	 * @param resultOffset
+	 *            Result matrix offset
+	 * @param lhs
+	 *            Left hand side matrix
+	 * @param lhsOffset
+	 *            Left hand side matrix offset
+	 * @param rhs
+	 *            Right hand side matrix
+	 * @param rhsOffset
+	 *            Right hand side matrix offset
+	 */
+	public static void multiplyMM(float[] result, int resultOffset,
+			float[] lhs, int lhsOffset, float[] rhs, int rhsOffset) {
+		for (int i = 0; i < 4; ++i) {
+			for (int j = 0; j < 4; ++j) {
+				int r = rhsOffset + j * 4;
+				int l = lhsOffset + i;
+				result[resultOffset + j * 4 + i] = lhs[l] * rhs[r]
+						+ lhs[l + 4] * rhs[r + 1] + lhs[l + 8] * rhs[r + 2]
+						+ lhs[l + 12] * rhs[r + 3];
+			}
+		}
+	}
+
+	/**
+	 * Multiplies 4-component vector with matrix, result = lhs * rhs. Result
+	 * may not overlap with either of the operands.
+	 * 
+	 * @param result
+	 *            Result vector
+	 * @param resultOffset
+	 *            Result vector offset
+	 * @param lhs
+	 *            Matrix
+	 * @param lhsOffset
+	 *            Matrix offset
+	 * @param rhs
+	 *            Vector
+	 * @param rhsOffset
+	 *            Vector offset
+	 */
+	public static void multiplyMV(float[] result, int resultOffset,
+			float[] lhs, int lhsOffset, float[] rhs, int rhsOffset) {
+		for (int i = 0; i < 4; ++i) {
+			int l = lhsOffset + i;
+			result[resultOffset + i] = lhs[l] * rhs[rhsOffset]
+					+ lhs[l + 4] * rhs[rhsOffset + 1] + lhs[l + 8]
+					* rhs[rhsOffset + 2] + lhs[l + 12] * rhs[rhsOffset + 3];
+		}
+	}
+
+	/**
+	 * Initializes given matrix as identity matrix.
+	 * 
+	 * @param m
+	 *            Matrix float array
+	 * @param offset
+	 *            Matrix start offset
+	 */
+	public static void setIdentityM(float[] m, int offset) {
+		for (int i = 0; i < 16; ++i) {
+			m[offset + i] = (i % 5 == 0) ? 1f : 0f;
+		}
+	}
+
+	/**
+	 * Initializes given matrix as view matrix looking from eye position
+	 * towards center position.
+	 * 
+	 * @param m
+	 *            Matrix float array
+	 * @param offset
+	 *            Matrix start offset
+	 * @param eyeX
+	 *            Eye x position
+	 * @param eyeY
+	 *            Eye y position
+	 * @param eyeZ
+	 *            Eye z position
+	 * @param centerX
+	 *            Look at x position
+	 * @param centerY
+	 *            Look at y position
+	 * @param centerZ
+	 *            Look at z position
+	 * @param upX
+	 *            Up vector x
+	 * @param upY
+	 *            Up vector y
+	 * @param upZ
+	 *            Up vector z
+	 */
+	public static void setLookAtM(float[] m, int offset, float eyeX,
+			float eyeY, float eyeZ, float centerX, float centerY,
+			float centerZ, float upX, float upY, float upZ) {
+		// Forward vector.
+		float fx = centerX - eyeX;
+		float fy = centerY - eyeY;
+		float fz = centerZ - eyeZ;
+		float rlf = 1f / length(fx, fy, fz);
+		fx *= rlf;
+		fy *= rlf;
+		fz *= rlf;
+
+		// Side vector, forward x up.
+		float sx = fy * upZ - fz * upY;
+		float sy = fz * upX - fx * upZ;
+		float sz = fx * upY - fy * upX;
+		float rls = 1f / length(sx, sy, sz);
+		sx *= rls;
+		sy *= rls;
+		sz *= rls;
+
+		// Recomputed up vector, side x forward.
+		float ux = sy * fz - sz * fy;
+		float uy = sz * fx - sx * fz;
+		float uz = sx * fy - sy * fx;
+
+		m[offset + 0] = sx;
+		m[offset + 1] = ux;
+		m[offset + 2] = -fx;
+		m[offset + 3] = 0f;
+		m[offset + 4] = sy;
+		m[offset + 5] = uy;
+		m[offset + 6] = -fy;
+		m[offset + 7] = 0f;
+		m[offset + 8] = sz;
+		m[offset + 9] = uz;
+		m[offset + 10] = -fz;
+		m[offset + 11] = 0f;
+		// Translation, rotated -eye.
+		m[offset + 12] = -(sx * eyeX + sy * eyeY + sz * eyeZ);
+		m[offset + 13] = -(ux * eyeX + uy * eyeY + uz * eyeZ);
+		m[offset + 14] = fx * eyeX + fy * eyeY + fz * eyeZ;
+		m[offset + 15] = 1f;
+	}
+
 	/**
 	 * Initializes given matrix as perspective projection matrix.
 	 * 
@@ -85,7 +243,7 @@ public final class GlslMatrix {
 			float zNear, float zFar) {
 
 		// First initialize matrix as identity matrix.
-		Matrix.setIdentityM(m, 0);
+		setIdentityM(m, 0);
 
 		// Half the height.
 		float h = zNear * (float) Math.tan(fovy * Math.PI / 360);
@@ -126,7 +284,7 @@ public final class GlslMatrix {
 		double sin2 = Math.sin(z * toRadians);
 		double cos2 = Math.cos(z * toRadians);
 
-		Matrix.setIdentityM(m, offset);
+		setIdentityM(m, offset);
 
 		double sin1_cos2 = sin1 * cos2;
 		double sin1_sin2 = sin1 * sin2;
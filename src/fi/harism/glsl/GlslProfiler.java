@@ -0,0 +1,225 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import fi.harism.glsl.gl.GlslGlContext;
+
+/**
+ * Profiler for named, possibly nested, scopes. Finished scopes are stored into
+ * a ring buffer which can be written out as Chrome trace event JSON, to be
+ * viewed with chrome://tracing. Timings are CPU side System.nanoTime() values.
+ * GLES20 on Android has no binding for timer queries, instead scopes can be
+ * fenced with glFinish() so that their duration covers GPU work too. This
+ * stalls the pipeline and makes overall frame slower, but gives per scope
+ * attribution of GPU time.
+ */
+public final class GlslProfiler {
+
+	// Default number of scopes kept in ring buffer.
+	private static final int DEFAULT_CAPACITY = 4096;
+	// Maximum nesting depth of scopes.
+	private static final int MAX_DEPTH = 32;
+
+	// Profiling is done only while enabled.
+	private boolean mEnabled;
+	// If true, glFinish() is called at both ends of every scope.
+	private boolean mGpuFenced;
+
+	// Ring buffer of finished scopes, allocated once enabled.
+	private final int mCapacity;
+	private String[] mNames;
+	private long[] mStartTimes;
+	private long[] mDurations;
+	private boolean[] mFenced;
+	// Next write position and number of scopes stored.
+	private int mHead;
+	private int mCount;
+
+	// Stack of open scopes.
+	private final String[] mOpenNames = new String[MAX_DEPTH];
+	private final long[] mOpenStartTimes = new long[MAX_DEPTH];
+	private int mDepth;
+
+	// Time trace timestamps are relative to.
+	private final long mBaseTime = System.nanoTime();
+
+	/**
+	 * Default constructor, uses default ring buffer size.
+	 */
+	public GlslProfiler() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor for profiler keeping given number of latest scopes.
+	 * 
+	 * @param capacity
+	 *            Ring buffer size
+	 */
+	public GlslProfiler(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive.");
+		}
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Begins new scope. Scopes have to be closed with end() in reverse order
+	 * they were begun. Does nothing if profiler is disabled.
+	 * 
+	 * @param name
+	 *            Scope name, should be a constant as it is stored as is
+	 */
+	public void begin(String name) {
+		if (!mEnabled) {
+			return;
+		}
+		if (mDepth == MAX_DEPTH) {
+			throw new IllegalStateException("Too deeply nested scopes.");
+		}
+		if (mGpuFenced) {
+			GlslGlContext.get().glFinish();
+		}
+		mOpenNames[mDepth] = name;
+		mOpenStartTimes[mDepth] = System.nanoTime();
+		++mDepth;
+	}
+
+	/**
+	 * Removes all stored scopes.
+	 */
+	public void clear() {
+		mHead = mCount = 0;
+	}
+
+	/**
+	 * Ends latest scope begun and stores it into ring buffer, overwriting the
+	 * oldest one if buffer is full. Does nothing if profiler is disabled.
+	 */
+	public void end() {
+		if (!mEnabled) {
+			return;
+		}
+		if (mDepth == 0) {
+			throw new IllegalStateException("No scope to end.");
+		}
+		if (mGpuFenced) {
+			GlslGlContext.get().glFinish();
+		}
+		--mDepth;
+		mNames[mHead] = mOpenNames[mDepth];
+		mStartTimes[mHead] = mOpenStartTimes[mDepth];
+		mDurations[mHead] = System.nanoTime() - mOpenStartTimes[mDepth];
+		mFenced[mHead] = mGpuFenced;
+		mOpenNames[mDepth] = null;
+		mHead = (mHead + 1) % mCapacity;
+		mCount = Math.min(mCount + 1, mCapacity);
+	}
+
+	/**
+	 * Getter for number of scopes stored in ring buffer.
+	 * 
+	 * @return Number of scopes
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * Returns whether profiler is enabled.
+	 * 
+	 * @return true if enabled
+	 */
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * Enables or disables profiling. Scopes open at the time are discarded,
+	 * so this should be called between frames.
+	 * 
+	 * @param enabled
+	 *            New enabled state
+	 */
+	public void setEnabled(boolean enabled) {
+		if (enabled && mNames == null) {
+			mNames = new String[mCapacity];
+			mStartTimes = new long[mCapacity];
+			mDurations = new long[mCapacity];
+			mFenced = new boolean[mCapacity];
+		}
+		mEnabled = enabled;
+		mDepth = 0;
+	}
+
+	/**
+	 * Sets whether scopes are fenced with glFinish(). Scopes stored while
+	 * fenced are written with "gpu" category, others with "cpu".
+	 * 
+	 * @param gpuFenced
+	 *            If true, GPU work is waited for at scope boundaries
+	 */
+	public void setGpuFenced(boolean gpuFenced) {
+		mGpuFenced = gpuFenced;
+	}
+
+	/**
+	 * Writes stored scopes, oldest first, as Chrome trace event JSON.
+	 * 
+	 * @param out
+	 *            Writer to write into
+	 * @throws IOException
+	 */
+	public void writeTrace(Writer out) throws IOException {
+		out.write("{\"traceEvents\":[");
+		int first = (mHead - mCount + mCapacity) % mCapacity;
+		for (int i = 0; i < mCount; ++i) {
+			int idx = (first + i) % mCapacity;
+			if (i > 0) {
+				out.write(',');
+			}
+			out.write("\n{\"name\":\"");
+			out.write(mNames[idx]);
+			out.write("\",\"cat\":\"");
+			out.write(mFenced[idx] ? "gpu" : "cpu");
+			out.write("\",\"ph\":\"X\",\"pid\":0,\"tid\":0,\"ts\":");
+			out.write(toMicros(mStartTimes[idx] - mBaseTime));
+			out.write(",\"dur\":");
+			out.write(toMicros(mDurations[idx]));
+			out.write('}');
+		}
+		out.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+	}
+
+	/**
+	 * Converts nanoseconds into microseconds string, trace event timestamps
+	 * are in microseconds.
+	 * 
+	 * @param nanos
+	 *            Time in nanoseconds
+	 * @return Microseconds with three decimals
+	 */
+	private String toMicros(long nanos) {
+		long frac = nanos % 1000;
+		return (nanos / 1000) + (frac < 10 ? ".00" : frac < 100 ? ".0" : ".")
+				+ frac;
+	}
+
+}
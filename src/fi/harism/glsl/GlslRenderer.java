@@ -16,9 +16,19 @@
 
 package fi.harism.glsl;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -30,8 +40,12 @@ import android.opengl.GLSurfaceView;
 import android.os.CountDownTimer;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
+import fi.harism.glsl.gl.GlslGl;
+import fi.harism.glsl.gl.GlslGlContext;
+import fi.harism.glsl.gl.GlslGlStateCache;
 import fi.harism.glsl.scene.GlslLight;
 import fi.harism.glsl.scene.GlslScene;
 import fi.harism.glsl.scene.GlslShaderIds;
@@ -45,39 +59,59 @@ public final class GlslRenderer implements GLSurfaceView.Renderer,
 	// Internal scene ids (from preferences)
 	private static final int SCENE_BOXES1 = 0;
 	private static final int SCENE_BOXES2 = 1;
-
-	// Texture indexes for mFbo.
-	private static final int TEX_IDX_SCENE = 0;
-	private static final int TEX_IDX_OUT_1 = 1;
-	private static final int TEX_IDX_OUT_2 = 2;
+	private static final int SCENE_BOXES3 = 2;
+	// Light count buckets single pass forward shaders are generated for.
+	private static final int[] LIGHT_BUCKETS = { 1, 2, 4, 8 };
 
 	// Activity we belong to.
 	private Activity mOwnerActivity;
 	// FPS value.
 	private float mFps = 0f;
+	// Redundant GL calls state cache dropped during last frame.
+	private int mEliminatedCalls = 0;
 
 	// Updated on every call to onDrawFrame(..).
 	private long mRenderTime = 0;
+	// Same as mRenderTime but in nanoseconds, used for calculating FPS.
+	private long mRenderTimeNanos = 0;
 	// Animation time.
 	private long mAnimationTime = 0;
 	// Pause time is used for stopping animation on touch events.
 	private long mAnimationPauseTime = 0;
 
+	// Worker threads shared by scene updates and light culling, null if
+	// there's only one processor.
+	private final ExecutorService mExecutor;
 	// Scene instance.
-	private GlslScene mScene = new GlslScene();
+	private GlslScene mScene;
 	// Filters instance.
 	private GlslFilter mFilter = new GlslFilter();
+	// Deferred lighting instance.
+	private GlslDeferred mDeferred;
+	// Shadow maps instance.
+	private GlslShadowMaps mShadowMaps = new GlslShadowMaps();
 	// Camera instance.
 	private GlslCamera mCamera = new GlslCamera();
 
-	// FBO for rendering.
-	private GlslFbo mFbo = new GlslFbo();
+	// Frame graph for scheduling scene and filter passes.
+	private GlslFrameGraph mFrameGraph = new GlslFrameGraph();
+	// Profiler for per pass timings.
+	private GlslProfiler mProfiler = new GlslProfiler();
+	// Controller for scaling render viewport to frame time.
+	private GlslDynamicResolution mDynamicResolution = new GlslDynamicResolution();
 
 	// Flag for indicating animation is paused.
 	private boolean mAnimationPaused;
+	// Flag for whether frames are rendered only on demand while paused and
+	// unchanged pass results are reused.
+	private boolean mRenderOnDemand;
+	// Scene and camera versions matrices were last updated for.
+	private int mMatricesVersion = -1;
 	// Touch ACTION_DOWN coordinates.
 	private float mTouchX, mTouchY;
 
+	// Flag for whether render viewport is scaled dynamically.
+	private boolean mDynamicResolutionEnabled;
 	// Flag for whether screen should be divided.
 	private boolean mDivideScreen;
 	// Flag for whether bloom is enabled.
@@ -88,6 +122,14 @@ public final class GlslRenderer implements GLSurfaceView.Renderer,
 	private boolean mFxaaEnabled;
 	// Flag for whether shadows should be rendered.
 	private boolean mShadowsEnabled;
+	// Flag for whether shadow volumes are extruded from CPU silhouettes.
+	private boolean mShadowSilhouettes;
+	// Flag for whether shadow volumes of all objects are drawn as one batch.
+	private boolean mShadowBatching;
+	// Flag for whether shadow maps are used instead of shadow volumes.
+	private boolean mShadowMapsEnabled;
+	// Flag for whether deferred lighting is used when shadows are disabled.
+	private boolean mDeferredEnabled;
 	// Ambient, diffuse and specular factors for lightning.
 	private float mAmbientFactor, mDiffuseFactor, mSpecularFactor;
 
@@ -97,17 +139,71 @@ public final class GlslRenderer implements GLSurfaceView.Renderer,
 	// Shader for rendering diffuse and specular lighted scene.
 	private GlslShader mDiffuseSpecularShader = new GlslShader();
 	private GlslShaderIds mDiffuseSpecularShaderIds = new GlslShaderIds();
+	// Shaders for rendering ambient, diffuse and specular lighted scene in
+	// one pass, index being light count bucket. Generated once first used.
+	private GlslShader[] mForwardShaders = new GlslShader[LIGHT_BUCKETS.length];
+	private GlslShaderIds[] mForwardShaderIds = new GlslShaderIds[LIGHT_BUCKETS.length];
+	// Shader sources forward shaders are generated from.
+	private String mForwardVs, mForwardFs;
+	// Packed light positions for forward shaders, radius stored in w.
+	private float[] mForwardLightPositions = new float[4 * LIGHT_BUCKETS[LIGHT_BUCKETS.length - 1]];
 	// Shader for rendering lights into scene.
 	private GlslShader mLightShader = new GlslShader();
 	// Shader for rendering shadow volumes.
 	private GlslShader mShadowShader = new GlslShader();
 	private GlslShaderIds mShadowShaderIds = new GlslShaderIds();
+	// Shader for rendering shadow volumes extracted on CPU.
+	private GlslShader mSilhouetteShader = new GlslShader();
+	private GlslShaderIds mSilhouetteShaderIds = new GlslShaderIds();
+	// Shader for rendering batched world space shadow volumes.
+	private GlslShader mShadowBatchShader = new GlslShader();
+	private GlslShaderIds mShadowBatchShaderIds = new GlslShaderIds();
+	// Shader for rendering diffuse and specular lighted scene with shadow
+	// map lookup.
+	private GlslShader mShadowMapLightShader = new GlslShader();
+	private GlslShaderIds mShadowMapLightShaderIds = new GlslShaderIds();
+	// Projection values, light sphere and normalized device coordinate
+	// bounds for per light scissor rectangles.
+	private float[] mScissorProjection = new float[4];
+	private float[] mScissorSphere = new float[GlslLightCuller.LIGHT_SIZE];
+	private float[] mScissorBounds = new float[4];
 
 	/**
-	 * Constructor.
+	 * Constructor. Creates a worker thread for every processor core if there
+	 * are more than one of them.
 	 */
 	public GlslRenderer() {
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (threads > 1) {
+			mExecutor = Executors.newFixedThreadPool(threads,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "GlslRenderer");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		} else {
+			mExecutor = null;
+		}
+		mScene = new GlslScene(mExecutor, threads);
+		mDeferred = new GlslDeferred(mExecutor, threads);
 		mRenderTime = SystemClock.uptimeMillis();
+		mRenderTimeNanos = System.nanoTime();
+		mFrameGraph.setProfiler(mProfiler);
+		mFilter.setProfiler(mProfiler);
+		initFrameGraph();
+	}
+
+	/**
+	 * Getter for number of GL calls state cache dropped as redundant during
+	 * last frame.
+	 * 
+	 * @return Number of calls, 0 if state cache isn't in use
+	 */
+	public int getEliminatedCalls() {
+		return mEliminatedCalls;
 	}
 
 	/**
@@ -121,29 +217,31 @@ public final class GlslRenderer implements GLSurfaceView.Renderer,
 
 	@Override
 	public void onDrawFrame(GL10 glUnused) {
-		// Setup GLES20 rendering options.
-		GLES20.glEnable(GLES20.GL_CULL_FACE);
-		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-		GLES20.glDisable(GLES20.GL_STENCIL_TEST);
-		GLES20.glFrontFace(GLES20.GL_CCW);
-		GLES20.glDepthFunc(GLES20.GL_LEQUAL);
-
-		// Bind scene texture and trigger clear before recalculating scene
-		// matrices. Renderer emulates HDR rendering by reserving certain amount
-		// of color space for HDR values. Currently this means that {R,G,B} -->
-		// {R/3,G/3,B/3} where 'regular' colors are within [0, 1/3] range and
-		// values [1, 3] map to higher [1/3, 3/3] range - and therefore clear
-		// color is divided by 3.
-		mFbo.bind();
-		mFbo.bindTexture(TEX_IDX_SCENE);
-		GLES20.glClearColor(0.2f / 3f, 0.3f / 3f, 0.5f / 3f, 1.0f);
-		GLES20.glClear(GLES20.GL_STENCIL_BUFFER_BIT
-				| GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-
 		// Update render time and calculate FPS.
 		long lastRenderTime = mRenderTime;
 		mRenderTime = SystemClock.uptimeMillis();
-		mFps = 1000f / (mRenderTime - lastRenderTime);
+		long lastRenderTimeNanos = mRenderTimeNanos;
+		mRenderTimeNanos = System.nanoTime();
+		mFps = 1000000000f / (mRenderTimeNanos - lastRenderTimeNanos);
+		// Take calls state cache dropped during last frame and start
+		// counting again.
+		GlslGl gl = GlslGlContext.get();
+		if (gl instanceof GlslGlStateCache) {
+			GlslGlStateCache stateCache = (GlslGlStateCache) gl;
+			mEliminatedCalls = stateCache.getEliminatedCalls();
+			stateCache.resetCounters();
+		}
+		mProfiler.begin("frame");
+
+		// Scale render viewport within FBOs to keep up with target frame
+		// time, nothing is reallocated. Frame times are meaningless while
+		// rendering on demand, which happens only while animation is paused.
+		boolean onDemand = mRenderOnDemand && mAnimationPaused;
+		if (mDynamicResolutionEnabled && !onDemand
+				&& mDynamicResolution.update(mRenderTimeNanos
+						- lastRenderTimeNanos)) {
+			setViewportScale(mDynamicResolution.getScale());
+		}
 
 		// If animation is not paused, increment it with new/last render time
 		// difference.
@@ -151,86 +249,23 @@ public final class GlslRenderer implements GLSurfaceView.Renderer,
 			mAnimationTime += mRenderTime - lastRenderTime;
 		}
 		// Call scene for applying animation.
+		mProfiler.begin("animate");
 		mScene.animate(mAnimationTime);
-		// Sets/calculates matrices for child objects etc.
-		mScene.updateMatrices(mCamera.mViewM, mCamera.mProjM);
-
-		// Render ambient lighted scene. Ambient color covers all objects no
-		// matter are they in shadow or not. Also depth information stored
-		// during this pass is used for rendering shadow volumes.
-		renderAmbient();
-		// Render diffuse and specular lighted scene. This pass includes also
-		// optional
-		// shadow volume calculations.
-		renderDiffuseSpecular();
-		// Render light objects into scene.
-		renderLightObjects();
-
-		// Variables for flipping input/output textures. Input texture should
-		// always point to texture index used as source and output texture is
-		// the one for rendering into.
-		int texIdxIn = TEX_IDX_SCENE;
-		int texIdxOut = TEX_IDX_OUT_1;
-
-		// If lens blur is enabled.
-		if (mLensBlurEnabled) {
-			mFilter.lensBlur(mFbo.getTexture(texIdxIn), mFbo, texIdxOut,
-					mCamera);
-			// Swap texture in and out.
-			texIdxIn = texIdxOut;
-			texIdxOut = texIdxIn == TEX_IDX_OUT_1 ? TEX_IDX_OUT_2
-					: TEX_IDX_OUT_1;
+		mProfiler.end();
+		// Sets/calculates matrices for child objects etc. Unless scene or
+		// camera changed matrices are up to date already.
+		int matricesVersion = mScene.getVersion() + mCamera.getVersion();
+		if (matricesVersion != mMatricesVersion) {
+			mMatricesVersion = matricesVersion;
+			mProfiler.begin("updateMatrices");
+			mScene.updateMatrices(mCamera);
+			mProfiler.end();
 		}
 
-		// If bloom is enabled.
-		if (mBloomEnabled) {
-			mFilter.bloom(mFbo.getTexture(texIdxIn), mFbo, texIdxOut);
-			// Swap texture in and out.
-			texIdxIn = texIdxOut;
-			texIdxOut = texIdxIn == TEX_IDX_OUT_1 ? TEX_IDX_OUT_2
-					: TEX_IDX_OUT_1;
-		}
-		// Apply tone mapping before anti-aliasing.
-		// TODO: It may be better if tone mapping was done as part of bloom and
-		// within else -clause if bloom is disabled.
-		mFbo.bind();
-		mFbo.bindTexture(texIdxOut);
-		mFilter.tonemap(mFbo.getTexture(texIdxIn));
-		// Swap texture in and out.
-		texIdxIn = texIdxOut;
-		texIdxOut = texIdxIn == TEX_IDX_OUT_1 ? TEX_IDX_OUT_2 : TEX_IDX_OUT_1;
-
-		// If FXAA anti-aliasing is enabled.
-		if (mFxaaEnabled) {
-			mFbo.bind();
-			mFbo.bindTexture(texIdxOut);
-			mFilter.fxaa(mFbo.getTexture(texIdxIn), mFbo.getWidth(),
-					mFbo.getHeight(), mFbo.getWidth(), mFbo.getHeight());
-			// Swap texture in and out.
-			texIdxIn = texIdxOut;
-			texIdxOut = texIdxIn == TEX_IDX_OUT_1 ? TEX_IDX_OUT_2
-					: TEX_IDX_OUT_1;
-		}
-
-		// Bind "screen FBO" into use. This is the final pass where FBOs are
-		// rendered on screen.
-		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-		GLES20.glViewport(0, 0, mCamera.mViewWidth, mCamera.mViewHeight);
-		// If screen is divided copy original scene texture on left side.
-		if (mDivideScreen) {
-			mFilter.setClipCoords(-1f, 1f, 0f, -1f);
-			mFilter.tonemap(mFbo.getTexture(TEX_IDX_SCENE));
-			mFilter.setClipCoords(0f, 1f, 1f, -1f);
-		}
-		// Based on touch difference copy filtered scene to screen using plain
-		// copy or displacement filter.
-		if (mCamera.mTouchDX == 0 && mCamera.mTouchDY == 0) {
-			mFilter.copy(mFbo.getTexture(texIdxIn));
-		} else {
-			mFilter.displace(mFbo.getTexture(texIdxIn), mCamera);
-		}
-		// Return filter clip bounds back to original values.
-		mFilter.setClipCoords(-1f, 1f, 1f, -1f);
+		// Execute scene and filter passes. Frame graph takes care of skipping
+		// disabled filters and reusing textures between passes.
+		mFrameGraph.execute();
+		mProfiler.end();
 	}
 
 	@Override
@@ -264,13 +299,21 @@ public final class GlslRenderer implements GLSurfaceView.Renderer,
 			height /= 3;
 			break;
 		}
-		// Initialize mFbo and mFilter for rendering.
-		mFbo.init(width, height, 3, true, true);
+		// Initialize mFrameGraph and mFilter for rendering.
+		mFrameGraph.init(width, height, mCamera.mViewWidth,
+				mCamera.mViewHeight);
 		mFilter.init(width, height);
+		mDeferred.init(width, height);
+		// Chosen quality is the maximum resolution dynamic resolution scales
+		// down from.
+		mDynamicResolution.reset();
+		setViewportScale(mDynamicResolution.getScale());
 	}
 
 	@Override
 	public void onSurfaceCreated(GL10 glUnused, EGLConfig config) {
+		// New context starts with default state.
+		GlslGlContext.invalidate();
 		// Initializes filter shaders.
 		mFilter.init(mOwnerActivity);
 
@@ -279,6 +322,11 @@ public final class GlslRenderer implements GLSurfaceView.Renderer,
 				.getDefaultSharedPreferences(mOwnerActivity);
 		String key = mOwnerActivity.getString(R.string.key_divide_screen);
 		mDivideScreen = prefs.getBoolean(key, false);
+		key = mOwnerActivity.getString(R.string.key_dynamic_resolution);
+		mDynamicResolutionEnabled = prefs.getBoolean(key, false);
+		key = mOwnerActivity.getString(R.string.key_render_on_demand);
+		mRenderOnDemand = prefs.getBoolean(key, false);
+		mFrameGraph.setCaching(mRenderOnDemand);
 		key = mOwnerActivity.getString(R.string.key_lensblur_enable);
 		mLensBlurEnabled = prefs.getBoolean(key, true);
 
@@ -297,6 +345,10 @@ public final class GlslRenderer implements GLSurfaceView.Renderer,
 
 		key = mOwnerActivity.getString(R.string.key_light_count);
 		int lightCount = (int) prefs.getFloat(key, 1);
+		key = mOwnerActivity.getString(R.string.key_batching);
+		mScene.setBatching(prefs.getBoolean(key, true));
+		key = mOwnerActivity.getString(R.string.key_baking);
+		mScene.setBaking(prefs.getBoolean(key, true));
 		key = mOwnerActivity.getString(R.string.key_scene);
 		int scene = Integer.parseInt(prefs.getString(key, "0"));
 		switch (scene) {
@@ -306,6 +358,9 @@ public final class GlslRenderer implements GLSurfaceView.Renderer,
 		case SCENE_BOXES2:
 			mScene.initSceneBoxes2(mCamera, lightCount);
 			break;
+		case SCENE_BOXES3:
+			mScene.initSceneBoxes3(mCamera, lightCount);
+			break;
 		}
 		key = mOwnerActivity.getString(R.string.key_ambient_factor);
 		mAmbientFactor = prefs.getFloat(key, 1f);
@@ -315,46 +370,91 @@ public final class GlslRenderer implements GLSurfaceView.Renderer,
 		mSpecularFactor = prefs.getFloat(key, 1f);
 		key = mOwnerActivity.getString(R.string.key_shadows_enable);
 		mShadowsEnabled = prefs.getBoolean(key, false);
+		key = mOwnerActivity.getString(R.string.key_shadow_silhouettes);
+		mShadowSilhouettes = prefs.getBoolean(key, true);
+		key = mOwnerActivity.getString(R.string.key_shadow_batching);
+		mShadowBatching = prefs.getBoolean(key, true);
+		key = mOwnerActivity.getString(R.string.key_shadow_maps);
+		mShadowMapsEnabled = prefs.getBoolean(key, false);
+		key = mOwnerActivity.getString(R.string.key_shadow_map_size);
+		mShadowMaps.setSize(Integer.parseInt(prefs.getString(key, "256")));
+		key = mOwnerActivity.getString(R.string.key_deferred_enable);
+		mDeferredEnabled = prefs.getBoolean(key, false);
+		key = mOwnerActivity.getString(R.string.key_tiled_culling);
+		mDeferred.setTiledCulling(prefs.getBoolean(key, false));
+
+		key = mOwnerActivity.getString(R.string.key_profiler_enable);
+		mProfiler.setEnabled(prefs.getBoolean(key, false));
+		key = mOwnerActivity.getString(R.string.key_profiler_gpu);
+		mProfiler.setGpuFenced(prefs.getBoolean(key, false));
 
 		// Initiate shaders for rendering scene.
 		mAmbientShader.setProgram(
 				mOwnerActivity.getString(R.string.shader_scene_vs),
 				mOwnerActivity.getString(R.string.shader_scene_ambient_fs));
 		// Get ids for uniforms/attributes needed for rendering.
-		int shaderIds[] = mAmbientShader
-				.getHandles("uModelViewM", "uModelViewProjM", "uNormalM",
-						"aPosition", "aNormal", "aColor");
-		mAmbientShaderIds.uModelViewM = shaderIds[0];
-		mAmbientShaderIds.uModelViewProjM = shaderIds[1];
-		mAmbientShaderIds.uNormalM = shaderIds[2];
-		mAmbientShaderIds.aPosition = shaderIds[3];
-		mAmbientShaderIds.aNormal = shaderIds[4];
-		mAmbientShaderIds.aColor = shaderIds[5];
+		int shaderIds[] = mAmbientShader.getHandles("uProjM",
+				"uInstanceRows", "aPosition", "aNormal", "aColor", "aInstance");
+		mAmbientShaderIds.uProjM = shaderIds[0];
+		mAmbientShaderIds.uInstanceRows = shaderIds[1];
+		mAmbientShaderIds.aPosition = shaderIds[2];
+		mAmbientShaderIds.aNormal = shaderIds[3];
+		mAmbientShaderIds.aColor = shaderIds[4];
+		mAmbientShaderIds.aInstance = shaderIds[5];
 
 		key = mOwnerActivity.getString(R.string.key_light_model);
 		int lightModel = Integer.parseInt(prefs.getString(key, "1"));
+		String lightingFs = null;
 		switch (lightModel) {
 		case 0:
-			mDiffuseSpecularShader.setProgram(mOwnerActivity
-					.getString(R.string.shader_scene_vs), mOwnerActivity
-					.getString(R.string.shader_scene_blinn_phong_fs));
+			lightingFs = mOwnerActivity
+					.getString(R.string.shader_scene_blinn_phong_fs);
+			mForwardFs = mOwnerActivity
+					.getString(R.string.shader_scene_blinn_phong_forward_fs);
+			mDeferred.init(mOwnerActivity, mOwnerActivity
+					.getString(R.string.shader_deferred_blinn_phong_fs),
+					mOwnerActivity
+							.getString(R.string.shader_blinn_phong_specular));
 			break;
 		case 1:
-			mDiffuseSpecularShader.setProgram(
-					mOwnerActivity.getString(R.string.shader_scene_vs),
-					mOwnerActivity.getString(R.string.shader_scene_phong_fs));
+			lightingFs = mOwnerActivity
+					.getString(R.string.shader_scene_phong_fs);
+			mForwardFs = mOwnerActivity
+					.getString(R.string.shader_scene_phong_forward_fs);
+			mDeferred.init(mOwnerActivity,
+					mOwnerActivity.getString(R.string.shader_deferred_phong_fs),
+					mOwnerActivity.getString(R.string.shader_phong_specular));
 		}
+		// Forward shaders from previous context are generated again once
+		// needed.
+		mForwardVs = mOwnerActivity.getString(R.string.shader_scene_vs);
+		Arrays.fill(mForwardShaders, null);
+
+		// Lighting shader is linked with either shadow map lookup or constant
+		// shadow term, later one for lights without a shadow map.
+		mDiffuseSpecularShader.setProgram(mForwardVs, lightingFs
+				+ mOwnerActivity.getString(R.string.shader_shadow_none));
+		mShadowMapLightShader.setProgram(mForwardVs, lightingFs
+				+ mOwnerActivity.getString(R.string.shader_shadow_map_term));
+		mShadowMaps.init(mOwnerActivity);
 
 		// Get ids for uniforms/attributes needed for rendering.
-		shaderIds = mDiffuseSpecularShader
-				.getHandles("uModelViewM", "uModelViewProjM", "uNormalM",
-						"aPosition", "aNormal", "aColor");
-		mDiffuseSpecularShaderIds.uModelViewM = shaderIds[0];
-		mDiffuseSpecularShaderIds.uModelViewProjM = shaderIds[1];
-		mDiffuseSpecularShaderIds.uNormalM = shaderIds[2];
-		mDiffuseSpecularShaderIds.aPosition = shaderIds[3];
-		mDiffuseSpecularShaderIds.aNormal = shaderIds[4];
-		mDiffuseSpecularShaderIds.aColor = shaderIds[5];
+		shaderIds = mDiffuseSpecularShader.getHandles("uProjM",
+				"uInstanceRows", "aPosition", "aNormal", "aColor", "aInstance");
+		mDiffuseSpecularShaderIds.uProjM = shaderIds[0];
+		mDiffuseSpecularShaderIds.uInstanceRows = shaderIds[1];
+		mDiffuseSpecularShaderIds.aPosition = shaderIds[2];
+		mDiffuseSpecularShaderIds.aNormal = shaderIds[3];
+		mDiffuseSpecularShaderIds.aColor = shaderIds[4];
+		mDiffuseSpecularShaderIds.aInstance = shaderIds[5];
+		shaderIds = mShadowMapLightShader.getHandles("uProjM",
+				"uInstanceRows", "aPosition", "aNormal", "aColor", "aInstance");
+		mShadowMapLightShaderIds.uProjM = shaderIds[0];
+		mShadowMapLightShaderIds.uInstanceRows = shaderIds[1];
+		mShadowMapLightShaderIds.aPosition = shaderIds[2];
+		mShadowMapLightShaderIds.aNormal = shaderIds[3];
+		mShadowMapLightShaderIds.aColor = shaderIds[4];
+		mShadowMapLightShaderIds.aInstance = shaderIds[5];
 
 		// Instantiate light rendering shader.
 		mLightShader.setProgram(
@@ -364,13 +464,29 @@ public final class GlslRenderer implements GLSurfaceView.Renderer,
 		mShadowShader.setProgram(
 				mOwnerActivity.getString(R.string.shader_shadow_volume_vs),
 				mOwnerActivity.getString(R.string.shader_shadow_volume_fs));
-		shaderIds = mShadowShader.getHandles("uModelViewM", "uModelViewProjM",
-				"uNormalM", "aPosition", "aNormal");
-		mShadowShaderIds.uModelViewM = shaderIds[0];
-		mShadowShaderIds.uModelViewProjM = shaderIds[1];
-		mShadowShaderIds.uNormalM = shaderIds[2];
-		mShadowShaderIds.aPosition = shaderIds[3];
-		mShadowShaderIds.aNormal = shaderIds[4];
+		shaderIds = mShadowShader.getHandles("uProjM", "uInstanceRows",
+				"aPosition", "aNormal", "aInstance");
+		mShadowShaderIds.uProjM = shaderIds[0];
+		mShadowShaderIds.uInstanceRows = shaderIds[1];
+		mShadowShaderIds.aPosition = shaderIds[2];
+		mShadowShaderIds.aNormal = shaderIds[3];
+		mShadowShaderIds.aInstance = shaderIds[4];
+		mSilhouetteShader.setProgram(
+				mOwnerActivity.getString(R.string.shader_shadow_silhouette_vs),
+				mOwnerActivity.getString(R.string.shader_shadow_volume_fs));
+		shaderIds = mSilhouetteShader.getHandles("uProjM", "aPosition");
+		mSilhouetteShaderIds.uProjM = shaderIds[0];
+		mSilhouetteShaderIds.aPosition = shaderIds[1];
+		mShadowBatchShader.setProgram(
+				mOwnerActivity.getString(R.string.shader_shadow_batch_vs),
+				mOwnerActivity.getString(R.string.shader_shadow_volume_fs));
+		// Batch is in world space, projection uniform takes view-projection
+		// matrix.
+		shaderIds = mShadowBatchShader.getHandles("uViewProjM", "aPosition",
+				"aNormal");
+		mShadowBatchShaderIds.uProjM = shaderIds[0];
+		mShadowBatchShaderIds.aPosition = shaderIds[1];
+		mShadowBatchShaderIds.aNormal = shaderIds[2];
 	}
 
 	@Override
@@ -382,6 +498,11 @@ public final class GlslRenderer implements GLSurfaceView.Renderer,
 			mTouchY = me.getY();
 			mAnimationPaused = true;
 			mAnimationPauseTime = mAnimationTime;
+			// While animation is paused frames are rendered only on demand.
+			if (mRenderOnDemand) {
+				((GLSurfaceView) view)
+						.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+			}
 			return true;
 		case MotionEvent.ACTION_MOVE:
 			// (x1, y1) = start position, (x2, y2) = current position.
@@ -400,21 +521,34 @@ public final class GlslRenderer implements GLSurfaceView.Renderer,
 			x2 /= mCamera.mViewWidth;
 			y1 = 1f - y1 / mCamera.mViewHeight;
 			y2 = 1f - y2 / mCamera.mViewHeight;
-			mCamera.mTouchX = x1;
-			mCamera.mTouchY = y1;
-			mCamera.mTouchDX = x1 - x2;
-			mCamera.mTouchDY = y1 - y2;
+			mCamera.setTouch(x1, y1, x1 - x2, y1 - y2);
+			// Render on demand mode renders only when something changes.
+			if (mRenderOnDemand) {
+				((GLSurfaceView) view).requestRender();
+			}
 			return true;
 		case MotionEvent.ACTION_UP:
 			// On touch end release animation and start release drag animation.
 			mAnimationPaused = false;
 			new ReleaseDragTimer(mCamera, 300, 30).start();
+			((GLSurfaceView) view)
+					.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
 			return true;
 		default:
 			return false;
 		}
 	}
 
+	/**
+	 * Shuts down worker threads. Should be called once owner Activity is
+	 * finishing, renderer can't be used afterwards.
+	 */
+	public void release() {
+		if (mExecutor != null) {
+			mExecutor.shutdown();
+		}
+	}
+
 	/**
 	 * Stores owner Activity for reading application preferences and accessing
 	 * application Context based strings etc. This method should be called as
@@ -428,121 +562,511 @@ public final class GlslRenderer implements GLSurfaceView.Renderer,
 		mOwnerActivity = activity;
 	}
 
+	/**
+	 * Writes scopes recorded by profiler into application files directory as
+	 * Chrome trace JSON. Does nothing if profiling is disabled. Should be
+	 * called only while rendering is paused.
+	 */
+	public void writeTrace() {
+		if (!mProfiler.isEnabled()) {
+			return;
+		}
+		File file = new File(mOwnerActivity.getFilesDir(), "trace.json");
+		try {
+			Writer out = new BufferedWriter(new FileWriter(file));
+			try {
+				mProfiler.writeTrace(out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException ex) {
+			Log.d("GlslRenderer", "Writing trace failed: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Returns smallest light count bucket given number of lights fit into.
+	 * 
+	 * @param lightCount
+	 *            Number of lights
+	 * @return Index to LIGHT_BUCKETS or -1 if there are too many lights
+	 */
+	private int getLightBucket(int lightCount) {
+		for (int i = 0; i < LIGHT_BUCKETS.length; ++i) {
+			if (lightCount <= LIGHT_BUCKETS[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds scene and filter passes into frame graph. Passes read enabled state
+	 * from preference values on every frame, and frame graph recompiles itself
+	 * if they change.
+	 */
+	private void initFrameGraph() {
+		final int scene = mFrameGraph.addResource("scene");
+		final int lensBlur = mFrameGraph.addResource("lensblur");
+		final int bloom = mFrameGraph.addResource("bloom");
+		final int tonemap = mFrameGraph.addResource("tonemap");
+		final int fxaa = mFrameGraph.addResource("fxaa");
+
+		// Scene pass renders lighted scene, it's the only pass which needs
+		// depth and stencil buffers. Deferred lighting renders into G-buffer
+		// first so output is bound by the pass.
+		mFrameGraph.addPass(new GlslFrameGraph.Pass("scene", 1, scene) {
+			@Override
+			public void execute(int[] inputs, GlslFbo fboOut, int idxOut) {
+				renderScene(fboOut, idxOut);
+			}
+
+			@Override
+			public int getVersion() {
+				// Both versions only increase, so their sum changes whenever
+				// either one does.
+				return mScene.getVersion() + mCamera.getVersion();
+			}
+		}.setDepthStencil().setBindsOwnTarget());
+
+		mFrameGraph.addPass(new GlslFrameGraph.Pass("lensblur", 1, lensBlur,
+				scene) {
+			@Override
+			public void execute(int[] inputs, GlslFbo fboOut, int idxOut) {
+				mFilter.lensBlur(inputs[0], fboOut, idxOut, mCamera,
+						mAnimationTime, getStages());
+			}
+
+			@Override
+			public int getVersion() {
+				// Blur directions rotate with animation time.
+				return mScene.getVersion() + mCamera.getVersion();
+			}
+
+			@Override
+			public boolean isEnabled() {
+				return mLensBlurEnabled;
+			}
+		}.setBindsOwnTarget().setAcceptsStages());
+
+		mFrameGraph.addPass(new GlslFrameGraph.Pass("bloom", 1, bloom,
+				lensBlur) {
+			@Override
+			public void execute(int[] inputs, GlslFbo fboOut, int idxOut) {
+				mFilter.bloom(inputs[0], fboOut, idxOut, getStages());
+			}
+
+			@Override
+			public boolean isEnabled() {
+				return mBloomEnabled;
+			}
+		}.setBindsOwnTarget().setAcceptsStages());
+
+		// Apply tone mapping before anti-aliasing. As a stage it is fused into
+		// bloom or lens blur pass, or into final copy if neither is enabled.
+		mFrameGraph.addPass(new GlslFrameGraph.Pass("tonemap", 1, tonemap,
+				bloom) {
+			@Override
+			public void execute(int[] inputs, GlslFbo fboOut, int idxOut) {
+				mFilter.tonemap(inputs[0]);
+			}
+		}.setStage(GlslFilter.STAGE_TONEMAP));
+
+		mFrameGraph.addPass(new GlslFrameGraph.Pass("fxaa", 1, fxaa, tonemap) {
+			@Override
+			public void execute(int[] inputs, GlslFbo fboOut, int idxOut) {
+				mFilter.fxaa(inputs[0], fboOut.getWidth(),
+						fboOut.getHeight(), fboOut.getWidth(),
+						fboOut.getHeight());
+			}
+
+			@Override
+			public boolean isEnabled() {
+				return mFxaaEnabled;
+			}
+		});
+
+		// If screen is divided copy original scene texture on left side.
+		mFrameGraph.addPass(new GlslFrameGraph.Pass("divide", 1,
+				GlslFrameGraph.SCREEN, scene) {
+			@Override
+			public void execute(int[] inputs, GlslFbo fboOut, int idxOut) {
+				mFilter.setClipCoords(-1f, 1f, 0f, -1f);
+				mFilter.tonemap(inputs[0]);
+				mFilter.setClipCoords(-1f, 1f, 1f, -1f);
+			}
+
+			@Override
+			public boolean isEnabled() {
+				return mDivideScreen;
+			}
+		});
+
+		// This is the final pass where filtered scene is rendered on screen.
+		mFrameGraph.addPass(new GlslFrameGraph.Pass("present", 1,
+				GlslFrameGraph.SCREEN, fxaa) {
+			@Override
+			public void execute(int[] inputs, GlslFbo fboOut, int idxOut) {
+				if (mDivideScreen) {
+					mFilter.setClipCoords(0f, 1f, 1f, -1f);
+				}
+				// Based on touch difference copy filtered scene to screen
+				// using plain copy or displacement filter.
+				if (mCamera.mTouchDX == 0 && mCamera.mTouchDY == 0) {
+					mFilter.copy(inputs[0], getStages());
+				} else {
+					mFilter.displace(inputs[0], mCamera, getStages());
+				}
+				// Return filter clip bounds back to original values.
+				mFilter.setClipCoords(-1f, 1f, 1f, -1f);
+			}
+		}.setSingleTap());
+	}
+
 	/**
 	 * Renders ambient lighted scene. We calculate CoC values and store them
 	 * into alpha during this pass. Make sure alpha values are unaffected after
 	 * this pass until lens blur has been applied.
 	 */
 	private void renderAmbient() {
+		GlslGl gl = GlslGlContext.get();
 		// Initiate ambient shader with values that do not change.
 		mAmbientShader.useProgram();
-		GLES20.glUniform1f(mAmbientShader.getHandle("uAmbientFactor"),
+		gl.glUniform1f(mAmbientShader.getHandle("uAmbientFactor"),
 				mAmbientFactor);
-		GLES20.glUniform1f(mAmbientShader.getHandle("uAperture"),
+		gl.glUniform1f(mAmbientShader.getHandle("uAperture"),
 				mCamera.mAperture);
-		GLES20.glUniform1f(mAmbientShader.getHandle("uFocalLength"),
+		gl.glUniform1f(mAmbientShader.getHandle("uFocalLength"),
 				mCamera.mFocalLength);
-		GLES20.glUniform1f(mAmbientShader.getHandle("uPlaneInFocus"),
+		gl.glUniform1f(mAmbientShader.getHandle("uPlaneInFocus"),
 				mCamera.mPlaneInFocus);
-		mScene.render(mAmbientShaderIds);
+		mProfiler.begin("ambient");
+		mScene.render(mAmbientShaderIds, true);
+		mProfiler.end();
 	}
 
 	/**
 	 * Renders diffuse and specular lighted scene plus applies optional shadow
-	 * volumes.
+	 * volumes or shadow maps. Both passes are scissored to screen rectangle
+	 * covered by light radius, and lights not covering any of the view are
+	 * skipped.
+	 * 
+	 * @param viewWidth
+	 *            Viewport width
+	 * @param viewHeight
+	 *            Viewport height
 	 */
-	private void renderDiffuseSpecular() {
-		GLES20.glDepthMask(false);
-		GLES20.glEnable(GLES20.GL_BLEND);
-		GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE);
-		GLES20.glEnable(GLES20.GL_STENCIL_TEST);
+	private void renderDiffuseSpecular(int viewWidth, int viewHeight) {
+		GlslGl gl = GlslGlContext.get();
+		gl.glDepthMask(false);
+		gl.glEnable(GLES20.GL_BLEND);
+		gl.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE);
+		// Shadow volumes are needed only if shadow maps are not used.
+		boolean shadowVolumes = mShadowsEnabled && !mShadowMapsEnabled;
+		if (shadowVolumes) {
+			gl.glEnable(GLES20.GL_STENCIL_TEST);
+		}
+		gl.glEnable(GLES20.GL_SCISSOR_TEST);
+		mScissorProjection[0] = mCamera.mProjM[0];
+		mScissorProjection[1] = mCamera.mProjM[5];
+		mScissorProjection[2] = mCamera.getZNear();
+		mScissorProjection[3] = mCamera.getZFar();
 
 		for (GlslLight light : mScene.getLights()) {
+			if (!setLightScissor(light, viewWidth, viewHeight)) {
+				continue;
+			}
+			mProfiler.begin("light");
 			// Draw shadow volume into stencil buffer.
-			if (mShadowsEnabled) {
-				mShadowShader.useProgram();
-				GLES20.glColorMask(false, false, false, false);
-				GLES20.glDisable(GLES20.GL_CULL_FACE);
-				GLES20.glStencilFunc(GLES20.GL_ALWAYS, 0x00, 0xFFFFFFFF);
-				GLES20.glStencilOpSeparate(GLES20.GL_FRONT, GLES20.GL_KEEP,
+			if (shadowVolumes) {
+				mProfiler.begin("shadow");
+				gl.glColorMask(false, false, false, false);
+				gl.glDisable(GLES20.GL_CULL_FACE);
+				gl.glStencilFunc(GLES20.GL_ALWAYS, 0x00, 0xFFFFFFFF);
+				gl.glStencilOpSeparate(GLES20.GL_FRONT, GLES20.GL_KEEP,
 						GLES20.GL_KEEP, GLES20.GL_INCR_WRAP);
-				GLES20.glStencilOpSeparate(GLES20.GL_BACK, GLES20.GL_KEEP,
+				gl.glStencilOpSeparate(GLES20.GL_BACK, GLES20.GL_KEEP,
 						GLES20.GL_KEEP, GLES20.GL_DECR_WRAP);
-				GLES20.glUniformMatrix4fv(mShadowShader.getHandle("uProjM"), 1,
-						false, mCamera.mProjM, 0);
-				GLES20.glUniform3fv(mShadowShader.getHandle("uLightPosition"),
-						1, light.getPosition(), 0);
-				mScene.renderShadow(mShadowShaderIds);
-				GLES20.glEnable(GLES20.GL_CULL_FACE);
+				if (mShadowSilhouettes) {
+					mSilhouetteShader.useProgram();
+					mScene.renderShadowSilhouettes(mSilhouetteShaderIds, light);
+				} else if (mShadowBatching) {
+					mShadowBatchShader.useProgram();
+					gl.glUniform3fv(
+							mShadowBatchShader.getHandle("uLightPosition"), 1,
+							light.getModelPosition(), 0);
+					mScene.renderShadowBatch(mShadowBatchShaderIds);
+				} else {
+					mShadowShader.useProgram();
+					gl.glUniform3fv(mShadowShader.getHandle("uLightPosition"),
+							1, light.getPosition(), 0);
+					mScene.renderShadow(mShadowShaderIds, light);
+				}
+				gl.glEnable(GLES20.GL_CULL_FACE);
+				mProfiler.end();
 			}
+			mProfiler.begin("lighting");
 			// Initiate diffuse/specular shader with values that do not change
 			// during actual rendering. We add these color values into scene
-			// using blending during this pass.
-			mDiffuseSpecularShader.useProgram();
+			// using blending during this pass. Lights with a shadow map use
+			// shader variant looking shadow term up from it. Maps aren't
+			// updated while shadows are disabled, and may be stale then.
+			int shadowMap = mShadowsEnabled && mShadowMapsEnabled ? mShadowMaps
+					.getTexture(light) : 0;
+			GlslShader shader = mDiffuseSpecularShader;
+			GlslShaderIds shaderIds = mDiffuseSpecularShaderIds;
+			if (shadowMap != 0) {
+				shader = mShadowMapLightShader;
+				shaderIds = mShadowMapLightShaderIds;
+			}
+			shader.useProgram();
+			if (shadowMap != 0) {
+				gl.glActiveTexture(GLES20.GL_TEXTURE0);
+				gl.glBindTexture(GLES20.GL_TEXTURE_CUBE_MAP, shadowMap);
+				gl.glUniform1i(shader.getHandle("sShadowMap"), 0);
+				gl.glUniform3fv(shader.getHandle("uShadowRotation"), 3,
+						mShadowMaps.getViewRotation(), 0);
+			}
 			// Just in case disable writing to alpha channel in order to make
 			// sure it remains unaffected.
-			GLES20.glColorMask(true, true, true, false);
+			gl.glColorMask(true, true, true, false);
 			// This is a minor optimization. Clear stencil buffer during
 			// rendering the stencilled scene so we don't have to call
 			// glClear(..) separarately. This shouldn't cause any visible
 			// artifacts as we assume that stencil buffer is the same size as
 			// render target texture.
-			GLES20.glStencilFunc(GLES20.GL_EQUAL, 0x00, 0xFFFFFFFF);
-			GLES20.glStencilOp(GLES20.GL_ZERO, GLES20.GL_ZERO, GLES20.GL_ZERO);
-			GLES20.glUniform1f(
-					mDiffuseSpecularShader.getHandle("uDiffuseFactor"),
+			gl.glStencilFunc(GLES20.GL_EQUAL, 0x00, 0xFFFFFFFF);
+			gl.glStencilOp(GLES20.GL_ZERO, GLES20.GL_ZERO, GLES20.GL_ZERO);
+			gl.glUniform1f(shader.getHandle("uDiffuseFactor"),
 					mDiffuseFactor);
-			GLES20.glUniform1f(
-					mDiffuseSpecularShader.getHandle("uSpecularFactor"),
+			gl.glUniform1f(shader.getHandle("uSpecularFactor"),
 					mSpecularFactor);
-			GLES20.glUniform3fv(
-					mDiffuseSpecularShader.getHandle("uLightPosition"), 1,
+			gl.glUniform3fv(shader.getHandle("uLightPosition"), 1,
 					light.getPosition(), 0);
-			mScene.render(mDiffuseSpecularShaderIds);
+			gl.glUniform1f(shader.getHandle("uLightRadius"),
+					light.getRadius());
+			mScene.render(shaderIds, false);
+			mProfiler.end();
+			mProfiler.end();
+		}
+
+		gl.glDisable(GLES20.GL_BLEND);
+		gl.glDisable(GLES20.GL_STENCIL_TEST);
+		gl.glDisable(GLES20.GL_SCISSOR_TEST);
+		gl.glDepthMask(true);
+		gl.glColorMask(true, true, true, true);
+	}
+
+	/**
+	 * Renders ambient, diffuse and specular lighted scene in one pass with a
+	 * shader generated for light count bucket. Used only when shadows are
+	 * disabled, as shadow volumes need a stencil pass for every light.
+	 * 
+	 * @param bucket
+	 *            Index to LIGHT_BUCKETS for current light count
+	 */
+	private void renderForward(int bucket) {
+		GlslGl gl = GlslGlContext.get();
+		Vector<GlslLight> lights = mScene.getLights();
+		if (mForwardShaders[bucket] == null) {
+			mForwardShaders[bucket] = new GlslShader();
+			mForwardShaders[bucket].setProgram(mForwardVs,
+					"#define LIGHT_COUNT " + LIGHT_BUCKETS[bucket] + "\n"
+							+ mForwardFs);
+			int shaderIds[] = mForwardShaders[bucket].getHandles("uProjM",
+					"uInstanceRows", "aPosition", "aNormal", "aColor",
+					"aInstance");
+			GlslShaderIds ids = new GlslShaderIds();
+			ids.uProjM = shaderIds[0];
+			ids.uInstanceRows = shaderIds[1];
+			ids.aPosition = shaderIds[2];
+			ids.aNormal = shaderIds[3];
+			ids.aColor = shaderIds[4];
+			ids.aInstance = shaderIds[5];
+			mForwardShaderIds[bucket] = ids;
 		}
+		GlslShader shader = mForwardShaders[bucket];
 
-		GLES20.glDisable(GLES20.GL_BLEND);
-		GLES20.glDisable(GLES20.GL_STENCIL_TEST);
-		GLES20.glDepthMask(true);
-		GLES20.glColorMask(true, true, true, true);
+		for (int i = 0; i < lights.size(); ++i) {
+			GlslLight light = lights.get(i);
+			float[] position = light.getPosition();
+			mForwardLightPositions[i * 4 + 0] = position[0];
+			mForwardLightPositions[i * 4 + 1] = position[1];
+			mForwardLightPositions[i * 4 + 2] = position[2];
+			mForwardLightPositions[i * 4 + 3] = light.getRadius();
+		}
+
+		shader.useProgram();
+		gl.glUniform4fv(shader.getHandle("uLightPositions"), lights.size(),
+				mForwardLightPositions, 0);
+		gl.glUniform1i(shader.getHandle("uLightCount"), lights.size());
+		gl.glUniform1f(shader.getHandle("uAmbientFactor"), mAmbientFactor);
+		gl.glUniform1f(shader.getHandle("uDiffuseFactor"), mDiffuseFactor);
+		gl.glUniform1f(shader.getHandle("uSpecularFactor"), mSpecularFactor);
+		gl.glUniform1f(shader.getHandle("uAperture"), mCamera.mAperture);
+		gl.glUniform1f(shader.getHandle("uFocalLength"), mCamera.mFocalLength);
+		gl.glUniform1f(shader.getHandle("uPlaneInFocus"),
+				mCamera.mPlaneInFocus);
+		mScene.render(mForwardShaderIds[bucket], true);
 	}
 
 	/**
 	 * Renders light objects into the scene. Lights are rendered on top of
 	 * already rendered scene and CoC values for light pixels are updated
 	 * accordingly.
+	 * 
+	 * @param viewWidth
+	 *            Width of render target in pixels
 	 */
-	private void renderLightObjects() {
+	private void renderLightObjects(int viewWidth) {
+		GlslGl gl = GlslGlContext.get();
 		ByteBuffer b = ByteBuffer.allocateDirect(3 * 4);
 		FloatBuffer buffer = b.order(ByteOrder.nativeOrder()).asFloatBuffer();
 
 		mLightShader.useProgram();
-		GLES20.glEnable(GLES20.GL_BLEND);
-		GLES20.glBlendFunc(GLES20.GL_SRC_COLOR, GLES20.GL_ONE_MINUS_SRC_COLOR);
-		GLES20.glUniformMatrix4fv(mLightShader.getHandle("uProjM"), 1, false,
+		gl.glEnable(GLES20.GL_BLEND);
+		gl.glBlendFunc(GLES20.GL_SRC_COLOR, GLES20.GL_ONE_MINUS_SRC_COLOR);
+		gl.glUniformMatrix4fv(mLightShader.getHandle("uProjM"), 1, false,
 				mCamera.mProjM, 0);
-		GLES20.glUniform1f(mLightShader.getHandle("uPointRadius"), 0.1f);
-		GLES20.glUniform1f(mLightShader.getHandle("uViewWidth"),
-				mFbo.getWidth());
-		GLES20.glUniform1f(mLightShader.getHandle("uAperture"),
-				mCamera.mAperture);
-		GLES20.glUniform1f(mLightShader.getHandle("uFocalLength"),
+		gl.glUniform1f(mLightShader.getHandle("uPointRadius"), 0.1f);
+		gl.glUniform1f(mLightShader.getHandle("uViewWidth"), viewWidth);
+		gl.glUniform1f(mLightShader.getHandle("uAperture"), mCamera.mAperture);
+		gl.glUniform1f(mLightShader.getHandle("uFocalLength"),
 				mCamera.mFocalLength);
-		GLES20.glUniform1f(mLightShader.getHandle("uPlaneInFocus"),
+		gl.glUniform1f(mLightShader.getHandle("uPlaneInFocus"),
 				mCamera.mPlaneInFocus);
 
-		GLES20.glVertexAttribPointer(mLightShader.getHandle("aPosition"), 3,
+		gl.glVertexAttribPointer(mLightShader.getHandle("aPosition"), 3,
 				GLES20.GL_FLOAT, false, 0, buffer);
-		GLES20.glEnableVertexAttribArray(mLightShader.getHandle("aPosition"));
+		gl.glEnableVertexAttribArray(mLightShader.getHandle("aPosition"));
 
 		for (GlslLight light : mScene.getLights()) {
 			buffer.position(0);
 			buffer.put(light.getPosition(), 0, 3);
 			buffer.position(0);
-			GLES20.glDrawArrays(GLES20.GL_POINTS, 0, 1);
+			gl.glDrawArrays(GLES20.GL_POINTS, 0, 1);
+		}
+
+		gl.glDisable(GLES20.GL_BLEND);
+	}
+
+	/**
+	 * Renders lighted scene into given render target.
+	 * 
+	 * @param fboOut
+	 *            Output FBO
+	 * @param idxOut
+	 *            Output FBO texture index
+	 */
+	private void renderScene(GlslFbo fboOut, int idxOut) {
+		GlslGl gl = GlslGlContext.get();
+		// Setup GLES20 rendering options.
+		gl.glEnable(GLES20.GL_CULL_FACE);
+		gl.glEnable(GLES20.GL_DEPTH_TEST);
+		gl.glDisable(GLES20.GL_STENCIL_TEST);
+		gl.glFrontFace(GLES20.GL_CCW);
+		gl.glDepthFunc(GLES20.GL_LEQUAL);
+
+		// Deferred lighting needs G-buffer rendered before output.
+		boolean deferred = mDeferredEnabled && !mShadowsEnabled;
+		if (deferred) {
+			mProfiler.begin("gbuffer");
+			mDeferred.renderGeometry(mScene, mCamera);
+			mProfiler.end();
+		}
+		// Shadow maps which are not valid anymore are rendered before output.
+		if (mShadowsEnabled && mShadowMapsEnabled) {
+			mProfiler.begin("shadowMaps");
+			mShadowMaps.update(mScene, mCamera);
+			mProfiler.end();
+		}
+		fboOut.bind();
+		fboOut.bindTexture(idxOut);
+
+		// Renderer emulates HDR rendering by reserving certain amount of color
+		// space for HDR values. Currently this means that {R,G,B} -->
+		// {R/3,G/3,B/3} where 'regular' colors are within [0, 1/3] range and
+		// values [1, 3] map to higher [1/3, 3/3] range - and therefore clear
+		// color is divided by 3.
+		gl.glClearColor(0.2f / 3f, 0.3f / 3f, 0.5f / 3f, 1.0f);
+		gl.glClear(GLES20.GL_STENCIL_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+
+		int bucket = getLightBucket(mScene.getLights().size());
+		if (deferred) {
+			// Ambient pass fills output depth and CoC values, lights are then
+			// added from G-buffer.
+			renderAmbient();
+			mProfiler.begin("deferredLights");
+			mDeferred.renderLights(mScene.getLights(), mCamera,
+					mDiffuseFactor, mSpecularFactor);
+			mProfiler.end();
+		} else if (!mShadowsEnabled && bucket != -1) {
+			// Without shadows all lights are shaded within ambient pass, which
+			// saves a blended scene pass per light.
+			mProfiler.begin("forward");
+			renderForward(bucket);
+			mProfiler.end();
+		} else {
+			// Render ambient lighted scene. Ambient color covers all objects
+			// no matter are they in shadow or not. Also depth information
+			// stored during this pass is used for rendering shadow volumes.
+			renderAmbient();
+			// Render diffuse and specular lighted scene. This pass includes
+			// also optional shadow volume calculations.
+			mProfiler.begin("diffuseSpecular");
+			renderDiffuseSpecular(fboOut.getViewportWidth(),
+					fboOut.getViewportHeight());
+			mProfiler.end();
+		}
+		// Render light objects into scene.
+		mProfiler.begin("lightObjects");
+		renderLightObjects(fboOut.getViewportWidth());
+		mProfiler.end();
+	}
+
+	/**
+	 * Sets scissor rectangle to screen area covered by light radius.
+	 * 
+	 * @param light
+	 *            Light to set scissor rectangle for
+	 * @param viewWidth
+	 *            Viewport width
+	 * @param viewHeight
+	 *            Viewport height
+	 * @return false if light doesn't cover any of the view
+	 */
+	private boolean setLightScissor(GlslLight light, int viewWidth,
+			int viewHeight) {
+		float[] pos = light.getPosition();
+		mScissorSphere[0] = pos[0];
+		mScissorSphere[1] = pos[1];
+		mScissorSphere[2] = pos[2];
+		mScissorSphere[3] = light.getRadius();
+		if (!GlslLightCuller.getScreenBounds(mScissorSphere, 0,
+				mScissorProjection, mScissorBounds)) {
+			return false;
+		}
+		int x0 = (int) Math.floor((mScissorBounds[0] + 1f) * 0.5f * viewWidth);
+		int y0 = (int) Math.floor((mScissorBounds[1] + 1f) * 0.5f * viewHeight);
+		int x1 = (int) Math.ceil((mScissorBounds[2] + 1f) * 0.5f * viewWidth);
+		int y1 = (int) Math.ceil((mScissorBounds[3] + 1f) * 0.5f * viewHeight);
+		if (x0 >= x1 || y0 >= y1) {
+			return false;
 		}
+		GlslGlContext.get().glScissor(x0, y0, x1 - x0, y1 - y0);
+		return true;
+	}
 
-		GLES20.glDisable(GLES20.GL_BLEND);
+	/**
+	 * Scales render viewport of all offscreen render targets.
+	 * 
+	 * @param scale
+	 *            Viewport scale between (0, 1]
+	 */
+	private void setViewportScale(float scale) {
+		mFrameGraph.setViewportScale(scale);
+		mFilter.setViewportScale(scale);
+		mDeferred.setViewportScale(scale);
 	}
 
 	/**
@@ -571,14 +1095,15 @@ public final class GlslRenderer implements GLSurfaceView.Renderer,
 
 		@Override
 		public void onFinish() {
-			mReleasedCamera.mTouchX = mReleasedCamera.mTouchY = mReleasedCamera.mTouchDX = mReleasedCamera.mTouchDY = 0f;
+			mReleasedCamera.setTouch(0f, 0f, 0f, 0f);
 		}
 
 		@Override
 		public void onTick(long millisUntilFinished) {
 			float c = (float) millisUntilFinished / mTotalLength;
-			mReleasedCamera.mTouchDX *= c;
-			mReleasedCamera.mTouchDY *= c;
+			mReleasedCamera.setTouch(mReleasedCamera.mTouchX,
+					mReleasedCamera.mTouchY, mReleasedCamera.mTouchDX * c,
+					mReleasedCamera.mTouchDY * c);
 		}
 
 	}
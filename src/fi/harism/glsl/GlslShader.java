@@ -20,6 +20,8 @@ import java.util.HashMap;
 
 import android.opengl.GLES20;
 import android.util.Log;
+import fi.harism.glsl.gl.GlslGl;
+import fi.harism.glsl.gl.GlslGlContext;
 
 /**
  * Helper class for handling shaders.
@@ -40,12 +42,13 @@ public final class GlslShader {
 	 * @return Id for given handle or -1 if none found.
 	 */
 	public int getHandle(String name) {
+		GlslGl gl = GlslGlContext.get();
 		if (mShaderHandleMap.containsKey(name)) {
 			return mShaderHandleMap.get(name);
 		}
-		int handle = GLES20.glGetAttribLocation(mProgram, name);
+		int handle = gl.glGetAttribLocation(mProgram, name);
 		if (handle == -1) {
-			handle = GLES20.glGetUniformLocation(mProgram, name);
+			handle = gl.glGetUniformLocation(mProgram, name);
 		}
 		if (handle == -1) {
 			// One should never leave log messages but am not going to follow
@@ -87,19 +90,20 @@ public final class GlslShader {
 	 *            String presentation for fragment shader
 	 */
 	public void setProgram(String vertexSource, String fragmentSource) {
+		GlslGl gl = GlslGlContext.get();
 		int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
 		int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER,
 				fragmentSource);
-		int program = GLES20.glCreateProgram();
+		int program = gl.glCreateProgram();
 		if (program != 0) {
-			GLES20.glAttachShader(program, vertexShader);
-			GLES20.glAttachShader(program, fragmentShader);
-			GLES20.glLinkProgram(program);
+			gl.glAttachShader(program, vertexShader);
+			gl.glAttachShader(program, fragmentShader);
+			gl.glLinkProgram(program);
 			int[] linkStatus = new int[1];
-			GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+			gl.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
 			if (linkStatus[0] != GLES20.GL_TRUE) {
-				String error = GLES20.glGetProgramInfoLog(program);
-				GLES20.glDeleteProgram(program);
+				String error = gl.glGetProgramInfoLog(program);
+				gl.glDeleteProgram(program);
 				throw new RuntimeException(error);
 			}
 		}
@@ -111,7 +115,8 @@ public final class GlslShader {
 	 * Activates this shader program.
 	 */
 	public void useProgram() {
-		GLES20.glUseProgram(mProgram);
+		GlslGl gl = GlslGlContext.get();
+		gl.glUseProgram(mProgram);
 	}
 
 	/**
@@ -124,15 +129,16 @@ public final class GlslShader {
 	 * @return id for compiled shader
 	 */
 	private int loadShader(int shaderType, String source) {
-		int shader = GLES20.glCreateShader(shaderType);
+		GlslGl gl = GlslGlContext.get();
+		int shader = gl.glCreateShader(shaderType);
 		if (shader != 0) {
-			GLES20.glShaderSource(shader, source);
-			GLES20.glCompileShader(shader);
+			gl.glShaderSource(shader, source);
+			gl.glCompileShader(shader);
 			int[] compiled = new int[1];
-			GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+			gl.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
 			if (compiled[0] == 0) {
-				String error = GLES20.glGetShaderInfoLog(shader);
-				GLES20.glDeleteShader(shader);
+				String error = gl.glGetShaderInfoLog(shader);
+				gl.glDeleteShader(shader);
 				throw new RuntimeException(error);
 			}
 		}
@@ -0,0 +1,318 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl;
+
+import java.util.Vector;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import fi.harism.glsl.gl.GlslGl;
+import fi.harism.glsl.gl.GlslGlContext;
+import fi.harism.glsl.scene.GlslLight;
+import fi.harism.glsl.scene.GlslScene;
+import fi.harism.glsl.scene.GlslShaderIds;
+
+/**
+ * Cube shadow maps for point lights. Distance to nearest occluder, relative
+ * to light radius, is packed into RGBA8 cube map faces as depth textures are
+ * not available on all GLES20 devices. Maps are world aligned and cached for
+ * every light, a map is rendered again only once its light or an object
+ * within light radius moves. Camera movement alone keeps maps valid.
+ */
+public final class GlslShadowMaps {
+
+	// Maximum number of lights with a shadow map, rest of the lights are lit
+	// without shadows.
+	public static final int MAX_SHADOW_MAPS = 8;
+	// Near plane distance of cube face projection.
+	private static final float Z_NEAR = 0.05f;
+	// View direction and up vector for every cube face, in order of GLES20
+	// cube map face targets.
+	private static final float[] FACE_VECTORS = { 1f, 0f, 0f, 0f, -1f, 0f,
+			-1f, 0f, 0f, 0f, -1f, 0f, 0f, 1f, 0f, 0f, 0f, 1f, 0f, -1f, 0f, 0f,
+			0f, -1f, 0f, 0f, 1f, 0f, -1f, 0f, 0f, 0f, -1f, 0f, -1f, 0f };
+
+	// Shader for rendering cube faces.
+	private GlslShader mShader = new GlslShader();
+	private GlslShaderIds mShaderIds = new GlslShaderIds();
+	// Cube face size in pixels.
+	private int mSize = 256;
+
+	// Cube map textures, and lights whose shadow maps they hold. Textures are
+	// created once first needed, mTextureCount of them so far.
+	private int[] mTextures = new int[MAX_SHADOW_MAPS];
+	private int mTextureCount;
+	private GlslLight[] mLights = new GlslLight[MAX_SHADOW_MAPS];
+	// FBO and depth buffer shared by all cube faces.
+	private int mFramebuffer, mDepthBuffer;
+	// Context generation textures and buffers were created in.
+	private int mGeneration = -1;
+
+	// Cube face projection, view and their product.
+	private final float[] mProjM = new float[16];
+	private final float[] mFaceM = new float[16];
+	private final float[] mFaceProjM = new float[16];
+	// Rows transforming view space into light space.
+	private final float[] mLightRows = new float[12];
+	// Rows of rotation from view space into world space.
+	private final float[] mViewRotation = new float[9];
+
+	/**
+	 * Getter for rows of rotation from view space into world space, as of
+	 * latest update. Needed for looking shadow maps up with view space
+	 * directions.
+	 * 
+	 * @return Three rows of three floats
+	 */
+	public float[] getViewRotation() {
+		return mViewRotation;
+	}
+
+	/**
+	 * Getter for shadow map texture of given light.
+	 * 
+	 * @param light
+	 *            Light to get shadow map of
+	 * @return Cube map texture, or 0 if light has no shadow map
+	 */
+	public int getTexture(GlslLight light) {
+		for (int i = 0; i < MAX_SHADOW_MAPS; ++i) {
+			if (mLights[i] == light) {
+				return mTextures[i];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Initializes shader for rendering shadow maps.
+	 * 
+	 * @param ctx
+	 *            Context to read shader sources from
+	 */
+	public void init(Context ctx) {
+		mShader.setProgram(ctx.getString(R.string.shader_shadow_map_vs),
+				ctx.getString(R.string.shader_shadow_map_fs));
+		int[] shaderIds = mShader.getHandles("uProjM", "uInstanceRows",
+				"aPosition", "aInstance");
+		mShaderIds.uProjM = shaderIds[0];
+		mShaderIds.uInstanceRows = shaderIds[1];
+		mShaderIds.aPosition = shaderIds[2];
+		mShaderIds.aInstance = shaderIds[3];
+	}
+
+	/**
+	 * Sets cube face size. Textures of previous size are released, and all
+	 * shadow maps are rendered again on next update.
+	 * 
+	 * @param size
+	 *            Cube face size in pixels
+	 */
+	public void setSize(int size) {
+		if (size != mSize) {
+			release();
+			mSize = size;
+		}
+	}
+
+	/**
+	 * Renders shadow maps which are not valid anymore, for the first
+	 * MAX_SHADOW_MAPS lights in scene. Leaves shadow map FBO bound if any of
+	 * the maps were rendered, and expects depth test to be enabled.
+	 * 
+	 * @param scene
+	 *            Scene to render shadow maps for
+	 * @param camera
+	 *            Camera scene is rendered with
+	 */
+	public void update(GlslScene scene, GlslCamera camera) {
+		GlslGl gl = GlslGlContext.get();
+		if (mGeneration != GlslGlContext.getGeneration()) {
+			create();
+		}
+		setViewRotation(camera.mViewM);
+
+		Vector<GlslLight> lights = scene.getLights();
+		int count = Math.min(lights.size(), MAX_SHADOW_MAPS);
+		if (count > mTextureCount) {
+			createTextures(count);
+		}
+		for (int i = 0; i < MAX_SHADOW_MAPS; ++i) {
+			GlslLight light = i < count ? lights.get(i) : null;
+			if (mLights[i] != light) {
+				mLights[i] = light;
+				if (light != null) {
+					light.getShadowCasters().invalidate();
+				}
+			}
+		}
+
+		boolean bound = false;
+		for (int i = 0; i < count; ++i) {
+			GlslLight light = mLights[i];
+			if (scene.isShadowMapValid(light)) {
+				continue;
+			}
+			if (!bound) {
+				gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+				gl.glViewport(0, 0, mSize, mSize);
+				gl.glClearColor(1f, 1f, 1f, 1f);
+				mShader.useProgram();
+				bound = true;
+			}
+			scene.recordShadowCasters(light);
+			render(scene, light, camera.mViewM, mTextures[i]);
+		}
+	}
+
+	/**
+	 * Creates FBO for current context. Handles from previous context are
+	 * forgotten as they were released with it, and cube map textures are
+	 * created again once needed.
+	 */
+	private void create() {
+		GlslGl gl = GlslGlContext.get();
+		int[] handle = { 0 };
+		gl.glGenFramebuffers(1, handle, 0);
+		mFramebuffer = handle[0];
+		gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+		gl.glGenRenderbuffers(1, handle, 0);
+		mDepthBuffer = handle[0];
+		gl.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, mDepthBuffer);
+		gl.glRenderbufferStorage(GLES20.GL_RENDERBUFFER,
+				GLES20.GL_DEPTH_COMPONENT16, mSize, mSize);
+		gl.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER,
+				GLES20.GL_DEPTH_ATTACHMENT, GLES20.GL_RENDERBUFFER,
+				mDepthBuffer);
+
+		for (int i = 0; i < MAX_SHADOW_MAPS; ++i) {
+			mLights[i] = null;
+		}
+		mTextureCount = 0;
+		mGeneration = GlslGlContext.getGeneration();
+	}
+
+	/**
+	 * Creates cube map textures until there are given number of them.
+	 * Textures are never released before context or cube face size changes,
+	 * so light count going down and up again doesn't allocate.
+	 * 
+	 * @param count
+	 *            Number of textures needed
+	 */
+	private void createTextures(int count) {
+		GlslGl gl = GlslGlContext.get();
+		gl.glGenTextures(count - mTextureCount, mTextures, mTextureCount);
+		for (int i = mTextureCount; i < count; ++i) {
+			gl.glBindTexture(GLES20.GL_TEXTURE_CUBE_MAP, mTextures[i]);
+			gl.glTexParameteri(GLES20.GL_TEXTURE_CUBE_MAP,
+					GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+			gl.glTexParameteri(GLES20.GL_TEXTURE_CUBE_MAP,
+					GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+			gl.glTexParameterf(GLES20.GL_TEXTURE_CUBE_MAP,
+					GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+			gl.glTexParameterf(GLES20.GL_TEXTURE_CUBE_MAP,
+					GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+			for (int face = 0; face < 6; ++face) {
+				gl.glTexImage2D(GLES20.GL_TEXTURE_CUBE_MAP_POSITIVE_X + face,
+						0, GLES20.GL_RGBA, mSize, mSize, 0, GLES20.GL_RGBA,
+						GLES20.GL_UNSIGNED_BYTE, null);
+			}
+		}
+		mTextureCount = count;
+	}
+
+	/**
+	 * Releases textures and FBO if they were created in current context.
+	 */
+	private void release() {
+		if (mGeneration != GlslGlContext.getGeneration()) {
+			return;
+		}
+		GlslGl gl = GlslGlContext.get();
+		gl.glDeleteTextures(mTextureCount, mTextures, 0);
+		int[] handle = { mFramebuffer };
+		gl.glDeleteFramebuffers(1, handle, 0);
+		handle[0] = mDepthBuffer;
+		gl.glDeleteRenderbuffers(1, handle, 0);
+		mGeneration = -1;
+	}
+
+	/**
+	 * Renders all six cube faces of shadow map for given light. Shadow map
+	 * FBO and shader are expected to be in use.
+	 * 
+	 * @param scene
+	 *            Scene to render shadow casters from
+	 * @param light
+	 *            Light to render shadow map for
+	 * @param viewM
+	 *            View matrix scene is rendered with
+	 * @param texture
+	 *            Cube map texture to render into
+	 */
+	private void render(GlslScene scene, GlslLight light, float[] viewM,
+			int texture) {
+		GlslGl gl = GlslGlContext.get();
+		// Light space is world aligned with light at origin, view space
+		// positions are transformed back into world space first.
+		float[] position = light.getModelPosition();
+		for (int r = 0; r < 3; ++r) {
+			float t = 0f;
+			for (int c = 0; c < 3; ++c) {
+				mLightRows[r * 4 + c] = viewM[r * 4 + c];
+				t += viewM[r * 4 + c] * viewM[12 + c];
+			}
+			mLightRows[r * 4 + 3] = -t - position[r];
+		}
+		gl.glUniform4fv(mShader.getHandle("uLightRows"), 3, mLightRows, 0);
+		gl.glUniform1f(mShader.getHandle("uLightRadius"), light.getRadius());
+
+		GlslMatrix.setPerspectiveM(mProjM, 90f, 1f, Z_NEAR,
+				light.getRadius());
+		for (int face = 0; face < 6; ++face) {
+			int i = face * 6;
+			GlslMatrix.setLookAtM(mFaceM, 0, 0f, 0f, 0f, FACE_VECTORS[i],
+					FACE_VECTORS[i + 1], FACE_VECTORS[i + 2],
+					FACE_VECTORS[i + 3], FACE_VECTORS[i + 4],
+					FACE_VECTORS[i + 5]);
+			GlslMatrix.multiplyMM(mFaceProjM, 0, mProjM, 0, mFaceM, 0);
+			gl.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER,
+					GLES20.GL_COLOR_ATTACHMENT0,
+					GLES20.GL_TEXTURE_CUBE_MAP_POSITIVE_X + face, texture, 0);
+			gl.glClear(GLES20.GL_COLOR_BUFFER_BIT
+					| GLES20.GL_DEPTH_BUFFER_BIT);
+			scene.renderShadowCasters(mShaderIds, light, mFaceProjM);
+		}
+	}
+
+	/**
+	 * Calculates rows of rotation from view space into world space. View
+	 * matrix is rigid, so rotation part is the transpose of its upper left
+	 * 3x3 part.
+	 * 
+	 * @param viewM
+	 *            View matrix
+	 */
+	private void setViewRotation(float[] viewM) {
+		for (int r = 0; r < 3; ++r) {
+			for (int c = 0; c < 3; ++c) {
+				mViewRotation[r * 3 + c] = viewM[r * 4 + c];
+			}
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.gl;
+
+import java.nio.Buffer;
+
+/**
+ * Interface for OpenGL ES 2.0 calls. Methods mirror android.opengl.GLES20
+ * static methods with the same names and parameters, and constants are still
+ * taken from GLES20. Rendering code should never call GLES20 directly but use
+ * instance returned by GlslGlContext.get() instead, which makes it possible to
+ * replace actual rendering with e.g. GlslGlRecorder.
+ */
+public interface GlslGl {
+
+	public void glActiveTexture(int texture);
+
+	public void glAttachShader(int program, int shader);
+
+	public void glBindBuffer(int target, int buffer);
+
+	public void glBindFramebuffer(int target, int framebuffer);
+
+	public void glBindRenderbuffer(int target, int renderbuffer);
+
+	public void glBindTexture(int target, int texture);
+
+	public void glBlendFunc(int sfactor, int dfactor);
+
+	public void glBufferData(int target, int size, Buffer data, int usage);
+
+	public void glBufferSubData(int target, int offset, int size, Buffer data);
+
+	public void glClear(int mask);
+
+	public void glClearColor(float red, float green, float blue, float alpha);
+
+	public void glColorMask(boolean red, boolean green, boolean blue,
+			boolean alpha);
+
+	public void glCompileShader(int shader);
+
+	public int glCreateProgram();
+
+	public int glCreateShader(int type);
+
+	public void glDeleteBuffers(int n, int[] buffers, int offset);
+
+	public void glDeleteFramebuffers(int n, int[] framebuffers, int offset);
+
+	public void glDeleteProgram(int program);
+
+	public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset);
+
+	public void glDeleteShader(int shader);
+
+	public void glDeleteTextures(int n, int[] textures, int offset);
+
+	public void glDepthFunc(int func);
+
+	public void glDepthMask(boolean flag);
+
+	public void glDisable(int cap);
+
+	public void glDisableVertexAttribArray(int index);
+
+	public void glDrawArrays(int mode, int first, int count);
+
+	public void glDrawElements(int mode, int count, int type, Buffer indices);
+
+	public void glDrawElements(int mode, int count, int type, int offset);
+
+	public void glEnable(int cap);
+
+	public void glEnableVertexAttribArray(int index);
+
+	public void glFinish();
+
+	public void glFramebufferRenderbuffer(int target, int attachment,
+			int renderbuffertarget, int renderbuffer);
+
+	public void glFramebufferTexture2D(int target, int attachment,
+			int textarget, int texture, int level);
+
+	public void glFrontFace(int mode);
+
+	public void glGenBuffers(int n, int[] buffers, int offset);
+
+	public void glGenFramebuffers(int n, int[] framebuffers, int offset);
+
+	public void glGenRenderbuffers(int n, int[] renderbuffers, int offset);
+
+	public void glGenTextures(int n, int[] textures, int offset);
+
+	public int glGetAttribLocation(int program, String name);
+
+	public String glGetProgramInfoLog(int program);
+
+	public void glGetProgramiv(int program, int pname, int[] params,
+			int offset);
+
+	public String glGetShaderInfoLog(int shader);
+
+	public void glGetShaderiv(int shader, int pname, int[] params, int offset);
+
+	public int glGetUniformLocation(int program, String name);
+
+	public void glLinkProgram(int program);
+
+	public void glRenderbufferStorage(int target, int internalformat,
+			int width, int height);
+
+	public void glScissor(int x, int y, int width, int height);
+
+	public void glShaderSource(int shader, String string);
+
+	public void glStencilFunc(int func, int ref, int mask);
+
+	public void glStencilOp(int fail, int zfail, int zpass);
+
+	public void glStencilOpSeparate(int face, int fail, int zfail, int zpass);
+
+	public void glTexImage2D(int target, int level, int internalformat,
+			int width, int height, int border, int format, int type,
+			Buffer pixels);
+
+	public void glTexParameterf(int target, int pname, float param);
+
+	public void glTexParameteri(int target, int pname, int param);
+
+	public void glUniform1f(int location, float x);
+
+	public void glUniform1i(int location, int x);
+
+	public void glUniform2f(int location, float x, float y);
+
+	public void glUniform2fv(int location, int count, float[] v, int offset);
+
+	public void glUniform3f(int location, float x, float y, float z);
+
+	public void glUniform3fv(int location, int count, float[] v, int offset);
+
+	public void glUniform4f(int location, float x, float y, float z, float w);
+
+	public void glUniform4fv(int location, int count, float[] v, int offset);
+
+	public void glUniformMatrix4fv(int location, int count, boolean transpose,
+			float[] value, int offset);
+
+	public void glUseProgram(int program);
+
+	public void glVertexAttrib1f(int indx, float x);
+
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, Buffer ptr);
+
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, int offset);
+
+	public void glViewport(int x, int y, int width, int height);
+
+}
@@ -0,0 +1,73 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.gl;
+
+/**
+ * Static holder for GlslGl instance used for rendering. By default GLES20
+ * backend wrapped into GlslGlStateCache is used, headless environments should
+ * set their own backend before any rendering classes are used.
+ */
+public final class GlslGlContext {
+
+	// Current backend.
+	private static GlslGl mGl = new GlslGlStateCache(new GlslGles20());
+	// Incremented on every call to invalidate().
+	private static int mGeneration;
+
+	/**
+	 * Getter for current backend.
+	 * 
+	 * @return GlslGl instance for rendering
+	 */
+	public static GlslGl get() {
+		return mGl;
+	}
+
+	/**
+	 * Getter for context generation. Classes keeping GL objects over frames
+	 * compare this with generation their objects were created in, and create
+	 * them again once context has been recreated.
+	 * 
+	 * @return Number of calls to invalidate()
+	 */
+	public static int getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * Invalidates state tracked by current backend, if it is a state cache.
+	 * Has to be called once new GL context has been created.
+	 */
+	public static void invalidate() {
+		++mGeneration;
+		if (mGl instanceof GlslGlStateCache) {
+			((GlslGlStateCache) mGl).invalidate();
+		}
+	}
+
+	/**
+	 * Sets backend to use for rendering. Should be called before any GL
+	 * resources are created as they aren't moved between backends.
+	 * 
+	 * @param gl
+	 *            New backend
+	 */
+	public static void set(GlslGl gl) {
+		mGl = gl;
+	}
+
+}
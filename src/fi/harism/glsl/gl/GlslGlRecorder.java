@@ -0,0 +1,622 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.gl;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+import android.opengl.GLES20;
+
+/**
+ * Headless GlslGl implementation which doesn't render anything but counts
+ * calls that are known to cost on real drivers. It runs on a plain JVM and is
+ * meant for catching per-frame cost regressions without a GPU. Call
+ * resetCounters() at the beginning of a frame and read counters after it.
+ */
+public final class GlslGlRecorder implements GlslGl {
+
+	// Maximum number of vertex attributes tracked.
+	private static final int MAX_VERTEX_ATTRIBS = 16;
+
+	// Counters since last call to resetCounters().
+	private int mDrawCalls;
+	private int mProgramSwitches;
+	private int mTextureBinds;
+	private int mFramebufferBinds;
+	private int mUniformUploads;
+	private long mClientBytes;
+	private long mBufferUploadBytes;
+	private int mStateChanges;
+
+	// Next object name returned from glGen*/glCreate* calls.
+	private int mNextName = 1;
+	// Shader sources, used for resolving attribute and uniform locations.
+	private final HashMap<Integer, String> mShaderSources = new HashMap<Integer, String>();
+	private final HashMap<Integer, String> mProgramSources = new HashMap<Integer, String>();
+	// Locations given for qualifier/program/name triplets.
+	private final HashMap<String, Integer> mLocations = new HashMap<String, Integer>();
+	// Next location returned per qualifier/program pair.
+	private final HashMap<String, Integer> mNextLocation = new HashMap<String, Integer>();
+
+	// Vertex attribute state, client side buffers are the ones counted.
+	private final boolean[] mAttribEnabled = new boolean[MAX_VERTEX_ATTRIBS];
+	private final Buffer[] mAttribPointer = new Buffer[MAX_VERTEX_ATTRIBS];
+	private final int[] mAttribElementSize = new int[MAX_VERTEX_ATTRIBS];
+
+	/**
+	 * Getter for bytes uploaded into buffer objects.
+	 * 
+	 * @return Number of bytes given to glBufferData and glBufferSubData
+	 */
+	public long getBufferUploadBytes() {
+		return mBufferUploadBytes;
+	}
+
+	/**
+	 * Getter for bytes read from client memory. This includes vertex
+	 * attributes and indices sourced from client side buffers during draw
+	 * calls plus texture data uploads.
+	 * 
+	 * @return Number of bytes
+	 */
+	public long getClientBytes() {
+		return mClientBytes;
+	}
+
+	/**
+	 * Getter for draw call count.
+	 * 
+	 * @return Number of glDrawArrays and glDrawElements calls
+	 */
+	public int getDrawCalls() {
+		return mDrawCalls;
+	}
+
+	/**
+	 * Getter for FBO bind count.
+	 * 
+	 * @return Number of glBindFramebuffer calls
+	 */
+	public int getFramebufferBinds() {
+		return mFramebufferBinds;
+	}
+
+	/**
+	 * Getter for program switch count.
+	 * 
+	 * @return Number of glUseProgram calls
+	 */
+	public int getProgramSwitches() {
+		return mProgramSwitches;
+	}
+
+	/**
+	 * Getter for fixed function state change count.
+	 * 
+	 * @return Number of enable, blend, depth, stencil, mask and viewport calls
+	 */
+	public int getStateChanges() {
+		return mStateChanges;
+	}
+
+	/**
+	 * Getter for texture bind count.
+	 * 
+	 * @return Number of glBindTexture calls
+	 */
+	public int getTextureBinds() {
+		return mTextureBinds;
+	}
+
+	/**
+	 * Getter for uniform upload count.
+	 * 
+	 * @return Number of glUniform* calls
+	 */
+	public int getUniformUploads() {
+		return mUniformUploads;
+	}
+
+	/**
+	 * Resets all counters to zero, usually called at the beginning of a frame.
+	 */
+	public void resetCounters() {
+		mDrawCalls = mProgramSwitches = mTextureBinds = mFramebufferBinds = 0;
+		mUniformUploads = mStateChanges = 0;
+		mClientBytes = mBufferUploadBytes = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "draws=" + mDrawCalls + " programs=" + mProgramSwitches
+				+ " textures=" + mTextureBinds + " fbos=" + mFramebufferBinds
+				+ " uniforms=" + mUniformUploads + " states=" + mStateChanges
+				+ " clientBytes=" + mClientBytes + " bufferBytes="
+				+ mBufferUploadBytes;
+	}
+
+	@Override
+	public void glActiveTexture(int texture) {
+		++mStateChanges;
+	}
+
+	@Override
+	public void glAttachShader(int program, int shader) {
+		String source = mProgramSources.get(program);
+		mProgramSources.put(program, (source == null ? "" : source)
+				+ mShaderSources.get(shader));
+	}
+
+	@Override
+	public void glBindBuffer(int target, int buffer) {
+	}
+
+	@Override
+	public void glBindFramebuffer(int target, int framebuffer) {
+		++mFramebufferBinds;
+	}
+
+	@Override
+	public void glBindRenderbuffer(int target, int renderbuffer) {
+	}
+
+	@Override
+	public void glBindTexture(int target, int texture) {
+		++mTextureBinds;
+	}
+
+	@Override
+	public void glBlendFunc(int sfactor, int dfactor) {
+		++mStateChanges;
+	}
+
+	@Override
+	public void glBufferData(int target, int size, Buffer data, int usage) {
+		if (data != null) {
+			mBufferUploadBytes += size;
+		}
+	}
+
+	@Override
+	public void glBufferSubData(int target, int offset, int size, Buffer data) {
+		mBufferUploadBytes += size;
+	}
+
+	@Override
+	public void glClear(int mask) {
+	}
+
+	@Override
+	public void glClearColor(float red, float green, float blue, float alpha) {
+	}
+
+	@Override
+	public void glColorMask(boolean red, boolean green, boolean blue,
+			boolean alpha) {
+		++mStateChanges;
+	}
+
+	@Override
+	public void glCompileShader(int shader) {
+	}
+
+	@Override
+	public int glCreateProgram() {
+		return mNextName++;
+	}
+
+	@Override
+	public int glCreateShader(int type) {
+		return mNextName++;
+	}
+
+	@Override
+	public void glDeleteBuffers(int n, int[] buffers, int offset) {
+	}
+
+	@Override
+	public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+	}
+
+	@Override
+	public void glDeleteProgram(int program) {
+	}
+
+	@Override
+	public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset) {
+	}
+
+	@Override
+	public void glDeleteShader(int shader) {
+	}
+
+	@Override
+	public void glDeleteTextures(int n, int[] textures, int offset) {
+	}
+
+	@Override
+	public void glDepthFunc(int func) {
+		++mStateChanges;
+	}
+
+	@Override
+	public void glDepthMask(boolean flag) {
+		++mStateChanges;
+	}
+
+	@Override
+	public void glDisable(int cap) {
+		++mStateChanges;
+	}
+
+	@Override
+	public void glDisableVertexAttribArray(int index) {
+		if (index >= 0 && index < MAX_VERTEX_ATTRIBS) {
+			mAttribEnabled[index] = false;
+		}
+	}
+
+	@Override
+	public void glDrawArrays(int mode, int first, int count) {
+		++mDrawCalls;
+		countClientAttribs(first + count);
+	}
+
+	@Override
+	public void glDrawElements(int mode, int count, int type, Buffer indices) {
+		++mDrawCalls;
+		int maxIndex = 0;
+		for (int i = 0; i < count; ++i) {
+			maxIndex = Math.max(maxIndex, getIndex(indices, type, i));
+		}
+		countClientAttribs(maxIndex + 1);
+		mClientBytes += count * getTypeSize(type);
+	}
+
+	@Override
+	public void glDrawElements(int mode, int count, int type, int offset) {
+		++mDrawCalls;
+		// Indices are in a buffer object and can't be read, assume every
+		// index refers to a distinct vertex.
+		countClientAttribs(count);
+	}
+
+	@Override
+	public void glEnable(int cap) {
+		++mStateChanges;
+	}
+
+	@Override
+	public void glEnableVertexAttribArray(int index) {
+		if (index >= 0 && index < MAX_VERTEX_ATTRIBS) {
+			mAttribEnabled[index] = true;
+		}
+	}
+
+	@Override
+	public void glFinish() {
+	}
+
+	@Override
+	public void glFramebufferRenderbuffer(int target, int attachment,
+			int renderbuffertarget, int renderbuffer) {
+	}
+
+	@Override
+	public void glFramebufferTexture2D(int target, int attachment,
+			int textarget, int texture, int level) {
+	}
+
+	@Override
+	public void glFrontFace(int mode) {
+		++mStateChanges;
+	}
+
+	@Override
+	public void glGenBuffers(int n, int[] buffers, int offset) {
+		genNames(n, buffers, offset);
+	}
+
+	@Override
+	public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+		genNames(n, framebuffers, offset);
+	}
+
+	@Override
+	public void glGenRenderbuffers(int n, int[] renderbuffers, int offset) {
+		genNames(n, renderbuffers, offset);
+	}
+
+	@Override
+	public void glGenTextures(int n, int[] textures, int offset) {
+		genNames(n, textures, offset);
+	}
+
+	@Override
+	public int glGetAttribLocation(int program, String name) {
+		return getLocation(program, "attribute", name);
+	}
+
+	@Override
+	public String glGetProgramInfoLog(int program) {
+		return "";
+	}
+
+	@Override
+	public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+		params[offset] = GLES20.GL_TRUE;
+	}
+
+	@Override
+	public String glGetShaderInfoLog(int shader) {
+		return "";
+	}
+
+	@Override
+	public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+		params[offset] = GLES20.GL_TRUE;
+	}
+
+	@Override
+	public int glGetUniformLocation(int program, String name) {
+		return getLocation(program, "uniform", name);
+	}
+
+	@Override
+	public void glLinkProgram(int program) {
+	}
+
+	@Override
+	public void glRenderbufferStorage(int target, int internalformat,
+			int width, int height) {
+	}
+
+	@Override
+	public void glScissor(int x, int y, int width, int height) {
+		++mStateChanges;
+	}
+
+	@Override
+	public void glShaderSource(int shader, String string) {
+		mShaderSources.put(shader, string);
+	}
+
+	@Override
+	public void glStencilFunc(int func, int ref, int mask) {
+		++mStateChanges;
+	}
+
+	@Override
+	public void glStencilOp(int fail, int zfail, int zpass) {
+		++mStateChanges;
+	}
+
+	@Override
+	public void glStencilOpSeparate(int face, int fail, int zfail, int zpass) {
+		++mStateChanges;
+	}
+
+	@Override
+	public void glTexImage2D(int target, int level, int internalformat,
+			int width, int height, int border, int format, int type,
+			Buffer pixels) {
+		if (pixels != null) {
+			mClientBytes += width * height * 4;
+		}
+	}
+
+	@Override
+	public void glTexParameterf(int target, int pname, float param) {
+	}
+
+	@Override
+	public void glTexParameteri(int target, int pname, int param) {
+	}
+
+	@Override
+	public void glUniform1f(int location, float x) {
+		++mUniformUploads;
+	}
+
+	@Override
+	public void glUniform1i(int location, int x) {
+		++mUniformUploads;
+	}
+
+	@Override
+	public void glUniform2f(int location, float x, float y) {
+		++mUniformUploads;
+	}
+
+	@Override
+	public void glUniform2fv(int location, int count, float[] v, int offset) {
+		++mUniformUploads;
+	}
+
+	@Override
+	public void glUniform3f(int location, float x, float y, float z) {
+		++mUniformUploads;
+	}
+
+	@Override
+	public void glUniform3fv(int location, int count, float[] v, int offset) {
+		++mUniformUploads;
+	}
+
+	@Override
+	public void glUniform4f(int location, float x, float y, float z, float w) {
+		++mUniformUploads;
+	}
+
+	@Override
+	public void glUniform4fv(int location, int count, float[] v, int offset) {
+		++mUniformUploads;
+	}
+
+	@Override
+	public void glUniformMatrix4fv(int location, int count,
+			boolean transpose, float[] value, int offset) {
+		++mUniformUploads;
+	}
+
+	@Override
+	public void glUseProgram(int program) {
+		++mProgramSwitches;
+	}
+
+	@Override
+	public void glVertexAttrib1f(int indx, float x) {
+	}
+
+	@Override
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, Buffer ptr) {
+		if (indx >= 0 && indx < MAX_VERTEX_ATTRIBS) {
+			mAttribPointer[indx] = ptr;
+			mAttribElementSize[indx] = stride != 0 ? stride : size
+					* getTypeSize(type);
+		}
+	}
+
+	@Override
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, int offset) {
+		// Attributes sourced from buffer objects are not client memory.
+		if (indx >= 0 && indx < MAX_VERTEX_ATTRIBS) {
+			mAttribPointer[indx] = null;
+		}
+	}
+
+	@Override
+	public void glViewport(int x, int y, int width, int height) {
+		++mStateChanges;
+	}
+
+	/**
+	 * Adds bytes read from enabled client side vertex attributes.
+	 * 
+	 * @param vertexCount
+	 *            Number of vertices read
+	 */
+	private void countClientAttribs(int vertexCount) {
+		for (int i = 0; i < MAX_VERTEX_ATTRIBS; ++i) {
+			if (mAttribEnabled[i] && mAttribPointer[i] != null) {
+				mClientBytes += vertexCount * mAttribElementSize[i];
+			}
+		}
+	}
+
+	/**
+	 * Generates new object names.
+	 * 
+	 * @param n
+	 *            Number of names
+	 * @param names
+	 *            Array for names
+	 * @param offset
+	 *            Array offset
+	 */
+	private void genNames(int n, int[] names, int offset) {
+		for (int i = 0; i < n; ++i) {
+			names[offset + i] = mNextName++;
+		}
+	}
+
+	/**
+	 * Reads index value from client side index buffer.
+	 * 
+	 * @param indices
+	 *            Index buffer
+	 * @param type
+	 *            Index type
+	 * @param i
+	 *            Number of index, relative to buffer position
+	 * @return Index value
+	 */
+	private int getIndex(Buffer indices, int type, int i) {
+		int pos = indices.position() + i;
+		switch (type) {
+		case GLES20.GL_UNSIGNED_BYTE:
+			return ((ByteBuffer) indices).get(pos) & 0xFF;
+		case GLES20.GL_UNSIGNED_SHORT:
+			if (indices instanceof ShortBuffer) {
+				return ((ShortBuffer) indices).get(pos) & 0xFFFF;
+			}
+			// Byte buffer position is in bytes, not in indices.
+			pos = indices.position() + i * 2;
+			return ((ByteBuffer) indices).getShort(pos) & 0xFFFF;
+		default:
+			return ((IntBuffer) indices).get(pos);
+		}
+	}
+
+	/**
+	 * Returns stable location for given handle name, or -1 if program sources
+	 * do not declare it with given qualifier.
+	 * 
+	 * @param program
+	 *            Program id
+	 * @param qualifier
+	 *            Either "attribute" or "uniform"
+	 * @param name
+	 *            Attribute or uniform name
+	 * @return Location or -1
+	 */
+	private int getLocation(int program, String qualifier, String name) {
+		String key = qualifier + "/" + program + "/" + name;
+		Integer location = mLocations.get(key);
+		if (location == null) {
+			String source = mProgramSources.get(program);
+			Pattern declaration = Pattern.compile("\\b" + qualifier
+					+ "\\s[^;]*\\b" + Pattern.quote(name) + "\\b");
+			if (source == null || !declaration.matcher(source).find()) {
+				return -1;
+			}
+			String counterKey = qualifier + "/" + program;
+			Integer next = mNextLocation.get(counterKey);
+			location = next == null ? 0 : next;
+			mNextLocation.put(counterKey, location + 1);
+			mLocations.put(key, location);
+		}
+		return location;
+	}
+
+	/**
+	 * Returns size of given GL data type in bytes.
+	 * 
+	 * @param type
+	 *            Data type
+	 * @return Size in bytes
+	 */
+	private int getTypeSize(int type) {
+		switch (type) {
+		case GLES20.GL_BYTE:
+		case GLES20.GL_UNSIGNED_BYTE:
+			return 1;
+		case GLES20.GL_SHORT:
+		case GLES20.GL_UNSIGNED_SHORT:
+			return 2;
+		default:
+			return 4;
+		}
+	}
+
+}
@@ -0,0 +1,734 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.gl;
+
+import java.nio.Buffer;
+
+import android.opengl.GLES20;
+
+/**
+ * GlslGl decorator which keeps a shadow copy of GL state and drops calls that
+ * wouldn't change it before they reach underlying backend. State starts as
+ * unknown and invalidate() has to be called whenever GL context is recreated,
+ * or state is changed bypassing this class, as tracked state is trusted
+ * blindly otherwise.
+ */
+public final class GlslGlStateCache implements GlslGl {
+
+	// Value for state not known yet.
+	private static final int UNKNOWN = -1;
+	// Number of texture units tracked.
+	private static final int MAX_TEXTURE_UNITS = 32;
+	// Maximum number of vertex attributes tracked.
+	private static final int MAX_VERTEX_ATTRIBS = 16;
+	// Indices for stencil op state.
+	private static final int STENCIL_FRONT = 0;
+	private static final int STENCIL_BACK = 1;
+	// Tracked capabilities, index in this array maps to mCapabilities.
+	private static final int[] CAPABILITIES = { GLES20.GL_BLEND,
+			GLES20.GL_CULL_FACE, GLES20.GL_DEPTH_TEST, GLES20.GL_DITHER,
+			GLES20.GL_POLYGON_OFFSET_FILL, GLES20.GL_SAMPLE_ALPHA_TO_COVERAGE,
+			GLES20.GL_SAMPLE_COVERAGE, GLES20.GL_SCISSOR_TEST,
+			GLES20.GL_STENCIL_TEST };
+
+	// Backend calls are forwarded to.
+	private GlslGl mGl;
+	// Calls dropped since last call to resetCounters().
+	private int mEliminatedCalls;
+
+	// Enable state for CAPABILITIES, 0, 1 or UNKNOWN.
+	private final int[] mCapabilities = new int[CAPABILITIES.length];
+	private final int[] mAttribEnabled = new int[MAX_VERTEX_ATTRIBS];
+	// Texture bound to GL_TEXTURE_2D target per unit.
+	private final int[] mTexture2D = new int[MAX_TEXTURE_UNITS];
+	private int mActiveTexture;
+	private int mProgram;
+	// Buffers bound to GL_ARRAY_BUFFER and GL_ELEMENT_ARRAY_BUFFER.
+	private int mArrayBuffer, mElementArrayBuffer;
+	private int mFramebuffer;
+	private int mRenderbuffer;
+	private int mBlendSrc, mBlendDst;
+	private int mDepthFunc;
+	private int mDepthMask;
+	private int mColorMask;
+	private int mFrontFace;
+	// Stencil function, ref and mask can take any value.
+	private boolean mStencilFuncValid;
+	private int mStencilFunc, mStencilRef, mStencilMask;
+	// Stencil fail, zfail and zpass ops for front and back faces.
+	private final int[][] mStencilOp = new int[2][3];
+	// Viewport x, y, width and height.
+	private boolean mViewportValid;
+	private final int[] mViewport = new int[4];
+	// Scissor box x, y, width and height.
+	private boolean mScissorValid;
+	private final int[] mScissor = new int[4];
+
+	/**
+	 * Constructor for state cache.
+	 * 
+	 * @param gl
+	 *            Backend for calls changing state
+	 */
+	public GlslGlStateCache(GlslGl gl) {
+		mGl = gl;
+		invalidate();
+	}
+
+	/**
+	 * Getter for number of calls dropped as redundant.
+	 * 
+	 * @return Number of calls since last call to resetCounters()
+	 */
+	public int getEliminatedCalls() {
+		return mEliminatedCalls;
+	}
+
+	/**
+	 * Marks all tracked state unknown. Next call changing any state is
+	 * forwarded to backend regardless of the value.
+	 */
+	public void invalidate() {
+		for (int i = 0; i < mCapabilities.length; ++i) {
+			mCapabilities[i] = UNKNOWN;
+		}
+		for (int i = 0; i < MAX_VERTEX_ATTRIBS; ++i) {
+			mAttribEnabled[i] = UNKNOWN;
+		}
+		for (int i = 0; i < MAX_TEXTURE_UNITS; ++i) {
+			mTexture2D[i] = UNKNOWN;
+		}
+		mActiveTexture = mProgram = mFramebuffer = mRenderbuffer = UNKNOWN;
+		mArrayBuffer = mElementArrayBuffer = UNKNOWN;
+		mBlendSrc = mBlendDst = UNKNOWN;
+		mDepthFunc = mDepthMask = mColorMask = mFrontFace = UNKNOWN;
+		mStencilFuncValid = false;
+		for (int i = 0; i < 3; ++i) {
+			mStencilOp[STENCIL_FRONT][i] = mStencilOp[STENCIL_BACK][i] = UNKNOWN;
+		}
+		mViewportValid = false;
+		mScissorValid = false;
+	}
+
+	/**
+	 * Resets eliminated call counter to zero.
+	 */
+	public void resetCounters() {
+		mEliminatedCalls = 0;
+	}
+
+	@Override
+	public void glActiveTexture(int texture) {
+		if (mActiveTexture == texture) {
+			++mEliminatedCalls;
+			return;
+		}
+		mActiveTexture = texture;
+		mGl.glActiveTexture(texture);
+	}
+
+	@Override
+	public void glAttachShader(int program, int shader) {
+		mGl.glAttachShader(program, shader);
+	}
+
+	@Override
+	public void glBindBuffer(int target, int buffer) {
+		if (target == GLES20.GL_ARRAY_BUFFER) {
+			if (mArrayBuffer == buffer) {
+				++mEliminatedCalls;
+				return;
+			}
+			mArrayBuffer = buffer;
+		} else if (target == GLES20.GL_ELEMENT_ARRAY_BUFFER) {
+			if (mElementArrayBuffer == buffer) {
+				++mEliminatedCalls;
+				return;
+			}
+			mElementArrayBuffer = buffer;
+		}
+		mGl.glBindBuffer(target, buffer);
+	}
+
+	@Override
+	public void glBindFramebuffer(int target, int framebuffer) {
+		if (mFramebuffer == framebuffer) {
+			++mEliminatedCalls;
+			return;
+		}
+		mFramebuffer = framebuffer;
+		mGl.glBindFramebuffer(target, framebuffer);
+	}
+
+	@Override
+	public void glBindRenderbuffer(int target, int renderbuffer) {
+		if (mRenderbuffer == renderbuffer) {
+			++mEliminatedCalls;
+			return;
+		}
+		mRenderbuffer = renderbuffer;
+		mGl.glBindRenderbuffer(target, renderbuffer);
+	}
+
+	@Override
+	public void glBindTexture(int target, int texture) {
+		int unit = mActiveTexture - GLES20.GL_TEXTURE0;
+		if (target != GLES20.GL_TEXTURE_2D) {
+			mGl.glBindTexture(target, texture);
+			return;
+		}
+		if (unit < 0 || unit >= MAX_TEXTURE_UNITS) {
+			// Unit isn't known, binding may have changed on any of them.
+			for (int i = 0; i < MAX_TEXTURE_UNITS; ++i) {
+				mTexture2D[i] = UNKNOWN;
+			}
+			mGl.glBindTexture(target, texture);
+			return;
+		}
+		if (mTexture2D[unit] == texture) {
+			++mEliminatedCalls;
+			return;
+		}
+		mTexture2D[unit] = texture;
+		mGl.glBindTexture(target, texture);
+	}
+
+	@Override
+	public void glBlendFunc(int sfactor, int dfactor) {
+		if (mBlendSrc == sfactor && mBlendDst == dfactor) {
+			++mEliminatedCalls;
+			return;
+		}
+		mBlendSrc = sfactor;
+		mBlendDst = dfactor;
+		mGl.glBlendFunc(sfactor, dfactor);
+	}
+
+	@Override
+	public void glBufferData(int target, int size, Buffer data, int usage) {
+		mGl.glBufferData(target, size, data, usage);
+	}
+
+	@Override
+	public void glBufferSubData(int target, int offset, int size, Buffer data) {
+		mGl.glBufferSubData(target, offset, size, data);
+	}
+
+	@Override
+	public void glClear(int mask) {
+		mGl.glClear(mask);
+	}
+
+	@Override
+	public void glClearColor(float red, float green, float blue, float alpha) {
+		mGl.glClearColor(red, green, blue, alpha);
+	}
+
+	@Override
+	public void glColorMask(boolean red, boolean green, boolean blue,
+			boolean alpha) {
+		int mask = (red ? 1 : 0) | (green ? 2 : 0) | (blue ? 4 : 0)
+				| (alpha ? 8 : 0);
+		if (mColorMask == mask) {
+			++mEliminatedCalls;
+			return;
+		}
+		mColorMask = mask;
+		mGl.glColorMask(red, green, blue, alpha);
+	}
+
+	@Override
+	public void glCompileShader(int shader) {
+		mGl.glCompileShader(shader);
+	}
+
+	@Override
+	public int glCreateProgram() {
+		return mGl.glCreateProgram();
+	}
+
+	@Override
+	public int glCreateShader(int type) {
+		return mGl.glCreateShader(type);
+	}
+
+	@Override
+	public void glDeleteBuffers(int n, int[] buffers, int offset) {
+		// Deleting bound buffer reverts binding to zero.
+		for (int i = 0; i < n; ++i) {
+			if (buffers[offset + i] == mArrayBuffer) {
+				mArrayBuffer = 0;
+			}
+			if (buffers[offset + i] == mElementArrayBuffer) {
+				mElementArrayBuffer = 0;
+			}
+		}
+		mGl.glDeleteBuffers(n, buffers, offset);
+	}
+
+	@Override
+	public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+		// Deleting bound framebuffer reverts binding to default one.
+		for (int i = 0; i < n; ++i) {
+			if (framebuffers[offset + i] == mFramebuffer) {
+				mFramebuffer = 0;
+			}
+		}
+		mGl.glDeleteFramebuffers(n, framebuffers, offset);
+	}
+
+	@Override
+	public void glDeleteProgram(int program) {
+		// Program in use is deleted only once it is no longer current, its
+		// name may be reused afterwards so forget it altogether.
+		if (mProgram == program) {
+			mProgram = UNKNOWN;
+		}
+		mGl.glDeleteProgram(program);
+	}
+
+	@Override
+	public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset) {
+		for (int i = 0; i < n; ++i) {
+			if (renderbuffers[offset + i] == mRenderbuffer) {
+				mRenderbuffer = 0;
+			}
+		}
+		mGl.glDeleteRenderbuffers(n, renderbuffers, offset);
+	}
+
+	@Override
+	public void glDeleteShader(int shader) {
+		mGl.glDeleteShader(shader);
+	}
+
+	@Override
+	public void glDeleteTextures(int n, int[] textures, int offset) {
+		// Deleted textures are unbound from every unit they were bound to.
+		for (int i = 0; i < n; ++i) {
+			for (int unit = 0; unit < MAX_TEXTURE_UNITS; ++unit) {
+				if (mTexture2D[unit] == textures[offset + i]) {
+					mTexture2D[unit] = 0;
+				}
+			}
+		}
+		mGl.glDeleteTextures(n, textures, offset);
+	}
+
+	@Override
+	public void glDepthFunc(int func) {
+		if (mDepthFunc == func) {
+			++mEliminatedCalls;
+			return;
+		}
+		mDepthFunc = func;
+		mGl.glDepthFunc(func);
+	}
+
+	@Override
+	public void glDepthMask(boolean flag) {
+		int mask = flag ? 1 : 0;
+		if (mDepthMask == mask) {
+			++mEliminatedCalls;
+			return;
+		}
+		mDepthMask = mask;
+		mGl.glDepthMask(flag);
+	}
+
+	@Override
+	public void glDisable(int cap) {
+		int idx = getCapIndex(cap);
+		if (idx >= 0 && mCapabilities[idx] == 0) {
+			++mEliminatedCalls;
+			return;
+		}
+		if (idx >= 0) {
+			mCapabilities[idx] = 0;
+		}
+		mGl.glDisable(cap);
+	}
+
+	@Override
+	public void glDisableVertexAttribArray(int index) {
+		if (index >= 0 && index < MAX_VERTEX_ATTRIBS) {
+			if (mAttribEnabled[index] == 0) {
+				++mEliminatedCalls;
+				return;
+			}
+			mAttribEnabled[index] = 0;
+		}
+		mGl.glDisableVertexAttribArray(index);
+	}
+
+	@Override
+	public void glDrawArrays(int mode, int first, int count) {
+		mGl.glDrawArrays(mode, first, count);
+	}
+
+	@Override
+	public void glDrawElements(int mode, int count, int type, Buffer indices) {
+		mGl.glDrawElements(mode, count, type, indices);
+	}
+
+	@Override
+	public void glDrawElements(int mode, int count, int type, int offset) {
+		mGl.glDrawElements(mode, count, type, offset);
+	}
+
+	@Override
+	public void glEnable(int cap) {
+		int idx = getCapIndex(cap);
+		if (idx >= 0 && mCapabilities[idx] == 1) {
+			++mEliminatedCalls;
+			return;
+		}
+		if (idx >= 0) {
+			mCapabilities[idx] = 1;
+		}
+		mGl.glEnable(cap);
+	}
+
+	@Override
+	public void glEnableVertexAttribArray(int index) {
+		if (index >= 0 && index < MAX_VERTEX_ATTRIBS) {
+			if (mAttribEnabled[index] == 1) {
+				++mEliminatedCalls;
+				return;
+			}
+			mAttribEnabled[index] = 1;
+		}
+		mGl.glEnableVertexAttribArray(index);
+	}
+
+	@Override
+	public void glFinish() {
+		mGl.glFinish();
+	}
+
+	@Override
+	public void glFramebufferRenderbuffer(int target, int attachment,
+			int renderbuffertarget, int renderbuffer) {
+		mGl.glFramebufferRenderbuffer(target, attachment,
+				renderbuffertarget, renderbuffer);
+	}
+
+	@Override
+	public void glFramebufferTexture2D(int target, int attachment,
+			int textarget, int texture, int level) {
+		mGl.glFramebufferTexture2D(target, attachment, textarget, texture,
+				level);
+	}
+
+	@Override
+	public void glFrontFace(int mode) {
+		if (mFrontFace == mode) {
+			++mEliminatedCalls;
+			return;
+		}
+		mFrontFace = mode;
+		mGl.glFrontFace(mode);
+	}
+
+	@Override
+	public void glGenBuffers(int n, int[] buffers, int offset) {
+		mGl.glGenBuffers(n, buffers, offset);
+	}
+
+	@Override
+	public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+		mGl.glGenFramebuffers(n, framebuffers, offset);
+	}
+
+	@Override
+	public void glGenRenderbuffers(int n, int[] renderbuffers, int offset) {
+		mGl.glGenRenderbuffers(n, renderbuffers, offset);
+	}
+
+	@Override
+	public void glGenTextures(int n, int[] textures, int offset) {
+		mGl.glGenTextures(n, textures, offset);
+	}
+
+	@Override
+	public int glGetAttribLocation(int program, String name) {
+		return mGl.glGetAttribLocation(program, name);
+	}
+
+	@Override
+	public String glGetProgramInfoLog(int program) {
+		return mGl.glGetProgramInfoLog(program);
+	}
+
+	@Override
+	public void glGetProgramiv(int program, int pname, int[] params,
+			int offset) {
+		mGl.glGetProgramiv(program, pname, params, offset);
+	}
+
+	@Override
+	public String glGetShaderInfoLog(int shader) {
+		return mGl.glGetShaderInfoLog(shader);
+	}
+
+	@Override
+	public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+		mGl.glGetShaderiv(shader, pname, params, offset);
+	}
+
+	@Override
+	public int glGetUniformLocation(int program, String name) {
+		return mGl.glGetUniformLocation(program, name);
+	}
+
+	@Override
+	public void glLinkProgram(int program) {
+		mGl.glLinkProgram(program);
+	}
+
+	@Override
+	public void glRenderbufferStorage(int target, int internalformat,
+			int width, int height) {
+		mGl.glRenderbufferStorage(target, internalformat, width, height);
+	}
+
+	@Override
+	public void glScissor(int x, int y, int width, int height) {
+		if (mScissorValid && mScissor[0] == x && mScissor[1] == y
+				&& mScissor[2] == width && mScissor[3] == height) {
+			++mEliminatedCalls;
+			return;
+		}
+		mScissorValid = true;
+		mScissor[0] = x;
+		mScissor[1] = y;
+		mScissor[2] = width;
+		mScissor[3] = height;
+		mGl.glScissor(x, y, width, height);
+	}
+
+	@Override
+	public void glShaderSource(int shader, String string) {
+		mGl.glShaderSource(shader, string);
+	}
+
+	@Override
+	public void glStencilFunc(int func, int ref, int mask) {
+		if (mStencilFuncValid && mStencilFunc == func && mStencilRef == ref
+				&& mStencilMask == mask) {
+			++mEliminatedCalls;
+			return;
+		}
+		mStencilFuncValid = true;
+		mStencilFunc = func;
+		mStencilRef = ref;
+		mStencilMask = mask;
+		mGl.glStencilFunc(func, ref, mask);
+	}
+
+	@Override
+	public void glStencilOp(int fail, int zfail, int zpass) {
+		if (isStencilOp(STENCIL_FRONT, fail, zfail, zpass)
+				&& isStencilOp(STENCIL_BACK, fail, zfail, zpass)) {
+			++mEliminatedCalls;
+			return;
+		}
+		setStencilOp(STENCIL_FRONT, fail, zfail, zpass);
+		setStencilOp(STENCIL_BACK, fail, zfail, zpass);
+		mGl.glStencilOp(fail, zfail, zpass);
+	}
+
+	@Override
+	public void glStencilOpSeparate(int face, int fail, int zfail, int zpass) {
+		boolean front = face == GLES20.GL_FRONT
+				|| face == GLES20.GL_FRONT_AND_BACK;
+		boolean back = face == GLES20.GL_BACK
+				|| face == GLES20.GL_FRONT_AND_BACK;
+		if ((!front || isStencilOp(STENCIL_FRONT, fail, zfail, zpass))
+				&& (!back || isStencilOp(STENCIL_BACK, fail, zfail, zpass))) {
+			++mEliminatedCalls;
+			return;
+		}
+		if (front) {
+			setStencilOp(STENCIL_FRONT, fail, zfail, zpass);
+		}
+		if (back) {
+			setStencilOp(STENCIL_BACK, fail, zfail, zpass);
+		}
+		mGl.glStencilOpSeparate(face, fail, zfail, zpass);
+	}
+
+	@Override
+	public void glTexImage2D(int target, int level, int internalformat,
+			int width, int height, int border, int format, int type,
+			Buffer pixels) {
+		mGl.glTexImage2D(target, level, internalformat, width, height,
+				border, format, type, pixels);
+	}
+
+	@Override
+	public void glTexParameterf(int target, int pname, float param) {
+		mGl.glTexParameterf(target, pname, param);
+	}
+
+	@Override
+	public void glTexParameteri(int target, int pname, int param) {
+		mGl.glTexParameteri(target, pname, param);
+	}
+
+	@Override
+	public void glUniform1f(int location, float x) {
+		mGl.glUniform1f(location, x);
+	}
+
+	@Override
+	public void glUniform1i(int location, int x) {
+		mGl.glUniform1i(location, x);
+	}
+
+	@Override
+	public void glUniform2f(int location, float x, float y) {
+		mGl.glUniform2f(location, x, y);
+	}
+
+	@Override
+	public void glUniform2fv(int location, int count, float[] v, int offset) {
+		mGl.glUniform2fv(location, count, v, offset);
+	}
+
+	@Override
+	public void glUniform3f(int location, float x, float y, float z) {
+		mGl.glUniform3f(location, x, y, z);
+	}
+
+	@Override
+	public void glUniform3fv(int location, int count, float[] v, int offset) {
+		mGl.glUniform3fv(location, count, v, offset);
+	}
+
+	@Override
+	public void glUniform4f(int location, float x, float y, float z, float w) {
+		mGl.glUniform4f(location, x, y, z, w);
+	}
+
+	@Override
+	public void glUniform4fv(int location, int count, float[] v, int offset) {
+		mGl.glUniform4fv(location, count, v, offset);
+	}
+
+	@Override
+	public void glUniformMatrix4fv(int location, int count, boolean transpose,
+			float[] value, int offset) {
+		mGl.glUniformMatrix4fv(location, count, transpose, value, offset);
+	}
+
+	@Override
+	public void glUseProgram(int program) {
+		if (mProgram == program) {
+			++mEliminatedCalls;
+			return;
+		}
+		mProgram = program;
+		mGl.glUseProgram(program);
+	}
+
+	@Override
+	public void glVertexAttrib1f(int indx, float x) {
+		mGl.glVertexAttrib1f(indx, x);
+	}
+
+	@Override
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, Buffer ptr) {
+		mGl.glVertexAttribPointer(indx, size, type, normalized, stride, ptr);
+	}
+
+	@Override
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, int offset) {
+		mGl.glVertexAttribPointer(indx, size, type, normalized, stride, offset);
+	}
+
+	@Override
+	public void glViewport(int x, int y, int width, int height) {
+		if (mViewportValid && mViewport[0] == x && mViewport[1] == y
+				&& mViewport[2] == width && mViewport[3] == height) {
+			++mEliminatedCalls;
+			return;
+		}
+		mViewportValid = true;
+		mViewport[0] = x;
+		mViewport[1] = y;
+		mViewport[2] = width;
+		mViewport[3] = height;
+		mGl.glViewport(x, y, width, height);
+	}
+
+	/**
+	 * Maps capability to index in mCapabilities.
+	 * 
+	 * @param cap
+	 *            Capability passed to glEnable/glDisable
+	 * @return Index or -1 if capability isn't tracked
+	 */
+	private int getCapIndex(int cap) {
+		for (int i = 0; i < CAPABILITIES.length; ++i) {
+			if (CAPABILITIES[i] == cap) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks whether stencil ops for given face equal to known state.
+	 * 
+	 * @param face
+	 *            STENCIL_FRONT or STENCIL_BACK
+	 * @param fail
+	 *            Stencil test fail op
+	 * @param zfail
+	 *            Depth test fail op
+	 * @param zpass
+	 *            Depth test pass op
+	 * @return True if ops are known to be set already
+	 */
+	private boolean isStencilOp(int face, int fail, int zfail, int zpass) {
+		int[] op = mStencilOp[face];
+		return op[0] == fail && op[1] == zfail && op[2] == zpass;
+	}
+
+	/**
+	 * Stores stencil ops for given face.
+	 * 
+	 * @param face
+	 *            STENCIL_FRONT or STENCIL_BACK
+	 * @param fail
+	 *            Stencil test fail op
+	 * @param zfail
+	 *            Depth test fail op
+	 * @param zpass
+	 *            Depth test pass op
+	 */
+	private void setStencilOp(int face, int fail, int zfail, int zpass) {
+		int[] op = mStencilOp[face];
+		op[0] = fail;
+		op[1] = zfail;
+		op[2] = zpass;
+	}
+
+}
@@ -55,6 +55,18 @@ public final class GlslAnimator {
 		mRotationMap.clear();
 	}
 
+	/**
+	 * Checks whether given object receives position or rotation updates from
+	 * this animator.
+	 * 
+	 * @param object
+	 *            Object to check
+	 * @return True if object has a path or rotation set to it
+	 */
+	public boolean isAnimated(Object object) {
+		return mPathMap.containsKey(object) || mRotationMap.containsKey(object);
+	}
+
 	/**
 	 * Sets path for given object. Path should be an array of PathElements in
 	 * increasing order based on time value.
@@ -18,79 +18,74 @@ package fi.harism.glsl.scene;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 
 import android.opengl.GLES20;
+import fi.harism.glsl.GlslMatrix;
+import fi.harism.glsl.gl.GlslGl;
+import fi.harism.glsl.gl.GlslGlContext;
 
 /**
  * TODO: This class will go through major rewriting once I get to writing a new
  * class for geometry handling.
  */
-public final class GlslBox extends GlslObject {
+public final class GlslBox extends GlslObject implements
+		GlslRenderQueue.Item {
 
 	private static final int FACE_COUNT = 6;
 	private static final int VERTICES_PER_FACE = 8;
-	private static final int FLOATS_PER_VERTEX = 3;
+	static final int VERTEX_COUNT = FACE_COUNT * VERTICES_PER_FACE;
 	private static final int FLOAT_SIZE_BYTES = 4;
 
-	private FloatBuffer mVertexBuffer;
-	private FloatBuffer mNormalBuffer;
-	private FloatBuffer mColorBuffer;
-	private ByteBuffer mIndexBuffer;
-	private ByteBuffer mShadowIndexBuffer;
+	// Packed vertex layout shared by all scene geometry. Position is stored
+	// as three floats, normal as three signed bytes and color as three
+	// unsigned bytes, latter two padded to four bytes. Last byte is left for
+	// GlslBoxBatch instance index.
+	static final int STRIDE_BYTES = 20;
+	static final int POSITION_OFFSET = 0;
+	static final int NORMAL_OFFSET = 12;
+	static final int COLOR_OFFSET = 16;
+	static final int INSTANCE_OFFSET = 19;
+	// Signed byte value for unit length normal component. Vertex shaders
+	// decode normals by dividing with it.
+	static final float NORMAL_SCALE = 127f;
+
+	// Index counts and shadow index offset within shared index buffer.
+	static final int INDEX_COUNT = 6 * 6;
+	static final int SHADOW_INDEX_COUNT = 6 * 4 * 6;
+	private static final int SHADOW_INDEX_OFFSET = INDEX_COUNT;
+	// Shadow volume indices, for batching shadow volumes on CPU.
+	static final int[] SHADOW_INDICES = createShadowIndices();
+
+	// Edge adjacency of box corners, shared between all boxes. Corner i is
+	// at (+-w, +-h, +-d), sign of each coordinate given by bits 0, 1 and 2.
+	static final GlslSilhouette SILHOUETTE = new GlslSilhouette(8, new int[] {
+			4, 5, 7, 4, 7, 6, 0, 2, 3, 0, 3, 1, 2, 6, 7, 2, 7, 3, 0, 1, 5, 0,
+			5, 4, 1, 3, 7, 1, 7, 5, 0, 4, 6, 0, 6, 2 });
+
+	// Index buffer shared between all boxes.
+	private static int mIndexBufferId;
+	// Context generation shared index buffer was created in.
+	private static int mIndexBufferGeneration = -1;
+
+	// Interleaved position, normal and color data.
+	private ByteBuffer mVertexData;
+	// Vertex buffer id.
+	private int mVertexBufferId;
+	// Context generation vertex buffer was created in.
+	private int mVertexBufferGeneration = -1;
+	// If true, mVertexData has changed since last upload.
+	private boolean mVertexDataDirty;
+	// Incremented whenever mVertexData changes.
+	private int mVertexDataVersion;
+	// If true, box is drawn by a GlslBoxBatch instead.
+	private boolean mBatched;
+	// Corner positions for SILHOUETTE, x, y and z for each.
+	private final float[] mCorners = new float[8 * 3];
 
 	public GlslBox() {
-		int sz = FACE_COUNT * VERTICES_PER_FACE * FLOATS_PER_VERTEX
-				* FLOAT_SIZE_BYTES;
-		ByteBuffer buffer = ByteBuffer.allocateDirect(sz);
-		mVertexBuffer = buffer.order(ByteOrder.nativeOrder()).asFloatBuffer();
-		buffer = ByteBuffer.allocateDirect(sz);
-		mNormalBuffer = buffer.order(ByteOrder.nativeOrder()).asFloatBuffer();
-		buffer = ByteBuffer.allocateDirect(sz);
-		mColorBuffer = buffer.order(ByteOrder.nativeOrder()).asFloatBuffer();
-
-		mIndexBuffer = ByteBuffer.allocateDirect(6 * 6);
-		mIndexBuffer.position(0);
-		for (int i = 0; i < 6; ++i) {
-			mIndexBuffer.put((byte) (i * 8 + 0));
-			mIndexBuffer.put((byte) (i * 8 + 2));
-			mIndexBuffer.put((byte) (i * 8 + 4));
-			mIndexBuffer.put((byte) (i * 8 + 2));
-			mIndexBuffer.put((byte) (i * 8 + 6));
-			mIndexBuffer.put((byte) (i * 8 + 4));
-		}
-
-		mShadowIndexBuffer = ByteBuffer.allocateDirect(6 * 6 * 6);
-		mShadowIndexBuffer.position(0);
-		for (int i = 0; i < 6; ++i) {
-			mShadowIndexBuffer.put((byte) (i * 8 + 0));
-			mShadowIndexBuffer.put((byte) (i * 8 + 1));
-			mShadowIndexBuffer.put((byte) (i * 8 + 2));
-			mShadowIndexBuffer.put((byte) (i * 8 + 1));
-			mShadowIndexBuffer.put((byte) (i * 8 + 3));
-			mShadowIndexBuffer.put((byte) (i * 8 + 2));
-
-			mShadowIndexBuffer.put((byte) (i * 8 + 2));
-			mShadowIndexBuffer.put((byte) (i * 8 + 3));
-			mShadowIndexBuffer.put((byte) (i * 8 + 6));
-			mShadowIndexBuffer.put((byte) (i * 8 + 3));
-			mShadowIndexBuffer.put((byte) (i * 8 + 7));
-			mShadowIndexBuffer.put((byte) (i * 8 + 6));
-
-			mShadowIndexBuffer.put((byte) (i * 8 + 6));
-			mShadowIndexBuffer.put((byte) (i * 8 + 7));
-			mShadowIndexBuffer.put((byte) (i * 8 + 4));
-			mShadowIndexBuffer.put((byte) (i * 8 + 7));
-			mShadowIndexBuffer.put((byte) (i * 8 + 5));
-			mShadowIndexBuffer.put((byte) (i * 8 + 4));
-
-			mShadowIndexBuffer.put((byte) (i * 8 + 4));
-			mShadowIndexBuffer.put((byte) (i * 8 + 5));
-			mShadowIndexBuffer.put((byte) (i * 8 + 0));
-			mShadowIndexBuffer.put((byte) (i * 8 + 5));
-			mShadowIndexBuffer.put((byte) (i * 8 + 1));
-			mShadowIndexBuffer.put((byte) (i * 8 + 0));
-		}
+		int sz = VERTEX_COUNT * STRIDE_BYTES;
+		mVertexData = ByteBuffer.allocateDirect(sz).order(
+				ByteOrder.nativeOrder());
 
 		setNormal(0, 0f, 0f, 1f);
 		setNormal(1, 0f, 0f, -1f);
@@ -104,58 +99,19 @@ public final class GlslBox extends GlslObject {
 	}
 
 	@Override
-	public void render(GlslShaderIds ids) {
-		super.render(ids);
-
-		int stride = FLOATS_PER_VERTEX * FLOAT_SIZE_BYTES;
-		mVertexBuffer.position(0);
-		GLES20.glVertexAttribPointer(ids.aPosition, 3, GLES20.GL_FLOAT, false,
-				stride, mVertexBuffer);
-		GLES20.glEnableVertexAttribArray(ids.aPosition);
-
-		mNormalBuffer.position(0);
-		GLES20.glVertexAttribPointer(ids.aNormal, 3, GLES20.GL_FLOAT, false,
-				stride, mNormalBuffer);
-		GLES20.glEnableVertexAttribArray(ids.aNormal);
-
-		mColorBuffer.position(0);
-		GLES20.glVertexAttribPointer(ids.aColor, 3, GLES20.GL_FLOAT, false,
-				stride, mColorBuffer);
-		GLES20.glEnableVertexAttribArray(ids.aColor);
-
-		GLES20.glUniformMatrix4fv(ids.uModelViewM, 1, false, getModelViewM(), 0);
-		GLES20.glUniformMatrix4fv(ids.uModelViewProjM, 1, false,
-				getModelViewProjM(), 0);
-		GLES20.glUniformMatrix4fv(ids.uNormalM, 1, false, getNormalM(), 0);
-
-		mIndexBuffer.position(0);
-		GLES20.glDrawElements(GLES20.GL_TRIANGLES, 6 * 6,
-				GLES20.GL_UNSIGNED_BYTE, mIndexBuffer);
-	}
-
-	@Override
-	public void renderShadow(GlslShaderIds ids) {
-		super.renderShadow(ids);
-
-		int stride = FLOATS_PER_VERTEX * FLOAT_SIZE_BYTES;
-		mVertexBuffer.position(0);
-		GLES20.glVertexAttribPointer(ids.aPosition, 3, GLES20.GL_FLOAT, false,
-				stride, mVertexBuffer);
-		GLES20.glEnableVertexAttribArray(ids.aPosition);
-
-		mNormalBuffer.position(0);
-		GLES20.glVertexAttribPointer(ids.aNormal, 3, GLES20.GL_FLOAT, false,
-				stride, mNormalBuffer);
-		GLES20.glEnableVertexAttribArray(ids.aNormal);
-
-		GLES20.glUniformMatrix4fv(ids.uModelViewM, 1, false, getModelViewM(), 0);
-		GLES20.glUniformMatrix4fv(ids.uModelViewProjM, 1, false,
-				getModelViewProjM(), 0);
-		GLES20.glUniformMatrix4fv(ids.uNormalM, 1, false, getNormalM(), 0);
-
-		mShadowIndexBuffer.position(0);
-		GLES20.glDrawElements(GLES20.GL_TRIANGLES, 6 * 4 * 6,
-				GLES20.GL_UNSIGNED_BYTE, mShadowIndexBuffer);
+	public void draw(GlslShaderIds ids, boolean shadow) {
+		GlslGl gl = GlslGlContext.get();
+		bindBuffers();
+		setAttribPointers(ids, !shadow);
+		setInstance(ids);
+
+		if (shadow) {
+			gl.glDrawElements(GLES20.GL_TRIANGLES, SHADOW_INDEX_COUNT,
+					GLES20.GL_UNSIGNED_BYTE, SHADOW_INDEX_OFFSET);
+		} else {
+			gl.glDrawElements(GLES20.GL_TRIANGLES, INDEX_COUNT,
+					GLES20.GL_UNSIGNED_BYTE, 0);
+		}
 	}
 
 	public void setColor(float r, float g, float b) {
@@ -165,12 +121,14 @@ public final class GlslBox extends GlslObject {
 	}
 
 	public void setColor(int face, float r, float g, float b) {
-		int i = face * VERTICES_PER_FACE * FLOATS_PER_VERTEX;
+		int i = face * VERTICES_PER_FACE * STRIDE_BYTES + COLOR_OFFSET;
 		for (int j = 0; j < VERTICES_PER_FACE; ++j) {
-			mColorBuffer.put(i + (j * FLOATS_PER_VERTEX), r);
-			mColorBuffer.put(i + (j * FLOATS_PER_VERTEX) + 1, g);
-			mColorBuffer.put(i + (j * FLOATS_PER_VERTEX) + 2, b);
+			mVertexData.put(i + (j * STRIDE_BYTES), toUnsignedByte(r));
+			mVertexData.put(i + (j * STRIDE_BYTES) + 1, toUnsignedByte(g));
+			mVertexData.put(i + (j * STRIDE_BYTES) + 2, toUnsignedByte(b));
 		}
+		mVertexDataDirty = true;
+		++mVertexDataVersion;
 	}
 
 	public void setSize(float width, float height, float depth) {
@@ -184,54 +142,279 @@ public final class GlslBox extends GlslObject {
 		setSideCoordinates(3, 0, 2, 1, w, -d, -w, d, -h);
 		setSideCoordinates(4, 2, 1, 0, d, h, -d, -h, w);
 		setSideCoordinates(5, 2, 1, 0, -d, h, d, -h, -w);
+		for (int i = 0; i < 8; ++i) {
+			mCorners[i * 3] = (i & 1) != 0 ? w : -w;
+			mCorners[i * 3 + 1] = (i & 2) != 0 ? h : -h;
+			mCorners[i * 3 + 2] = (i & 4) != 0 ? d : -d;
+		}
+		setBoundingRadius(GlslMatrix.length(w, h, d));
+		mVertexDataDirty = true;
+		++mVertexDataVersion;
+	}
+
+	/**
+	 * Getter for corner positions, in local coordinates, in the order
+	 * SILHOUETTE refers to them.
+	 * 
+	 * @return Corner positions, x, y and z for each
+	 */
+	float[] getCorners() {
+		return mCorners;
+	}
+
+	/**
+	 * Getter for interleaved position, normal and color data.
+	 * 
+	 * @return Vertex data, STRIDE_BYTES bytes for each vertex
+	 */
+	ByteBuffer getVertexData() {
+		return mVertexData;
+	}
+
+	/**
+	 * Getter for vertex data version. Version is incremented whenever size or
+	 * color of this box changes.
+	 * 
+	 * @return Vertex data version
+	 */
+	int getVertexDataVersion() {
+		return mVertexDataVersion;
+	}
+
+	/**
+	 * Getter for whether this box is drawn by a GlslBoxBatch.
+	 * 
+	 * @return True if box is batched
+	 */
+	boolean isBatched() {
+		return mBatched;
+	}
+
+	/**
+	 * Sets whether this box is drawn by a GlslBoxBatch. Batched boxes are not
+	 * added into render queues on their own, their batch chunks are instead.
+	 * Children of a batched box are queued as usual.
+	 * 
+	 * @param batched
+	 *            If true, box is drawn by its batch only
+	 */
+	void setBatched(boolean batched) {
+		mBatched = batched;
+	}
+
+	/**
+	 * Sets vertex attribute pointers for packed vertex layout, for vertex
+	 * buffer currently bound. Normals are given as integers and decoded in
+	 * vertex shaders, as normalized signed bytes can't represent zero
+	 * normals shadow volumes are extruded from. Normal attribute is skipped
+	 * for shaders not using it.
+	 * 
+	 * @param ids
+	 *            Shader attribute/uniform handles for rendering
+	 * @param color
+	 *            If true, color attribute is set too
+	 */
+	static void setAttribPointers(GlslShaderIds ids, boolean color) {
+		GlslGl gl = GlslGlContext.get();
+		gl.glVertexAttribPointer(ids.aPosition, 3, GLES20.GL_FLOAT, false,
+				STRIDE_BYTES, POSITION_OFFSET);
+		gl.glEnableVertexAttribArray(ids.aPosition);
+		if (ids.aNormal >= 0) {
+			gl.glVertexAttribPointer(ids.aNormal, 3, GLES20.GL_BYTE, false,
+					STRIDE_BYTES, NORMAL_OFFSET);
+			gl.glEnableVertexAttribArray(ids.aNormal);
+		}
+		if (color) {
+			gl.glVertexAttribPointer(ids.aColor, 3, GLES20.GL_UNSIGNED_BYTE,
+					true, STRIDE_BYTES, COLOR_OFFSET);
+			gl.glEnableVertexAttribArray(ids.aColor);
+		}
+	}
+
+	/**
+	 * Converts normal component into signed byte.
+	 * 
+	 * @param value
+	 *            Value between [-1, 1]
+	 * @return Signed byte value
+	 */
+	static byte toSignedByte(float value) {
+		value = Math.max(-1f, Math.min(1f, value));
+		return (byte) Math.round(value * NORMAL_SCALE);
+	}
+
+	/**
+	 * Converts color component into unsigned byte.
+	 * 
+	 * @param value
+	 *            Value between [0, 1]
+	 * @return Unsigned byte value
+	 */
+	static byte toUnsignedByte(float value) {
+		value = Math.max(0f, Math.min(1f, value));
+		return (byte) Math.round(value * 255f);
+	}
+
+	/**
+	 * Binds vertex and index buffers for rendering. Buffers are (re)created
+	 * if they do not exist in current context, and vertex data is uploaded
+	 * again only if it has changed since previous upload.
+	 */
+	private void bindBuffers() {
+		GlslGl gl = GlslGlContext.get();
+		int generation = GlslGlContext.getGeneration();
+
+		if (mIndexBufferGeneration != generation) {
+			int[] id = new int[1];
+			gl.glGenBuffers(1, id, 0);
+			mIndexBufferId = id[0];
+			mIndexBufferGeneration = generation;
+			ByteBuffer indices = createIndices();
+			gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId);
+			gl.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER,
+					indices.capacity(), indices, GLES20.GL_STATIC_DRAW);
+		}
+		gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId);
+
+		int sz = mVertexData.capacity();
+		mVertexData.position(0);
+		if (mVertexBufferGeneration != generation) {
+			int[] id = new int[1];
+			gl.glGenBuffers(1, id, 0);
+			mVertexBufferId = id[0];
+			mVertexBufferGeneration = generation;
+			gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+			gl.glBufferData(GLES20.GL_ARRAY_BUFFER, sz, mVertexData,
+					GLES20.GL_STATIC_DRAW);
+			mVertexDataDirty = false;
+		}
+		gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+		if (mVertexDataDirty) {
+			gl.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, sz, mVertexData);
+			mVertexDataDirty = false;
+		}
+	}
+
+	/**
+	 * Creates index data for shared index buffer. Indices for rendering are
+	 * stored first, followed by shadow volume indices starting at
+	 * SHADOW_INDEX_OFFSET.
+	 * 
+	 * @return Index data
+	 */
+	static ByteBuffer createIndices() {
+		ByteBuffer indices = ByteBuffer.allocateDirect(INDEX_COUNT
+				+ SHADOW_INDEX_COUNT);
+		indices.position(0);
+		for (int i = 0; i < 6; ++i) {
+			indices.put((byte) (i * 8 + 0));
+			indices.put((byte) (i * 8 + 2));
+			indices.put((byte) (i * 8 + 4));
+			indices.put((byte) (i * 8 + 2));
+			indices.put((byte) (i * 8 + 6));
+			indices.put((byte) (i * 8 + 4));
+		}
+
+		for (int i = 0; i < 6; ++i) {
+			indices.put((byte) (i * 8 + 0));
+			indices.put((byte) (i * 8 + 1));
+			indices.put((byte) (i * 8 + 2));
+			indices.put((byte) (i * 8 + 1));
+			indices.put((byte) (i * 8 + 3));
+			indices.put((byte) (i * 8 + 2));
+
+			indices.put((byte) (i * 8 + 2));
+			indices.put((byte) (i * 8 + 3));
+			indices.put((byte) (i * 8 + 6));
+			indices.put((byte) (i * 8 + 3));
+			indices.put((byte) (i * 8 + 7));
+			indices.put((byte) (i * 8 + 6));
+
+			indices.put((byte) (i * 8 + 6));
+			indices.put((byte) (i * 8 + 7));
+			indices.put((byte) (i * 8 + 4));
+			indices.put((byte) (i * 8 + 7));
+			indices.put((byte) (i * 8 + 5));
+			indices.put((byte) (i * 8 + 4));
+
+			indices.put((byte) (i * 8 + 4));
+			indices.put((byte) (i * 8 + 5));
+			indices.put((byte) (i * 8 + 0));
+			indices.put((byte) (i * 8 + 5));
+			indices.put((byte) (i * 8 + 1));
+			indices.put((byte) (i * 8 + 0));
+		}
+		indices.position(0);
+		return indices;
+	}
+
+	/**
+	 * Creates shadow volume indices as an array, same indices shared index
+	 * buffer holds after SHADOW_INDEX_OFFSET.
+	 * 
+	 * @return Shadow volume indices
+	 */
+	private static int[] createShadowIndices() {
+		ByteBuffer indices = createIndices();
+		int[] shadowIndices = new int[SHADOW_INDEX_COUNT];
+		for (int i = 0; i < SHADOW_INDEX_COUNT; ++i) {
+			shadowIndices[i] = indices.get(SHADOW_INDEX_OFFSET + i);
+		}
+		return shadowIndices;
+	}
+
+	/**
+	 * Sets this box as the only instance for instance aware vertex shaders.
+	 * Instance index is given as a constant attribute value, and model-view
+	 * rows are uploaded from transform store as such.
+	 * 
+	 * @param ids
+	 *            Shader attribute/uniform handles for rendering
+	 */
+	private void setInstance(GlslShaderIds ids) {
+		GlslGl gl = GlslGlContext.get();
+		gl.glDisableVertexAttribArray(ids.aInstance);
+		gl.glVertexAttrib1f(ids.aInstance, 0f);
+		gl.glUniform4fv(ids.uInstanceRows, 3, getTransformStore()
+				.getModelViewRows(), getTransformIndex() * 12);
 	}
 
 	private void setNormal(int face, float x, float y, float z) {
-		int i = face * VERTICES_PER_FACE * FLOATS_PER_VERTEX;
+		int i = face * VERTICES_PER_FACE * STRIDE_BYTES + NORMAL_OFFSET;
 		for (int j = 0; j < VERTICES_PER_FACE; j += 2) {
-			mNormalBuffer.put(i + (j * FLOATS_PER_VERTEX), x);
-			mNormalBuffer.put(i + (j * FLOATS_PER_VERTEX) + 1, y);
-			mNormalBuffer.put(i + (j * FLOATS_PER_VERTEX) + 2, z);
-			mNormalBuffer.put(i + (j * FLOATS_PER_VERTEX) + 3, 0);
-			mNormalBuffer.put(i + (j * FLOATS_PER_VERTEX) + 4, 0);
-			mNormalBuffer.put(i + (j * FLOATS_PER_VERTEX) + 5, 0);
+			mVertexData.put(i + (j * STRIDE_BYTES), toSignedByte(x));
+			mVertexData.put(i + (j * STRIDE_BYTES) + 1, toSignedByte(y));
+			mVertexData.put(i + (j * STRIDE_BYTES) + 2, toSignedByte(z));
+			mVertexData.put(i + ((j + 1) * STRIDE_BYTES), (byte) 0);
+			mVertexData.put(i + ((j + 1) * STRIDE_BYTES) + 1, (byte) 0);
+			mVertexData.put(i + ((j + 1) * STRIDE_BYTES) + 2, (byte) 0);
 		}
+		mVertexDataDirty = true;
+		++mVertexDataVersion;
 	}
 
 	private void setSideCoordinates(int face, int is, int it, int iu, float s1,
 			float t1, float s2, float t2, float u) {
-		int i = face * VERTICES_PER_FACE * FLOATS_PER_VERTEX;
-
-		mVertexBuffer.put(i + is, s1);
-		mVertexBuffer.put(i + it, t1);
-		mVertexBuffer.put(i + iu, u);
-		mVertexBuffer.put(i + is + 3, s1);
-		mVertexBuffer.put(i + it + 3, t1);
-		mVertexBuffer.put(i + iu + 3, u);
-		i += 2 * FLOATS_PER_VERTEX;
-
-		mVertexBuffer.put(i + is, s1);
-		mVertexBuffer.put(i + it, t2);
-		mVertexBuffer.put(i + iu, u);
-		mVertexBuffer.put(i + is + 3, s1);
-		mVertexBuffer.put(i + it + 3, t2);
-		mVertexBuffer.put(i + iu + 3, u);
-		i += 2 * FLOATS_PER_VERTEX;
-
-		mVertexBuffer.put(i + is, s2);
-		mVertexBuffer.put(i + it, t1);
-		mVertexBuffer.put(i + iu, u);
-		mVertexBuffer.put(i + is + 3, s2);
-		mVertexBuffer.put(i + it + 3, t1);
-		mVertexBuffer.put(i + iu + 3, u);
-		i += 2 * FLOATS_PER_VERTEX;
-
-		mVertexBuffer.put(i + is, s2);
-		mVertexBuffer.put(i + it, t2);
-		mVertexBuffer.put(i + iu, u);
-		mVertexBuffer.put(i + is + 3, s2);
-		mVertexBuffer.put(i + it + 3, t2);
-		mVertexBuffer.put(i + iu + 3, u);
+		int i = face * VERTICES_PER_FACE * STRIDE_BYTES + POSITION_OFFSET;
+
+		setVertexPair(i, is, it, iu, s1, t1, u);
+		i += 2 * STRIDE_BYTES;
+		setVertexPair(i, is, it, iu, s1, t2, u);
+		i += 2 * STRIDE_BYTES;
+		setVertexPair(i, is, it, iu, s2, t1, u);
+		i += 2 * STRIDE_BYTES;
+		setVertexPair(i, is, it, iu, s2, t2, u);
+	}
+
+	private void setVertexPair(int i, int is, int it, int iu, float s, float t,
+			float u) {
+		mVertexData.putFloat(i + is * FLOAT_SIZE_BYTES, s);
+		mVertexData.putFloat(i + it * FLOAT_SIZE_BYTES, t);
+		mVertexData.putFloat(i + iu * FLOAT_SIZE_BYTES, u);
+		i += STRIDE_BYTES;
+		mVertexData.putFloat(i + is * FLOAT_SIZE_BYTES, s);
+		mVertexData.putFloat(i + it * FLOAT_SIZE_BYTES, t);
+		mVertexData.putFloat(i + iu * FLOAT_SIZE_BYTES, u);
 	}
 
 }
@@ -0,0 +1,338 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.scene;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Vector;
+
+import android.opengl.GLES20;
+import fi.harism.glsl.gl.GlslGl;
+import fi.harism.glsl.gl.GlslGlContext;
+
+/**
+ * Draws a group of boxes with as few draw calls as possible. OpenGL ES 2.0 has
+ * no instancing, instead geometry of every box is copied into one vertex
+ * buffer with per vertex instance index stored in the last byte of packed
+ * vertex, which box vertices leave unused. Model-view matrices for
+ * BATCH_SIZE boxes are uploaded into a uniform array, which vertex shader
+ * indexes with instance index, and boxes are drawn with one call. Every
+ * BATCH_SIZE boxes form a chunk, which is queued for rendering as one item.
+ */
+final class GlslBoxBatch {
+
+	// Number of boxes drawn with one call. Vertex shaders reserve
+	// uInstanceRows for three rows per box, this must match them.
+	static final int BATCH_SIZE = 32;
+	// Maximum number of boxes unsigned short indices can address.
+	static final int MAX_BOXES = 65536 / GlslBox.VERTEX_COUNT;
+
+	private static final int SHORT_SIZE_BYTES = 2;
+	private static final int STRIDE_BYTES = GlslBox.STRIDE_BYTES;
+
+	// Boxes in this batch.
+	private final Vector<GlslBox> mBoxes = new Vector<GlslBox>();
+	// Render queue items for every BATCH_SIZE boxes.
+	private final Vector<Chunk> mChunks = new Vector<Chunk>();
+	// Transform store boxes are attached to.
+	private final GlslTransformStore mStore;
+	// Vertex data versions of boxes, as they were when copied.
+	private int[] mBoxVersions = new int[0];
+	// Model-view rows for uInstanceRows uniform.
+	private final float[] mInstanceRows = new float[BATCH_SIZE * 12];
+
+	// Vertex and index buffer ids.
+	private int mVertexBufferId, mIndexBufferId;
+	// Context generation buffers were created in.
+	private int mBufferGeneration = -1;
+	// If false, buffers are uploaded again on next render call.
+	private boolean mBufferDataValid;
+	// Vertex data for all boxes, interleaved with instance index.
+	private ByteBuffer mVertexData;
+
+	/**
+	 * Constructor for batch of boxes attached to given transform store.
+	 * 
+	 * @param store
+	 *            Transform store holding box matrices
+	 */
+	public GlslBoxBatch(GlslTransformStore store) {
+		mStore = store;
+	}
+
+	/**
+	 * Adds box to this batch and marks it batched. Once added, box is drawn
+	 * by this batch only.
+	 * 
+	 * @param box
+	 *            Box to add
+	 */
+	public void add(GlslBox box) {
+		if (mBoxes.size() % BATCH_SIZE == 0) {
+			mChunks.add(new Chunk(mBoxes.size()));
+		}
+		mBoxes.add(box);
+		box.setBatched(true);
+		mBufferDataValid = false;
+	}
+
+	/**
+	 * Removes all boxes from this batch, and marks them to render themselves
+	 * again.
+	 */
+	public void clear() {
+		for (GlslBox box : mBoxes) {
+			box.setBatched(false);
+		}
+		mBoxes.clear();
+		mChunks.clear();
+		mBufferDataValid = false;
+	}
+
+	/**
+	 * Adds chunks with visible boxes into given render queue. Chunk depth is
+	 * the depth of its nearest visible box.
+	 * 
+	 * @param queue
+	 *            Queue to add chunks to
+	 * @param state
+	 *            State group for chunks
+	 * @param shadow
+	 *            If true, shadow culling is used instead of view culling
+	 */
+	public void queue(GlslRenderQueue queue, int state, boolean shadow) {
+		for (Chunk chunk : mChunks) {
+			float depth = Float.MAX_VALUE;
+			int last = Math.min(mBoxes.size(), chunk.mFirst + BATCH_SIZE);
+			for (int i = chunk.mFirst; i < last; ++i) {
+				GlslBox box = mBoxes.get(i);
+				if (!(shadow ? box.isShadowCulled() : box.isCulled())) {
+					depth = Math.min(depth,
+							mStore.getDepth(box.getTransformIndex()));
+				}
+			}
+			if (depth != Float.MAX_VALUE) {
+				queue.add(chunk, state, depth);
+			}
+		}
+	}
+
+	/**
+	 * Getter for number of boxes in this batch.
+	 * 
+	 * @return Box count
+	 */
+	public int size() {
+		return mBoxes.size();
+	}
+
+	/**
+	 * Creates index data for given number of consecutive boxes. Indices for
+	 * rendering all boxes are stored first, followed by shadow volume indices
+	 * for all boxes.
+	 * 
+	 * @param count
+	 *            Number of boxes
+	 * @return Index data
+	 */
+	static ShortBuffer createIndices(int count) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(count
+				* (GlslBox.INDEX_COUNT + GlslBox.SHADOW_INDEX_COUNT)
+				* SHORT_SIZE_BYTES);
+		ShortBuffer indices = buffer.order(ByteOrder.nativeOrder())
+				.asShortBuffer();
+		ByteBuffer boxIndices = GlslBox.createIndices();
+		for (int i = 0; i < count; ++i) {
+			for (int j = 0; j < GlslBox.INDEX_COUNT; ++j) {
+				indices.put((short) (i * GlslBox.VERTEX_COUNT + boxIndices
+						.get(j)));
+			}
+		}
+		for (int i = 0; i < count; ++i) {
+			for (int j = 0; j < GlslBox.SHADOW_INDEX_COUNT; ++j) {
+				indices.put((short) (i * GlslBox.VERTEX_COUNT + boxIndices
+						.get(GlslBox.INDEX_COUNT + j)));
+			}
+		}
+		indices.position(0);
+		return indices;
+	}
+
+	/**
+	 * Binds vertex and index buffers for rendering. Buffers are created if
+	 * they do not exist in current context, data is uploaded again after
+	 * boxes have been added, and vertex data once any of the boxes has
+	 * changed since previous upload.
+	 */
+	private void bindBuffers() {
+		GlslGl gl = GlslGlContext.get();
+		int generation = GlslGlContext.getGeneration();
+
+		if (mBufferGeneration != generation) {
+			int[] ids = new int[2];
+			gl.glGenBuffers(2, ids, 0);
+			mVertexBufferId = ids[0];
+			mIndexBufferId = ids[1];
+			mBufferGeneration = generation;
+			mBufferDataValid = false;
+		}
+		gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId);
+		gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+
+		if (!mBufferDataValid) {
+			ShortBuffer indices = createIndices(mBoxes.size());
+			gl.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER,
+					indices.capacity() * SHORT_SIZE_BYTES, indices,
+					GLES20.GL_STATIC_DRAW);
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(mBoxes.size()
+					* GlslBox.VERTEX_COUNT * STRIDE_BYTES);
+			mVertexData = buffer.order(ByteOrder.nativeOrder());
+			mBoxVersions = new int[mBoxes.size()];
+			updateVertexData();
+			gl.glBufferData(GLES20.GL_ARRAY_BUFFER, mVertexData.capacity(),
+					mVertexData, GLES20.GL_STATIC_DRAW);
+			mBufferDataValid = true;
+			return;
+		}
+
+		for (int i = 0; i < mBoxes.size(); ++i) {
+			if (mBoxVersions[i] != mBoxes.get(i).getVertexDataVersion()) {
+				updateVertexData();
+				gl.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0,
+						mVertexData.capacity(), mVertexData);
+				break;
+			}
+		}
+	}
+
+
+	/**
+	 * Draws BATCH_SIZE boxes starting from given box with one call. Culled
+	 * boxes are collapsed into a point with zero model-view matrix, and call
+	 * is shortened to last visible box or skipped altogether if all boxes
+	 * are culled. If no boxes are culled and their transform indices are
+	 * consecutive, rows are uploaded straight from transform store without
+	 * copying.
+	 * 
+	 * @param ids
+	 *            Shader attribute/uniform handles for rendering
+	 * @param first
+	 *            Index of first box to draw
+	 * @param shadow
+	 *            If true, shadow volumes are drawn and shadow culling is used
+	 *            instead of view culling
+	 */
+	private void draw(GlslShaderIds ids, int first, boolean shadow) {
+		int firstIndex = mBoxes.get(first).getTransformIndex();
+		int count = 0;
+		boolean packed = true;
+		for (int i = 0; i < BATCH_SIZE && first + i < mBoxes.size(); ++i) {
+			GlslBox box = mBoxes.get(first + i);
+			if (shadow ? box.isShadowCulled() : box.isCulled()) {
+				packed = false;
+			} else {
+				packed &= box.getTransformIndex() == firstIndex + i;
+				count = i + 1;
+			}
+		}
+		if (count == 0) {
+			return;
+		}
+
+		GlslGl gl = GlslGlContext.get();
+		bindBuffers();
+		GlslBox.setAttribPointers(ids, !shadow);
+		gl.glVertexAttribPointer(ids.aInstance, 1, GLES20.GL_UNSIGNED_BYTE,
+				false, STRIDE_BYTES, GlslBox.INSTANCE_OFFSET);
+		gl.glEnableVertexAttribArray(ids.aInstance);
+
+		float[] storeRows = mStore.getModelViewRows();
+		if (packed) {
+			gl.glUniform4fv(ids.uInstanceRows, count * 3, storeRows,
+					firstIndex * 12);
+		} else {
+			for (int i = 0; i < count; ++i) {
+				GlslBox box = mBoxes.get(first + i);
+				if (shadow ? box.isShadowCulled() : box.isCulled()) {
+					Arrays.fill(mInstanceRows, i * 12, i * 12 + 12, 0f);
+				} else {
+					System.arraycopy(storeRows, box.getTransformIndex() * 12,
+							mInstanceRows, i * 12, 12);
+				}
+			}
+			gl.glUniform4fv(ids.uInstanceRows, count * 3, mInstanceRows, 0);
+		}
+		int indexCount = shadow ? GlslBox.SHADOW_INDEX_COUNT
+				: GlslBox.INDEX_COUNT;
+		int indexOffset = shadow ? mBoxes.size() * GlslBox.INDEX_COUNT : 0;
+		int offset = (indexOffset + first * indexCount) * SHORT_SIZE_BYTES;
+		gl.glDrawElements(GLES20.GL_TRIANGLES, count * indexCount,
+				GLES20.GL_UNSIGNED_SHORT, offset);
+
+		// Instance index is given as a constant for non-batched objects.
+		gl.glDisableVertexAttribArray(ids.aInstance);
+	}
+
+	/**
+	 * Copies vertex data from boxes into mVertexData, adding instance index
+	 * for each vertex.
+	 */
+	private void updateVertexData() {
+		mVertexData.position(0);
+		for (int i = 0; i < mBoxes.size(); ++i) {
+			GlslBox box = mBoxes.get(i);
+			ByteBuffer boxData = box.getVertexData().duplicate();
+			boxData.position(0);
+			int offset = mVertexData.position();
+			mVertexData.put(boxData);
+			byte instance = (byte) (i % BATCH_SIZE);
+			for (int j = 0; j < GlslBox.VERTEX_COUNT; ++j) {
+				mVertexData.put(offset + j * STRIDE_BYTES
+						+ GlslBox.INSTANCE_OFFSET, instance);
+			}
+			mBoxVersions[i] = box.getVertexDataVersion();
+		}
+		mVertexData.position(0);
+	}
+
+	/**
+	 * Render queue item for BATCH_SIZE boxes drawn with one call.
+	 */
+	private final class Chunk implements GlslRenderQueue.Item {
+
+		// Index of first box in chunk.
+		private final int mFirst;
+
+		/**
+		 * Constructor for chunk.
+		 * 
+		 * @param first
+		 *            Index of first box in chunk
+		 */
+		public Chunk(int first) {
+			mFirst = first;
+		}
+
+		@Override
+		public void draw(GlslShaderIds ids, boolean shadow) {
+			GlslBoxBatch.this.draw(ids, mFirst, shadow);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.scene;
+
+/**
+ * View frustum planes for culling bounding spheres. Planes are extracted from
+ * projection matrix and are thus in view space, same space object bounds are
+ * calculated in.
+ */
+final class GlslFrustum {
+
+	// Six planes, a, b, c and d for each. Plane normals point inside frustum.
+	private final float[] mPlanes = new float[6 * 4];
+
+	/**
+	 * Checks whether given sphere lies completely outside the frustum. Test is
+	 * conservative, some spheres near frustum corners are not rejected.
+	 * 
+	 * @param sphere
+	 *            Array containing view space sphere, x, y, z and radius
+	 * @param offset
+	 *            Offset of sphere within array
+	 * @return True if sphere is outside the frustum
+	 */
+	public boolean isOutside(float[] sphere, int offset) {
+		for (int i = 0; i < 6; ++i) {
+			if (distance(i, sphere, offset) < -sphere[offset + 3]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether shadow volume cast by given sphere lies completely
+	 * outside the frustum. Shadow volume is extruded from sphere away from the
+	 * light into infinity. Volume is outside if, for one plane, both sphere
+	 * is outside and no point of sphere moves towards the plane when moving
+	 * away from the light.
+	 * 
+	 * @param sphere
+	 *            Array containing view space sphere, x, y, z and radius
+	 * @param offset
+	 *            Offset of sphere within array
+	 * @param light
+	 *            View space light position
+	 * @return True if shadow volume is outside the frustum
+	 */
+	public boolean isShadowOutside(float[] sphere, int offset, float[] light) {
+		float radius = sphere[offset + 3];
+		for (int i = 0; i < 6; ++i) {
+			int j = i * 4;
+			float towards = mPlanes[j] * (sphere[offset] - light[0])
+					+ mPlanes[j + 1] * (sphere[offset + 1] - light[1])
+					+ mPlanes[j + 2] * (sphere[offset + 2] - light[2]);
+			if (distance(i, sphere, offset) < -radius
+					&& towards + radius <= 0f) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Extracts frustum planes from given projection matrix.
+	 * 
+	 * @param projM
+	 *            Projection matrix
+	 */
+	public void set(float[] projM) {
+		for (int i = 0; i < 3; ++i) {
+			// Planes are fourth row plus and minus each of the three first.
+			for (int j = 0; j < 4; ++j) {
+				float w = projM[j * 4 + 3];
+				float v = projM[j * 4 + i];
+				mPlanes[i * 8 + j] = w + v;
+				mPlanes[i * 8 + 4 + j] = w - v;
+			}
+		}
+		for (int i = 0; i < 6; ++i) {
+			int j = i * 4;
+			float len = (float) Math.sqrt(mPlanes[j] * mPlanes[j]
+					+ mPlanes[j + 1] * mPlanes[j + 1] + mPlanes[j + 2]
+					* mPlanes[j + 2]);
+			for (int k = 0; k < 4; ++k) {
+				mPlanes[j + k] /= len;
+			}
+		}
+	}
+
+	/**
+	 * Calculates signed distance from plane to sphere center.
+	 * 
+	 * @param plane
+	 *            Plane index
+	 * @param sphere
+	 *            Array containing view space sphere
+	 * @param offset
+	 *            Offset of sphere within array
+	 * @return Distance, positive on inner side of plane
+	 */
+	private float distance(int plane, float[] sphere, int offset) {
+		int i = plane * 4;
+		return mPlanes[i] * sphere[offset] + mPlanes[i + 1]
+				* sphere[offset + 1] + mPlanes[i + 2] * sphere[offset + 2]
+				+ mPlanes[i + 3];
+	}
+
+}
@@ -16,7 +16,7 @@
 
 package fi.harism.glsl.scene;
 
-import android.opengl.Matrix;
+import fi.harism.glsl.GlslMatrix;
 
 /**
  * Light data holder.
@@ -26,6 +26,19 @@ public class GlslLight implements GlslAnimator.PathInterface {
 	private float[] mPosition = new float[4];
 	// Model-View position.
 	private float[] mViewPos = new float[4];
+	// Distance after which light has no effect.
+	private float mRadius = 5f;
+	// Casters shadow map of this light was last rendered with.
+	private final GlslShadowCasters mShadowCasters = new GlslShadowCasters();
+
+	/**
+	 * Getter for model position.
+	 * 
+	 * @return float[] array containing { x, y, z, w }
+	 */
+	public float[] getModelPosition() {
+		return mPosition;
+	}
 
 	/**
 	 * Getter for View matrix multiplied position.
@@ -36,6 +49,25 @@ public class GlslLight implements GlslAnimator.PathInterface {
 		return mViewPos;
 	}
 
+	/**
+	 * Getter for light radius.
+	 * 
+	 * @return Distance after which light has no effect
+	 */
+	public float getRadius() {
+		return mRadius;
+	}
+
+	/**
+	 * Getter for shadow casters recorded once shadow map of this light was
+	 * rendered.
+	 * 
+	 * @return Shadow casters
+	 */
+	public GlslShadowCasters getShadowCasters() {
+		return mShadowCasters;
+	}
+
 	@Override
 	public void setPosition(float position[]) {
 		mPosition[0] = position[0];
@@ -51,6 +83,17 @@ public class GlslLight implements GlslAnimator.PathInterface {
 		mPosition[3] = 1;
 	}
 
+	/**
+	 * Setter for light radius. Light attenuation is windowed to reach zero at
+	 * this distance, which allows rendering only the pixels light affects.
+	 * 
+	 * @param radius
+	 *            Distance after which light has no effect
+	 */
+	public void setRadius(float radius) {
+		mRadius = radius;
+	}
+
 	/**
 	 * Calculates view position for light.
 	 * 
@@ -58,7 +101,7 @@ public class GlslLight implements GlslAnimator.PathInterface {
 	 *            View matrix.
 	 */
 	public void updateMatrices(float[] viewM) {
-		Matrix.multiplyMV(mViewPos, 0, viewM, 0, mPosition, 0);
+		GlslMatrix.multiplyMV(mViewPos, 0, viewM, 0, mPosition, 0);
 		for (int i = 0; i < 3; ++i) {
 			mViewPos[i] /= mViewPos[3];
 		}
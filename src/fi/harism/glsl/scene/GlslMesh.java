@@ -0,0 +1,346 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.scene;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.opengl.GLES20;
+import fi.harism.glsl.gl.GlslGl;
+import fi.harism.glsl.gl.GlslGlContext;
+
+/**
+ * Object with geometry loaded from a binary mesh file. File is memory mapped
+ * and mapped regions are handed to buffer uploads as such, so loading copies
+ * nothing into Java heap. All values are little endian.
+ * 
+ * File layout is a header of six 32-bit values; magic number MAGIC, vertex
+ * count, index count, shadow index count, bounding sphere radius as float,
+ * and a reserved zero. Header is followed by vertex data, index data and
+ * shadow index data. Vertices use packed GlslBox vertex layout of 20 bytes;
+ * position as three floats, normal as three signed bytes scaled by 127 and
+ * color as three unsigned bytes, latter two padded with a zero byte to four
+ * bytes. Shadow volumes are extruded from vertices with zero normal, every
+ * silhouette vertex needs to have such a pair. Indices are unsigned 16-bit
+ * triangle lists and are validated against vertex count on load.
+ */
+public final class GlslMesh extends GlslObject implements
+		GlslRenderQueue.Item {
+
+	// Magic number at the beginning of mesh files, "GLM2" in ASCII.
+	public static final int MAGIC = 0x324D4C47;
+	// Header size in bytes.
+	private static final int HEADER_SIZE_BYTES = 6 * 4;
+	private static final int SHORT_SIZE_BYTES = 2;
+	private static final int STRIDE_BYTES = GlslBox.STRIDE_BYTES;
+	// Maximum number of vertices unsigned short indices can address.
+	private static final int MAX_VERTICES = 65536;
+
+	// Mapped vertex data and index data, render indices followed by shadow
+	// indices. Kept for uploading again after context loss.
+	private ByteBuffer mVertexData, mIndexData;
+	private int mIndexCount, mShadowIndexCount;
+	// Edge adjacency and welded positions for CPU silhouette extraction,
+	// built once first needed.
+	private GlslSilhouette mSilhouette;
+	private float[] mSilhouettePositions;
+	// Shadow indices for batching shadow volumes, decoded once first needed.
+	private int[] mShadowIndices;
+
+	// Vertex and index buffer ids.
+	private int mVertexBufferId, mIndexBufferId;
+	// Context generation buffers were created in.
+	private int mBufferGeneration = -1;
+
+	/**
+	 * Loads mesh from given file.
+	 * 
+	 * @param file
+	 *            Mesh file
+	 * @throws IOException
+	 *             If file can't be read or it isn't a valid mesh file
+	 */
+	public GlslMesh(File file) throws IOException {
+		FileInputStream is = new FileInputStream(file);
+		try {
+			FileChannel channel = is.getChannel();
+			map(channel, 0, channel.size());
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Loads mesh from given region of a file. Can be used for loading
+	 * uncompressed assets, using channel and offsets from an
+	 * AssetFileDescriptor. Channel can be closed afterwards.
+	 * 
+	 * @param channel
+	 *            Channel to map mesh from
+	 * @param offset
+	 *            Offset of mesh within channel
+	 * @param length
+	 *            Length of mesh in bytes
+	 * @throws IOException
+	 *             If region can't be read or it isn't a valid mesh file
+	 */
+	public GlslMesh(FileChannel channel, long offset, long length)
+			throws IOException {
+		map(channel, offset, length);
+	}
+
+	@Override
+	public void draw(GlslShaderIds ids, boolean shadow) {
+		GlslGl gl = GlslGlContext.get();
+		if (shadow && mShadowIndexCount == 0) {
+			return;
+		}
+
+		bindBuffers();
+		GlslBox.setAttribPointers(ids, !shadow);
+		setInstance(ids);
+
+		if (shadow) {
+			gl.glDrawElements(GLES20.GL_TRIANGLES, mShadowIndexCount,
+					GLES20.GL_UNSIGNED_SHORT, mIndexCount * SHORT_SIZE_BYTES);
+		} else {
+			gl.glDrawElements(GLES20.GL_TRIANGLES, mIndexCount,
+					GLES20.GL_UNSIGNED_SHORT, 0);
+		}
+	}
+
+	/**
+	 * Getter for edge adjacency of render triangles. Adjacency is built on
+	 * first call, vertices sharing the same position are welded together.
+	 * 
+	 * @return Edge adjacency for positions from getSilhouettePositions()
+	 */
+	GlslSilhouette getSilhouette() {
+		if (mSilhouette == null) {
+			createSilhouette();
+		}
+		return mSilhouette;
+	}
+
+	/**
+	 * Getter for welded vertex positions edge adjacency refers to.
+	 * 
+	 * @return Positions, x, y and z for each vertex
+	 */
+	float[] getSilhouettePositions() {
+		if (mSilhouette == null) {
+			createSilhouette();
+		}
+		return mSilhouettePositions;
+	}
+
+	/**
+	 * Getter for shadow volume indices. Indices are decoded from mapped data
+	 * on first call.
+	 * 
+	 * @return Shadow volume triangle indices
+	 */
+	int[] getShadowIndices() {
+		if (mShadowIndices == null) {
+			ByteBuffer indices = mIndexData.duplicate().order(
+					ByteOrder.LITTLE_ENDIAN);
+			mShadowIndices = new int[mShadowIndexCount];
+			for (int i = 0; i < mShadowIndexCount; ++i) {
+				mShadowIndices[i] = indices.getShort((mIndexCount + i)
+						* SHORT_SIZE_BYTES) & 0xFFFF;
+			}
+		}
+		return mShadowIndices;
+	}
+
+	/**
+	 * Getter for mapped vertex data, in GlslBox vertex layout.
+	 * 
+	 * @return Little endian view of vertex data
+	 */
+	ByteBuffer getVertexData() {
+		return mVertexData.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Binds vertex and index buffers for rendering. Buffers are created and
+	 * mapped data is uploaded if they do not exist in current context.
+	 */
+	private void bindBuffers() {
+		GlslGl gl = GlslGlContext.get();
+		int generation = GlslGlContext.getGeneration();
+		if (mBufferGeneration != generation) {
+			int[] ids = new int[2];
+			gl.glGenBuffers(2, ids, 0);
+			mVertexBufferId = ids[0];
+			mIndexBufferId = ids[1];
+			mBufferGeneration = generation;
+
+			gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+			gl.glBufferData(GLES20.GL_ARRAY_BUFFER, mVertexData.capacity(),
+					mVertexData, GLES20.GL_STATIC_DRAW);
+			gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId);
+			gl.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER,
+					mIndexData.capacity(), mIndexData, GLES20.GL_STATIC_DRAW);
+		}
+		gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+		gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId);
+	}
+
+	/**
+	 * Welds vertices with equal positions and builds edge adjacency for
+	 * render triangles. Vertices are sorted by position, and vertices equal
+	 * to previous one in sort order share its welded index.
+	 */
+	private void createSilhouette() {
+		ByteBuffer data = mVertexData.duplicate().order(
+				ByteOrder.LITTLE_ENDIAN);
+		int vertexCount = data.capacity() / STRIDE_BYTES;
+		final float[] positions = new float[vertexCount * 3];
+		Integer[] order = new Integer[vertexCount];
+		for (int i = 0; i < vertexCount; ++i) {
+			for (int j = 0; j < 3; ++j) {
+				positions[i * 3 + j] = data.getFloat(i * STRIDE_BYTES
+						+ GlslBox.POSITION_OFFSET + j * 4);
+			}
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				for (int j = 0; j < 3; ++j) {
+					int c = Float.compare(positions[lhs * 3 + j],
+							positions[rhs * 3 + j]);
+					if (c != 0) {
+						return c;
+					}
+				}
+				return 0;
+			}
+		});
+
+		int[] welded = new int[vertexCount];
+		int weldedCount = 0;
+		for (int i = 0; i < vertexCount; ++i) {
+			int v = order[i];
+			if (i > 0) {
+				int p = order[i - 1];
+				if (positions[v * 3] == positions[p * 3]
+						&& positions[v * 3 + 1] == positions[p * 3 + 1]
+						&& positions[v * 3 + 2] == positions[p * 3 + 2]) {
+					welded[v] = welded[p];
+					continue;
+				}
+			}
+			welded[v] = weldedCount++;
+		}
+		mSilhouettePositions = new float[weldedCount * 3];
+		for (int i = 0; i < vertexCount; ++i) {
+			System.arraycopy(positions, i * 3, mSilhouettePositions,
+					welded[i] * 3, 3);
+		}
+
+		ByteBuffer indices = mIndexData.duplicate().order(
+				ByteOrder.LITTLE_ENDIAN);
+		int[] triangles = new int[mIndexCount / 3 * 3];
+		for (int i = 0; i < triangles.length; ++i) {
+			int index = indices.getShort(i * SHORT_SIZE_BYTES) & 0xFFFF;
+			triangles[i] = welded[index];
+		}
+		mSilhouette = new GlslSilhouette(weldedCount, triangles);
+	}
+
+	/**
+	 * Maps mesh from given region and validates its header. Vertex and index
+	 * data are sliced from mapped buffer without copying.
+	 * 
+	 * @param channel
+	 *            Channel to map mesh from
+	 * @param offset
+	 *            Offset of mesh within channel
+	 * @param length
+	 *            Length of mesh in bytes
+	 * @throws IOException
+	 *             If region can't be mapped or it isn't a valid mesh file
+	 */
+	private void map(FileChannel channel, long offset, long length)
+			throws IOException {
+		if (length < HEADER_SIZE_BYTES) {
+			throw new IOException("Invalid mesh file.");
+		}
+		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+				offset, length).order(ByteOrder.LITTLE_ENDIAN);
+		int magic = buffer.getInt(0);
+		int vertexCount = buffer.getInt(4);
+		int indexCount = buffer.getInt(8);
+		int shadowIndexCount = buffer.getInt(12);
+		float radius = buffer.getFloat(16);
+
+		long vertexBytes = (long) vertexCount * STRIDE_BYTES;
+		long indexBytes = ((long) indexCount + shadowIndexCount)
+				* SHORT_SIZE_BYTES;
+		if (magic != MAGIC || vertexCount < 0 || vertexCount > MAX_VERTICES
+				|| indexCount < 0 || shadowIndexCount < 0
+				|| indexCount % 3 != 0 || shadowIndexCount % 3 != 0
+				|| HEADER_SIZE_BYTES + vertexBytes + indexBytes > length) {
+			throw new IOException("Invalid mesh file.");
+		}
+		// Indices beyond vertex data would have GPU read outside vertex
+		// buffer, check them once here instead of on every draw.
+		int indexOffset = HEADER_SIZE_BYTES + (int) vertexBytes;
+		for (int i = 0; i < indexCount + shadowIndexCount; ++i) {
+			int index = buffer.getShort(indexOffset + i * SHORT_SIZE_BYTES)
+					& 0xFFFF;
+			if (index >= vertexCount) {
+				throw new IOException("Invalid mesh file, index " + index
+						+ " out of " + vertexCount + " vertices.");
+			}
+		}
+
+		buffer.position(HEADER_SIZE_BYTES);
+		buffer.limit(HEADER_SIZE_BYTES + (int) vertexBytes);
+		mVertexData = buffer.slice();
+		buffer.limit(HEADER_SIZE_BYTES + (int) (vertexBytes + indexBytes));
+		buffer.position(indexOffset);
+		mIndexData = buffer.slice();
+		mIndexCount = indexCount;
+		mShadowIndexCount = shadowIndexCount;
+		setBoundingRadius(radius);
+	}
+
+	/**
+	 * Sets this mesh as the only instance for instance aware vertex shaders.
+	 * Instance index is given as a constant attribute value, and model-view
+	 * rows are uploaded from transform store as such.
+	 * 
+	 * @param ids
+	 *            Shader attribute/uniform handles for rendering
+	 */
+	private void setInstance(GlslShaderIds ids) {
+		GlslGl gl = GlslGlContext.get();
+		gl.glDisableVertexAttribArray(ids.aInstance);
+		gl.glVertexAttrib1f(ids.aInstance, 0f);
+		gl.glUniform4fv(ids.uInstanceRows, 3, getTransformStore()
+				.getModelViewRows(), getTransformIndex() * 12);
+	}
+}
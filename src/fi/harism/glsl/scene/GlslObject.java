@@ -18,47 +18,31 @@ package fi.harism.glsl.scene;
 
 import java.util.Vector;
 
-import android.opengl.Matrix;
 import fi.harism.glsl.GlslMatrix;
 
 /**
- * Base class for handling object hierarchies etc.
+ * Base class for handling object hierarchies etc. Matrices and bounds are not
+ * stored within objects but in a GlslTransformStore objects are attached to,
+ * objects only hold their local transformation values.
  */
 public class GlslObject implements GlslAnimator.RotationInterface,
 		GlslAnimator.PathInterface {
 
-	// Local model matrix.
-	private final float[] mModelM = new float[16];
-	// World model-view matrix.
-	private final float[] mModelViewM = new float[16];
-	// World model-view-projection matrix.
-	private final float[] mModelViewProjM = new float[16];
-	// World normal matrix.
-	private final float[] mNormalM = new float[16];
-
-	// If true, mModelM will be recalculated on next call to updateMatrices().
-	private boolean mRecalculateModelM;
-	// Local scaling matrix.
-	private final float[] mScaleM = new float[16];
-	// Local rotation matrix.
-	private final float[] mRotateM = new float[16];
-	// Local translation matrix.
-	private final float[] mTranslateM = new float[16];
+	// Local transformation values.
+	private float mPositionX, mPositionY, mPositionZ;
+	private float mRotationX, mRotationY, mRotationZ;
+	private float mScaling = 1f;
+	// Bounding sphere radius of object's own geometry, in local coordinates
+	// around local origin. Negative if object has no geometry.
+	private float mBoundingRadius = -1f;
+
+	// Transform store this object is attached to, and index within it.
+	private GlslTransformStore mStore;
+	private int mIndex;
 
 	// Child objects.
 	private final Vector<GlslObject> mChildObjects = new Vector<GlslObject>();
 
-	/**
-	 * Default constructor.
-	 */
-	public GlslObject() {
-		// Simply set all matrices to identity.
-		Matrix.setIdentityM(mModelM, 0);
-		Matrix.setIdentityM(mScaleM, 0);
-		Matrix.setIdentityM(mRotateM, 0);
-		Matrix.setIdentityM(mTranslateM, 0);
-	}
-
 	/**
 	 * Add child object to this object.
 	 * 
@@ -69,32 +53,6 @@ public class GlslObject implements GlslAnimator.RotationInterface,
 		mChildObjects.add(obj);
 	}
 
-	/**
-	 * Render object. Classes that overwrite this method should call
-	 * super.render(..).
-	 * 
-	 * @param ids
-	 *            Shader attribute/uniform handles for rendering.
-	 */
-	public void render(GlslShaderIds ids) {
-		for (GlslObject obj : mChildObjects) {
-			obj.render(ids);
-		}
-	}
-
-	/**
-	 * Method for rendering shadow silhouette. Classes that override this method
-	 * should call super.renderShadow(..).
-	 * 
-	 * @param ids
-	 *            Shader attribute/uniform handles for rendering
-	 */
-	public void renderShadow(GlslShaderIds ids) {
-		for (GlslObject object : mChildObjects) {
-			object.renderShadow(ids);
-		}
-	}
-
 	/**
 	 * Set position for this object. Object position is relative to its parent
 	 * object, and camera view if this is the root object.
@@ -107,9 +65,10 @@ public class GlslObject implements GlslAnimator.RotationInterface,
 	 *            Object z coordinate
 	 */
 	public final void setPosition(float x, float y, float z) {
-		Matrix.setIdentityM(mTranslateM, 0);
-		Matrix.translateM(mTranslateM, 0, x, y, z);
-		mRecalculateModelM = true;
+		mPositionX = x;
+		mPositionY = y;
+		mPositionZ = z;
+		invalidate();
 	}
 
 	@Override
@@ -129,8 +88,10 @@ public class GlslObject implements GlslAnimator.RotationInterface,
 	 *            Rotation around z axis
 	 */
 	public final void setRotation(float x, float y, float z) {
-		GlslMatrix.setRotateM(mRotateM, 0, x, y, z);
-		mRecalculateModelM = true;
+		mRotationX = x;
+		mRotationY = y;
+		mRotationZ = z;
+		invalidate();
 	}
 
 	@Override
@@ -145,70 +106,135 @@ public class GlslObject implements GlslAnimator.RotationInterface,
 	 *            Scaling factor
 	 */
 	public final void setScaling(float scale) {
-		Matrix.setIdentityM(mScaleM, 0);
-		Matrix.scaleM(mScaleM, 0, scale, scale, scale);
-		mRecalculateModelM = true;
+		mScaling = scale;
+		invalidate();
 	}
 
 	/**
-	 * Updates matrices based on given Model View and Projection matrices. This
-	 * method should be called before any rendering takes place, and most likely
-	 * after scene has been animated.
+	 * Attaches this object to given transform store.
 	 * 
-	 * @param mvM
-	 *            Model View matrix
-	 * @param projM
-	 *            Projection matrix
+	 * @param store
+	 *            Store holding matrices for this object
+	 * @param index
+	 *            Index of this object within store
 	 */
-	public void updateMatrices(float[] mvM, float[] projM) {
-		if (mRecalculateModelM) {
-			Matrix.multiplyMM(mModelM, 0, mScaleM, 0, mRotateM, 0);
-			Matrix.multiplyMM(mModelM, 0, mTranslateM, 0, mModelM, 0);
-			mRecalculateModelM = false;
-		}
+	void attach(GlslTransformStore store, int index) {
+		mStore = store;
+		mIndex = index;
+	}
 
-		// Add local model matrix to global model-view matrix.
-		Matrix.multiplyMM(mModelViewM, 0, mvM, 0, mModelM, 0);
-		// Apply projection matrix to global model-view matrix.
-		Matrix.multiplyMM(mModelViewProjM, 0, projM, 0, mModelViewM, 0);
-		// Fast inverse-transpose matrix calculation.
-		GlslMatrix.invTransposeM(mNormalM, 0, mModelViewM, 0);
+	/**
+	 * Getter for bounding sphere radius of object's own geometry.
+	 * 
+	 * @return Radius in local coordinates, negative if there is no geometry
+	 */
+	float getBoundingRadius() {
+		return mBoundingRadius;
+	}
 
-		for (GlslObject obj : mChildObjects) {
-			obj.updateMatrices(mModelViewM, projM);
+	/**
+	 * Getter for child objects.
+	 * 
+	 * @return Vector containing child objects
+	 */
+	Vector<GlslObject> getChildObjects() {
+		return mChildObjects;
+	}
+
+	/**
+	 * Calculates local model matrix rows, three first rows of translation *
+	 * rotation * scaling matrix.
+	 * 
+	 * @param rows
+	 *            Array to write rows into
+	 * @param offset
+	 *            Offset of first row element
+	 * @param rotateM
+	 *            Temporary array of 16 floats for rotation matrix
+	 */
+	void getLocalRows(float[] rows, int offset, float[] rotateM) {
+		GlslMatrix.setRotateM(rotateM, 0, mRotationX, mRotationY, mRotationZ);
+		for (int r = 0; r < 3; ++r) {
+			for (int c = 0; c < 3; ++c) {
+				rows[offset + r * 4 + c] = rotateM[c * 4 + r] * mScaling;
+			}
 		}
+		rows[offset + 3] = mPositionX;
+		rows[offset + 7] = mPositionY;
+		rows[offset + 11] = mPositionZ;
 	}
 
 	/**
-	 * Getter for model-view matrix. This matrix is calculated on call to
-	 * updateMatrices(..) which should be called before actual rendering takes
-	 * place.
+	 * Getter for transform store this object is attached to.
 	 * 
-	 * @return Current model-view matrix
+	 * @return Transform store
 	 */
-	protected float[] getModelViewM() {
-		return mModelViewM;
+	GlslTransformStore getTransformStore() {
+		return mStore;
 	}
 
 	/**
-	 * Getter for model-view-projection matrix. This matrix is calculated on
-	 * call to updateMatrices(..) which should be called before actual rendering
-	 * takes place.
+	 * Getter for index of this object within its transform store.
 	 * 
-	 * @return Current model-view-projection matrix
+	 * @return Transform store index
 	 */
-	protected float[] getModelViewProjM() {
-		return mModelViewProjM;
+	int getTransformIndex() {
+		return mIndex;
 	}
 
 	/**
-	 * Getter for normal matrix. This matrix is calculated on call to
-	 * updateMatrices(..) which should be called before actual rendering takes
-	 * place.
+	 * Copies three first rows of model-view matrix into given array, in the
+	 * layout vertex shaders expect uInstanceRows to be in. Last row of an
+	 * affine matrix is always (0, 0, 0, 1) and is left out.
 	 * 
-	 * @return Current normal matrix
+	 * @param rows
+	 *            Array to copy rows into
+	 * @param offset
+	 *            Offset of first row element
 	 */
-	protected float[] getNormalM() {
-		return mNormalM;
+	protected final void getModelViewRows(float[] rows, int offset) {
+		System.arraycopy(mStore.getModelViewRows(), mIndex * 12, rows, offset,
+				12);
+	}
+
+	/**
+	 * Getter for whether this object has been culled from rendering.
+	 * 
+	 * @return True if object is outside view frustum
+	 */
+	protected final boolean isCulled() {
+		return mStore.isCulled(mIndex);
+	}
+
+	/**
+	 * Getter for whether shadow volume of this object has been culled from
+	 * rendering.
+	 * 
+	 * @return True if shadow volume is outside view frustum
+	 */
+	protected final boolean isShadowCulled() {
+		return mStore.isShadowCulled(mIndex);
+	}
+
+	/**
+	 * Sets radius for bounding sphere around local origin, which contains
+	 * all geometry of this object.
+	 * 
+	 * @param radius
+	 *            Bounding sphere radius in local coordinates
+	 */
+	protected final void setBoundingRadius(float radius) {
+		mBoundingRadius = radius;
+		invalidate();
+	}
+
+	/**
+	 * Marks matrices and bounds of this object to be recalculated, if object
+	 * has been attached to a transform store already.
+	 */
+	private void invalidate() {
+		if (mStore != null) {
+			mStore.invalidate(mIndex);
+		}
 	}
 }
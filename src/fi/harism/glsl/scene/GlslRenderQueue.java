@@ -0,0 +1,171 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.scene;
+
+import java.util.Arrays;
+
+/**
+ * Queue of draw items sorted with 64-bit keys. Upper 40 bits of a key hold
+ * 16-bit depth bucket and 24-bit state group, in order selected for the
+ * queue, and lower 24 bits index of the item. Keys are sorted with LSD radix
+ * sort over upper bits, and arrays are grown only, so queues reused between
+ * frames do not allocate once they have reached their size.
+ */
+final class GlslRenderQueue {
+
+	// Bits of sort key holding item index.
+	private static final int INDEX_BITS = 24;
+	private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+	/**
+	 * Interface for items drawn through render queue.
+	 */
+	public interface Item {
+		/**
+		 * Draws item with program currently in use.
+		 * 
+		 * @param ids
+		 *            Shader attribute/uniform handles for rendering
+		 * @param shadow
+		 *            If true, shadow volume is drawn instead
+		 */
+		public void draw(GlslShaderIds ids, boolean shadow);
+	}
+
+	// If true, depth bucket is the most significant part of sort key.
+	private final boolean mFrontToBack;
+	// Scene version queue was built for.
+	private int mVersion = -1;
+
+	// Queued items, and sort keys referring to them.
+	private Item[] mItems = new Item[64];
+	private long[] mKeys = new long[64];
+	// Temporary keys for sort passes.
+	private long[] mSortKeys = new long[64];
+	// Digit counts for sort passes.
+	private final int[] mCounts = new int[256];
+	// Number of items queued.
+	private int mCount;
+
+	/**
+	 * Constructor for render queue.
+	 * 
+	 * @param frontToBack
+	 *            If true, items are sorted front to back first and by state
+	 *            second, otherwise by state first
+	 */
+	public GlslRenderQueue(boolean frontToBack) {
+		mFrontToBack = frontToBack;
+	}
+
+	/**
+	 * Adds item into the queue.
+	 * 
+	 * @param item
+	 *            Item to add
+	 * @param state
+	 *            State group, 24 bits, items sharing the same buffers and
+	 *            attribute setup should share the same group
+	 * @param depth
+	 *            View space distance to nearest point of item
+	 */
+	public void add(Item item, int state, float depth) {
+		if (mCount == mItems.length) {
+			Item[] items = new Item[mCount * 2];
+			long[] keys = new long[mCount * 2];
+			System.arraycopy(mItems, 0, items, 0, mCount);
+			System.arraycopy(mKeys, 0, keys, 0, mCount);
+			mItems = items;
+			mKeys = keys;
+			mSortKeys = new long[mCount * 2];
+		}
+		// Bits of positive floats sort in the same order as floats, upper
+		// 16 bits give logarithmic depth buckets.
+		int bucket = depth > 0f ? Float.floatToRawIntBits(depth) >>> 15 : 0;
+		state &= 0xFFFFFF;
+		long key = mFrontToBack ? ((long) bucket << 24) | state
+				: ((long) state << 16) | bucket;
+		mItems[mCount] = item;
+		mKeys[mCount] = (key << INDEX_BITS) | mCount;
+		++mCount;
+	}
+
+	/**
+	 * Removes all items from the queue.
+	 * 
+	 * @param version
+	 *            Scene version queue is built for
+	 */
+	public void clear(int version) {
+		Arrays.fill(mItems, 0, mCount, null);
+		mCount = 0;
+		mVersion = version;
+	}
+
+	/**
+	 * Getter for scene version queue was built for.
+	 * 
+	 * @return Scene version given to latest clear(..) call
+	 */
+	public int getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * Sorts queued items. Sort is stable, items with equal keys are kept in
+	 * the order they were added.
+	 */
+	public void sort() {
+		for (int shift = INDEX_BITS; shift < 64 && mCount > 1; shift += 8) {
+			Arrays.fill(mCounts, 0);
+			for (int i = 0; i < mCount; ++i) {
+				++mCounts[(int) (mKeys[i] >>> shift) & 0xFF];
+			}
+			// Pass is skipped if all keys share the same digit.
+			if (mCounts[(int) (mKeys[0] >>> shift) & 0xFF] == mCount) {
+				continue;
+			}
+			int sum = 0;
+			for (int i = 0; i < 256; ++i) {
+				int count = mCounts[i];
+				mCounts[i] = sum;
+				sum += count;
+			}
+			for (int i = 0; i < mCount; ++i) {
+				long key = mKeys[i];
+				mSortKeys[mCounts[(int) (key >>> shift) & 0xFF]++] = key;
+			}
+			long[] keys = mKeys;
+			mKeys = mSortKeys;
+			mSortKeys = keys;
+		}
+	}
+
+	/**
+	 * Draws queued items in sorted order.
+	 * 
+	 * @param ids
+	 *            Shader attribute/uniform handles for rendering
+	 * @param shadow
+	 *            If true, shadow volumes are drawn instead
+	 */
+	public void submit(GlslShaderIds ids, boolean shadow) {
+		for (int i = 0; i < mCount; ++i) {
+			mItems[(int) (mKeys[i] & INDEX_MASK)].draw(ids, shadow);
+		}
+	}
+}
@@ -16,27 +16,105 @@
 
 package fi.harism.glsl.scene;
 
+import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
 
+import android.opengl.GLES20;
 import fi.harism.glsl.GlslCamera;
+import fi.harism.glsl.GlslMatrix;
+import fi.harism.glsl.gl.GlslGl;
+import fi.harism.glsl.gl.GlslGlContext;
 
 /**
  * Class for encapsulating scene related objects, lights etc.
  */
 public final class GlslScene {
 
+	// Render queue state groups, index of item owner within group is added
+	// to them. Indices above STATE_INDEX_MASK wrap around and share groups,
+	// which costs extra buffer binds but draws correctly still.
+	private static final int STATE_STATIC_GEOMETRY = 0x000000;
+	private static final int STATE_BATCH = 0x100000;
+	private static final int STATE_BOX = 0x200000;
+	private static final int STATE_MESH = 0x300000;
+	private static final int STATE_INDEX_MASK = 0x0FFFFF;
+
 	private GlslAnimator mAnimator = new GlslAnimator();
 	private Vector<GlslObject> mObjects = new Vector<GlslObject>();
 	private Vector<GlslLight> mLights = new Vector<GlslLight>();
+	// Matrices and bounds of objects in hierarchy order.
+	private GlslTransformStore mTransforms;
+	// Batches boxes are drawn with, if batching is enabled.
+	private Vector<GlslBoxBatch> mBatches = new Vector<GlslBoxBatch>();
+	private boolean mBatching;
+	// Merged geometry of static boxes, if baking is enabled.
+	private Vector<GlslStaticGeometry> mStaticGeometry = new Vector<GlslStaticGeometry>();
+	private boolean mBaking;
+	// Projection matrix from latest call to updateMatrices(..).
+	private float[] mProjM = new float[16];
+	// Three first view matrix rows from latest call to updateMatrices(..).
+	private float[] mViewRows = new float[12];
+	// View-projection matrix from latest call to updateMatrices(..).
+	private float[] mViewProjM = new float[16];
+	// View frustum from latest call to updateMatrices(..).
+	private GlslFrustum mFrustum = new GlslFrustum();
+	// Camera version matrices were last updated with.
+	private int mCameraVersion = -1;
+	// Render queues, sorted front to back for passes laying down depth and
+	// by state for passes drawing on top of it. Shadow queue is sorted by
+	// state and built again for every light.
+	private GlslRenderQueue mFrontToBackQueue = new GlslRenderQueue(true);
+	private GlslRenderQueue mStateQueue = new GlslRenderQueue(false);
+	private GlslRenderQueue mShadowQueue = new GlslRenderQueue(false);
+	// Incremented whenever culling or drawn items change.
+	private int mQueueVersion;
+	// Shadow volumes extruded from silhouette edges on CPU.
+	private GlslShadowVolumes mShadowVolumes;
+	// Shadow volume geometry of all casters in one buffer, and transform
+	// store update and build versions it was built at.
+	private GlslShadowBatch mShadowBatch;
+	private int mShadowBatchUpdateVersion = -1;
+	private int mShadowBatchBuildVersion = -1;
+	// Incremented whenever transform store is built again, shadow casters
+	// recorded before refer to old store indices.
+	private int mBuildVersion;
+
+	// Time scene was last animated to, -1 if not yet animated.
+	private long mAnimationTime = -1;
+	// Incremented whenever scene contents or animation change.
+	private int mVersion;
+
+	/**
+	 * Constructor for scene.
+	 * 
+	 * @param executor
+	 *            Executor for updating large object hierarchies and
+	 *            extracting shadow silhouettes in parallel, or null
+	 * @param taskCount
+	 *            Number of tasks work is split into, usually number of
+	 *            threads executor runs
+	 */
+	public GlslScene(ExecutorService executor, int taskCount) {
+		mTransforms = new GlslTransformStore(executor, taskCount);
+		mShadowVolumes = new GlslShadowVolumes(executor, taskCount);
+		mShadowBatch = new GlslShadowBatch(executor, taskCount);
+	}
 
 	/**
-	 * Updates objects based on their animation values.
+	 * Updates objects based on their animation values. Does nothing if scene
+	 * has been animated to given time already.
 	 * 
 	 * @param time
 	 *            current time in millis
 	 */
 	public void animate(long time) {
-		mAnimator.animate(time);
+		if (time != mAnimationTime) {
+			mAnimationTime = time;
+			mAnimator.animate(time);
+			++mVersion;
+		}
 	}
 
 	/**
@@ -48,6 +126,16 @@ public final class GlslScene {
 		return mLights;
 	}
 
+	/**
+	 * Getter for scene version. Version is incremented whenever scene is
+	 * animated to a new time or its contents change.
+	 * 
+	 * @return Scene version
+	 */
+	public int getVersion() {
+		return mVersion;
+	}
+
 	/**
 	 * Helper method for creating example scene.
 	 * 
@@ -109,6 +197,9 @@ public final class GlslScene {
 		}
 		path.addPosition(x, y, z, 40000);
 		mAnimator.setPath(camera, path);
+
+		bakeStaticObjects();
+		createBatches();
 	}
 
 	/**
@@ -194,33 +285,277 @@ public final class GlslScene {
 		}
 		path.addPosition(x, y, z, 40000);
 		mAnimator.setPath(camera, path);
+
+		bakeStaticObjects();
+		createBatches();
+	}
+
+	/**
+	 * Helper method for creating benchmark scene with a large number of boxes.
+	 * 
+	 * @param camera
+	 *            Camera for adding animation to it.
+	 * @param lightCount
+	 *            Number of lights to add to the scene
+	 */
+	public void initSceneBoxes3(GlslCamera camera, int lightCount) {
+		reset();
+
+		final int CUBE_GRID_SIZE = 10;
+		final float CUBE_GRID_SPACING = 1.5f;
+
+		GlslObject rootObject = new GlslObject();
+		mObjects.add(rootObject);
+
+		// Rotating grid of boxes, as grid rotates all box matrices change on
+		// every frame.
+		GlslObject gridContainer = new GlslObject();
+		rootObject.addChild(gridContainer);
+		mAnimator.setRotation(gridContainer, mAnimator.new RotationData(0,
+				20000, 0));
+		float start = -CUBE_GRID_SPACING * (CUBE_GRID_SIZE - 1) / 2f;
+		for (int i = 0; i < CUBE_GRID_SIZE; ++i) {
+			for (int j = 0; j < CUBE_GRID_SIZE; ++j) {
+				for (int k = 0; k < CUBE_GRID_SIZE; ++k) {
+					GlslBox cube = new GlslBox();
+					cube.setScaling(rand(.3f, .7f));
+					cube.setRotation(rand(0f, 360f), rand(0f, 360f),
+							rand(0f, 360f));
+					cube.setPosition(start + i * CUBE_GRID_SPACING, start + j
+							* CUBE_GRID_SPACING, start + k * CUBE_GRID_SPACING);
+					cube.setColor(rand(.2f, 1f), rand(.2f, 1f), rand(.2f, 1f));
+					gridContainer.addChild(cube);
+				}
+			}
+		}
+
+		// Generate lights and assign random path to them.
+		for (int i = 0; i < lightCount; ++i) {
+			GlslLight light = new GlslLight();
+			GlslAnimator.Path path = mAnimator.new Path();
+			float x = rand(-8f, 8f);
+			float y = rand(-8f, 8f);
+			float z = rand(-8f, 8f);
+			path.addPosition(x, y, z, 0);
+			for (int j = 1; j < 10; ++j) {
+				path.addPosition(rand(-8f, 8f), rand(-8f, 8f), rand(-8f, 8f),
+						j * 4000);
+			}
+			path.addPosition(x, y, z, 40000);
+			mAnimator.setPath(light, path);
+			mLights.add(light);
+		}
+
+		// Camera circles around the grid.
+		GlslAnimator.Path path = mAnimator.new Path();
+		float y = rand(-4f, 4f);
+		path.addPosition(16f, y, 0f, 0);
+		for (int j = 1; j < 10; ++j) {
+			double t = 2 * Math.PI * j / 10;
+			path.addPosition((float) (16f * Math.cos(t)), rand(-4f, 4f),
+					(float) (16f * Math.sin(t)), j * 4000);
+		}
+		path.addPosition(16f, y, 0f, 40000);
+		mAnimator.setPath(camera, path);
+
+		bakeStaticObjects();
+		createBatches();
 	}
 
 	/**
-	 * Renders objects into the scene
+	 * Renders objects into the scene. Visible objects are queued and sorted
+	 * once per scene update, and the same queue is drawn again by every pass
+	 * using the same sort order.
 	 * 
 	 * @param mData
 	 *            Shader id values to use
+	 * @param frontToBack
+	 *            If true, objects are drawn front to back for passes which
+	 *            lay down depth, otherwise objects are grouped by state
 	 */
-	public void render(GlslShaderIds mData) {
-		for (GlslObject object : mObjects) {
-			object.render(mData);
+	public void render(GlslShaderIds mData, boolean frontToBack) {
+		GlslGlContext.get().glUniformMatrix4fv(mData.uProjM, 1, false, mProjM,
+				0);
+		GlslRenderQueue queue = frontToBack ? mFrontToBackQueue : mStateQueue;
+		if (queue.getVersion() != mQueueVersion) {
+			queue.clear(mQueueVersion);
+			fillQueue(queue, null);
+			queue.sort();
 		}
+		queue.submit(mData, false);
+		unbindBuffers();
 	}
 
 	/**
-	 * Renders shadow volume for the scene.
+	 * Renders shadow volume for the scene. Objects whose shadow volumes, cast
+	 * from given light, are outside the view are skipped.
 	 * 
 	 * @param ids
 	 *            Shader attribute/uniform ids needed for rendering
+	 * @param light
+	 *            Light shadow volumes are cast from
 	 */
+	public void renderShadow(GlslShaderIds ids, GlslLight light) {
+		GlslGlContext.get().glUniformMatrix4fv(ids.uProjM, 1, false, mProjM,
+				0);
+		float[] lightPosition = light.getPosition();
+		mTransforms.cullShadow(mFrustum, lightPosition);
+		mShadowQueue.clear(mQueueVersion);
+		fillQueue(mShadowQueue, lightPosition);
+		mShadowQueue.sort();
+		mShadowQueue.submit(ids, true);
+		unbindBuffers();
+	}
 
-	public void renderShadow(GlslShaderIds ids) {
-		for (GlslObject object : mObjects) {
-			object.renderShadow(ids);
+	/**
+	 * Renders shadow volume for the scene with one draw call. Shadow volume
+	 * geometry of all casters is kept in world space in one buffer, which is
+	 * built again only once casters move. Shader is expected to take
+	 * view-projection matrix as projection matrix, and world space positions
+	 * and normals. No casters are culled, as culling would break the batch.
+	 * 
+	 * @param ids
+	 *            Shader attribute/uniform ids needed for rendering
+	 */
+	public void renderShadowBatch(GlslShaderIds ids) {
+		GlslGlContext.get().glUniformMatrix4fv(ids.uProjM, 1, false,
+				mViewProjM, 0);
+		if (!isShadowBatchValid()) {
+			buildShadowBatch();
+		}
+		mShadowBatch.draw(ids);
+		unbindBuffers();
+	}
+
+	/**
+	 * Renders shadow volume for the scene from silhouette edges found on CPU.
+	 * Volumes are given in view space, and shader is expected to take only
+	 * projection matrix and four component positions. Objects whose shadow
+	 * volumes are outside the view are skipped.
+	 * 
+	 * @param ids
+	 *            Shader attribute/uniform ids needed for rendering
+	 * @param light
+	 *            Light shadow volumes are cast from
+	 */
+	public void renderShadowSilhouettes(GlslShaderIds ids, GlslLight light) {
+		GlslGlContext.get().glUniformMatrix4fv(ids.uProjM, 1, false, mProjM,
+				0);
+		float[] lightPosition = light.getPosition();
+		mTransforms.cullShadow(mFrustum, lightPosition);
+		mShadowVolumes.clear();
+		for (GlslStaticGeometry geometry : mStaticGeometry) {
+			if (mFrustum.isShadowOutside(geometry.getViewBounds(), 0,
+					lightPosition)) {
+				continue;
+			}
+			float[] corners = geometry.getCorners();
+			for (int i = 0; i < geometry.getBoxCount(); ++i) {
+				mShadowVolumes.add(GlslBox.SILHOUETTE, corners, i * 8 * 3,
+						mViewRows, 0);
+			}
+		}
+		float[] rows = mTransforms.getModelViewRows();
+		for (int i = 0; i < mTransforms.getCount(); ++i) {
+			if (mTransforms.isShadowCulled(i)) {
+				continue;
+			}
+			GlslObject object = mTransforms.getObject(i);
+			if (object instanceof GlslBox) {
+				mShadowVolumes.add(GlslBox.SILHOUETTE,
+						((GlslBox) object).getCorners(), 0, rows, i * 12);
+			} else if (object instanceof GlslMesh) {
+				GlslMesh mesh = (GlslMesh) object;
+				mShadowVolumes.add(mesh.getSilhouette(),
+						mesh.getSilhouettePositions(), 0, rows, i * 12);
+			}
+		}
+		mShadowVolumes.render(ids, lightPosition);
+		mShadowVolumes.clear();
+		unbindBuffers();
+	}
+
+	/**
+	 * Checks whether shadow map last rendered for given light is still valid.
+	 * Shadow map needs to be rendered again if light moved or its radius
+	 * changed, or if any of the objects within light radius, now or when
+	 * shadow map was rendered, moved.
+	 * 
+	 * @param light
+	 *            Light to check shadow map of
+	 * @return True if shadow map is valid
+	 */
+	public boolean isShadowMapValid(GlslLight light) {
+		GlslShadowCasters casters = light.getShadowCasters();
+		float[] position = light.getModelPosition();
+		if (casters.mBuildVersion != mBuildVersion
+				|| casters.mLightRadius != light.getRadius()
+				|| casters.mLightPosition[0] != position[0]
+				|| casters.mLightPosition[1] != position[1]
+				|| casters.mLightPosition[2] != position[2]) {
+			return false;
+		}
+		for (int i = 0; i < mTransforms.getCount(); ++i) {
+			if (mTransforms.getMovedVersion(i) > casters.mUpdateVersion
+					&& (casters.contains(i) || isInRange(i, light))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Records objects within radius of given light as its shadow casters.
+	 * Should be called before rendering shadow map of light.
+	 * 
+	 * @param light
+	 *            Light to record shadow casters for
+	 */
+	public void recordShadowCasters(GlslLight light) {
+		GlslShadowCasters casters = light.getShadowCasters();
+		float[] position = light.getModelPosition();
+		casters.mBuildVersion = mBuildVersion;
+		casters.mUpdateVersion = mTransforms.getUpdateVersion();
+		casters.mLightRadius = light.getRadius();
+		System.arraycopy(position, 0, casters.mLightPosition, 0, 3);
+		casters.mCount = 0;
+		for (int i = 0; i < mTransforms.getCount(); ++i) {
+			GlslObject object = mTransforms.getObject(i);
+			if ((object instanceof GlslBox || object instanceof GlslMesh)
+					&& isInRange(i, light)) {
+				casters.add(i);
+			}
 		}
 	}
 
+	/**
+	 * Renders shadow casters recorded for given light, plus static geometry
+	 * within light radius, with given projection matrix.
+	 * 
+	 * @param ids
+	 *            Shader attribute/uniform ids needed for rendering
+	 * @param light
+	 *            Light to render shadow casters of
+	 * @param projM
+	 *            Projection matrix, applied to view space positions
+	 */
+	public void renderShadowCasters(GlslShaderIds ids, GlslLight light,
+			float[] projM) {
+		GlslGlContext.get().glUniformMatrix4fv(ids.uProjM, 1, false, projM,
+				0);
+		for (GlslStaticGeometry geometry : mStaticGeometry) {
+			if (isInRange(geometry.getViewBounds(), 0, light)) {
+				geometry.draw(ids, false);
+			}
+		}
+		GlslShadowCasters casters = light.getShadowCasters();
+		for (int i = 0; i < casters.mCount; ++i) {
+			GlslObject object = mTransforms.getObject(casters.mIndices[i]);
+			((GlslRenderQueue.Item) object).draw(ids, false);
+		}
+		unbindBuffers();
+	}
+
 	/**
 	 * Clears all objects from this scene.
 	 */
@@ -228,26 +563,309 @@ public final class GlslScene {
 		mAnimator.clear();
 		mObjects.clear();
 		mLights.clear();
+		mBatches.clear();
+		mStaticGeometry.clear();
+		mTransforms.build(mObjects);
+		++mBuildVersion;
+		mAnimationTime = -1;
+		++mVersion;
+		++mQueueVersion;
 	}
 
 	/**
-	 * Updates object hierarchy matrices with given view and projection
-	 * matrices.
+	 * Sets whether static boxes are merged into one vertex buffer during scene
+	 * initialization. Takes effect once scene is initialized next time.
 	 * 
-	 * @param viewM
-	 *            View matrix
-	 * @param projM
-	 *            Projection matrix
+	 * @param baking
+	 *            If true, static boxes are baked
 	 */
-	public void updateMatrices(float[] viewM, float[] projM) {
-		for (GlslObject object : mObjects) {
-			object.updateMatrices(viewM, projM);
+	public void setBaking(boolean baking) {
+		mBaking = baking;
+	}
+
+	/**
+	 * Sets whether boxes are drawn in batches. Batching draws up to
+	 * GlslBoxBatch.BATCH_SIZE boxes with one draw call, instead of one call
+	 * for each box.
+	 * 
+	 * @param batching
+	 *            If true, boxes are drawn in batches
+	 */
+	public void setBatching(boolean batching) {
+		mBatching = batching;
+		createBatches();
+	}
+
+	/**
+	 * Updates object hierarchy matrices with camera view and projection
+	 * matrices, and culls objects outside view frustum. Only subtrees which
+	 * moved, or all objects if camera changed, are recalculated.
+	 * 
+	 * @param camera
+	 *            Camera to take view and projection matrices from
+	 */
+	public void updateMatrices(GlslCamera camera) {
+		int cameraVersion = camera.getVersion();
+		boolean changed = cameraVersion != mCameraVersion;
+		if (changed) {
+			mCameraVersion = cameraVersion;
+			System.arraycopy(camera.mProjM, 0, mProjM, 0, 16);
+			for (int r = 0; r < 3; ++r) {
+				for (int c = 0; c < 4; ++c) {
+					mViewRows[r * 4 + c] = camera.mViewM[c * 4 + r];
+				}
+			}
+			mFrustum.set(camera.mProjM);
+			GlslMatrix.multiplyMM(mViewProjM, 0, camera.mProjM, 0,
+					camera.mViewM, 0);
+		}
+		changed |= mTransforms.update(mViewRows, changed);
+		if (changed) {
+			mTransforms.cull(mFrustum);
+			++mQueueVersion;
 		}
 		for (GlslLight light : mLights) {
-			light.updateMatrices(viewM);
+			light.updateMatrices(camera.mViewM);
+		}
+	}
+
+	/**
+	 * Merges boxes which never move, in relation to world, into static
+	 * geometry if baking is enabled. Baked boxes are removed from object
+	 * hierarchy, and are drawn with one call per pass regardless of their
+	 * count. Transform store is built for remaining objects.
+	 */
+	private void bakeStaticObjects() {
+		mTransforms.build(mObjects);
+		if (!mBaking) {
+			return;
+		}
+
+		// Calculate world matrices for all objects. Store is built again
+		// afterwards, so matrices are calculated again with actual view
+		// matrix.
+		float[] identityRows = new float[12];
+		identityRows[0] = identityRows[5] = identityRows[10] = 1f;
+		mTransforms.update(identityRows, true);
+
+		Vector<GlslBox> boxes = new Vector<GlslBox>();
+		collectStaticBoxes(mObjects, boxes);
+		for (int i = 0; i < boxes.size(); i += GlslStaticGeometry.MAX_BOXES) {
+			int end = Math.min(boxes.size(), i + GlslStaticGeometry.MAX_BOXES);
+			mStaticGeometry.add(new GlslStaticGeometry(boxes.subList(i, end),
+					mViewRows));
+		}
+		mTransforms.build(mObjects);
+		++mBuildVersion;
+	}
+
+	/**
+	 * Adds shadow volume geometry of all casters into shadow batch, and
+	 * uploads it.
+	 */
+	private void buildShadowBatch() {
+		mShadowBatch.clear();
+		for (GlslStaticGeometry geometry : mStaticGeometry) {
+			ByteBuffer vertexData = geometry.getVertexData();
+			for (int i = 0; i < geometry.getBoxCount(); ++i) {
+				mShadowBatch.add(vertexData, i * GlslBox.VERTEX_COUNT,
+						GlslBox.SHADOW_INDICES, mViewRows, 0);
+			}
+		}
+		float[] rows = mTransforms.getModelViewRows();
+		for (int i = 0; i < mTransforms.getCount(); ++i) {
+			GlslObject object = mTransforms.getObject(i);
+			if (object instanceof GlslBox) {
+				mShadowBatch.add(((GlslBox) object).getVertexData(), 0,
+						GlslBox.SHADOW_INDICES, rows, i * 12);
+			} else if (object instanceof GlslMesh) {
+				GlslMesh mesh = (GlslMesh) object;
+				mShadowBatch.add(mesh.getVertexData(), 0,
+						mesh.getShadowIndices(), rows, i * 12);
+			}
+		}
+		mShadowBatch.upload(mViewRows);
+		mShadowBatch.clear();
+		mShadowBatchUpdateVersion = mTransforms.getUpdateVersion();
+		mShadowBatchBuildVersion = mBuildVersion;
+	}
+
+	/**
+	 * Adds all boxes in given object hierarchy into given vector.
+	 * 
+	 * @param object
+	 *            Root object of hierarchy
+	 * @param boxes
+	 *            Vector to add boxes to
+	 */
+	private void collectBoxes(GlslObject object, Vector<GlslBox> boxes) {
+		if (object instanceof GlslBox) {
+			boxes.add((GlslBox) object);
+		}
+		for (GlslObject child : object.getChildObjects()) {
+			collectBoxes(child, boxes);
 		}
 	}
 
+	/**
+	 * Moves static boxes from given objects, and their children, into given
+	 * vector. Object is static if neither it nor any of its parents is
+	 * animated. Static boxes are baked only if they have no children left
+	 * once their own children have been baked.
+	 * 
+	 * @param objects
+	 *            Objects to remove static boxes from
+	 * @param boxes
+	 *            Vector to add static boxes to
+	 */
+	private void collectStaticBoxes(Vector<GlslObject> objects,
+			Vector<GlslBox> boxes) {
+		Iterator<GlslObject> iter = objects.iterator();
+		while (iter.hasNext()) {
+			GlslObject object = iter.next();
+			if (mAnimator.isAnimated(object)) {
+				continue;
+			}
+			Vector<GlslObject> children = object.getChildObjects();
+			collectStaticBoxes(children, boxes);
+			if (object instanceof GlslBox && children.isEmpty()) {
+				boxes.add((GlslBox) object);
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Creates batches for boxes in the scene if batching is enabled, and
+	 * releases boxes from previous batches otherwise.
+	 */
+	private void createBatches() {
+		++mQueueVersion;
+		for (GlslBoxBatch batch : mBatches) {
+			batch.clear();
+		}
+		mBatches.clear();
+		if (!mBatching) {
+			return;
+		}
+
+		Vector<GlslBox> boxes = new Vector<GlslBox>();
+		for (GlslObject object : mObjects) {
+			collectBoxes(object, boxes);
+		}
+		GlslBoxBatch batch = null;
+		for (GlslBox box : boxes) {
+			if (batch == null || batch.size() == GlslBoxBatch.MAX_BOXES) {
+				batch = new GlslBoxBatch(mTransforms);
+				mBatches.add(batch);
+			}
+			batch.add(box);
+		}
+	}
+
+	/**
+	 * Adds visible static geometry, objects and batch chunks into given
+	 * queue. Depth of an item is the view space distance to nearest point of
+	 * its bounding sphere.
+	 * 
+	 * @param queue
+	 *            Queue to add items to
+	 * @param lightPosition
+	 *            View space light position for shadow volume culling, or null
+	 *            for view culling
+	 */
+	private void fillQueue(GlslRenderQueue queue, float[] lightPosition) {
+		boolean shadow = lightPosition != null;
+		for (int i = 0; i < mStaticGeometry.size(); ++i) {
+			GlslStaticGeometry geometry = mStaticGeometry.get(i);
+			float[] bounds = geometry.getViewBounds();
+			if (shadow ? !mFrustum.isShadowOutside(bounds, 0, lightPosition)
+					: !mFrustum.isOutside(bounds, 0)) {
+				queue.add(geometry, STATE_STATIC_GEOMETRY
+						| (i & STATE_INDEX_MASK), -bounds[2] - bounds[3]);
+			}
+		}
+		for (int i = 0; i < mTransforms.getCount(); ++i) {
+			if (shadow ? mTransforms.isShadowCulled(i) : mTransforms
+					.isCulled(i)) {
+				continue;
+			}
+			GlslObject object = mTransforms.getObject(i);
+			if (object instanceof GlslBox && !((GlslBox) object).isBatched()) {
+				queue.add((GlslBox) object, STATE_BOX, mTransforms.getDepth(i));
+			} else if (object instanceof GlslMesh) {
+				queue.add((GlslMesh) object, STATE_MESH
+						| (i & STATE_INDEX_MASK), mTransforms.getDepth(i));
+			}
+		}
+		for (int i = 0; i < mBatches.size(); ++i) {
+			mBatches.get(i).queue(queue, STATE_BATCH | (i & STATE_INDEX_MASK),
+					shadow);
+		}
+	}
+
+	/**
+	 * Checks whether shadow batch is still valid. Batch is in world space,
+	 * so it needs to be built again only if any of the objects moved in
+	 * relation to world, or if transform store was built again.
+	 * 
+	 * @return True if shadow batch is valid
+	 */
+	private boolean isShadowBatchValid() {
+		if (!mShadowBatch.isUploaded()
+				|| mShadowBatchBuildVersion != mBuildVersion) {
+			return false;
+		}
+		if (mShadowBatchUpdateVersion == mTransforms.getUpdateVersion()) {
+			return true;
+		}
+		for (int i = 0; i < mTransforms.getCount(); ++i) {
+			if (mTransforms.getMovedVersion(i) > mShadowBatchUpdateVersion) {
+				return false;
+			}
+		}
+		mShadowBatchUpdateVersion = mTransforms.getUpdateVersion();
+		return true;
+	}
+
+	/**
+	 * Checks whether bounds of object intersect given light radius.
+	 * 
+	 * @param index
+	 *            Transform store index of object
+	 * @param light
+	 *            Light to check against
+	 * @return True if object is within light radius
+	 */
+	private boolean isInRange(int index, GlslLight light) {
+		return isInRange(mTransforms.getBounds(), index * 4, light);
+	}
+
+	/**
+	 * Checks whether given bounding sphere intersects given light radius.
+	 * 
+	 * @param sphere
+	 *            Array containing view space sphere, x, y, z and radius
+	 * @param offset
+	 *            Offset of sphere within array
+	 * @param light
+	 *            Light to check against
+	 * @return True if sphere is within light radius, false for empty spheres
+	 */
+	private static boolean isInRange(float[] sphere, int offset,
+			GlslLight light) {
+		float radius = sphere[offset + 3];
+		if (radius < 0f) {
+			return false;
+		}
+		float[] position = light.getPosition();
+		float dx = sphere[offset] - position[0];
+		float dy = sphere[offset + 1] - position[1];
+		float dz = sphere[offset + 2] - position[2];
+		float range = radius + light.getRadius();
+		return dx * dx + dy * dy + dz * dz < range * range;
+	}
+
 	/**
 	 * Private helper method for calculating random values.
 	 * 
@@ -261,4 +879,15 @@ public final class GlslScene {
 		return (float) (min + Math.random() * (max - min));
 	}
 
+	/**
+	 * Unbinds buffer objects objects were rendered from. Rest of rendering
+	 * code uses client side arrays, which are interpreted as buffer offsets
+	 * while a buffer is bound.
+	 */
+	private void unbindBuffers() {
+		GlslGl gl = GlslGlContext.get();
+		gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+
 }
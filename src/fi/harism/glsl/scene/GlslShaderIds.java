@@ -20,10 +20,10 @@ package fi.harism.glsl.scene;
  * Holder class for shader ids to use for rendering scene.
  */
 public final class GlslShaderIds {
-	public int uModelViewM = -1;
-	public int uModelViewProjM = -1;
-	public int uNormalM = -1;
+	public int uProjM = -1;
+	public int uInstanceRows = -1;
 	public int aPosition = -1;
 	public int aNormal = -1;
 	public int aColor = -1;
+	public int aInstance = -1;
 }
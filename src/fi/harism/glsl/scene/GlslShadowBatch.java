@@ -0,0 +1,348 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.scene;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import android.opengl.GLES20;
+import fi.harism.glsl.gl.GlslGl;
+import fi.harism.glsl.gl.GlslGlContext;
+
+/**
+ * Shadow volume geometry of all shadow casters concatenated into one vertex
+ * buffer, so that shadow volumes are drawn with one call per light. Caster
+ * vertices are transformed into world space by executor threads, and buffer
+ * is built again only once casters move. Faces are extruded away from light
+ * on GPU, same way as when drawing casters one by one.
+ */
+final class GlslShadowBatch {
+
+	// Floats per vertex, world space position followed by normal.
+	static final int VERTEX_SIZE = 6;
+	// Minimum number of casters for transforming vertices in parallel.
+	private static final int PARALLEL_THRESHOLD = 64;
+	private static final int FLOAT_SIZE_BYTES = 4;
+	private static final int STRIDE_BYTES = GlslBox.STRIDE_BYTES;
+
+	// Executor for parallel transforms, null if there's only one processor.
+	private final ExecutorService mExecutor;
+	// Transform tasks, one for every thread.
+	private final Vector<Task> mTasks = new Vector<Task>();
+
+	// Casters added since latest clear(), packed vertex data, first vertex,
+	// shadow indices and model-view rows for each.
+	private ByteBuffer[] mVertexData = new ByteBuffer[64];
+	private int[] mFirstVertices = new int[64];
+	private int[][] mIndices = new int[64][];
+	private float[][] mRows = new float[64][];
+	private int[] mRowsOffsets = new int[64];
+	private int mCount;
+	// Rows of inverse view matrix, transforming view space into world space.
+	private final float[] mInverseViewRows = new float[12];
+
+	// Vertex data for all casters.
+	private FloatBuffer mBatchData = ByteBuffer.allocateDirect(4096)
+			.order(ByteOrder.nativeOrder()).asFloatBuffer();
+	// Number of vertices in vertex buffer.
+	private int mVertexCount;
+	// Vertex buffer id.
+	private int mVertexBufferId;
+	// Context generation vertex buffer was created and uploaded in.
+	private int mVertexBufferGeneration = -1;
+
+	/**
+	 * Constructor for shadow batch.
+	 * 
+	 * @param executor
+	 *            Executor for transforming vertices in parallel, or null
+	 * @param taskCount
+	 *            Number of tasks casters are split into
+	 */
+	public GlslShadowBatch(ExecutorService executor, int taskCount) {
+		mExecutor = executor;
+		for (int i = 0; i < Math.max(1, taskCount); ++i) {
+			mTasks.add(new Task());
+		}
+	}
+
+	/**
+	 * Adds shadow caster for next upload(..) call.
+	 * 
+	 * @param vertexData
+	 *            Packed vertex data in GlslBox vertex layout, with byte order
+	 *            set, referenced until next clear()
+	 * @param firstVertex
+	 *            Vertex shadow indices are relative to
+	 * @param indices
+	 *            Shadow volume triangle indices
+	 * @param rows
+	 *            Three first rows of model-view matrix, referenced until next
+	 *            clear()
+	 * @param rowsOffset
+	 *            Offset of first row element
+	 */
+	public void add(ByteBuffer vertexData, int firstVertex, int[] indices,
+			float[] rows, int rowsOffset) {
+		if (mCount == mVertexData.length) {
+			int size = mCount * 2;
+			ByteBuffer[] vertexDataArrays = new ByteBuffer[size];
+			int[] firstVertices = new int[size];
+			int[][] indexArrays = new int[size][];
+			float[][] rowArrays = new float[size][];
+			int[] rowsOffsets = new int[size];
+			System.arraycopy(mVertexData, 0, vertexDataArrays, 0, mCount);
+			System.arraycopy(mFirstVertices, 0, firstVertices, 0, mCount);
+			System.arraycopy(mIndices, 0, indexArrays, 0, mCount);
+			System.arraycopy(mRows, 0, rowArrays, 0, mCount);
+			System.arraycopy(mRowsOffsets, 0, rowsOffsets, 0, mCount);
+			mVertexData = vertexDataArrays;
+			mFirstVertices = firstVertices;
+			mIndices = indexArrays;
+			mRows = rowArrays;
+			mRowsOffsets = rowsOffsets;
+		}
+		mVertexData[mCount] = vertexData;
+		mFirstVertices[mCount] = firstVertex;
+		mIndices[mCount] = indices;
+		mRows[mCount] = rows;
+		mRowsOffsets[mCount] = rowsOffset;
+		++mCount;
+	}
+
+	/**
+	 * Removes all casters. Vertex buffer uploaded before is kept.
+	 */
+	public void clear() {
+		for (int i = 0; i < mCount; ++i) {
+			mVertexData[i] = null;
+			mIndices[i] = null;
+			mRows[i] = null;
+		}
+		mCount = 0;
+	}
+
+	/**
+	 * Draws shadow volumes of all casters uploaded. Shader is expected to
+	 * take world space positions and normals, and view-projection matrix
+	 * uniform is expected to be set.
+	 * 
+	 * @param ids
+	 *            Shader attribute/uniform handles for rendering
+	 */
+	public void draw(GlslShaderIds ids) {
+		if (mVertexCount == 0) {
+			return;
+		}
+		GlslGl gl = GlslGlContext.get();
+		gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+		gl.glVertexAttribPointer(ids.aPosition, 3, GLES20.GL_FLOAT, false,
+				VERTEX_SIZE * FLOAT_SIZE_BYTES, 0);
+		gl.glEnableVertexAttribArray(ids.aPosition);
+		gl.glVertexAttribPointer(ids.aNormal, 3, GLES20.GL_FLOAT, false,
+				VERTEX_SIZE * FLOAT_SIZE_BYTES, 3 * FLOAT_SIZE_BYTES);
+		gl.glEnableVertexAttribArray(ids.aNormal);
+		gl.glDrawArrays(GLES20.GL_TRIANGLES, 0, mVertexCount);
+	}
+
+	/**
+	 * Getter for whether vertex buffer has been uploaded within current
+	 * context.
+	 * 
+	 * @return True if vertex buffer is valid
+	 */
+	public boolean isUploaded() {
+		return mVertexBufferGeneration == GlslGlContext.getGeneration();
+	}
+
+	/**
+	 * Transforms shadow volume vertices of casters added since latest
+	 * clear() into world space, and uploads them into vertex buffer.
+	 * 
+	 * @param viewRows
+	 *            Three first rows of view matrix casters' model-view rows
+	 *            were calculated with
+	 */
+	public void upload(float[] viewRows) {
+		// View matrix is rigid, inverse rotation is the transpose.
+		for (int r = 0; r < 3; ++r) {
+			float t = 0f;
+			for (int c = 0; c < 3; ++c) {
+				mInverseViewRows[r * 4 + c] = viewRows[c * 4 + r];
+				t += viewRows[c * 4 + r] * viewRows[c * 4 + 3];
+			}
+			mInverseViewRows[r * 4 + 3] = -t;
+		}
+
+		int taskCount = 1;
+		if (mExecutor != null && mCount >= PARALLEL_THRESHOLD) {
+			taskCount = mTasks.size();
+		}
+		for (int i = 0; i < taskCount; ++i) {
+			Task task = mTasks.get(i);
+			task.mFirst = mCount * i / taskCount;
+			task.mLast = mCount * (i + 1) / taskCount;
+		}
+		if (taskCount > 1) {
+			invokeAll(mTasks);
+		} else {
+			mTasks.get(0).call();
+		}
+
+		int size = 0;
+		for (int i = 0; i < taskCount; ++i) {
+			size += mTasks.get(i).mSize;
+		}
+		if (mBatchData.capacity() < size) {
+			int capacity = mBatchData.capacity();
+			while (capacity < size) {
+				capacity *= 2;
+			}
+			mBatchData = ByteBuffer.allocateDirect(capacity * FLOAT_SIZE_BYTES)
+					.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+		mBatchData.position(0);
+		for (int i = 0; i < taskCount; ++i) {
+			Task task = mTasks.get(i);
+			mBatchData.put(task.mOut, 0, task.mSize);
+		}
+		mBatchData.position(0);
+		mVertexCount = size / VERTEX_SIZE;
+
+		GlslGl gl = GlslGlContext.get();
+		if (mVertexBufferGeneration != GlslGlContext.getGeneration()) {
+			int[] id = new int[1];
+			gl.glGenBuffers(1, id, 0);
+			mVertexBufferId = id[0];
+			mVertexBufferGeneration = GlslGlContext.getGeneration();
+		}
+		gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+		gl.glBufferData(GLES20.GL_ARRAY_BUFFER, size * FLOAT_SIZE_BYTES,
+				mBatchData, GLES20.GL_DYNAMIC_DRAW);
+	}
+
+	/**
+	 * Runs given tasks with executor and waits for them to finish.
+	 * 
+	 * @param tasks
+	 *            Tasks to run
+	 */
+	private void invokeAll(Vector<Task> tasks) {
+		try {
+			for (Future<Boolean> future : mExecutor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		} catch (ExecutionException ex) {
+			throw new RuntimeException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Task transforming shadow volume vertices for a range of casters into
+	 * its own array. Arrays are grown only, and are reused between frames.
+	 */
+	private final class Task implements Callable<Boolean> {
+
+		// Range of casters, first inclusive and last exclusive.
+		private int mFirst, mLast;
+		// Transformed vertices, and number of floats written.
+		private float[] mOut = new float[1024];
+		private int mSize;
+		// Rows transforming caster vertices into world space.
+		private final float[] mWorldRows = new float[12];
+
+		@Override
+		public Boolean call() {
+			mSize = 0;
+			for (int i = mFirst; i < mLast; ++i) {
+				int[] indices = mIndices[i];
+				int size = mSize + indices.length * VERTEX_SIZE;
+				if (mOut.length < size) {
+					float[] out = new float[Math.max(size, mOut.length * 2)];
+					System.arraycopy(mOut, 0, out, 0, mSize);
+					mOut = out;
+				}
+				setWorldRows(mRows[i], mRowsOffsets[i]);
+				transform(mVertexData[i], mFirstVertices[i], indices);
+			}
+			return true;
+		}
+
+		/**
+		 * Calculates rows transforming from model space into world space,
+		 * inverse view rows multiplied with given model-view rows.
+		 * 
+		 * @param rows
+		 *            Array containing model-view rows
+		 * @param offset
+		 *            Offset of first row element
+		 */
+		private void setWorldRows(float[] rows, int offset) {
+			for (int r = 0; r < 3; ++r) {
+				float a0 = mInverseViewRows[r * 4];
+				float a1 = mInverseViewRows[r * 4 + 1];
+				float a2 = mInverseViewRows[r * 4 + 2];
+				for (int c = 0; c < 4; ++c) {
+					mWorldRows[r * 4 + c] = a0 * rows[offset + c] + a1
+							* rows[offset + 4 + c] + a2 * rows[offset + 8 + c];
+				}
+				mWorldRows[r * 4 + 3] += mInverseViewRows[r * 4 + 3];
+			}
+		}
+
+		/**
+		 * Writes world space positions and normals for every shadow index.
+		 * Normals are left unnormalized, shader uses only their direction.
+		 * 
+		 * @param data
+		 *            Packed vertex data
+		 * @param firstVertex
+		 *            Vertex indices are relative to
+		 * @param indices
+		 *            Shadow volume triangle indices
+		 */
+		private void transform(ByteBuffer data, int firstVertex,
+				int[] indices) {
+			float[] m = mWorldRows;
+			for (int index : indices) {
+				int offset = (firstVertex + index) * STRIDE_BYTES;
+				float px = data.getFloat(offset + GlslBox.POSITION_OFFSET);
+				float py = data.getFloat(offset + GlslBox.POSITION_OFFSET + 4);
+				float pz = data.getFloat(offset + GlslBox.POSITION_OFFSET + 8);
+				float nx = data.get(offset + GlslBox.NORMAL_OFFSET);
+				float ny = data.get(offset + GlslBox.NORMAL_OFFSET + 1);
+				float nz = data.get(offset + GlslBox.NORMAL_OFFSET + 2);
+				for (int r = 0; r < 3; ++r) {
+					mOut[mSize + r] = m[r * 4] * px + m[r * 4 + 1] * py
+							+ m[r * 4 + 2] * pz + m[r * 4 + 3];
+					mOut[mSize + 3 + r] = m[r * 4] * nx + m[r * 4 + 1] * ny
+							+ m[r * 4 + 2] * nz;
+				}
+				mSize += VERTEX_SIZE;
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.scene;
+
+/**
+ * Shadow casters within range of a light, recorded when shadow map for the
+ * light is rendered. Scene compares recorded state against its current one
+ * to find out whether cached shadow map is still valid.
+ */
+public final class GlslShadowCasters {
+
+	// Scene build and transform store update version casters were recorded
+	// at.
+	int mBuildVersion = -1;
+	int mUpdateVersion;
+	// Light world position and radius casters were recorded for.
+	final float[] mLightPosition = new float[3];
+	float mLightRadius;
+	// Transform store indices of casters, in ascending order.
+	int[] mIndices = new int[64];
+	int mCount;
+
+	/**
+	 * Marks recorded casters out of date, shadow map is rendered again next
+	 * time it is needed.
+	 */
+	public void invalidate() {
+		mBuildVersion = -1;
+	}
+
+	/**
+	 * Adds caster index. Indices are expected to be added in ascending
+	 * order.
+	 * 
+	 * @param index
+	 *            Transform store index of caster
+	 */
+	void add(int index) {
+		if (mCount == mIndices.length) {
+			int[] indices = new int[mCount * 2];
+			System.arraycopy(mIndices, 0, indices, 0, mCount);
+			mIndices = indices;
+		}
+		mIndices[mCount++] = index;
+	}
+
+	/**
+	 * Checks whether given caster index has been recorded.
+	 * 
+	 * @param index
+	 *            Transform store index
+	 * @return True if index was recorded
+	 */
+	boolean contains(int index) {
+		int low = 0, high = mCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (mIndices[mid] < index) {
+				low = mid + 1;
+			} else if (mIndices[mid] > index) {
+				high = mid - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,269 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.scene;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import android.opengl.GLES20;
+import fi.harism.glsl.gl.GlslGl;
+import fi.harism.glsl.gl.GlslGlContext;
+
+/**
+ * Shadow volumes built on CPU from silhouette edges of shadow casters. Only
+ * quads extruded from silhouette edges are drawn, instead of extruding every
+ * face edge on GPU and letting quads of adjacent lit faces cancel each other
+ * out in stencil buffer. Casters are split between executor threads, and
+ * volumes of all casters are streamed into one vertex buffer and drawn with
+ * one call per light.
+ */
+final class GlslShadowVolumes {
+
+	// Minimum number of casters for extracting silhouettes in parallel.
+	private static final int PARALLEL_THRESHOLD = 64;
+	private static final int FLOAT_SIZE_BYTES = 4;
+
+	// Executor for parallel extraction, null if there's only one processor.
+	private final ExecutorService mExecutor;
+	// Extraction tasks, one for every thread.
+	private final Vector<Task> mTasks = new Vector<Task>();
+
+	// Casters added since latest clear(), adjacency, positions and
+	// model-view rows for each.
+	private GlslSilhouette[] mSilhouettes = new GlslSilhouette[64];
+	private float[][] mPositions = new float[64][];
+	private int[] mPositionOffsets = new int[64];
+	private float[][] mRows = new float[64][];
+	private int[] mRowsOffsets = new int[64];
+	private int mCount;
+	// View space light position for tasks.
+	private float[] mLightPosition;
+
+	// Vertex data streamed for every light.
+	private FloatBuffer mVertexData = ByteBuffer.allocateDirect(4096)
+			.order(ByteOrder.nativeOrder()).asFloatBuffer();
+	// Vertex buffer id.
+	private int mVertexBufferId;
+	// Context generation vertex buffer was created in.
+	private int mVertexBufferGeneration = -1;
+
+	/**
+	 * Constructor for shadow volumes.
+	 * 
+	 * @param executor
+	 *            Executor for extracting silhouettes in parallel, or null
+	 * @param taskCount
+	 *            Number of tasks casters are split into
+	 */
+	public GlslShadowVolumes(ExecutorService executor, int taskCount) {
+		mExecutor = executor;
+		for (int i = 0; i < Math.max(1, taskCount); ++i) {
+			mTasks.add(new Task());
+		}
+	}
+
+	/**
+	 * Adds shadow caster for next render(..) call.
+	 * 
+	 * @param silhouette
+	 *            Edge adjacency of caster
+	 * @param positions
+	 *            Vertex positions, referenced until next clear()
+	 * @param positionOffset
+	 *            Offset of first position
+	 * @param rows
+	 *            Three first rows of model-view matrix, referenced until next
+	 *            clear()
+	 * @param rowsOffset
+	 *            Offset of first row element
+	 */
+	public void add(GlslSilhouette silhouette, float[] positions,
+			int positionOffset, float[] rows, int rowsOffset) {
+		if (mCount == mSilhouettes.length) {
+			int size = mCount * 2;
+			GlslSilhouette[] silhouettes = new GlslSilhouette[size];
+			float[][] positionArrays = new float[size][];
+			int[] positionOffsets = new int[size];
+			float[][] rowArrays = new float[size][];
+			int[] rowsOffsets = new int[size];
+			System.arraycopy(mSilhouettes, 0, silhouettes, 0, mCount);
+			System.arraycopy(mPositions, 0, positionArrays, 0, mCount);
+			System.arraycopy(mPositionOffsets, 0, positionOffsets, 0, mCount);
+			System.arraycopy(mRows, 0, rowArrays, 0, mCount);
+			System.arraycopy(mRowsOffsets, 0, rowsOffsets, 0, mCount);
+			mSilhouettes = silhouettes;
+			mPositions = positionArrays;
+			mPositionOffsets = positionOffsets;
+			mRows = rowArrays;
+			mRowsOffsets = rowsOffsets;
+		}
+		mSilhouettes[mCount] = silhouette;
+		mPositions[mCount] = positions;
+		mPositionOffsets[mCount] = positionOffset;
+		mRows[mCount] = rows;
+		mRowsOffsets[mCount] = rowsOffset;
+		++mCount;
+	}
+
+	/**
+	 * Removes all casters.
+	 */
+	public void clear() {
+		for (int i = 0; i < mCount; ++i) {
+			mSilhouettes[i] = null;
+			mPositions[i] = null;
+			mRows[i] = null;
+		}
+		mCount = 0;
+	}
+
+	/**
+	 * Extracts silhouettes of casters added since latest clear() and draws
+	 * their shadow volumes. Vertices are given in view space, with w
+	 * component, and projection matrix uniform is expected to be set.
+	 * 
+	 * @param ids
+	 *            Shader attribute/uniform handles for rendering
+	 * @param lightPosition
+	 *            View space light position
+	 */
+	public void render(GlslShaderIds ids, float[] lightPosition) {
+		mLightPosition = lightPosition;
+		int taskCount = 1;
+		if (mExecutor != null && mCount >= PARALLEL_THRESHOLD) {
+			taskCount = mTasks.size();
+		}
+		for (int i = 0; i < taskCount; ++i) {
+			Task task = mTasks.get(i);
+			task.mFirst = mCount * i / taskCount;
+			task.mLast = mCount * (i + 1) / taskCount;
+		}
+		if (taskCount > 1) {
+			invokeAll(mTasks);
+		} else {
+			mTasks.get(0).call();
+		}
+
+		int size = 0;
+		for (int i = 0; i < taskCount; ++i) {
+			size += mTasks.get(i).mSize;
+		}
+		if (size == 0) {
+			return;
+		}
+		if (mVertexData.capacity() < size) {
+			int capacity = mVertexData.capacity();
+			while (capacity < size) {
+				capacity *= 2;
+			}
+			mVertexData = ByteBuffer.allocateDirect(capacity * FLOAT_SIZE_BYTES)
+					.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+		mVertexData.position(0);
+		for (int i = 0; i < taskCount; ++i) {
+			Task task = mTasks.get(i);
+			mVertexData.put(task.mOut, 0, task.mSize);
+		}
+		mVertexData.position(0);
+
+		GlslGl gl = GlslGlContext.get();
+		if (mVertexBufferGeneration != GlslGlContext.getGeneration()) {
+			int[] id = new int[1];
+			gl.glGenBuffers(1, id, 0);
+			mVertexBufferId = id[0];
+			mVertexBufferGeneration = GlslGlContext.getGeneration();
+		}
+		gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+		// Buffer is specified again for every light so that driver can hand
+		// out new storage instead of waiting for previous draw to finish.
+		gl.glBufferData(GLES20.GL_ARRAY_BUFFER, size * FLOAT_SIZE_BYTES,
+				mVertexData, GLES20.GL_STREAM_DRAW);
+		gl.glVertexAttribPointer(ids.aPosition, GlslSilhouette.VERTEX_SIZE,
+				GLES20.GL_FLOAT, false, GlslSilhouette.VERTEX_SIZE
+						* FLOAT_SIZE_BYTES, 0);
+		gl.glEnableVertexAttribArray(ids.aPosition);
+		gl.glDrawArrays(GLES20.GL_TRIANGLES, 0, size
+				/ GlslSilhouette.VERTEX_SIZE);
+	}
+
+	/**
+	 * Runs given tasks with executor and waits for them to finish.
+	 * 
+	 * @param tasks
+	 *            Tasks to run
+	 */
+	private void invokeAll(Vector<Task> tasks) {
+		try {
+			for (Future<Boolean> future : mExecutor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		} catch (ExecutionException ex) {
+			throw new RuntimeException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Task extracting silhouettes for a range of casters into its own
+	 * array. Arrays are grown only, and are reused between lights and
+	 * frames.
+	 */
+	private final class Task implements Callable<Boolean> {
+
+		// Range of casters, first inclusive and last exclusive.
+		private int mFirst, mLast;
+		// Shadow volume vertices written, and number of floats written.
+		private float[] mOut = new float[1024];
+		private int mSize;
+		// Temporary arrays for view space positions and lit triangles.
+		private float[] mView = new float[64];
+		private boolean[] mLit = new boolean[64];
+
+		@Override
+		public Boolean call() {
+			mSize = 0;
+			for (int i = mFirst; i < mLast; ++i) {
+				GlslSilhouette silhouette = mSilhouettes[i];
+				if (mView.length < silhouette.getVertexCount() * 3) {
+					mView = new float[silhouette.getVertexCount() * 3];
+				}
+				if (mLit.length < silhouette.getTriangleCount()) {
+					mLit = new boolean[silhouette.getTriangleCount()];
+				}
+				int size = mSize + silhouette.getEdgeCount()
+						* GlslSilhouette.EDGE_SIZE;
+				if (mOut.length < size) {
+					float[] out = new float[Math.max(size, mOut.length * 2)];
+					System.arraycopy(mOut, 0, out, 0, mSize);
+					mOut = out;
+				}
+				mSize = silhouette.extract(mPositions[i], mPositionOffsets[i],
+						mRows[i], mRowsOffsets[i], mLightPosition, mView, mLit,
+						mOut, mSize);
+			}
+			return true;
+		}
+	}
+}
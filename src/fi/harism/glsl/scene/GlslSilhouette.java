@@ -0,0 +1,230 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.scene;
+
+import java.util.HashMap;
+
+/**
+ * Edge adjacency of a triangle mesh for finding silhouette edges, as seen
+ * from a light, on CPU. Adjacency is built once per mesh and holds indices
+ * only, vertex positions are given for every extraction so that the same
+ * adjacency can be shared between meshes of equal topology. Vertices are
+ * expected to be welded, faces share vertex indices along their edges.
+ */
+final class GlslSilhouette {
+
+	// Floats written for every shadow volume vertex, x, y, z and w.
+	static final int VERTEX_SIZE = 4;
+	// Floats written for every silhouette edge, one quad as two triangles.
+	static final int EDGE_SIZE = 6 * VERTEX_SIZE;
+
+	// Number of vertices triangles refer to.
+	private final int mVertexCount;
+	// Triangle vertex indices, counter-clockwise seen from outside.
+	private final int[] mTriangles;
+	// Four values for every edge; first and second vertex in winding order
+	// of first triangle, first triangle and second triangle or -1 if edge
+	// has one triangle only.
+	private final int[] mEdges;
+	private final int mEdgeCount;
+
+	/**
+	 * Builds edge adjacency for given triangles. Edges shared by more than
+	 * two triangles, or by two triangles with conflicting winding, are split
+	 * into edges with one triangle each.
+	 * 
+	 * @param vertexCount
+	 *            Number of vertices
+	 * @param triangles
+	 *            Vertex indices, three for every triangle
+	 */
+	public GlslSilhouette(int vertexCount, int[] triangles) {
+		mVertexCount = vertexCount;
+		mTriangles = triangles;
+		int[] edges = new int[triangles.length * 4];
+		int edgeCount = 0;
+		HashMap<Long, Integer> open = new HashMap<Long, Integer>();
+		for (int t = 0; t < triangles.length / 3; ++t) {
+			for (int i = 0; i < 3; ++i) {
+				int a = triangles[t * 3 + i];
+				int b = triangles[t * 3 + (i + 1) % 3];
+				Long key = Long.valueOf(((long) Math.min(a, b) << 32)
+						| Math.max(a, b));
+				Integer e = open.remove(key);
+				if (e != null && edges[e * 4] == b && edges[e * 4 + 1] == a) {
+					edges[e * 4 + 3] = t;
+					continue;
+				}
+				edges[edgeCount * 4] = a;
+				edges[edgeCount * 4 + 1] = b;
+				edges[edgeCount * 4 + 2] = t;
+				edges[edgeCount * 4 + 3] = -1;
+				if (e == null) {
+					open.put(key, edgeCount);
+				}
+				++edgeCount;
+			}
+		}
+		mEdges = edges;
+		mEdgeCount = edgeCount;
+	}
+
+	/**
+	 * Writes shadow volume quads for silhouette edges, seen from given light,
+	 * into given array. Quads are extruded from edges towards infinity, away
+	 * from light, and are wound the way lit triangles are. Front caps are
+	 * left out, as depth pass stencil counting doesn't need them, and edges
+	 * with one triangle only are silhouette edges whenever their triangle is
+	 * lit.
+	 * 
+	 * @param positions
+	 *            Vertex positions, x, y and z for every vertex
+	 * @param positionOffset
+	 *            Offset of first position
+	 * @param rows
+	 *            Three first rows of model-view matrix
+	 * @param rowsOffset
+	 *            Offset of first row element
+	 * @param light
+	 *            View space light position
+	 * @param view
+	 *            Temporary array of at least 3 * getVertexCount() floats
+	 * @param lit
+	 *            Temporary array of at least getTriangleCount() flags
+	 * @param out
+	 *            Array to write vertices into, VERTEX_SIZE floats each, with
+	 *            room for getEdgeCount() * EDGE_SIZE floats
+	 * @param outOffset
+	 *            Offset of first value written
+	 * @return Offset following last value written
+	 */
+	public int extract(float[] positions, int positionOffset, float[] rows,
+			int rowsOffset, float[] light, float[] view, boolean[] lit,
+			float[] out, int outOffset) {
+		float[] m = rows;
+		int o = rowsOffset;
+		for (int i = 0; i < mVertexCount; ++i) {
+			int p = positionOffset + i * 3;
+			float x = positions[p];
+			float y = positions[p + 1];
+			float z = positions[p + 2];
+			view[i * 3] = m[o] * x + m[o + 1] * y + m[o + 2] * z + m[o + 3];
+			view[i * 3 + 1] = m[o + 4] * x + m[o + 5] * y + m[o + 6] * z
+					+ m[o + 7];
+			view[i * 3 + 2] = m[o + 8] * x + m[o + 9] * y + m[o + 10] * z
+					+ m[o + 11];
+		}
+
+		int triangleCount = mTriangles.length / 3;
+		for (int t = 0; t < triangleCount; ++t) {
+			int v0 = mTriangles[t * 3] * 3;
+			int v1 = mTriangles[t * 3 + 1] * 3;
+			int v2 = mTriangles[t * 3 + 2] * 3;
+			float ax = view[v1] - view[v0];
+			float ay = view[v1 + 1] - view[v0 + 1];
+			float az = view[v1 + 2] - view[v0 + 2];
+			float bx = view[v2] - view[v0];
+			float by = view[v2 + 1] - view[v0 + 1];
+			float bz = view[v2 + 2] - view[v0 + 2];
+			float nx = ay * bz - az * by;
+			float ny = az * bx - ax * bz;
+			float nz = ax * by - ay * bx;
+			lit[t] = nx * (light[0] - view[v0]) + ny
+					* (light[1] - view[v0 + 1]) + nz
+					* (light[2] - view[v0 + 2]) > 0f;
+		}
+
+		for (int e = 0; e < mEdgeCount; ++e) {
+			int t1 = mEdges[e * 4 + 3];
+			boolean lit0 = lit[mEdges[e * 4 + 2]];
+			boolean lit1 = t1 >= 0 && lit[t1];
+			if (lit0 == lit1) {
+				continue;
+			}
+			int a = mEdges[e * 4] * 3;
+			int b = mEdges[e * 4 + 1] * 3;
+			if (lit1) {
+				int tmp = a;
+				a = b;
+				b = tmp;
+			}
+			outOffset = putVertex(view, a, light, 1f, out, outOffset);
+			outOffset = putVertex(view, a, light, 0f, out, outOffset);
+			outOffset = putVertex(view, b, light, 1f, out, outOffset);
+			outOffset = putVertex(view, a, light, 0f, out, outOffset);
+			outOffset = putVertex(view, b, light, 0f, out, outOffset);
+			outOffset = putVertex(view, b, light, 1f, out, outOffset);
+		}
+		return outOffset;
+	}
+
+	/**
+	 * Getter for number of edges.
+	 * 
+	 * @return Edge count
+	 */
+	public int getEdgeCount() {
+		return mEdgeCount;
+	}
+
+	/**
+	 * Getter for number of triangles.
+	 * 
+	 * @return Triangle count
+	 */
+	public int getTriangleCount() {
+		return mTriangles.length / 3;
+	}
+
+	/**
+	 * Getter for number of vertices.
+	 * 
+	 * @return Vertex count
+	 */
+	public int getVertexCount() {
+		return mVertexCount;
+	}
+
+	/**
+	 * Writes one shadow volume vertex. Extruded vertices are written as
+	 * directions away from light with zero w, which projects them to
+	 * infinity.
+	 * 
+	 * @param view
+	 *            View space vertex positions
+	 * @param v
+	 *            Offset of vertex position
+	 * @param light
+	 *            View space light position
+	 * @param w
+	 *            One for vertex on edge, zero for extruded vertex
+	 * @param out
+	 *            Array to write vertex into
+	 * @param outOffset
+	 *            Offset to write vertex at
+	 * @return Offset following written vertex
+	 */
+	private static int putVertex(float[] view, int v, float[] light, float w,
+			float[] out, int outOffset) {
+		float lw = 1f - w;
+		out[outOffset] = view[v] - light[0] * lw;
+		out[outOffset + 1] = view[v + 1] - light[1] * lw;
+		out[outOffset + 2] = view[v + 2] - light[2] * lw;
+		out[outOffset + 3] = w;
+		return outOffset + VERTEX_SIZE;
+	}
+}
@@ -0,0 +1,287 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.scene;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.List;
+
+import android.opengl.GLES20;
+import fi.harism.glsl.GlslMatrix;
+import fi.harism.glsl.gl.GlslGl;
+import fi.harism.glsl.gl.GlslGlContext;
+
+/**
+ * Geometry of static boxes merged into one vertex and index buffer. Vertices
+ * are transformed into world space once, when geometry is created, and all
+ * boxes are drawn with one call using view matrix as model-view matrix. All
+ * boxes share the same material, vertex colors with scene shaders, so one
+ * buffer pair is enough for every pass.
+ */
+final class GlslStaticGeometry implements GlslRenderQueue.Item {
+
+	// Maximum number of boxes unsigned short indices can address.
+	static final int MAX_BOXES = 65536 / GlslBox.VERTEX_COUNT;
+
+	private static final int FLOAT_SIZE_BYTES = 4;
+	private static final int SHORT_SIZE_BYTES = 2;
+	private static final int STRIDE_BYTES = GlslBox.STRIDE_BYTES;
+
+	// Three first rows of view matrix, array is owned and updated by scene.
+	private final float[] mViewRows;
+	// Number of boxes merged.
+	private int mBoxCount;
+	// World space vertex data for all boxes.
+	private ByteBuffer mVertexData;
+	// Index data for all boxes.
+	private ShortBuffer mIndices;
+	// World space corner positions of all boxes, for GlslBox.SILHOUETTE.
+	private float[] mCorners;
+	// World space bounding sphere, x, y, z and radius.
+	private final float[] mWorldBounds = new float[4];
+	// View space bounding sphere from latest call to getViewBounds(..).
+	private final float[] mViewBounds = new float[4];
+
+	// Vertex and index buffer ids.
+	private int mVertexBufferId, mIndexBufferId;
+	// Context generation buffers were created in.
+	private int mBufferGeneration = -1;
+
+	/**
+	 * Merges geometry of given boxes. Box model-view rows are expected to have
+	 * been calculated with identity view matrix, so that they transform
+	 * vertices into world space.
+	 * 
+	 * @param boxes
+	 *            Boxes to merge, at most MAX_BOXES
+	 * @param viewRows
+	 *            Three first rows of view matrix, referenced for rendering
+	 */
+	public GlslStaticGeometry(List<GlslBox> boxes, float[] viewRows) {
+		mViewRows = viewRows;
+		mBoxCount = boxes.size();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(mBoxCount
+				* GlslBox.VERTEX_COUNT * STRIDE_BYTES);
+		mVertexData = buffer.order(ByteOrder.nativeOrder());
+		mCorners = new float[mBoxCount * 8 * 3];
+		float[] rows = new float[12];
+		for (int i = 0; i < mBoxCount; ++i) {
+			GlslBox box = boxes.get(i);
+			box.getModelViewRows(rows, 0);
+			putVertexData(box.getVertexData(), rows);
+			putCorners(box.getCorners(), rows, i * 8 * 3);
+		}
+		mVertexData.position(0);
+		mIndices = GlslBoxBatch.createIndices(mBoxCount);
+		calculateBounds();
+	}
+
+	@Override
+	public void draw(GlslShaderIds ids, boolean shadow) {
+		GlslGl gl = GlslGlContext.get();
+		bindBuffers();
+		GlslBox.setAttribPointers(ids, !shadow);
+		setInstance(ids);
+		if (shadow) {
+			gl.glDrawElements(GLES20.GL_TRIANGLES, mBoxCount
+					* GlslBox.SHADOW_INDEX_COUNT, GLES20.GL_UNSIGNED_SHORT,
+					mBoxCount * GlslBox.INDEX_COUNT * SHORT_SIZE_BYTES);
+		} else {
+			gl.glDrawElements(GLES20.GL_TRIANGLES, mBoxCount
+					* GlslBox.INDEX_COUNT, GLES20.GL_UNSIGNED_SHORT, 0);
+		}
+	}
+
+	/**
+	 * Getter for number of boxes merged.
+	 * 
+	 * @return Box count
+	 */
+	public int getBoxCount() {
+		return mBoxCount;
+	}
+
+	/**
+	 * Getter for world space box corners, 8 * 3 floats for each box in the
+	 * order GlslBox.SILHOUETTE refers to them.
+	 * 
+	 * @return Corner positions
+	 */
+	public float[] getCorners() {
+		return mCorners;
+	}
+
+	/**
+	 * Getter for world space vertex data of all boxes, GlslBox.VERTEX_COUNT
+	 * vertices for each box.
+	 * 
+	 * @return Vertex data in GlslBox vertex layout
+	 */
+	public ByteBuffer getVertexData() {
+		return mVertexData;
+	}
+
+	/**
+	 * Calculates view space bounding sphere for merged geometry with current
+	 * view matrix.
+	 * 
+	 * @return View space bounding sphere, x, y, z and radius
+	 */
+	public float[] getViewBounds() {
+		for (int i = 0; i < 3; ++i) {
+			int j = i * 4;
+			mViewBounds[i] = mViewRows[j] * mWorldBounds[0] + mViewRows[j + 1]
+					* mWorldBounds[1] + mViewRows[j + 2] * mWorldBounds[2]
+					+ mViewRows[j + 3];
+		}
+		mViewBounds[3] = mWorldBounds[3];
+		return mViewBounds;
+	}
+
+	/**
+	 * Binds vertex and index buffers for rendering. Buffers are created and
+	 * data uploaded if they do not exist in current context.
+	 */
+	private void bindBuffers() {
+		GlslGl gl = GlslGlContext.get();
+		int generation = GlslGlContext.getGeneration();
+
+		if (mBufferGeneration != generation) {
+			int[] ids = new int[2];
+			gl.glGenBuffers(2, ids, 0);
+			mVertexBufferId = ids[0];
+			mIndexBufferId = ids[1];
+			mBufferGeneration = generation;
+
+			gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId);
+			gl.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER,
+					mIndices.capacity() * SHORT_SIZE_BYTES, mIndices,
+					GLES20.GL_STATIC_DRAW);
+			gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+			gl.glBufferData(GLES20.GL_ARRAY_BUFFER, mVertexData.capacity(),
+					mVertexData, GLES20.GL_STATIC_DRAW);
+		}
+		gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId);
+		gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+	}
+
+	/**
+	 * Calculates world space bounding sphere around vertex positions. Sphere
+	 * center is the center of axis aligned bounding box.
+	 */
+	private void calculateBounds() {
+		float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		int count = mBoxCount * GlslBox.VERTEX_COUNT;
+		for (int i = 0; i < count; ++i) {
+			for (int j = 0; j < 3; ++j) {
+				float v = mVertexData.getFloat(i * STRIDE_BYTES + j
+						* FLOAT_SIZE_BYTES);
+				min[j] = Math.min(min[j], v);
+				max[j] = Math.max(max[j], v);
+			}
+		}
+		for (int j = 0; j < 3; ++j) {
+			mWorldBounds[j] = (min[j] + max[j]) / 2f;
+		}
+		mWorldBounds[3] = GlslMatrix.length(max[0] - mWorldBounds[0],
+				max[1] - mWorldBounds[1], max[2] - mWorldBounds[2]);
+	}
+
+	/**
+	 * Transforms box corners into world space and writes them into
+	 * mCorners.
+	 * 
+	 * @param corners
+	 *            Box corners in local coordinates
+	 * @param m
+	 *            Three first rows of box world matrix
+	 * @param offset
+	 *            Offset to write corners at
+	 */
+	private void putCorners(float[] corners, float[] m, int offset) {
+		for (int i = 0; i < corners.length; i += 3) {
+			float x = corners[i];
+			float y = corners[i + 1];
+			float z = corners[i + 2];
+			mCorners[offset + i] = m[0] * x + m[1] * y + m[2] * z + m[3];
+			mCorners[offset + i + 1] = m[4] * x + m[5] * y + m[6] * z + m[7];
+			mCorners[offset + i + 2] = m[8] * x + m[9] * y + m[10] * z + m[11];
+		}
+	}
+
+	/**
+	 * Transforms box vertex data into world space and appends it into
+	 * mVertexData. Normals are normalized after transformation and packed
+	 * into bytes again, zero normals used for shadow volume extrusion are
+	 * kept as such.
+	 * 
+	 * @param data
+	 *            Box vertex data
+	 * @param m
+	 *            Three first rows of box world matrix
+	 */
+	private void putVertexData(ByteBuffer data, float[] m) {
+		for (int i = 0; i < GlslBox.VERTEX_COUNT; ++i) {
+			int offset = i * STRIDE_BYTES + GlslBox.POSITION_OFFSET;
+			float x = data.getFloat(offset);
+			float y = data.getFloat(offset + FLOAT_SIZE_BYTES);
+			float z = data.getFloat(offset + 2 * FLOAT_SIZE_BYTES);
+			mVertexData.putFloat(m[0] * x + m[1] * y + m[2] * z + m[3]);
+			mVertexData.putFloat(m[4] * x + m[5] * y + m[6] * z + m[7]);
+			mVertexData.putFloat(m[8] * x + m[9] * y + m[10] * z + m[11]);
+
+			offset = i * STRIDE_BYTES + GlslBox.NORMAL_OFFSET;
+			x = data.get(offset);
+			y = data.get(offset + 1);
+			z = data.get(offset + 2);
+			float nx = m[0] * x + m[1] * y + m[2] * z;
+			float ny = m[4] * x + m[5] * y + m[6] * z;
+			float nz = m[8] * x + m[9] * y + m[10] * z;
+			float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (len > 0f) {
+				nx /= len;
+				ny /= len;
+				nz /= len;
+			}
+			mVertexData.put(GlslBox.toSignedByte(nx));
+			mVertexData.put(GlslBox.toSignedByte(ny));
+			mVertexData.put(GlslBox.toSignedByte(nz));
+			mVertexData.put((byte) 0);
+
+			offset = i * STRIDE_BYTES + GlslBox.COLOR_OFFSET;
+			for (int j = 0; j < 4; ++j) {
+				mVertexData.put(data.get(offset + j));
+			}
+		}
+	}
+
+	/**
+	 * Sets view matrix as model-view matrix of the only instance for instance
+	 * aware vertex shaders.
+	 * 
+	 * @param ids
+	 *            Shader attribute/uniform handles for rendering
+	 */
+	private void setInstance(GlslShaderIds ids) {
+		GlslGl gl = GlslGlContext.get();
+		gl.glDisableVertexAttribArray(ids.aInstance);
+		gl.glVertexAttrib1f(ids.aInstance, 0f);
+		gl.glUniform4fv(ids.uInstanceRows, 3, mViewRows, 0);
+	}
+}
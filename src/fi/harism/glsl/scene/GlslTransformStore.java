@@ -0,0 +1,638 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.scene;
+
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Structure of arrays store for object matrices and bounds. Objects are kept
+ * in parent before child order, so matrices are updated with one linear sweep
+ * and bounds with one reverse sweep over contiguous arrays, instead of
+ * traversing object hierarchy. Model-view matrices are stored as three rows
+ * per object, which is the layout uInstanceRows uniform expects, and can be
+ * uploaded from the store as such.
+ * 
+ * Large stores are split into ranges of whole subtrees which are updated on
+ * given executor. Nodes above ranges are updated on calling thread, and
+ * bounds of subtree roots are merged into their parents in the same order
+ * as on serial sweep, so results don't depend on the number of threads.
+ */
+final class GlslTransformStore {
+
+	// Minimum number of objects worth splitting work over threads.
+	private static final int PARALLEL_THRESHOLD = 8192;
+	// Number of ranges per task, for balancing uneven subtrees.
+	private static final int RANGES_PER_TASK = 4;
+
+	// Executor for parallel work, null for updating on calling thread.
+	private final ExecutorService mExecutor;
+	// Number of tasks work is split into.
+	private final int mTaskCount;
+
+	// Number of objects in store.
+	private int mCount;
+	// Objects, for querying local transformation of changed objects.
+	private GlslObject[] mObjects = new GlslObject[0];
+	// Parent indices, -1 for root objects.
+	private int[] mParents = new int[0];
+	// Local model matrix rows, 12 floats per object.
+	private float[] mLocalRows = new float[0];
+	// Model-view matrix rows, 12 floats per object.
+	private float[] mModelViewRows = new float[0];
+	// Bounding sphere radii of objects' own geometry.
+	private float[] mRadii = new float[0];
+	// View space bounding spheres for objects and their children, 4 floats
+	// per object.
+	private float[] mBounds = new float[0];
+	// Bounding spheres of children, merged while sweeping bounds.
+	private float[] mChildBounds = new float[0];
+	// If true, local transformation has changed.
+	private boolean[] mInvalid = new boolean[0];
+	// If true, model-view matrix changed during latest update.
+	private boolean[] mChanged = new boolean[0];
+	// Update version object last moved in relation to world at, changes of
+	// view matrix alone do not move objects.
+	private int[] mMovedVersions = new int[0];
+	// Incremented on every update.
+	private int mUpdateVersion;
+	// If true, bounds are outside view frustum.
+	private boolean[] mCulled = new boolean[0];
+	// If true, shadow volume of bounds is outside view frustum.
+	private boolean[] mShadowCulled = new boolean[0];
+	// Temporary rotation matrix.
+	private final float[] mRotateM = new float[16];
+
+	// If true, store is updated on executor.
+	private boolean mParallel;
+	// Nodes above ranges, and roots of subtrees within ranges, in ascending
+	// order. Range ends are given for subtree roots, -1 for nodes above.
+	private int[] mSplitNodes = new int[0];
+	private int[] mSplitEnds = new int[0];
+	// Tasks for updating matrices and bounds of ranges.
+	private final Vector<Callable<Boolean>> mMatrixTasks = new Vector<Callable<Boolean>>();
+	private final Vector<Callable<Boolean>> mBoundsTasks = new Vector<Callable<Boolean>>();
+	// View matrix given to latest update, for matrix tasks.
+	private float[] mViewRows;
+	private boolean mViewChanged;
+
+	/**
+	 * Constructor for transform store.
+	 * 
+	 * @param executor
+	 *            Executor for parallel work, or null
+	 * @param taskCount
+	 *            Number of tasks work is split into, usually number of
+	 *            threads executor runs
+	 */
+	public GlslTransformStore(ExecutorService executor, int taskCount) {
+		mExecutor = executor;
+		mTaskCount = Math.max(1, taskCount);
+	}
+
+	/**
+	 * Builds store for given object hierarchies. Objects are attached to this
+	 * store and all of them are recalculated on next update. Whether store is
+	 * updated in parallel is decided from object count.
+	 * 
+	 * @param roots
+	 *            Root objects
+	 */
+	public void build(Vector<GlslObject> roots) {
+		Vector<GlslObject> objects = new Vector<GlslObject>();
+		Vector<Integer> parents = new Vector<Integer>();
+		for (GlslObject root : roots) {
+			addObjects(root, -1, objects, parents);
+		}
+
+		mCount = objects.size();
+		mObjects = objects.toArray(new GlslObject[mCount]);
+		mParents = new int[mCount];
+		mLocalRows = new float[mCount * 12];
+		mModelViewRows = new float[mCount * 12];
+		mRadii = new float[mCount];
+		mBounds = new float[mCount * 4];
+		mChildBounds = new float[mCount * 4];
+		mInvalid = new boolean[mCount];
+		mChanged = new boolean[mCount];
+		mMovedVersions = new int[mCount];
+		mCulled = new boolean[mCount];
+		mShadowCulled = new boolean[mCount];
+		for (int i = 0; i < mCount; ++i) {
+			mParents[i] = parents.get(i);
+			mInvalid[i] = true;
+			mObjects[i].attach(this, i);
+		}
+
+		mParallel = mExecutor != null && mTaskCount > 1
+				&& mCount >= PARALLEL_THRESHOLD;
+		mMatrixTasks.clear();
+		mBoundsTasks.clear();
+		if (mParallel) {
+			split();
+		}
+	}
+
+	/**
+	 * Culls objects against given frustum. Children of culled objects are
+	 * culled too.
+	 * 
+	 * @param frustum
+	 *            View frustum
+	 */
+	public void cull(GlslFrustum frustum) {
+		for (int i = 0; i < mCount; ++i) {
+			int parent = mParents[i];
+			mCulled[i] = (parent >= 0 && mCulled[parent])
+					|| mBounds[i * 4 + 3] < 0f
+					|| frustum.isOutside(mBounds, i * 4);
+		}
+	}
+
+	/**
+	 * Culls shadow volumes of objects against given frustum. Children of
+	 * culled objects are culled too.
+	 * 
+	 * @param frustum
+	 *            View frustum
+	 * @param light
+	 *            View space light position
+	 */
+	public void cullShadow(GlslFrustum frustum, float[] light) {
+		for (int i = 0; i < mCount; ++i) {
+			int parent = mParents[i];
+			mShadowCulled[i] = (parent >= 0 && mShadowCulled[parent])
+					|| mBounds[i * 4 + 3] < 0f
+					|| frustum.isShadowOutside(mBounds, i * 4, light);
+		}
+	}
+
+	/**
+	 * Getter for number of objects in store.
+	 * 
+	 * @return Object count
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * Getter for packed view space bounding spheres. Sphere of an object,
+	 * containing its children too, starts at index 4 * object's transform
+	 * index and is negative in radius if there's no geometry.
+	 * 
+	 * @return Bounding spheres, x, y, z and radius for all objects
+	 */
+	public float[] getBounds() {
+		return mBounds;
+	}
+
+	/**
+	 * Getter for view space distance to nearest point of object bounds.
+	 * 
+	 * @param index
+	 *            Object index
+	 * @return Distance in front of camera, negative if bounds contain camera
+	 */
+	public float getDepth(int index) {
+		return -mBounds[index * 4 + 2] - mBounds[index * 4 + 3];
+	}
+
+	/**
+	 * Getter for packed model-view matrix rows. Rows for an object start at
+	 * index 12 * object's transform index.
+	 * 
+	 * @return Model-view rows for all objects
+	 */
+	public float[] getModelViewRows() {
+		return mModelViewRows;
+	}
+
+	/**
+	 * Getter for update version object last moved at. Object moves if its
+	 * own or any of its parents' local transformation changes.
+	 * 
+	 * @param index
+	 *            Object index
+	 * @return Update version of latest move
+	 */
+	public int getMovedVersion(int index) {
+		return mMovedVersions[index];
+	}
+
+	/**
+	 * Getter for object at given index.
+	 * 
+	 * @param index
+	 *            Object index
+	 * @return Object
+	 */
+	public GlslObject getObject(int index) {
+		return mObjects[index];
+	}
+
+	/**
+	 * Getter for update version, which is incremented on every update.
+	 * 
+	 * @return Version of latest update
+	 */
+	public int getUpdateVersion() {
+		return mUpdateVersion;
+	}
+
+	/**
+	 * Marks local transformation of object changed.
+	 * 
+	 * @param index
+	 *            Object index
+	 */
+	public void invalidate(int index) {
+		mInvalid[index] = true;
+	}
+
+	/**
+	 * Getter for whether object has been culled.
+	 * 
+	 * @param index
+	 *            Object index
+	 * @return True if object is outside view frustum
+	 */
+	public boolean isCulled(int index) {
+		return mCulled[index];
+	}
+
+	/**
+	 * Getter for whether object shadow volume has been culled.
+	 * 
+	 * @param index
+	 *            Object index
+	 * @return True if shadow volume is outside view frustum
+	 */
+	public boolean isShadowCulled(int index) {
+		return mShadowCulled[index];
+	}
+
+	/**
+	 * Updates model-view matrices and bounds. Matrix is recalculated for
+	 * objects whose local transformation changed, whose parent matrix
+	 * changed, or for root objects if view matrix changed.
+	 * 
+	 * @param viewRows
+	 *            Three first rows of view matrix
+	 * @param viewChanged
+	 *            True if view matrix changed since previous update
+	 * @return True if any of the matrices changed
+	 */
+	public boolean update(float[] viewRows, boolean viewChanged) {
+		++mUpdateVersion;
+		if (mParallel) {
+			return updateParallel(viewRows, viewChanged);
+		}
+
+		boolean changed = false;
+		for (int i = 0; i < mCount; ++i) {
+			changed |= updateMatrix(i, viewRows, viewChanged, mRotateM);
+		}
+		if (changed) {
+			for (int i = 0; i < mCount; ++i) {
+				mChildBounds[i * 4 + 3] = -1f;
+			}
+			for (int i = mCount - 1; i >= 0; --i) {
+				updateBounds(i);
+				if (mParents[i] >= 0) {
+					mergeBounds(mChildBounds, mParents[i] * 4, mBounds, i * 4);
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Adds given object and its children into given vectors in parent before
+	 * child order.
+	 * 
+	 * @param object
+	 *            Object to add
+	 * @param parent
+	 *            Index of parent object, -1 for root objects
+	 * @param objects
+	 *            Vector to add objects to
+	 * @param parents
+	 *            Vector to add parent indices to
+	 */
+	private static void addObjects(GlslObject object, int parent,
+			Vector<GlslObject> objects, Vector<Integer> parents) {
+		int index = objects.size();
+		objects.add(object);
+		parents.add(parent);
+		for (GlslObject child : object.getChildObjects()) {
+			addObjects(child, index, objects, parents);
+		}
+	}
+
+	/**
+	 * Grows bounding sphere to contain another bounding sphere. Spheres with
+	 * negative radius are empty.
+	 * 
+	 * @param dst
+	 *            Array containing sphere to grow
+	 * @param dstOffset
+	 *            Offset of sphere to grow
+	 * @param src
+	 *            Array containing sphere to contain
+	 * @param srcOffset
+	 *            Offset of sphere to contain
+	 */
+	private static void mergeBounds(float[] dst, int dstOffset, float[] src,
+			int srcOffset) {
+		if (src[srcOffset + 3] < 0f) {
+			return;
+		}
+		if (dst[dstOffset + 3] < 0f) {
+			System.arraycopy(src, srcOffset, dst, dstOffset, 4);
+			return;
+		}
+		float dx = src[srcOffset] - dst[dstOffset];
+		float dy = src[srcOffset + 1] - dst[dstOffset + 1];
+		float dz = src[srcOffset + 2] - dst[dstOffset + 2];
+		float dist = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if (dist + src[srcOffset + 3] <= dst[dstOffset + 3]) {
+			return;
+		}
+		if (dist + dst[dstOffset + 3] <= src[srcOffset + 3]) {
+			System.arraycopy(src, srcOffset, dst, dstOffset, 4);
+			return;
+		}
+		float radius = (dist + dst[dstOffset + 3] + src[srcOffset + 3]) / 2f;
+		float t = (radius - dst[dstOffset + 3]) / dist;
+		dst[dstOffset] += dx * t;
+		dst[dstOffset + 1] += dy * t;
+		dst[dstOffset + 2] += dz * t;
+		dst[dstOffset + 3] = radius;
+	}
+
+	/**
+	 * Adds tasks for updating given range of subtrees.
+	 * 
+	 * @param first
+	 *            Index of first object in range
+	 * @param last
+	 *            Index of object after last one in range
+	 */
+	private void addRange(final int first, final int last) {
+		final float[] rotateM = new float[16];
+		mMatrixTasks.add(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				boolean changed = false;
+				for (int i = first; i < last; ++i) {
+					changed |= updateMatrix(i, mViewRows, mViewChanged,
+							rotateM);
+				}
+				return changed;
+			}
+		});
+		mBoundsTasks.add(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				for (int i = first; i < last; ++i) {
+					mChildBounds[i * 4 + 3] = -1f;
+				}
+				// Subtree roots are merged into their parents afterwards.
+				for (int i = last - 1; i >= first; --i) {
+					updateBounds(i);
+					if (mParents[i] >= first) {
+						mergeBounds(mChildBounds, mParents[i] * 4, mBounds,
+								i * 4);
+					}
+				}
+				return false;
+			}
+		});
+	}
+
+	/**
+	 * Runs given tasks on executor and waits for them to finish.
+	 * 
+	 * @param tasks
+	 *            Tasks to run
+	 * @return True if any of the tasks returned true
+	 */
+	private boolean invokeAll(Vector<Callable<Boolean>> tasks) {
+		boolean result = false;
+		try {
+			for (Future<Boolean> future : mExecutor.invokeAll(tasks)) {
+				result |= future.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		} catch (ExecutionException ex) {
+			throw new RuntimeException(ex.getCause());
+		}
+		return result;
+	}
+
+	/**
+	 * Calculates model-view rows for object by multiplying given parent rows
+	 * with local rows of object. Matrices are affine, so last rows are left
+	 * out of calculation.
+	 * 
+	 * @param parentRows
+	 *            Array containing parent rows
+	 * @param parentOffset
+	 *            Offset of parent rows
+	 * @param index
+	 *            Object index
+	 */
+	private void multiply(float[] parentRows, int parentOffset, int index) {
+		int l = index * 12;
+		for (int r = 0; r < 3; ++r) {
+			float a0 = parentRows[parentOffset + r * 4];
+			float a1 = parentRows[parentOffset + r * 4 + 1];
+			float a2 = parentRows[parentOffset + r * 4 + 2];
+			float a3 = parentRows[parentOffset + r * 4 + 3];
+			for (int c = 0; c < 4; ++c) {
+				mModelViewRows[l + r * 4 + c] = a0 * mLocalRows[l + c] + a1
+						* mLocalRows[l + 4 + c] + a2 * mLocalRows[l + 8 + c];
+			}
+			mModelViewRows[l + r * 4 + 3] += a3;
+		}
+	}
+
+	/**
+	 * Splits objects into ranges of whole subtrees for parallel updates.
+	 * Subtrees larger than range size are split further into their child
+	 * subtrees, and consecutive small subtrees are combined into one range.
+	 */
+	private void split() {
+		// Index after last object of subtree, for every object.
+		int[] ends = new int[mCount];
+		for (int i = mCount - 1; i >= 0; --i) {
+			ends[i] = Math.max(ends[i], i + 1);
+			if (mParents[i] >= 0) {
+				ends[mParents[i]] = Math.max(ends[mParents[i]], ends[i]);
+			}
+		}
+
+		int rangeSize = mCount / (mTaskCount * RANGES_PER_TASK);
+		Vector<Integer> nodes = new Vector<Integer>();
+		Vector<Integer> nodeEnds = new Vector<Integer>();
+		int first = 0, last = 0;
+		int i = 0;
+		while (i < mCount) {
+			if (ends[i] - i > rangeSize) {
+				// Subtree is split, object itself is updated serially.
+				if (first < last) {
+					addRange(first, last);
+				}
+				first = last = i + 1;
+				nodes.add(i);
+				nodeEnds.add(-1);
+				++i;
+				continue;
+			}
+			if (ends[i] - first > rangeSize) {
+				addRange(first, last);
+				first = i;
+			}
+			last = ends[i];
+			nodes.add(i);
+			nodeEnds.add(last);
+			i = last;
+		}
+		if (first < last) {
+			addRange(first, last);
+		}
+
+		mSplitNodes = new int[nodes.size()];
+		mSplitEnds = new int[nodes.size()];
+		for (int j = 0; j < mSplitNodes.length; ++j) {
+			mSplitNodes[j] = nodes.get(j);
+			mSplitEnds[j] = nodeEnds.get(j);
+		}
+	}
+
+	/**
+	 * Calculates view space bounding sphere for object, containing its own
+	 * geometry and bounds of its children merged so far.
+	 * 
+	 * @param index
+	 *            Object index
+	 */
+	private void updateBounds(int index) {
+		int b = index * 4;
+		int m = index * 12;
+		// Own bounding sphere, scaling is uniform so length of first column
+		// is scaling factor.
+		float sx = mModelViewRows[m];
+		float sy = mModelViewRows[m + 4];
+		float sz = mModelViewRows[m + 8];
+		float scale = (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+		mBounds[b] = mModelViewRows[m + 3];
+		mBounds[b + 1] = mModelViewRows[m + 7];
+		mBounds[b + 2] = mModelViewRows[m + 11];
+		mBounds[b + 3] = mRadii[index] < 0f ? -1f : mRadii[index] * scale;
+		mergeBounds(mBounds, b, mChildBounds, b);
+	}
+
+	/**
+	 * Updates model-view matrix of object if it or its parent changed.
+	 * Parent is expected to have been updated already.
+	 * 
+	 * @param index
+	 *            Object index
+	 * @param viewRows
+	 *            Three first rows of view matrix
+	 * @param viewChanged
+	 *            True if view matrix changed since previous update
+	 * @param rotateM
+	 *            Temporary array of 16 floats for rotation matrix
+	 * @return True if matrix changed
+	 */
+	private boolean updateMatrix(int index, float[] viewRows,
+			boolean viewChanged, float[] rotateM) {
+		int parent = mParents[index];
+		mChanged[index] = mInvalid[index]
+				|| (parent < 0 ? viewChanged : mChanged[parent]);
+		if (!mChanged[index]) {
+			return false;
+		}
+		if (mInvalid[index]
+				|| (parent >= 0 && mMovedVersions[parent] == mUpdateVersion)) {
+			mMovedVersions[index] = mUpdateVersion;
+		}
+		if (mInvalid[index]) {
+			mObjects[index].getLocalRows(mLocalRows, index * 12, rotateM);
+			mRadii[index] = mObjects[index].getBoundingRadius();
+			mInvalid[index] = false;
+		}
+		if (parent < 0) {
+			multiply(viewRows, 0, index);
+		} else {
+			multiply(mModelViewRows, parent * 12, index);
+		}
+		return true;
+	}
+
+	/**
+	 * Updates matrices and bounds on executor. Nodes above ranges are
+	 * updated first on calling thread, then ranges in parallel, and finally
+	 * subtree roots are merged into nodes above them in reverse order.
+	 * 
+	 * @param viewRows
+	 *            Three first rows of view matrix
+	 * @param viewChanged
+	 *            True if view matrix changed since previous update
+	 * @return True if any of the matrices changed
+	 */
+	private boolean updateParallel(float[] viewRows, boolean viewChanged) {
+		boolean changed = false;
+		for (int j = 0; j < mSplitNodes.length; ++j) {
+			if (mSplitEnds[j] < 0) {
+				changed |= updateMatrix(mSplitNodes[j], viewRows,
+						viewChanged, mRotateM);
+			}
+		}
+		mViewRows = viewRows;
+		mViewChanged = viewChanged;
+		changed |= invokeAll(mMatrixTasks);
+		if (!changed) {
+			return false;
+		}
+
+		invokeAll(mBoundsTasks);
+		for (int j = 0; j < mSplitNodes.length; ++j) {
+			if (mSplitEnds[j] < 0) {
+				mChildBounds[mSplitNodes[j] * 4 + 3] = -1f;
+			}
+		}
+		for (int j = mSplitNodes.length - 1; j >= 0; --j) {
+			int i = mSplitNodes[j];
+			if (mSplitEnds[j] < 0) {
+				updateBounds(i);
+			}
+			if (mParents[i] >= 0) {
+				mergeBounds(mChildBounds, mParents[i] * 4, mBounds, i * 4);
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package android.util;
+
+/**
+ * Plain JVM stand-in for android.util.Log. Placed ahead of android.jar on the
+ * test classpath, as android.jar only contains stubs which throw once called.
+ * Messages are written into System.err.
+ */
+public final class Log {
+
+	/**
+	 * Writes debug message.
+	 * 
+	 * @param tag
+	 *            Message tag
+	 * @param msg
+	 *            Message
+	 * @return Number of characters written
+	 */
+	public static int d(String tag, String msg) {
+		return println("D", tag, msg);
+	}
+
+	/**
+	 * Writes error message.
+	 * 
+	 * @param tag
+	 *            Message tag
+	 * @param msg
+	 *            Message
+	 * @return Number of characters written
+	 */
+	public static int e(String tag, String msg) {
+		return println("E", tag, msg);
+	}
+
+	/**
+	 * Writes warning message.
+	 * 
+	 * @param tag
+	 *            Message tag
+	 * @param msg
+	 *            Message
+	 * @return Number of characters written
+	 */
+	public static int w(String tag, String msg) {
+		return println("W", tag, msg);
+	}
+
+	/**
+	 * Writes message with given priority.
+	 */
+	private static int println(String priority, String tag, String msg) {
+		String line = priority + "/" + tag + ": " + msg;
+		System.err.println(line);
+		return line.length();
+	}
+}
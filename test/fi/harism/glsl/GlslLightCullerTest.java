@@ -0,0 +1,226 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+/**
+ * Compares tile lists built by GlslLightCuller against brute force reference
+ * and between different thread counts.
+ */
+public class GlslLightCullerTest {
+
+	private static final int TILE_SIZE = 16;
+	private static final int WIDTH = 400;
+	private static final int HEIGHT = 240;
+	private static final float[] PROJECTION = { 1.5f, 2.5f, .1f, 23f };
+
+	/**
+	 * Creates random lights in front of the camera, some of them crossing
+	 * near or far plane and some outside the view.
+	 */
+	private static float[] createLights(int lightCount, long seed) {
+		Random random = new Random(seed);
+		float[] lights = new float[lightCount * GlslLightCuller.LIGHT_SIZE];
+		for (int i = 0; i < lights.length; i += GlslLightCuller.LIGHT_SIZE) {
+			lights[i] = random.nextFloat() * 30f - 15f;
+			lights[i + 1] = random.nextFloat() * 20f - 10f;
+			lights[i + 2] = -random.nextFloat() * 26f + 1f;
+			lights[i + 3] = random.nextFloat() * 3f + .1f;
+		}
+		return lights;
+	}
+
+	/**
+	 * Creates culler, culls given lights with it and returns its tile lists.
+	 * Number of overflowed tiles is stored into overflow[0] if given.
+	 */
+	private static int[][] cull(float[] lights, int threads, int[] overflow) {
+		ExecutorService executor = threads > 1 ? Executors
+				.newFixedThreadPool(threads) : null;
+		try {
+			GlslLightCuller culler = new GlslLightCuller(TILE_SIZE, executor,
+					threads);
+			culler.setProjection(PROJECTION[0], PROJECTION[1], PROJECTION[2],
+					PROJECTION[3]);
+			culler.setViewport(WIDTH, HEIGHT);
+			culler.cull(lights, lights.length / GlslLightCuller.LIGHT_SIZE);
+			int tileCount = culler.getTileCountX() * culler.getTileCountY();
+			int[][] tiles = new int[tileCount][];
+			for (int tile = 0; tile < tileCount; ++tile) {
+				tiles[tile] = new int[culler.getTileLightCount(tile)];
+				for (int i = 0; i < tiles[tile].length; ++i) {
+					tiles[tile][i] = culler.getTileLight(tile, i);
+				}
+			}
+			if (overflow != null) {
+				overflow[0] = culler.getOverflowCount();
+			}
+			return tiles;
+		} finally {
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Builds complete, unlimited, tile lists by testing every light sphere
+	 * against planes of every tile frustum. Sphere radius is shrunk a little
+	 * so that lights only touching tile border within float precision aren't
+	 * required from culler.
+	 */
+	private static int[][] cullBruteForce(float[] lights) {
+		int tileCountX = (WIDTH + TILE_SIZE - 1) / TILE_SIZE;
+		int tileCountY = (HEIGHT + TILE_SIZE - 1) / TILE_SIZE;
+		int lightCount = lights.length / GlslLightCuller.LIGHT_SIZE;
+		int[][] tiles = new int[tileCountX * tileCountY][];
+		int[] list = new int[lightCount];
+		for (int y = 0; y < tileCountY; ++y) {
+			float y0 = toNdc(y, HEIGHT);
+			float y1 = toNdc(y + 1, HEIGHT);
+			for (int x = 0; x < tileCountX; ++x) {
+				float x0 = toNdc(x, WIDTH);
+				float x1 = toNdc(x + 1, WIDTH);
+				int count = 0;
+				for (int light = 0; light < lightCount; ++light) {
+					int idx = light * GlslLightCuller.LIGHT_SIZE;
+					float lx = lights[idx];
+					float ly = lights[idx + 1];
+					float lz = lights[idx + 2];
+					float radius = lights[idx + 3] * .999f - .0001f;
+					if (-lz + radius > PROJECTION[2]
+							&& -lz - radius < PROJECTION[3]
+							&& inside(PROJECTION[0], x0, lx, lz, radius)
+							&& inside(-PROJECTION[0], -x1, lx, lz, radius)
+							&& inside(PROJECTION[1], y0, ly, lz, radius)
+							&& inside(-PROJECTION[1], -y1, ly, lz, radius)) {
+						list[count++] = light;
+					}
+				}
+				int[] tile = new int[count];
+				System.arraycopy(list, 0, tile, 0, count);
+				tiles[x + y * tileCountX] = tile;
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * Checks whether sphere is inside, or intersects, tile frustum side plane
+	 * scale * p + ndc * z = 0 going through the eye. Plane is parallel to
+	 * the other screen axis, p being sphere coordinate along this axis.
+	 */
+	private static boolean inside(float scale, float ndc, float p, float z,
+			float radius) {
+		float distance = (scale * p + ndc * z)
+				/ (float) Math.sqrt(scale * scale + ndc * ndc);
+		return distance > -radius;
+	}
+
+	/**
+	 * Converts tile border into normalized device coordinate, clamped to
+	 * viewport.
+	 */
+	private static float toNdc(int tile, int size) {
+		return Math.min(1f, tile * TILE_SIZE * 2f / size - 1f);
+	}
+
+	@Test
+	public void testBruteForce() {
+		int[] lightCounts = { 1, 16, 63, 64, 500, 2000 };
+		int maxCount = 0;
+		for (int lightCount : lightCounts) {
+			float[] lights = createLights(lightCount, lightCount);
+			int[][] expected = cullBruteForce(lights);
+			int[] overflow = new int[1];
+			int[][] actual = cull(lights, 1, overflow);
+			assertEquals(expected.length, actual.length);
+			int expectedOverflow = 0;
+			for (int tile = 0; tile < expected.length; ++tile) {
+				assertContains(lightCount, tile, expected[tile], actual[tile]);
+				maxCount = Math.max(maxCount, expected[tile].length);
+				if (expected[tile].length > GlslLightCuller.MAX_TILE_LIGHTS) {
+					++expectedOverflow;
+				}
+			}
+			// Culler is conservative and may report more overflows.
+			assertTrue(overflow[0] >= expectedOverflow);
+		}
+		// Make sure overflowing tile lists got tested too.
+		assertTrue(maxCount > GlslLightCuller.MAX_TILE_LIGHTS);
+	}
+
+	@Test
+	public void testThreadCounts() {
+		float[] lights = createLights(2000, 2000);
+		int[][] expected = cull(lights, 1, null);
+		int[] threadCounts = { 2, 3, 4, 7 };
+		for (int threads : threadCounts) {
+			int[][] actual = cull(lights, threads, null);
+			for (int tile = 0; tile < expected.length; ++tile) {
+				assertArrayEquals(threads, tile, expected[tile], actual[tile]);
+			}
+		}
+	}
+
+	/**
+	 * Checks that tile list contains every reference light in increasing
+	 * order. Full lists are checked only up to their last light.
+	 */
+	private static void assertContains(int variant, int tile,
+			int[] expected, int[] actual) {
+		String message = "variant " + variant + " tile " + tile;
+		boolean full = actual.length == GlslLightCuller.MAX_TILE_LIGHTS;
+		if (expected.length > GlslLightCuller.MAX_TILE_LIGHTS) {
+			assertTrue(message, full);
+		}
+		int i = 0;
+		for (int light : expected) {
+			if (full && light > actual[actual.length - 1]) {
+				break;
+			}
+			while (i < actual.length && actual[i] < light) {
+				++i;
+			}
+			assertTrue(message + " light " + light, i < actual.length
+					&& actual[i] == light);
+		}
+		for (i = 1; i < actual.length; ++i) {
+			assertTrue(message, actual[i - 1] < actual[i]);
+		}
+	}
+
+	/**
+	 * Compares tile lists with message telling which tile differs.
+	 */
+	private static void assertArrayEquals(int variant, int tile,
+			int[] expected, int[] actual) {
+		String message = "variant " + variant + " tile " + tile;
+		assertEquals(message, expected.length, actual.length);
+		for (int i = 0; i < expected.length; ++i) {
+			assertEquals(message, expected[i], actual[i]);
+		}
+	}
+}
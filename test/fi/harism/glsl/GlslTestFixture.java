@@ -0,0 +1,109 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl;
+
+import fi.harism.glsl.gl.GlslGl;
+import fi.harism.glsl.gl.GlslGlContext;
+import fi.harism.glsl.gl.GlslGlRecorder;
+import fi.harism.glsl.scene.GlslShaderIds;
+
+/**
+ * Common set up for tests rendering headless. Sets GlslGlRecorder as GL
+ * backend for the duration of a test, and creates camera, shaders and shader
+ * ids the same way GlslRenderer does.
+ */
+public final class GlslTestFixture {
+
+	// Backend in use before set up.
+	private GlslGl mPreviousGl;
+	// Recorder set as backend.
+	private GlslGlRecorder mRecorder;
+
+	/**
+	 * Creates camera looking at origin from above and behind, which shows
+	 * most of every scene.
+	 * 
+	 * @return New camera
+	 */
+	public static GlslCamera createCamera() {
+		GlslCamera camera = new GlslCamera();
+		camera.setProjectionM(1f, 45f, .1f, 23f);
+		camera.setViewM(0f, 3f, -10f, 0f, 0f, 0f, 0f, 1f, 0f);
+		return camera;
+	}
+
+	/**
+	 * Creates scene shader program with given fragment shader resources
+	 * concatenated.
+	 * 
+	 * @param fragmentShaders
+	 *            Names of fragment shader resources
+	 * @return New shader
+	 */
+	public static GlslShader createSceneShader(String... fragmentShaders) {
+		StringBuilder fs = new StringBuilder();
+		for (String name : fragmentShaders) {
+			fs.append(GlslTestResources.getString(name));
+		}
+		GlslShader shader = new GlslShader();
+		shader.setProgram(GlslTestResources.getString("shader_scene_vs"),
+				fs.toString());
+		return shader;
+	}
+
+	/**
+	 * Creates shader ids for rendering scene with given shader.
+	 * 
+	 * @param shader
+	 *            Scene shader
+	 * @return Shader ids holding handles shader has
+	 */
+	public static GlslShaderIds getIds(GlslShader shader) {
+		int shaderIds[] = shader.getHandles("uProjM", "uInstanceRows",
+				"aPosition", "aNormal", "aColor", "aInstance");
+		GlslShaderIds ids = new GlslShaderIds();
+		ids.uProjM = shaderIds[0];
+		ids.uInstanceRows = shaderIds[1];
+		ids.aPosition = shaderIds[2];
+		ids.aNormal = shaderIds[3];
+		ids.aColor = shaderIds[4];
+		ids.aInstance = shaderIds[5];
+		return ids;
+	}
+
+	/**
+	 * Sets new GlslGlRecorder as GL backend and invalidates GL context, so
+	 * objects create their buffers again. Called before every test.
+	 * 
+	 * @return Recorder set as backend
+	 */
+	public GlslGlRecorder setUp() {
+		mPreviousGl = GlslGlContext.get();
+		mRecorder = new GlslGlRecorder();
+		GlslGlContext.set(mRecorder);
+		GlslGlContext.invalidate();
+		return mRecorder;
+	}
+
+	/**
+	 * Restores GL backend which was in use before setUp. Called after every
+	 * test.
+	 */
+	public void tearDown() {
+		GlslGlContext.set(mPreviousGl);
+	}
+}
@@ -0,0 +1,75 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl;
+
+import java.io.File;
+import java.util.HashMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Reads string resources for tests running on a plain JVM. Values are read
+ * from res/values under current working directory, which is expected to be
+ * project root, and whitespace is collapsed as Android resource compiler
+ * does.
+ */
+public final class GlslTestResources {
+
+	// String resources read so far.
+	private static HashMap<String, String> mStrings;
+
+	/**
+	 * Getter for string resource.
+	 * 
+	 * @param name
+	 *            Resource name, e.g. "shader_scene_vs"
+	 * @return Resource value
+	 */
+	public static synchronized String getString(String name) {
+		if (mStrings == null) {
+			mStrings = new HashMap<String, String>();
+			read(new File("res/values/shaders.xml"));
+			read(new File("res/values/strings.xml"));
+		}
+		String value = mStrings.get(name);
+		if (value == null) {
+			throw new IllegalArgumentException("No string resource " + name);
+		}
+		return value;
+	}
+
+	/**
+	 * Reads string elements from given resource file.
+	 */
+	private static void read(File file) {
+		try {
+			NodeList strings = DocumentBuilderFactory.newInstance()
+					.newDocumentBuilder().parse(file)
+					.getElementsByTagName("string");
+			for (int i = 0; i < strings.getLength(); ++i) {
+				Element string = (Element) strings.item(i);
+				mStrings.put(string.getAttribute("name"), string
+						.getTextContent().replaceAll("\\s+", " ").trim());
+			}
+		} catch (Exception ex) {
+			throw new RuntimeException("Reading " + file + " failed", ex);
+		}
+	}
+}
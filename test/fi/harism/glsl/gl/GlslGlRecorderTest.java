@@ -0,0 +1,141 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.gl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.opengl.GLES20;
+import fi.harism.glsl.GlslCamera;
+import fi.harism.glsl.GlslShader;
+import fi.harism.glsl.GlslTestFixture;
+import fi.harism.glsl.scene.GlslLight;
+import fi.harism.glsl.scene.GlslScene;
+import fi.harism.glsl.scene.GlslShaderIds;
+
+/**
+ * Renders scene frames headless through GlslGlRecorder and checks the
+ * counted per-frame costs.
+ */
+public class GlslGlRecorderTest {
+
+	// Number of lights in test scene.
+	private static final int LIGHT_COUNT = 4;
+
+	private final GlslTestFixture mFixture = new GlslTestFixture();
+	private GlslGlRecorder mRecorder;
+	private GlslCamera mCamera;
+	private GlslScene mScene;
+	private GlslShader mAmbientShader;
+	private GlslShader mLightShader;
+	private GlslShaderIds mAmbientIds;
+	private GlslShaderIds mLightIds;
+
+	/**
+	 * Renders ambient pass and one lighting pass per light the same way
+	 * GlslRenderer does, without shadows.
+	 */
+	private void renderFrame(long time) {
+		GlslGl gl = GlslGlContext.get();
+		mScene.animate(time);
+		mScene.updateMatrices(mCamera);
+
+		mAmbientShader.useProgram();
+		gl.glUniform1f(mAmbientShader.getHandle("uAmbientFactor"), .3f);
+		mScene.render(mAmbientIds, true);
+
+		mLightShader.useProgram();
+		for (GlslLight light : mScene.getLights()) {
+			gl.glUniform3fv(mLightShader.getHandle("uLightPosition"), 1,
+					light.getPosition(), 0);
+			mScene.render(mLightIds, false);
+		}
+	}
+
+	@Before
+	public void setUp() {
+		mRecorder = mFixture.setUp();
+		mCamera = GlslTestFixture.createCamera();
+		mAmbientShader = GlslTestFixture
+				.createSceneShader("shader_scene_ambient_fs");
+		mAmbientIds = GlslTestFixture.getIds(mAmbientShader);
+		mLightShader = GlslTestFixture.createSceneShader(
+				"shader_scene_phong_fs", "shader_shadow_none");
+		mLightIds = GlslTestFixture.getIds(mLightShader);
+
+		mScene = new GlslScene(null, 1);
+		mScene.setBatching(true);
+		mScene.initSceneBoxes1(mCamera, LIGHT_COUNT);
+	}
+
+	@After
+	public void tearDown() {
+		mFixture.tearDown();
+	}
+
+	@Test
+	public void testClientIndices() {
+		// Byte buffer holding short indices 0, 1 and 5 from its fifth byte
+		// on, surrounded by larger indices.
+		ByteBuffer indices = ByteBuffer.allocateDirect(16).order(
+				ByteOrder.nativeOrder());
+		indices.asShortBuffer().put(new short[] { 9, 9, 0, 1, 5, 9, 9, 9 });
+		indices.position(4);
+		FloatBuffer positions = ByteBuffer.allocateDirect(10 * 3 * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+		mRecorder.resetCounters();
+		mRecorder.glVertexAttribPointer(0, 3, GLES20.GL_FLOAT, false, 0,
+				positions);
+		mRecorder.glEnableVertexAttribArray(0);
+		mRecorder.glDrawElements(GLES20.GL_TRIANGLES, 3,
+				GLES20.GL_UNSIGNED_SHORT, indices);
+		// Vertices up to largest index, 5, are read plus the indices.
+		assertEquals(mRecorder.toString(), 6 * 3 * 4 + 3 * 2,
+				mRecorder.getClientBytes());
+	}
+
+	@Test
+	public void testFrameCounters() {
+		mRecorder.resetCounters();
+		renderFrame(1000);
+		int draws = mRecorder.getDrawCalls();
+		assertTrue("No draw calls: " + mRecorder, draws > 0);
+		// Ambient pass plus every light pass draw the same queue.
+		assertEquals(mRecorder.toString(), 0, draws % (LIGHT_COUNT + 1));
+		assertEquals(mRecorder.toString(), 2, mRecorder.getProgramSwitches());
+		assertEquals(mRecorder.toString(), 0, mRecorder.getTextureBinds());
+		assertEquals(mRecorder.toString(), 0, mRecorder.getFramebufferBinds());
+		assertEquals(mRecorder.toString(), 0, mRecorder.getClientBytes());
+
+		// Geometry is uploaded on first frame only, next frame with new
+		// matrices issues same draw calls.
+		mRecorder.resetCounters();
+		renderFrame(2000);
+		assertEquals(mRecorder.toString(), draws, mRecorder.getDrawCalls());
+		assertEquals(mRecorder.toString(), 0, mRecorder.getBufferUploadBytes());
+		assertEquals(mRecorder.toString(), 0, mRecorder.getClientBytes());
+	}
+}
@@ -0,0 +1,81 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.gl;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.opengl.GLES20;
+
+/**
+ * Sends GL calls through GlslGlStateCache into GlslGlRecorder and checks
+ * which of them reach the recorder.
+ */
+public class GlslGlStateCacheTest {
+
+	private GlslGlRecorder mRecorder;
+	private GlslGlStateCache mStateCache;
+
+	@Before
+	public void setUp() {
+		mRecorder = new GlslGlRecorder();
+		mStateCache = new GlslGlStateCache(mRecorder);
+	}
+
+	@Test
+	public void testRedundantCallsDropped() {
+		// Texture bindings are tracked per unit, so active unit has to be
+		// known first.
+		mStateCache.glActiveTexture(GLES20.GL_TEXTURE0);
+		for (int i = 0; i < 3; ++i) {
+			mStateCache.glUseProgram(1);
+			mStateCache.glBindTexture(GLES20.GL_TEXTURE_2D, 2);
+			mStateCache.glEnable(GLES20.GL_DEPTH_TEST);
+		}
+		assertEquals(mRecorder.toString(), 1, mRecorder.getProgramSwitches());
+		assertEquals(mRecorder.toString(), 1, mRecorder.getTextureBinds());
+		// Active texture and enable.
+		assertEquals(mRecorder.toString(), 2, mRecorder.getStateChanges());
+		assertEquals(6, mStateCache.getEliminatedCalls());
+
+		// Changed values pass through, counter starts from zero again.
+		mStateCache.resetCounters();
+		mStateCache.glUseProgram(3);
+		mStateCache.glBindTexture(GLES20.GL_TEXTURE_2D, 4);
+		mStateCache.glDisable(GLES20.GL_DEPTH_TEST);
+		mStateCache.glUseProgram(3);
+		assertEquals(mRecorder.toString(), 2, mRecorder.getProgramSwitches());
+		assertEquals(mRecorder.toString(), 2, mRecorder.getTextureBinds());
+		assertEquals(mRecorder.toString(), 3, mRecorder.getStateChanges());
+		assertEquals(1, mStateCache.getEliminatedCalls());
+	}
+
+	@Test
+	public void testInvalidate() {
+		mStateCache.glUseProgram(1);
+		mStateCache.glEnable(GLES20.GL_BLEND);
+		// Nothing is known of new context, so same values are sent again.
+		mStateCache.invalidate();
+		mStateCache.glUseProgram(1);
+		mStateCache.glEnable(GLES20.GL_BLEND);
+		assertEquals(mRecorder.toString(), 2, mRecorder.getProgramSwitches());
+		assertEquals(mRecorder.toString(), 2, mRecorder.getStateChanges());
+		assertEquals(0, mStateCache.getEliminatedCalls());
+	}
+}
@@ -0,0 +1,187 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.scene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Vector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.harism.glsl.GlslTestFixture;
+import fi.harism.glsl.gl.GlslGlRecorder;
+
+/**
+ * Writes generated mesh files and reads them back with GlslMesh.
+ */
+public class GlslMeshTest {
+
+	// Tetrahedron corners.
+	private static final float[] POSITIONS = { 1f, 1f, 1f, -1f, -1f, 1f, -1f,
+			1f, -1f, 1f, -1f, -1f };
+	// Render triangles, using vertices with normals.
+	private static final short[] INDICES = { 0, 1, 2, 0, 3, 1, 0, 2, 3, 1, 3,
+			2 };
+	// Shadow volume triangles, every face paired with its extruded copy.
+	private static final short[] SHADOW_INDICES = { 0, 1, 2, 4, 6, 5, 0, 3,
+			1, 4, 5, 7 };
+	// Bounding sphere radius.
+	private static final float RADIUS = 1.7320508f;
+
+	private final GlslTestFixture mFixture = new GlslTestFixture();
+	private GlslGlRecorder mRecorder;
+	private File mFile;
+
+	/**
+	 * Creates vertex data for tetrahedron. First four vertices have normals
+	 * pointing away from origin, last four are their copies with zero
+	 * normal for shadow volume extrusion.
+	 */
+	private static ByteBuffer createVertices() {
+		ByteBuffer vertices = ByteBuffer.allocate(8 * GlslBox.STRIDE_BYTES)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < 8; ++i) {
+			int p = (i % 4) * 3;
+			for (int j = 0; j < 3; ++j) {
+				vertices.putFloat(POSITIONS[p + j]);
+			}
+			for (int j = 0; j < 3; ++j) {
+				vertices.put((byte) (i < 4 ? POSITIONS[p + j] * 73 : 0));
+			}
+			vertices.put((byte) 0);
+			vertices.put((byte) (i * 30)).put((byte) 200).put((byte) 100);
+			vertices.put((byte) 0);
+		}
+		vertices.flip();
+		return vertices;
+	}
+
+	/**
+	 * Writes mesh file with given contents.
+	 */
+	private void writeMesh(ByteBuffer vertices, short[] indices,
+			short[] shadowIndices) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(
+				24 + vertices.remaining() + 2
+						* (indices.length + shadowIndices.length)).order(
+				ByteOrder.LITTLE_ENDIAN);
+		data.putInt(GlslMesh.MAGIC);
+		data.putInt(vertices.remaining() / GlslBox.STRIDE_BYTES);
+		data.putInt(indices.length);
+		data.putInt(shadowIndices.length);
+		data.putFloat(RADIUS);
+		data.putInt(0);
+		data.put(vertices.duplicate());
+		for (short index : indices) {
+			data.putShort(index);
+		}
+		for (short index : shadowIndices) {
+			data.putShort(index);
+		}
+		FileOutputStream os = new FileOutputStream(mFile);
+		try {
+			os.write(data.array());
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Writes mesh file with given contents and checks loading it fails.
+	 */
+	private void assertInvalid(short[] indices, short[] shadowIndices)
+			throws IOException {
+		writeMesh(createVertices(), indices, shadowIndices);
+		try {
+			new GlslMesh(mFile);
+			fail("Invalid mesh loaded");
+		} catch (IOException ex) {
+			// Expected.
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		mRecorder = mFixture.setUp();
+		mFile = File.createTempFile("glslmesh", ".bin");
+	}
+
+	@After
+	public void tearDown() {
+		mFixture.tearDown();
+		mFile.delete();
+	}
+
+	@Test
+	public void testInvalidIndices() throws IOException {
+		// Index referring past last vertex, in render and shadow indices.
+		short[] indices = INDICES.clone();
+		indices[5] = 8;
+		assertInvalid(indices, SHADOW_INDICES);
+		short[] shadowIndices = SHADOW_INDICES.clone();
+		shadowIndices[11] = -1;
+		assertInvalid(INDICES, shadowIndices);
+		// Index counts which aren't whole triangles.
+		assertInvalid(Arrays.copyOf(INDICES, 11), SHADOW_INDICES);
+		assertInvalid(INDICES, Arrays.copyOf(SHADOW_INDICES, 10));
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		ByteBuffer vertices = createVertices();
+		writeMesh(vertices, INDICES, SHADOW_INDICES);
+		GlslMesh mesh = new GlslMesh(mFile);
+
+		assertEquals(RADIUS, mesh.getBoundingRadius(), 0f);
+		assertEquals(vertices, mesh.getVertexData());
+		int[] shadowIndices = mesh.getShadowIndices();
+		assertEquals(SHADOW_INDICES.length, shadowIndices.length);
+		for (int i = 0; i < SHADOW_INDICES.length; ++i) {
+			assertEquals(SHADOW_INDICES[i], shadowIndices[i]);
+		}
+
+		// Mapped data is uploaded as such on first draw.
+		Vector<GlslObject> roots = new Vector<GlslObject>();
+		roots.add(mesh);
+		GlslTransformStore store = new GlslTransformStore(null, 1);
+		store.build(roots);
+		store.update(new float[] { 1f, 0f, 0f, 0f, 0f, 1f, 0f, 0f, 0f, 0f,
+				1f, -5f }, true);
+		GlslShaderIds ids = new GlslShaderIds();
+		ids.aPosition = 0;
+		ids.aNormal = 1;
+		ids.aColor = 2;
+		ids.aInstance = 3;
+		mRecorder.resetCounters();
+		mesh.draw(ids, false);
+		mesh.draw(ids, true);
+		assertEquals(2, mRecorder.getDrawCalls());
+		assertEquals(vertices.remaining() + 2
+				* (INDICES.length + SHADOW_INDICES.length),
+				mRecorder.getBufferUploadBytes());
+		assertEquals(0, mRecorder.getClientBytes());
+	}
+}
@@ -0,0 +1,96 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.scene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.harism.glsl.GlslCamera;
+import fi.harism.glsl.GlslShader;
+import fi.harism.glsl.GlslTestFixture;
+import fi.harism.glsl.gl.GlslGlRecorder;
+
+/**
+ * Renders benchmark scenes through GlslGlRecorder and checks draw call counts.
+ */
+public class GlslSceneTest {
+
+	// Number of boxes in initSceneBoxes3 grid.
+	private static final int BOX_COUNT = 1000;
+
+	private final GlslTestFixture mFixture = new GlslTestFixture();
+	private GlslGlRecorder mRecorder;
+	private GlslCamera mCamera;
+	private GlslShader mShader;
+	private GlslShaderIds mIds;
+
+	/**
+	 * Renders given scene with ambient shader and returns number of draw
+	 * calls it took.
+	 */
+	private int render(GlslScene scene) {
+		scene.animate(5000);
+		scene.updateMatrices(mCamera);
+		mRecorder.resetCounters();
+		mShader.useProgram();
+		scene.render(mIds, true);
+		return mRecorder.getDrawCalls();
+	}
+
+	@Before
+	public void setUp() {
+		mRecorder = mFixture.setUp();
+		mCamera = GlslTestFixture.createCamera();
+		mShader = GlslTestFixture.createSceneShader("shader_scene_ambient_fs");
+		mIds = GlslTestFixture.getIds(mShader);
+	}
+
+	@After
+	public void tearDown() {
+		mFixture.tearDown();
+	}
+
+	@Test
+	public void testBoxes3Batching() {
+		GlslScene scene = new GlslScene(null, 1);
+		scene.setBatching(false);
+		scene.initSceneBoxes3(mCamera, 4);
+		// Without batching every visible box is drawn with a call of its own.
+		int unbatched = render(scene);
+		assertTrue("Too few boxes visible: " + unbatched,
+				unbatched > BOX_COUNT / 2);
+
+		// Every chunk of BATCH_SIZE boxes is drawn with one call, but only
+		// if any of its boxes is visible.
+		scene.setBatching(true);
+		int batched = render(scene);
+		int maxBatched = (BOX_COUNT + GlslBoxBatch.BATCH_SIZE - 1)
+				/ GlslBoxBatch.BATCH_SIZE;
+		assertTrue("Batched " + batched + " unbatched " + unbatched,
+				batched <= maxBatched);
+		assertTrue("Batched " + batched + " unbatched " + unbatched,
+				batched * GlslBoxBatch.BATCH_SIZE >= unbatched);
+
+		// Turning batching off returns to drawing boxes one by one.
+		scene.setBatching(false);
+		assertEquals(unbatched, render(scene));
+	}
+}
@@ -0,0 +1,128 @@
+/*
+   Copyright 2011 Harri Smtt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.glsl.scene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+/**
+ * Compares parallel GlslTransformStore updates against serial ones.
+ */
+public class GlslTransformStoreTest {
+
+	// Number of objects, above parallel update threshold.
+	private static final int OBJECT_COUNT = 20000;
+
+	/**
+	 * Creates random wide hierarchy. Every object is added under any one of
+	 * the objects created before it, apart from a few roots, which gives
+	 * shallow trees with many children per object.
+	 */
+	private static GlslObject[] createObjects(Vector<GlslObject> roots,
+			long seed) {
+		Random random = new Random(seed);
+		GlslObject[] objects = new GlslObject[OBJECT_COUNT];
+		for (int i = 0; i < OBJECT_COUNT; ++i) {
+			GlslObject object = random.nextInt(3) == 0 ? new GlslBox()
+					: new GlslObject();
+			setRandomTransform(object, random);
+			if (i < 4) {
+				roots.add(object);
+			} else {
+				objects[random.nextInt(i)].addChild(object);
+			}
+			objects[i] = object;
+		}
+		return objects;
+	}
+
+	/**
+	 * Sets random position, rotation and scaling for given object.
+	 */
+	private static void setRandomTransform(GlslObject object, Random random) {
+		object.setPosition(random.nextFloat() * 2f - 1f,
+				random.nextFloat() * 2f - 1f, random.nextFloat() * 2f - 1f);
+		object.setRotation(random.nextFloat() * 360f,
+				random.nextFloat() * 360f, random.nextFloat() * 360f);
+		object.setScaling(random.nextFloat() * .2f + .9f);
+	}
+
+	/**
+	 * Updates serial and parallel store with same view and changes and checks
+	 * their results are bit-identical.
+	 */
+	private static void testThreads(int threads) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			Vector<GlslObject> serialRoots = new Vector<GlslObject>();
+			Vector<GlslObject> parallelRoots = new Vector<GlslObject>();
+			GlslObject[] serialObjects = createObjects(serialRoots, threads);
+			GlslObject[] parallelObjects = createObjects(parallelRoots,
+					threads);
+			GlslTransformStore serial = new GlslTransformStore(null, 1);
+			GlslTransformStore parallel = new GlslTransformStore(executor,
+					threads);
+			serial.build(serialRoots);
+			parallel.build(parallelRoots);
+			assertEquals(OBJECT_COUNT, parallel.getCount());
+
+			Random random = new Random(threads);
+			float[] viewRows = { 1f, 0f, 0f, 0f, 0f, 1f, 0f, -3f, 0f, 0f,
+					1f, -10f };
+			for (int frame = 0; frame < 8; ++frame) {
+				// Every other frame moves camera, and every frame moves a
+				// few objects.
+				boolean viewChanged = frame % 2 == 0;
+				if (viewChanged) {
+					viewRows[3] = frame * .5f;
+				}
+				for (int i = 0; i < 16; ++i) {
+					int index = random.nextInt(OBJECT_COUNT);
+					long seed = random.nextLong();
+					setRandomTransform(serialObjects[index], new Random(seed));
+					setRandomTransform(parallelObjects[index],
+							new Random(seed));
+				}
+				String message = threads + " threads, frame " + frame;
+				assertEquals(message, serial.update(viewRows, viewChanged),
+						parallel.update(viewRows, viewChanged));
+				assertTrue(message, Arrays.equals(serial.getModelViewRows(),
+						parallel.getModelViewRows()));
+				assertTrue(message, Arrays.equals(serial.getBounds(),
+						parallel.getBounds()));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testParallelUpdate() {
+		int[] threadCounts = { 2, 3, 4, 8 };
+		for (int threads : threadCounts) {
+			testThreads(threads);
+		}
+	}
+}